@@ -33,6 +33,8 @@ import com.google.cloud.bigquery.TableDefinition;
 import com.google.cloud.bigquery.TableId;
 import com.google.cloud.bigquery.storage.v1.BigQueryReadClient;
 import com.google.cloud.bigquery.storage.v1.BigQueryReadSettings;
+import com.google.cloud.bigquery.storage.v1.BigQueryWriteClient;
+import com.google.cloud.bigquery.storage.v1.BigQueryWriteSettings;
 import com.google.common.collect.ImmutableMap;
 import io.grpc.LoadBalancerRegistry;
 import io.grpc.internal.PickFirstLoadBalancerProvider;
@@ -40,8 +42,11 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.logging.Logger;
 import org.geotools.data.store.ContentDataStore;
 import org.geotools.data.store.ContentEntry;
@@ -49,6 +54,7 @@ import org.geotools.data.store.ContentFeatureSource;
 import org.geotools.feature.NameImpl;
 import org.geotools.referencing.crs.DefaultGeographicCRS;
 import org.geotools.util.logging.Logging;
+import org.locationtech.jts.geom.GeometryFactory;
 import org.opengis.feature.type.Name;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
@@ -64,6 +70,7 @@ public class BigqueryDataStore extends ContentDataStore {
 
     protected BigQuery queryClient;
     protected BigQueryReadClient storageClient;
+    protected BigQueryWriteClient writeClient;
 
     protected final String projectId;
     protected final String datasetName;
@@ -77,6 +84,57 @@ public class BigqueryDataStore extends ContentDataStore {
 
     protected GoogleCredentials credentials;
 
+    protected BigqueryViewProvisioner viewProvisioner;
+
+    protected Boolean clipGeometries = false;
+
+    protected Boolean optimizeFilters = true;
+
+    protected BigqueryFeatureCache featureCache;
+
+    protected BigqueryReplicaManager replicaManager;
+
+    protected BigqueryRequestCoalescer requestCoalescer;
+
+    protected BigqueryDecodePool decodePool;
+
+    protected int storageStreams = 1;
+
+    protected String fidColumn;
+
+    protected Boolean hashFids = false;
+
+    protected Boolean primitiveTypes = false;
+
+    protected Boolean keepEncodedGeometries = false;
+
+    protected int stringDictionarySize = 1000;
+
+    protected BigqueryStringDictionary sharedStringDictionary;
+
+    protected BigqueryPrecisionOptions precision =
+            BigqueryPrecisionOptions.BIGQUERY_NATIVE_PRECISION;
+
+    protected GeometryFactory geometryFactory =
+            new GeometryFactory(precision.getCoordinateSequenceFactory());
+
+    protected BigqueryPointOptions pointOptions = BigqueryPointOptions.POINTS_NONE;
+
+    protected String[] pointCoordinateColumns;
+
+    protected Boolean allowWrites = false;
+
+    protected BigqueryWriteStreamType writeStreamType = BigqueryWriteStreamType.COMMITTED;
+
+    protected int writeBatchSize = 500;
+
+    protected long writeFlushInterval = 1000;
+
+    protected BigqueryRowSink.Factory rowSinkFactory =
+            (table, type) -> new BigqueryStorageRowSink(getWriteClient(), table, type);
+
+    protected ScheduledExecutorService writeScheduler;
+
     /** Table "types" to support in geoserver. */
     protected static final Map<TableDefinition.Type, String> TABLE_TYPE_MAP =
             new ImmutableMap.Builder<TableDefinition.Type, String>()
@@ -119,7 +177,6 @@ public class BigqueryDataStore extends ContentDataStore {
                 autoAddRequiredPartitionFilter == null ? false : autoAddRequiredPartitionFilter;
 
         BigQueryOptions.Builder builder = BigQueryOptions.newBuilder();
-        BigQueryReadSettings.Builder settingsBuilder = BigQueryReadSettings.newBuilder();
 
         if (serviceAccountKeyFile != null) {
             try (FileInputStream serviceAccountStream =
@@ -127,15 +184,102 @@ public class BigqueryDataStore extends ContentDataStore {
                 credentials = ServiceAccountCredentials.fromStream(serviceAccountStream);
             }
             builder.setCredentials(credentials);
-            settingsBuilder.setCredentialsProvider(FixedCredentialsProvider.create(credentials));
         }
 
         this.queryClient = builder.setProjectId(projectId).build().getService();
 
         if (accessMethod == BigqueryAccessMethod.STORAGE_API) {
+            getStorageClient();
+        }
+
+        if (pregen != null && pregen != BigqueryPregenerateOptions.MV_NONE) {
+            this.viewProvisioner =
+                    new BigqueryViewProvisioner(
+                            queryClient,
+                            datasetName,
+                            pregen,
+                            BigqueryViewProvisioner.DEFAULT_TOLERANCES,
+                            null,
+                            null);
+        }
+    }
+
+    /**
+     * Return the Storage API client, creating it on first use since it is also needed for local
+     * replicas when the Query API is the configured access method.
+     *
+     * @return client
+     * @throws IOException
+     */
+    protected synchronized BigQueryReadClient getStorageClient() throws IOException {
+        if (storageClient == null) {
+            BigQueryReadSettings.Builder settingsBuilder = BigQueryReadSettings.newBuilder();
+            if (credentials != null) {
+                settingsBuilder.setCredentialsProvider(
+                        FixedCredentialsProvider.create(credentials));
+            }
             this.storageClient = BigQueryReadClient.create(settingsBuilder.build());
             LoadBalancerRegistry.getDefaultRegistry().register(new PickFirstLoadBalancerProvider());
         }
+        return storageClient;
+    }
+
+    /**
+     * Return the Storage Write API client, creating it on first use.
+     *
+     * @return client
+     * @throws IOException
+     */
+    protected synchronized BigQueryWriteClient getWriteClient() throws IOException {
+        if (writeClient == null) {
+            BigQueryWriteSettings.Builder settingsBuilder = BigQueryWriteSettings.newBuilder();
+            if (credentials != null) {
+                settingsBuilder.setCredentialsProvider(
+                        FixedCredentialsProvider.create(credentials));
+            }
+            this.writeClient = BigQueryWriteClient.create(settingsBuilder.build());
+        }
+        return writeClient;
+    }
+
+    /**
+     * Return the thread that sends the batches of feature writers once they waited for the flush
+     * interval.
+     *
+     * @return
+     */
+    protected synchronized ScheduledExecutorService getWriteScheduler() {
+        if (writeScheduler == null) {
+            writeScheduler =
+                    Executors.newSingleThreadScheduledExecutor(
+                            r -> {
+                                Thread thread = new Thread(r, "bigquery-write-flush");
+                                thread.setDaemon(true);
+                                return thread;
+                            });
+        }
+        return writeScheduler;
+    }
+
+    /**
+     * Return the provisioner of pregenerated materialized views.
+     *
+     * @return provisioner, or null if pregenerated views are disabled
+     */
+    public BigqueryViewProvisioner getViewProvisioner() {
+        return viewProvisioner;
+    }
+
+    /**
+     * Replace the provisioner of pregenerated materialized views, e.g. to configure tolerances.
+     *
+     * @param viewProvisioner
+     */
+    public void setViewProvisioner(BigqueryViewProvisioner viewProvisioner) {
+        if (this.viewProvisioner != null) {
+            this.viewProvisioner.dispose();
+        }
+        this.viewProvisioner = viewProvisioner;
     }
 
     @Override
@@ -153,7 +297,8 @@ public class BigqueryDataStore extends ContentDataStore {
                 String geomColumn = getTableGeometryColumn(schema);
 
                 if (TABLE_TYPE_MAP.containsKey(type) && null != geomColumn
-                	&& tableId.toString().indexOf("_pregen_") == -1) {
+                	&& tableId.toString().indexOf("_pregen_") == -1
+                	&& tableId.toString().indexOf("_pyramid_") == -1) {
                     typeNames.add(new NameImpl(getTypeLabel(table.getGeneratedId())));
                 }
             }
@@ -180,12 +325,314 @@ public class BigqueryDataStore extends ContentDataStore {
         return null;
     }
 
+    /**
+     * Return the id of the table of a type name, which is either the full "project.dataset.table"
+     * name or the name of a table in the dataset of the store.
+     *
+     * @param typeName
+     * @return
+     */
+    protected TableId getTableId(String typeName) {
+        List<String> parts = Arrays.asList(typeName.split("\\."));
+        if (parts.size() < 3) {
+            return TableId.of(projectId, datasetName, parts.get(parts.size() - 1));
+        }
+        return TableId.of(
+                String.join(".", parts.subList(0, parts.size() - 2)),
+                parts.get(parts.size() - 2),
+                parts.get(parts.size() - 1));
+    }
+
     @Override
     protected ContentFeatureSource createFeatureSource(ContentEntry entry) throws IOException {
+        if (allowWrites) {
+            return new BigqueryFeatureStore(entry);
+        }
         return new BigqueryFeatureSource(entry);
     }
 
     BigQuery read() throws IOException {
         return queryClient;
     }
+
+    /**
+     * Whether the Query API reader clips returned geometries to the (buffered) BBOX of the query.
+     *
+     * @param clipGeometries
+     */
+    public void setClipGeometries(Boolean clipGeometries) {
+        this.clipGeometries = clipGeometries == null ? false : clipGeometries;
+    }
+
+    /**
+     * Whether filters are rewritten before translation, e.g. to put box guards in front of
+     * expensive spatial predicates, see {@link BigqueryFilterOptimizer}.
+     *
+     * @param optimizeFilters
+     */
+    public void setOptimizeFilters(Boolean optimizeFilters) {
+        this.optimizeFilters = optimizeFilters == null ? true : optimizeFilters;
+    }
+
+    /**
+     * Return the maximum number of streams of a Storage API read session.
+     *
+     * @return
+     */
+    public int getStorageStreams() {
+        return storageStreams;
+    }
+
+    /**
+     * Set the maximum number of streams of a Storage API read session, which are decoded and
+     * filtered in parallel.
+     *
+     * @param storageStreams
+     */
+    public void setStorageStreams(Integer storageStreams) {
+        this.storageStreams = storageStreams == null ? 1 : Math.max(storageStreams, 1);
+    }
+
+    /**
+     * Return the column feature IDs are taken from, in tables that have it.
+     *
+     * @return column, or null if feature IDs are row numbers
+     */
+    public String getFidColumn() {
+        return fidColumn;
+    }
+
+    /**
+     * Set the column feature IDs are taken from, e.g. a primary key, which keeps IDs stable across
+     * requests and lets Id filters run in BigQuery, see {@link BigqueryFeatureIds}.
+     *
+     * @param fidColumn column, or null to use row numbers
+     */
+    public void setFidColumn(String fidColumn) {
+        this.fidColumn = fidColumn == null || fidColumn.trim().isEmpty() ? null : fidColumn.trim();
+    }
+
+    /**
+     * Whether feature IDs are the FARM_FINGERPRINT of the feature ID column rather than its value.
+     *
+     * @param hashFids
+     */
+    public void setHashFids(Boolean hashFids) {
+        this.hashFids = hashFids == null ? false : hashFids;
+    }
+
+    /**
+     * Whether INT64, FLOAT64 and TIMESTAMP columns are bound to Long, Double and Timestamp rather
+     * than BigInteger, Float and Date. Takes effect for feature types built afterwards.
+     *
+     * @param primitiveTypes
+     */
+    public void setPrimitiveTypes(Boolean primitiveTypes) {
+        this.primitiveTypes = primitiveTypes == null ? false : primitiveTypes;
+    }
+
+    /**
+     * Whether features keep the GeoJSON or WKT their geometry was read from, so encoders of the
+     * same format can write it out as is, see {@link BigqueryLazyFeature#getEncodedGeometry()}.
+     *
+     * @param keepEncodedGeometries
+     */
+    public void setKeepEncodedGeometries(Boolean keepEncodedGeometries) {
+        this.keepEncodedGeometries = keepEncodedGeometries == null ? false : keepEncodedGeometries;
+    }
+
+    /**
+     * Configure appending features through the Storage Write API, see {@link
+     * BigqueryFeatureStore}.
+     *
+     * @param allowWrites whether feature types are writable
+     * @param streamType COMMITTED for rows visible as soon as they are appended, PENDING for rows
+     *     visible at once when the writer is closed
+     * @param batchSize number of rows per append
+     * @param flushIntervalMillis longest time a row waits for its batch to fill, 0 to only send
+     *     full batches
+     */
+    public void setWriteOptions(
+            Boolean allowWrites,
+            BigqueryWriteStreamType streamType,
+            Integer batchSize,
+            Integer flushIntervalMillis) {
+        this.allowWrites = allowWrites == null ? false : allowWrites;
+        if (streamType != null) {
+            this.writeStreamType = streamType;
+        }
+        if (batchSize != null && batchSize > 0) {
+            this.writeBatchSize = batchSize;
+        }
+        if (flushIntervalMillis != null && flushIntervalMillis >= 0) {
+            this.writeFlushInterval = flushIntervalMillis;
+        }
+    }
+
+    public BigqueryRowSink.Factory getRowSinkFactory() {
+        return rowSinkFactory;
+    }
+
+    /**
+     * Replace the sinks features are appended to, e.g. for tests.
+     *
+     * @param rowSinkFactory
+     */
+    public void setRowSinkFactory(BigqueryRowSink.Factory rowSinkFactory) {
+        this.rowSinkFactory = rowSinkFactory;
+    }
+
+    /**
+     * Return the factory of decoded geometries, whose coordinate sequences depend on the
+     * precision.
+     *
+     * @return
+     */
+    public GeometryFactory getGeometryFactory() {
+        return geometryFactory;
+    }
+
+    /**
+     * Set the precision decoded coordinates are held at.
+     *
+     * @param precision
+     */
+    public void setPrecision(BigqueryPrecisionOptions precision) {
+        this.precision =
+                precision == null ? BigqueryPrecisionOptions.BIGQUERY_NATIVE_PRECISION : precision;
+        this.geometryFactory = new GeometryFactory(this.precision.getCoordinateSequenceFactory());
+    }
+
+    /**
+     * Set which geometry columns are read as the coordinates of points, see {@link
+     * BigqueryPointColumns}. Takes effect for feature types built afterwards.
+     *
+     * @param pointOptions
+     * @param coordinateColumns comma-separated longitude and latitude columns the Storage API
+     *     reads instead of point geometries, may be null
+     */
+    public void setPointColumns(BigqueryPointOptions pointOptions, String coordinateColumns) {
+        this.pointOptions = pointOptions == null ? BigqueryPointOptions.POINTS_NONE : pointOptions;
+        this.pointCoordinateColumns = null;
+        if (coordinateColumns != null && !coordinateColumns.trim().isEmpty()) {
+            String[] columns = coordinateColumns.trim().split("\\s*,\\s*");
+            if (columns.length != 2) {
+                throw new IllegalArgumentException(
+                        "Expected a longitude and a latitude column: " + coordinateColumns);
+            }
+            this.pointCoordinateColumns = columns;
+        }
+    }
+
+    /**
+     * Return the dictionary a new reader interns the values of string columns with.
+     *
+     * @return dictionary shared by all readers, a new one, or null if strings are not interned
+     */
+    public BigqueryStringDictionary getStringDictionary() {
+        if (sharedStringDictionary != null) {
+            return sharedStringDictionary;
+        }
+        return stringDictionarySize > 0
+                ? new BigqueryStringDictionary(stringDictionarySize)
+                : null;
+    }
+
+    /**
+     * Set how the values of string columns are interned.
+     *
+     * @param size distinct values kept per column, 0 to not intern strings
+     * @param shared whether all readers share one dictionary, rather than one each
+     */
+    public void setStringDictionary(Integer size, Boolean shared) {
+        this.stringDictionarySize = size == null ? 1000 : Math.max(size, 0);
+        this.sharedStringDictionary =
+                Boolean.TRUE.equals(shared) && stringDictionarySize > 0
+                        ? new BigqueryStringDictionary(stringDictionarySize)
+                        : null;
+    }
+
+    /**
+     * Return the cache of features returned for BBOX queries.
+     *
+     * @return cache, or null if caching is disabled
+     */
+    public BigqueryFeatureCache getFeatureCache() {
+        return featureCache;
+    }
+
+    public void setFeatureCache(BigqueryFeatureCache featureCache) {
+        this.featureCache = featureCache;
+    }
+
+    /**
+     * Return the coalescer of identical in-flight requests.
+     *
+     * @return coalescer, or null if every request runs its own job
+     */
+    public BigqueryRequestCoalescer getRequestCoalescer() {
+        return requestCoalescer;
+    }
+
+    public void setRequestCoalescer(BigqueryRequestCoalescer requestCoalescer) {
+        this.requestCoalescer = requestCoalescer;
+    }
+
+    /**
+     * Return the pool the rows of Storage API response blocks are decoded on.
+     *
+     * @return pool, or null if rows are decoded by the thread reading them
+     */
+    public BigqueryDecodePool getDecodePool() {
+        return decodePool;
+    }
+
+    public void setDecodePool(BigqueryDecodePool decodePool) {
+        if (this.decodePool != null && this.decodePool != decodePool) {
+            this.decodePool.dispose();
+        }
+        this.decodePool = decodePool;
+    }
+
+    /**
+     * Return the manager of local replicas.
+     *
+     * @return manager, or null if no table is replicated
+     */
+    public BigqueryReplicaManager getReplicaManager() {
+        return replicaManager;
+    }
+
+    public void setReplicaManager(BigqueryReplicaManager replicaManager) {
+        if (this.replicaManager != null) {
+            this.replicaManager.dispose();
+        }
+        this.replicaManager = replicaManager;
+    }
+
+    @Override
+    public void dispose() {
+        if (viewProvisioner != null) {
+            viewProvisioner.dispose();
+        }
+        if (featureCache != null) {
+            featureCache.clear();
+        }
+        if (replicaManager != null) {
+            replicaManager.dispose();
+        }
+        if (decodePool != null) {
+            decodePool.dispose();
+        }
+        if (storageClient != null) {
+            storageClient.close();
+        }
+        if (writeScheduler != null) {
+            writeScheduler.shutdown();
+        }
+        if (writeClient != null) {
+            writeClient.close();
+        }
+        super.dispose();
+    }
 }
@@ -20,6 +20,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -58,7 +59,7 @@ public class BigqueryDataStoreFactory implements DataStoreFactorySpi {
             new Param(
                     "Simplify Geometries on-the-fly in BigQuery",
                     Boolean.class,
-                    "Use BigQuery's ST_SIMPLIFY function (applicable to STANDARD_QUERY_API)",
+                    "Use BigQuery's ST_SIMPLIFY function, or simplify on the client with STORAGE_API",
                     false,
                     true);
 
@@ -71,6 +72,63 @@ public class BigqueryDataStoreFactory implements DataStoreFactorySpi {
                     BigqueryPregenerateOptions.MV_NONE,
                     new KVP(Param.OPTIONS, Arrays.asList(BigqueryPregenerateOptions.values())));
 
+    public static final Param PREGENERATE_TOLERANCES =
+            new Param(
+                    "Pregenerated View Tolerances",
+                    String.class,
+                    "Comma-separated simplification tolerances (meters), one materialized view is pregenerated per tolerance",
+                    false,
+                    "1,10,100,1000");
+
+    public static final Param PREGENERATE_REFRESH_INTERVAL =
+            new Param(
+                    "Pregenerated View Refresh Interval (minutes)",
+                    Integer.class,
+                    "Refresh interval of pregenerated materialized views, BigQuery default if empty; also how often pyramid tables are checked for changes of their base table, hourly if empty",
+                    false,
+                    null);
+
+    public static final Param PREGENERATE_MAX_STALENESS =
+            new Param(
+                    "Pregenerated View Max Staleness (minutes)",
+                    Integer.class,
+                    "Max staleness of pregenerated materialized views, BigQuery default if empty",
+                    false,
+                    null);
+
+    public static final Param PREGENERATE_PYRAMID =
+            new Param(
+                    "Pregenerate Pyramid Tables",
+                    BigqueryPyramidOptions.class,
+                    "Pregenerate tables of geometries cut into tile-sized pieces, for layers with very large geometries",
+                    false,
+                    BigqueryPyramidOptions.PYRAMID_NONE,
+                    new KVP(Param.OPTIONS, Arrays.asList(BigqueryPyramidOptions.values())));
+
+    public static final Param PYRAMID_ZOOM_LEVELS =
+            new Param(
+                    "Pyramid Zoom Levels",
+                    String.class,
+                    "Comma-separated zoom levels, one pyramid table is pregenerated per zoom level",
+                    false,
+                    "8,12");
+
+    public static final Param PYRAMID_MERGE_PIECES =
+            new Param(
+                    "Merge Pyramid Pieces",
+                    Boolean.class,
+                    "Re-merge the pieces of each geometry read from pyramid tables (applicable to STANDARD_QUERY_API)",
+                    false,
+                    false);
+
+    public static final Param CLIP_GEOMETRIES =
+            new Param(
+                    "Clip Geometries to BBOX",
+                    Boolean.class,
+                    "Clip returned geometries to the requested bounding box in BigQuery (applicable to STANDARD_QUERY_API)",
+                    false,
+                    false);
+
     public static final Param USE_QUERY_CACHE =
             new Param(
                     "Use Query Cache",
@@ -95,13 +153,239 @@ public class BigqueryDataStoreFactory implements DataStoreFactorySpi {
                     false,
                     30);
 
+    public static final Param FEATURE_CACHE_SIZE =
+            new Param(
+                    "Feature Cache Size (MB)",
+                    Integer.class,
+                    "Memory used to cache the features returned for BBOX queries, 0 disables the cache",
+                    false,
+                    0);
+
+    public static final Param FEATURE_CACHE_CHECK_INTERVAL =
+            new Param(
+                    "Feature Cache Check Interval (seconds)",
+                    Integer.class,
+                    "How often a cached table is checked for changes",
+                    false,
+                    60);
+
+    public static final Param OPTIMIZE_FILTERS =
+            new Param(
+                    "Optimize Filters",
+                    Boolean.class,
+                    "Simplify filters and add box guards to spatial predicates, which lets BigQuery prune clustered tables",
+                    false,
+                    true);
+
+    public static final Param FID_COLUMN =
+            new Param(
+                    "Feature ID Column",
+                    String.class,
+                    "Column feature IDs are taken from, e.g. a primary key; tables without it use row numbers, which change between requests",
+                    false,
+                    null);
+
+    public static final Param HASH_FIDS =
+            new Param(
+                    "Hash Feature IDs",
+                    Boolean.class,
+                    "Use the FARM_FINGERPRINT of the feature ID column as feature ID, e.g. for long string keys",
+                    false,
+                    false);
+
+    public static final Param PRIMITIVE_TYPES =
+            new Param(
+                    "Primitive Types",
+                    Boolean.class,
+                    "Map INT64 to Long, FLOAT64 to Double and TIMESTAMP to Timestamp, instead of BigInteger, Float and Date",
+                    false,
+                    false);
+
+    public static final Param KEEP_ENCODED_GEOMETRIES =
+            new Param(
+                    "Keep Encoded Geometries",
+                    Boolean.class,
+                    "Keep the GeoJSON or WKT each geometry is read as on its feature, for output formats that can write it out without parsing it; takes more memory",
+                    false,
+                    false);
+
+    public static final Param STRING_DICTIONARY_SIZE =
+            new Param(
+                    "String Dictionary Size",
+                    Integer.class,
+                    "Distinct values per string column shared between features of a read, so each is kept once in memory; 0 disables it",
+                    false,
+                    1000);
+
+    public static final Param SHARE_STRING_DICTIONARY =
+            new Param(
+                    "Share String Dictionary",
+                    Boolean.class,
+                    "Share string values between all reads of the store rather than within each read",
+                    false,
+                    false);
+
+    public static final Param COORDINATE_PRECISION =
+            new Param(
+                    "Coordinate Precision",
+                    BigqueryPrecisionOptions.class,
+                    "Precision decoded coordinates are held at; METER_PRECISION stores them as floats, halving their memory",
+                    false,
+                    BigqueryPrecisionOptions.BIGQUERY_NATIVE_PRECISION,
+                    new KVP(Param.OPTIONS, Arrays.asList(BigqueryPrecisionOptions.values())));
+
+    public static final Param POINT_GEOMETRIES =
+            new Param(
+                    "Point Geometries",
+                    BigqueryPointOptions.class,
+                    "Read geometry columns holding only points as their coordinates rather than as text; POINTS_DETECT samples each table once",
+                    false,
+                    BigqueryPointOptions.POINTS_NONE,
+                    new KVP(Param.OPTIONS, Arrays.asList(BigqueryPointOptions.values())));
+
+    public static final Param POINT_COORDINATE_COLUMNS =
+            new Param(
+                    "Point Coordinate Columns",
+                    String.class,
+                    "Comma-separated FLOAT64 longitude and latitude columns the Storage API reads instead of point geometries, where a table has them",
+                    false,
+                    null);
+
+    public static final Param STORAGE_STREAMS =
+            new Param(
+                    "Storage API Max Streams",
+                    Integer.class,
+                    "Maximum number of streams of a Storage API read session, which are decoded in parallel",
+                    false,
+                    1);
+
+    public static final Param DECODE_THREADS =
+            new Param(
+                    "Decode Threads",
+                    Integer.class,
+                    "Threads shared by all reads of the store that decode the rows of Storage API responses in parallel; 0 decodes them on the reading thread",
+                    false,
+                    0);
+
+    public static final Param DECODE_TASKS_PER_READ =
+            new Param(
+                    "Decode Tasks Per Read",
+                    Integer.class,
+                    "Most decode threads a single read uses at once, so that large reads leave threads to concurrent ones",
+                    false,
+                    2);
+
+    public static final Param REPLICATED_TABLES =
+            new Param(
+                    "Replicate Tables Locally",
+                    String.class,
+                    "Comma-separated names of tables to copy to local, spatially indexed files and read from there",
+                    false,
+                    null);
+
+    public static final Param REPLICA_DIRECTORY =
+            new Param(
+                    "Local Replica Directory",
+                    String.class,
+                    "Directory of the local replicas, defaults to a bigquery-replicas directory in the temporary directory",
+                    false,
+                    null);
+
+    public static final Param REPLICA_CHECK_INTERVAL =
+            new Param(
+                    "Replica Check Interval (minutes)",
+                    Integer.class,
+                    "How often a replicated table is checked for changes",
+                    false,
+                    10);
+
+    public static final Param COALESCE_REQUESTS =
+            new Param(
+                    "Coalesce Identical Requests",
+                    Boolean.class,
+                    "Share the results of identical queries or read sessions that run at the same time",
+                    false,
+                    false);
+
+    public static final Param COALESCE_BUFFER_ROWS =
+            new Param(
+                    "Coalesced Request Buffer (rows)",
+                    Integer.class,
+                    "Number of rows replayed to identical requests that arrive after the first one started",
+                    false,
+                    BigqueryRequestCoalescer.DEFAULT_BUFFER_ROWS);
+
+    public static final Param ALLOW_WRITES =
+            new Param(
+                    "Allow Writes",
+                    Boolean.class,
+                    "Allow features to be appended to tables through the Storage Write API; existing features cannot be modified or removed",
+                    false,
+                    false);
+
+    public static final Param WRITE_STREAM_TYPE =
+            new Param(
+                    "Write Stream Type",
+                    BigqueryWriteStreamType.class,
+                    "COMMITTED makes appended rows visible as they arrive, and keeps them if a later batch fails, PENDING makes all rows of a write visible at once when it completes",
+                    false,
+                    BigqueryWriteStreamType.COMMITTED,
+                    new KVP(Param.OPTIONS, Arrays.asList(BigqueryWriteStreamType.values())));
+
+    public static final Param WRITE_BATCH_SIZE =
+            new Param(
+                    "Write Batch Size (rows)",
+                    Integer.class,
+                    "Number of appended features sent to BigQuery per request",
+                    false,
+                    500);
+
+    public static final Param WRITE_FLUSH_INTERVAL =
+            new Param(
+                    "Write Flush Interval (ms)",
+                    Integer.class,
+                    "Longest time an appended feature waits for its batch to fill before it is sent; 0 only sends full batches",
+                    false,
+                    1000);
+
     public static final Param[] parametersInfo = {
         PROJECT_ID,
         DATASET_NAME,
         SERVICE_ACCOUNT_KEY_FILE,
         ACCESS_METHOD,
         SIMPLIFY,
+        CLIP_GEOMETRIES,
+        OPTIMIZE_FILTERS,
+        FID_COLUMN,
+        HASH_FIDS,
+        PRIMITIVE_TYPES,
+        KEEP_ENCODED_GEOMETRIES,
+        STRING_DICTIONARY_SIZE,
+        SHARE_STRING_DICTIONARY,
+        COORDINATE_PRECISION,
+        POINT_GEOMETRIES,
+        POINT_COORDINATE_COLUMNS,
         PREGENERATE_VIEWS,
+        PREGENERATE_TOLERANCES,
+        PREGENERATE_REFRESH_INTERVAL,
+        PREGENERATE_MAX_STALENESS,
+        PREGENERATE_PYRAMID,
+        PYRAMID_ZOOM_LEVELS,
+        PYRAMID_MERGE_PIECES,
+        FEATURE_CACHE_SIZE,
+        FEATURE_CACHE_CHECK_INTERVAL,
+        STORAGE_STREAMS,
+        DECODE_THREADS,
+        DECODE_TASKS_PER_READ,
+        REPLICATED_TABLES,
+        REPLICA_DIRECTORY,
+        REPLICA_CHECK_INTERVAL,
+        COALESCE_REQUESTS,
+        COALESCE_BUFFER_ROWS,
+        ALLOW_WRITES,
+        WRITE_STREAM_TYPE,
+        WRITE_BATCH_SIZE,
+        WRITE_FLUSH_INTERVAL,
         USE_QUERY_CACHE,
         AUTO_ADD_PARTITION_FILTER,
         JOB_TIMEOUT
@@ -138,9 +422,10 @@ public class BigqueryDataStoreFactory implements DataStoreFactorySpi {
                     (BigqueryPregenerateOptions) PREGENERATE_VIEWS.lookUp(params);
             Boolean useCache = (Boolean) USE_QUERY_CACHE.lookUp(params);
 
+            // the Storage API simplifies geometries on the client
             boolean accessMethodValid =
-                    ((method == BigqueryAccessMethod.STORAGE_API && !simplify)
-                            || method == BigqueryAccessMethod.STANDARD_QUERY_API);
+                    method == BigqueryAccessMethod.STORAGE_API
+                            || method == BigqueryAccessMethod.STANDARD_QUERY_API;
             boolean cacheValid =
                     ((method == BigqueryAccessMethod.STORAGE_API && !useCache)
                             || method == BigqueryAccessMethod.STANDARD_QUERY_API);
@@ -176,16 +461,111 @@ public class BigqueryDataStoreFactory implements DataStoreFactorySpi {
             keyFile = new File(getCompatibleKeyPath(serviceAccountKeyFileName));
         }
 
-        return new BigqueryDataStore(
-                (String) PROJECT_ID.lookUp(params),
-                (String) DATASET_NAME.lookUp(params),
-                (BigqueryAccessMethod) ACCESS_METHOD.lookUp(params),
-                (Boolean) SIMPLIFY.lookUp(params),
-                (Boolean) USE_QUERY_CACHE.lookUp(params),
-                (Boolean) AUTO_ADD_PARTITION_FILTER.lookUp(params),
-                (Integer) JOB_TIMEOUT.lookUp(params),
-                (BigqueryPregenerateOptions) PREGENERATE_VIEWS.lookUp(params),
-                keyFile);
+        BigqueryPregenerateOptions pregen =
+                (BigqueryPregenerateOptions) PREGENERATE_VIEWS.lookUp(params);
+
+        BigqueryDataStore store =
+                new BigqueryDataStore(
+                        (String) PROJECT_ID.lookUp(params),
+                        (String) DATASET_NAME.lookUp(params),
+                        (BigqueryAccessMethod) ACCESS_METHOD.lookUp(params),
+                        (Boolean) SIMPLIFY.lookUp(params),
+                        (Boolean) USE_QUERY_CACHE.lookUp(params),
+                        (Boolean) AUTO_ADD_PARTITION_FILTER.lookUp(params),
+                        (Integer) JOB_TIMEOUT.lookUp(params),
+                        pregen,
+                        keyFile);
+
+        store.setClipGeometries((Boolean) CLIP_GEOMETRIES.lookUp(params));
+        store.setStorageStreams((Integer) STORAGE_STREAMS.lookUp(params));
+        store.setOptimizeFilters((Boolean) OPTIMIZE_FILTERS.lookUp(params));
+        store.setFidColumn((String) FID_COLUMN.lookUp(params));
+        store.setHashFids((Boolean) HASH_FIDS.lookUp(params));
+        store.setPrimitiveTypes((Boolean) PRIMITIVE_TYPES.lookUp(params));
+        store.setKeepEncodedGeometries((Boolean) KEEP_ENCODED_GEOMETRIES.lookUp(params));
+        store.setStringDictionary(
+                (Integer) STRING_DICTIONARY_SIZE.lookUp(params),
+                (Boolean) SHARE_STRING_DICTIONARY.lookUp(params));
+        store.setPrecision((BigqueryPrecisionOptions) COORDINATE_PRECISION.lookUp(params));
+        store.setPointColumns(
+                (BigqueryPointOptions) POINT_GEOMETRIES.lookUp(params),
+                (String) POINT_COORDINATE_COLUMNS.lookUp(params));
+        store.setWriteOptions(
+                (Boolean) ALLOW_WRITES.lookUp(params),
+                (BigqueryWriteStreamType) WRITE_STREAM_TYPE.lookUp(params),
+                (Integer) WRITE_BATCH_SIZE.lookUp(params),
+                (Integer) WRITE_FLUSH_INTERVAL.lookUp(params));
+
+        Integer decodeThreads = (Integer) DECODE_THREADS.lookUp(params);
+        if (decodeThreads != null && decodeThreads > 0) {
+            Integer tasksPerRead = (Integer) DECODE_TASKS_PER_READ.lookUp(params);
+            store.setDecodePool(
+                    new BigqueryDecodePool(
+                            decodeThreads, tasksPerRead != null ? tasksPerRead : 2));
+        }
+
+        Integer cacheSize = (Integer) FEATURE_CACHE_SIZE.lookUp(params);
+        if (cacheSize != null && cacheSize > 0) {
+            Integer checkInterval = (Integer) FEATURE_CACHE_CHECK_INTERVAL.lookUp(params);
+            store.setFeatureCache(
+                    new BigqueryFeatureCache(
+                            cacheSize * 1024L * 1024L,
+                            (checkInterval != null ? checkInterval : 60) * 1000L));
+        }
+
+        if (Boolean.TRUE.equals(COALESCE_REQUESTS.lookUp(params))) {
+            Integer bufferRows = (Integer) COALESCE_BUFFER_ROWS.lookUp(params);
+            store.setRequestCoalescer(
+                    new BigqueryRequestCoalescer(
+                            bufferRows != null
+                                    ? bufferRows
+                                    : BigqueryRequestCoalescer.DEFAULT_BUFFER_ROWS));
+        }
+
+        Set<String> replicatedTables =
+                BigqueryReplicaManager.parseTables((String) REPLICATED_TABLES.lookUp(params));
+        if (!replicatedTables.isEmpty()) {
+            String replicaDirectory = (String) REPLICA_DIRECTORY.lookUp(params);
+            Integer checkInterval = (Integer) REPLICA_CHECK_INTERVAL.lookUp(params);
+            store.setReplicaManager(
+                    new BigqueryReplicaManager(
+                            store,
+                            replicaDirectory != null
+                                    ? new File(getCompatibleKeyPath(replicaDirectory))
+                                    : new File(
+                                            System.getProperty("java.io.tmpdir"),
+                                            "bigquery-replicas"),
+                            replicatedTables,
+                            (checkInterval != null ? checkInterval : 10) * 60 * 1000L));
+        }
+
+        BigqueryPyramidOptions pyramid =
+                (BigqueryPyramidOptions) PREGENERATE_PYRAMID.lookUp(params);
+        boolean views = pregen != null && pregen != BigqueryPregenerateOptions.MV_NONE;
+        boolean pyramids = pyramid != null && pyramid != BigqueryPyramidOptions.PYRAMID_NONE;
+
+        if (views || pyramids) {
+            BigqueryViewProvisioner provisioner =
+                    new BigqueryViewProvisioner(
+                            store.queryClient,
+                            store.datasetName,
+                            pregen,
+                            BigqueryViewProvisioner.parseTolerances(
+                                    (String) PREGENERATE_TOLERANCES.lookUp(params)),
+                            (Integer) PREGENERATE_REFRESH_INTERVAL.lookUp(params),
+                            (Integer) PREGENERATE_MAX_STALENESS.lookUp(params));
+
+            if (pyramids) {
+                provisioner.setPyramid(
+                        pyramid,
+                        BigqueryViewProvisioner.parseZoomLevels(
+                                (String) PYRAMID_ZOOM_LEVELS.lookUp(params)),
+                        Boolean.TRUE.equals(PYRAMID_MERGE_PIECES.lookUp(params)));
+            }
+            store.setViewProvisioner(provisioner);
+        }
+
+        return store;
     }
 
     @Override
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geotools.data.bigquery;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.function.IntConsumer;
+
+/**
+ * Decodes the rows of a response block in parallel, on a fork-join pool shared by all readers of
+ * a store. Rows are decoded in place by index, so the order of the block is kept.
+ *
+ * <p>Each block is split into at most {@code tasksPerRead} tasks, and a reader waits for its
+ * block before it submits the next one. A large export thus never holds more than that many
+ * tasks in the pool, and the blocks of concurrent tile requests are decoded alongside it rather
+ * than behind it.
+ */
+public class BigqueryDecodePool {
+
+    /** Fewest rows worth a task of their own. */
+    protected static final int MIN_ROWS_PER_TASK = 128;
+
+    private final ForkJoinPool pool;
+
+    private final int tasksPerRead;
+
+    /**
+     * @param threads number of decoding threads
+     * @param tasksPerRead number of tasks a block is split into at most, i.e. the share of the
+     *     threads a single read can take
+     */
+    public BigqueryDecodePool(int threads, int tasksPerRead) {
+        this.pool =
+                new ForkJoinPool(
+                        threads,
+                        p -> {
+                            ForkJoinWorkerThread thread =
+                                    ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+                            thread.setName("bigquery-decode-" + thread.getPoolIndex());
+                            thread.setDaemon(true);
+                            return thread;
+                        },
+                        null,
+                        false);
+        this.tasksPerRead = Math.max(tasksPerRead, 1);
+    }
+
+    /**
+     * Decode the rows of a block, returning once all are decoded. The calling thread decodes the
+     * first part of the block itself.
+     *
+     * @param rows number of rows
+     * @param decode decodes the row of the given index
+     * @throws RuntimeException thrown by decoding a row
+     */
+    public void decode(int rows, IntConsumer decode) {
+        int tasks = Math.min(tasksPerRead, Math.max(rows / MIN_ROWS_PER_TASK, 1));
+        if (tasks == 1) {
+            decodeRange(decode, 0, rows);
+            return;
+        }
+        List<ForkJoinTask<?>> submitted = new ArrayList<>(tasks - 1);
+        int size = (rows + tasks - 1) / tasks;
+        for (int start = size; start < rows; start += size) {
+            int from = start;
+            int to = Math.min(start + size, rows);
+            submitted.add(pool.submit(() -> decodeRange(decode, from, to)));
+        }
+        try {
+            decodeRange(decode, 0, size);
+        } finally {
+            for (ForkJoinTask<?> task : submitted) {
+                task.join();
+            }
+        }
+    }
+
+    private static void decodeRange(IntConsumer decode, int from, int to) {
+        for (int i = from; i < to; i++) {
+            decode.accept(i);
+        }
+    }
+
+    /** Stop the decoding threads. */
+    public void dispose() {
+        pool.shutdownNow();
+    }
+}
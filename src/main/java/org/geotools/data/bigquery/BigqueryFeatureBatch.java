@@ -0,0 +1,325 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geotools.data.bigquery;
+
+import java.math.BigInteger;
+import java.util.BitSet;
+import org.geotools.util.Converters;
+import org.locationtech.jts.geom.Geometry;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+
+/**
+ * A batch of features held column by column, for consumers that aggregate, export or compute
+ * statistics over many features rather than handle them one at a time, see {@link
+ * BigqueryFeatureSource#getBatchReader}.
+ *
+ * <p>Integer columns, i.e. INT64 whether bound to Long or BigInteger, are held as a {@code
+ * long[]}, FLOAT64 columns as a {@code double[]} and BOOL columns as a {@code boolean[]}, with the
+ * nulls of each in a {@link BitSet}. Geometries are held as a {@code Geometry[]} and all other
+ * columns as an {@code Object[]} of the values of their binding. Arrays may be longer than the
+ * batch, only the first {@link #size()} entries are valid.
+ *
+ * <p>Readers fill batches row by row with {@link #addRow(String)} and the setters of each column,
+ * straight from the rows of a response, see {@link BigqueryFeatureReader#fill}.
+ */
+public class BigqueryFeatureBatch {
+
+    private final SimpleFeatureType type;
+
+    private final String[] ids;
+
+    /** Values of each attribute, in one of the array types above. */
+    private final Object[] columns;
+
+    /** Rows of each attribute that are null. */
+    private final BitSet[] nulls;
+
+    private int size = 0;
+
+    /**
+     * @param type
+     * @param capacity number of features the batch holds at most
+     */
+    public BigqueryFeatureBatch(SimpleFeatureType type, int capacity) {
+        this.type = type;
+        this.ids = new String[capacity];
+        this.columns = new Object[type.getAttributeCount()];
+        this.nulls = new BitSet[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = createColumn(type.getDescriptor(i).getType().getBinding(), capacity);
+            nulls[i] = new BitSet(capacity);
+        }
+    }
+
+    private static Object createColumn(Class<?> binding, int capacity) {
+        if (isInteger(binding)) {
+            return new long[capacity];
+        } else if (binding == Double.class || binding == Float.class) {
+            return new double[capacity];
+        } else if (binding == Boolean.class) {
+            return new boolean[capacity];
+        } else if (Geometry.class.isAssignableFrom(binding)) {
+            return new Geometry[capacity];
+        }
+        return new Object[capacity];
+    }
+
+    private static boolean isInteger(Class<?> binding) {
+        return binding == Long.class || binding == Integer.class || binding == BigInteger.class;
+    }
+
+    /**
+     * Append a feature of the type of the batch.
+     *
+     * @param feature
+     * @throws IllegalStateException if the batch is full
+     */
+    public void add(SimpleFeature feature) {
+        int row = addRow(feature.getID());
+        for (int i = 0; i < columns.length; i++) {
+            setValue(i, row, feature.getAttribute(i));
+        }
+    }
+
+    /**
+     * Append a row whose values are all null, until set.
+     *
+     * @param id feature ID of the row
+     * @return index of the row
+     * @throws IllegalStateException if the batch is full
+     */
+    public int addRow(String id) {
+        if (isFull()) {
+            throw new IllegalStateException("Batch is full");
+        }
+        ids[size] = id;
+        for (BitSet column : nulls) {
+            column.set(size);
+        }
+        return size++;
+    }
+
+    /**
+     * Set a value of an integer column, or of any other column as the value of its binding.
+     *
+     * @param column index of the attribute
+     * @param row
+     * @param value
+     */
+    public void setLong(int column, int row, long value) {
+        if (columns[column] instanceof long[]) {
+            ((long[]) columns[column])[row] = value;
+            nulls[column].clear(row);
+        } else {
+            setValue(column, row, value);
+        }
+    }
+
+    /**
+     * Set a value of a floating point column, or of any other column as the value of its
+     * binding.
+     *
+     * @param column index of the attribute
+     * @param row
+     * @param value
+     */
+    public void setDouble(int column, int row, double value) {
+        if (columns[column] instanceof double[]) {
+            ((double[]) columns[column])[row] = value;
+            nulls[column].clear(row);
+        } else {
+            setValue(column, row, value);
+        }
+    }
+
+    /**
+     * Set a value of a boolean column, or of any other column as the value of its binding.
+     *
+     * @param column index of the attribute
+     * @param row
+     * @param value
+     */
+    public void setBoolean(int column, int row, boolean value) {
+        if (columns[column] instanceof boolean[]) {
+            ((boolean[]) columns[column])[row] = value;
+            nulls[column].clear(row);
+        } else {
+            setValue(column, row, value);
+        }
+    }
+
+    /**
+     * Set a value of a column, converted to its binding if needed.
+     *
+     * @param column index of the attribute
+     * @param row
+     * @param value may be null
+     */
+    public void setValue(int column, int row, Object value) {
+        if (value == null) {
+            nulls[column].set(row);
+            return;
+        }
+        Object array = columns[column];
+        if (array instanceof long[]) {
+            ((long[]) array)[row] = toNumber(value, Long.class).longValue();
+        } else if (array instanceof double[]) {
+            ((double[]) array)[row] = toNumber(value, Double.class).doubleValue();
+        } else if (array instanceof boolean[]) {
+            ((boolean[]) array)[row] =
+                    Boolean.TRUE.equals(Converters.convert(value, Boolean.class));
+        } else {
+            Class<?> binding = type.getDescriptor(column).getType().getBinding();
+            Object converted =
+                    binding.isInstance(value) ? value : Converters.convert(value, binding);
+            ((Object[]) array)[row] = converted != null ? converted : value;
+        }
+        nulls[column].clear(row);
+    }
+
+    private static Number toNumber(Object value, Class<? extends Number> type) {
+        if (value instanceof Number) {
+            return (Number) value;
+        }
+        Number number = Converters.convert(value, type);
+        if (number == null) {
+            throw new IllegalArgumentException("Not a number: " + value);
+        }
+        return number;
+    }
+
+    /** Whether the batch holds as many features as it can. */
+    public boolean isFull() {
+        return size == ids.length;
+    }
+
+    /** Return the number of features in the batch. */
+    public int size() {
+        return size;
+    }
+
+    public SimpleFeatureType getFeatureType() {
+        return type;
+    }
+
+    /**
+     * Return the IDs of the features.
+     *
+     * @return
+     */
+    public String[] getIds() {
+        return ids;
+    }
+
+    /**
+     * Return the values of an integer column.
+     *
+     * @param name
+     * @return
+     * @throws IllegalArgumentException if the column does not exist or is not an integer column
+     */
+    public long[] getLongs(String name) {
+        return getColumn(name, long[].class);
+    }
+
+    /**
+     * Return the values of a floating point column.
+     *
+     * @param name
+     * @return
+     * @throws IllegalArgumentException if the column does not exist or is not a FLOAT64 column
+     */
+    public double[] getDoubles(String name) {
+        return getColumn(name, double[].class);
+    }
+
+    /**
+     * Return the values of a boolean column.
+     *
+     * @param name
+     * @return
+     * @throws IllegalArgumentException if the column does not exist or is not a BOOL column
+     */
+    public boolean[] getBooleans(String name) {
+        return getColumn(name, boolean[].class);
+    }
+
+    /**
+     * Return the default geometries of the features.
+     *
+     * @return
+     * @throws IllegalArgumentException if the type has no geometry
+     */
+    public Geometry[] getGeometries() {
+        if (type.getGeometryDescriptor() == null) {
+            throw new IllegalArgumentException("No geometry in " + type.getTypeName());
+        }
+        return getColumn(type.getGeometryDescriptor().getLocalName(), Geometry[].class);
+    }
+
+    /**
+     * Return the values of a column held as objects, i.e. neither a numeric nor a boolean column.
+     *
+     * @param name
+     * @return
+     * @throws IllegalArgumentException if the column does not exist or holds primitives
+     */
+    public Object[] getValues(String name) {
+        return getColumn(name, Object[].class);
+    }
+
+    /**
+     * Return whether the value of a column is null in a row.
+     *
+     * @param name
+     * @param row
+     * @return
+     */
+    public boolean isNull(String name, int row) {
+        return nulls[getIndex(name)].get(row);
+    }
+
+    private <T> T getColumn(String name, Class<T> arrayClass) {
+        Object column = columns[getIndex(name)];
+        if (!arrayClass.isInstance(column)) {
+            throw new IllegalArgumentException(
+                    name + " is held as " + column.getClass().getSimpleName());
+        }
+        return arrayClass.cast(column);
+    }
+
+    /**
+     * Return the index of a column, for the setters.
+     *
+     * @param name
+     * @return index, or -1 if the batch has no such column
+     */
+    public int indexOf(String name) {
+        return type.indexOf(name);
+    }
+
+    private int getIndex(String name) {
+        int index = type.indexOf(name);
+        if (index < 0) {
+            throw new IllegalArgumentException(
+                    "No column " + name + " in " + type.getTypeName());
+        }
+        return index;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geotools.data.bigquery;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.NoSuchElementException;
+import org.geotools.data.FeatureReader;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ * Reads features in {@link BigqueryFeatureBatch batches} of a fixed size, the last one possibly
+ * smaller. Each batch has arrays of its own, so consumers may keep them.
+ *
+ * <p>Batches are filled straight from the rows of BigQuery responses by a {@link
+ * BigqueryFeatureReader}, without creating a feature per row. Queries the readers cannot answer
+ * on their own, e.g. with a filter evaluated on the client, are read as features instead, whose
+ * values are copied into the batches.
+ */
+public class BigqueryFeatureBatchReader implements Closeable {
+
+    private final FeatureReader<SimpleFeatureType, SimpleFeature> reader;
+
+    private final BigqueryFeatureReader rows;
+
+    private final SimpleFeatureType type;
+
+    private final int batchSize;
+
+    /** Number of rows still to read from the rows reader. */
+    private long remaining;
+
+    /** Batch filled by {@link #hasNext()}, not returned yet. */
+    private BigqueryFeatureBatch pending;
+
+    /**
+     * @param reader features to batch, closed along with this reader
+     * @param batchSize number of features per batch
+     */
+    public BigqueryFeatureBatchReader(
+            FeatureReader<SimpleFeatureType, SimpleFeature> reader, int batchSize) {
+        this(reader, null, reader.getFeatureType(), batchSize, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param rows reader filling the batches from the rows of its responses, closed along with
+     *     this reader
+     * @param type type of the batches, i.e. the properties of the query
+     * @param batchSize number of features per batch
+     * @param maxFeatures number of features read at most
+     */
+    public BigqueryFeatureBatchReader(
+            BigqueryFeatureReader rows, SimpleFeatureType type, int batchSize, long maxFeatures) {
+        this(null, rows, type, batchSize, maxFeatures);
+    }
+
+    private BigqueryFeatureBatchReader(
+            FeatureReader<SimpleFeatureType, SimpleFeature> reader,
+            BigqueryFeatureReader rows,
+            SimpleFeatureType type,
+            int batchSize,
+            long maxFeatures) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+        }
+        this.reader = reader;
+        this.rows = rows;
+        this.type = type;
+        this.batchSize = batchSize;
+        this.remaining = maxFeatures;
+    }
+
+    public SimpleFeatureType getFeatureType() {
+        return type;
+    }
+
+    public boolean hasNext() throws IOException {
+        if (reader != null) {
+            return reader.hasNext();
+        }
+        if (pending == null && remaining > 0) {
+            BigqueryFeatureBatch batch =
+                    new BigqueryFeatureBatch(type, (int) Math.min(batchSize, remaining));
+            rows.fill(batch);
+            if (batch.isFull()) {
+                remaining -= batch.size();
+            } else {
+                // no rows left
+                remaining = 0;
+            }
+            pending = batch.size() > 0 ? batch : null;
+        }
+        return pending != null;
+    }
+
+    /**
+     * Read the next batch.
+     *
+     * @return
+     * @throws IOException
+     * @throws NoSuchElementException if there are no features left
+     */
+    public BigqueryFeatureBatch next() throws IOException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        if (reader == null) {
+            BigqueryFeatureBatch batch = pending;
+            pending = null;
+            return batch;
+        }
+        BigqueryFeatureBatch batch = new BigqueryFeatureBatch(type, batchSize);
+        while (!batch.isFull() && reader.hasNext()) {
+            batch.add(reader.next());
+        }
+        return batch;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (reader != null) {
+            reader.close();
+        } else {
+            rows.close();
+        }
+    }
+}
@@ -0,0 +1,527 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geotools.data.bigquery;
+
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.geotools.data.FeatureReader;
+import org.geotools.data.Query;
+import org.geotools.data.simple.SimpleFeatureReader;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.filter.FilterAttributeExtractor;
+import org.geotools.filter.text.ecql.ECQL;
+import org.geotools.util.logging.Logging;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.filter.And;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+import org.opengis.filter.spatial.BBOX;
+
+/**
+ * In-process cache of the features returned for BBOX queries. Entries are keyed by layer,
+ * non-spatial filter, simplification tolerance and requested properties, and indexed by their
+ * extent, so a request whose BBOX is covered by a cached extent is answered without querying
+ * BigQuery. Entries are evicted least-recently-used first once the estimated size exceeds the
+ * limit, and dropped when the table's lastModifiedTime changes.
+ *
+ * <p>Cached features are shared by every request answered from them, so callers only ever get
+ * copies, which they may modify.
+ */
+public class BigqueryFeatureCache {
+
+    private static final Logger LOGGER = Logging.getLogger(BigqueryFeatureCache.class);
+
+    private static final FilterFactory2 FF = CommonFactoryFinder.getFilterFactory2(null);
+
+    private final long maxBytes;
+    private final long checkIntervalMillis;
+
+    /** All entries, in least-recently-used order. */
+    private final LinkedHashMap<Long, CacheEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final Map<String, LayerCache> layers = new HashMap<>();
+
+    private long nextId = 0;
+    private long sizeBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param maxBytes upper bound of the estimated size of cached features
+     * @param checkIntervalMillis minimum time between checks of a table's lastModifiedTime
+     */
+    public BigqueryFeatureCache(long maxBytes, long checkIntervalMillis) {
+        this.maxBytes = maxBytes;
+        this.checkIntervalMillis = checkIntervalMillis;
+    }
+
+    /** Identifies the features of a cacheable query. */
+    public static class Key {
+        private final String typeName;
+        private final String regionKey;
+        private final Envelope envelope;
+
+        Key(String typeName, String regionKey, Envelope envelope) {
+            this.typeName = typeName;
+            this.regionKey = regionKey;
+            this.envelope = envelope;
+        }
+
+        public String getTypeName() {
+            return typeName;
+        }
+
+        public Envelope getEnvelope() {
+            return envelope;
+        }
+
+        @Override
+        public String toString() {
+            return typeName + " " + regionKey + " " + envelope;
+        }
+    }
+
+    private static class CacheEntry {
+        final long id;
+        final Key key;
+        final List<SimpleFeature> features;
+        final long sizeBytes;
+
+        CacheEntry(long id, Key key, List<SimpleFeature> features, long sizeBytes) {
+            this.id = id;
+            this.key = key;
+            this.features = features;
+            this.sizeBytes = sizeBytes;
+        }
+    }
+
+    private static class LayerCache {
+        final List<CacheEntry> entries = new ArrayList<>();
+        STRtree index;
+        Long lastModifiedTime;
+        long lastChecked = 0;
+
+        STRtree getIndex() {
+            if (index == null) {
+                index = new STRtree();
+                for (CacheEntry entry : entries) {
+                    index.insert(entry.key.envelope, entry);
+                }
+                index.build();
+            }
+            return index;
+        }
+
+        void remove(CacheEntry entry) {
+            entries.remove(entry);
+            index = null;
+        }
+
+        void add(CacheEntry entry) {
+            entries.add(entry);
+            index = null;
+        }
+    }
+
+    /**
+     * Return the cache key of the given query, if its results can be cached: the filter must be a
+     * single BBOX on the geometry column, optionally AND-ed with other filters, and the query must
+     * not be limited, offset or sorted.
+     *
+     * @param typeName
+     * @param query
+     * @param schema
+     * @param tolerance simplification tolerance applied to the query
+     * @return key, or null if the query is not cacheable
+     */
+    public static Key createKey(
+            String typeName, Query query, SimpleFeatureType schema, int tolerance) {
+        if (!query.isMaxFeaturesUnlimited()
+                || query.getStartIndex() != null
+                || (query.getSortBy() != null && query.getSortBy().length > 0)) {
+            return null;
+        }
+
+        String geomColumn = schema.getGeometryDescriptor().getLocalName();
+        List<Filter> conjuncts = new ArrayList<>();
+        flattenAnd(query.getFilter(), conjuncts);
+
+        Envelope envelope = null;
+        List<Filter> residual = new ArrayList<>();
+        for (Filter filter : conjuncts) {
+            if (filter instanceof BBOX
+                    && envelope == null
+                    && isOnColumn(filter, schema, geomColumn)) {
+                envelope = ((BBOX) filter).getExpression2().evaluate(null, Envelope.class);
+            } else {
+                residual.add(filter);
+            }
+        }
+        if (envelope == null || envelope.isNull()) {
+            return null;
+        }
+
+        String residualKey;
+        try {
+            residualKey =
+                    residual.isEmpty()
+                            ? "INCLUDE"
+                            : ECQL.toCQL(residual.size() == 1 ? residual.get(0) : FF.and(residual));
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.FINE, "Query filter is not cacheable", e);
+            return null;
+        }
+
+        String properties =
+                query.retrieveAllProperties() ? "*" : Arrays.toString(query.getPropertyNames());
+
+        return new Key(
+                typeName,
+                String.join("|", residualKey, Integer.toString(tolerance), properties),
+                new Envelope(envelope));
+    }
+
+    private static void flattenAnd(Filter filter, List<Filter> conjuncts) {
+        if (filter instanceof And) {
+            for (Filter child : ((And) filter).getChildren()) {
+                flattenAnd(child, conjuncts);
+            }
+        } else if (filter != Filter.INCLUDE) {
+            conjuncts.add(filter);
+        }
+    }
+
+    private static boolean isOnColumn(Filter filter, SimpleFeatureType schema, String column) {
+        FilterAttributeExtractor extractor = new FilterAttributeExtractor(schema);
+        filter.accept(extractor, null);
+        String[] attrs = extractor.getAttributeNames();
+        return attrs.length == 1 && column.equals(attrs[0]);
+    }
+
+    /**
+     * Drop the cached features of a layer if its table changed since they were cached. The table
+     * is checked at most once per check interval.
+     *
+     * @param typeName
+     * @param lastModifiedTime returns the current lastModifiedTime of the table
+     */
+    public void validate(String typeName, Callable<Long> lastModifiedTime) {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            LayerCache layer = layers.get(typeName);
+            if (layer == null || now - layer.lastChecked < checkIntervalMillis) {
+                return;
+            }
+            layer.lastChecked = now;
+        }
+
+        Long modified;
+        try {
+            modified = lastModifiedTime.call();
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Unable to check whether " + typeName + " changed", e);
+            invalidate(typeName);
+            return;
+        }
+
+        synchronized (this) {
+            LayerCache layer = layers.get(typeName);
+            if (layer == null) return;
+
+            if (layer.lastModifiedTime != null && !layer.lastModifiedTime.equals(modified)) {
+                LOGGER.fine("Table changed, dropping cached features of " + typeName);
+                removeAll(layer);
+            }
+            layer.lastModifiedTime = modified;
+        }
+    }
+
+    /**
+     * Return the cached features of an entry covering the key's envelope. The features are a
+     * superset of the result, and must still be filtered by the query. Each is copied as it is
+     * taken from the list, with its geometries.
+     *
+     * @param key
+     * @return features, or null if no cached entry covers the key
+     */
+    public synchronized List<SimpleFeature> get(Key key) {
+        LayerCache layer = layers.get(key.typeName);
+        if (layer != null) {
+            for (Object item : layer.getIndex().query(key.envelope)) {
+                CacheEntry entry = (CacheEntry) item;
+                if (entry.key.regionKey.equals(key.regionKey)
+                        && entry.key.envelope.covers(key.envelope)) {
+                    // touch, to mark as recently used
+                    entries.get(entry.id);
+                    hits++;
+                    return new CopyingList(entry.features);
+                }
+            }
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * Cache the complete result of a query.
+     *
+     * @param key
+     * @param features
+     * @param lastModifiedTime lastModifiedTime of the table when the features were read, may be
+     *     null if unknown
+     */
+    public synchronized void put(Key key, List<SimpleFeature> features, Long lastModifiedTime) {
+        long size = 0;
+        for (SimpleFeature feature : features) {
+            size += estimateSize(feature);
+        }
+        if (size > maxBytes) return;
+
+        LayerCache layer = layers.computeIfAbsent(key.typeName, t -> new LayerCache());
+        if (layer.lastModifiedTime == null) {
+            layer.lastModifiedTime = lastModifiedTime;
+        } else if (lastModifiedTime != null && !layer.lastModifiedTime.equals(lastModifiedTime)) {
+            // features were read from an older (or newer) version of the table
+            return;
+        }
+
+        // entries covered by the new one are redundant
+        for (Object item : layer.getIndex().query(key.envelope)) {
+            CacheEntry entry = (CacheEntry) item;
+            if (entry.key.regionKey.equals(key.regionKey)) {
+                if (entry.key.envelope.covers(key.envelope)) {
+                    return;
+                } else if (key.envelope.covers(entry.key.envelope)) {
+                    remove(entry);
+                }
+            }
+        }
+
+        CacheEntry entry =
+                new CacheEntry(nextId++, key, Collections.unmodifiableList(features), size);
+        entries.put(entry.id, entry);
+        layer.add(entry);
+        sizeBytes += size;
+
+        Iterator<CacheEntry> lru = entries.values().iterator();
+        while (sizeBytes > maxBytes && lru.hasNext()) {
+            CacheEntry eldest = lru.next();
+            lru.remove();
+            layers.get(eldest.key.typeName).remove(eldest);
+            sizeBytes -= eldest.sizeBytes;
+        }
+    }
+
+    /** Drop all cached features of a layer. */
+    public synchronized void invalidate(String typeName) {
+        LayerCache layer = layers.remove(typeName);
+        if (layer != null) {
+            removeAll(layer);
+        }
+    }
+
+    /** Drop all cached features. */
+    public synchronized void clear() {
+        entries.clear();
+        layers.clear();
+        sizeBytes = 0;
+    }
+
+    private void removeAll(LayerCache layer) {
+        for (CacheEntry entry : new ArrayList<>(layer.entries)) {
+            remove(entry);
+        }
+    }
+
+    private void remove(CacheEntry entry) {
+        if (entries.remove(entry.id) != null) {
+            sizeBytes -= entry.sizeBytes;
+        }
+        LayerCache layer = layers.get(entry.key.typeName);
+        if (layer != null) {
+            layer.remove(entry);
+        }
+    }
+
+    /**
+     * Wrap a reader so the features it returns are cached once it has been read to the end.
+     *
+     * @param key
+     * @param reader
+     * @param lastModifiedTime lastModifiedTime of the table at the time of the read
+     * @return caching reader
+     */
+    public FeatureReader<SimpleFeatureType, SimpleFeature> cachingReader(
+            Key key,
+            FeatureReader<SimpleFeatureType, SimpleFeature> reader,
+            Long lastModifiedTime) {
+        return new CachingFeatureReader(key, reader, lastModifiedTime);
+    }
+
+    /**
+     * Roughly estimate the heap size of a feature.
+     *
+     * @param feature
+     * @return size in bytes
+     */
+    protected static long estimateSize(SimpleFeature feature) {
+        long size = 64;
+        for (Object value : feature.getAttributes()) {
+            if (value == null) {
+                size += 8;
+            } else if (value instanceof Geometry) {
+                size += 64 + 40L * ((Geometry) value).getNumPoints();
+            } else if (value instanceof String) {
+                size += 48 + 2L * ((String) value).length();
+            } else {
+                size += 32;
+            }
+        }
+        return size;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /** @return ratio of lookups answered from the cache, in [0, 1] */
+    public synchronized double getHitRatio() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0d : (double) hits / lookups;
+    }
+
+    /** @return estimated size of all cached features, in bytes */
+    public synchronized long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(
+                "BigqueryFeatureCache[entries=%d, size=%d/%d bytes, hitRatio=%.3f]",
+                entries.size(), sizeBytes, maxBytes, getHitRatio());
+    }
+
+    /** Copies cached features as they are taken, so their holders never share them. */
+    private static class CopyingList extends AbstractList<SimpleFeature> {
+
+        private final List<SimpleFeature> features;
+
+        CopyingList(List<SimpleFeature> features) {
+            this.features = features;
+        }
+
+        @Override
+        public SimpleFeature get(int index) {
+            return SimpleFeatureBuilder.deep(features.get(index));
+        }
+
+        @Override
+        public int size() {
+            return features.size();
+        }
+    }
+
+    /**
+     * Collects features while they are read, and caches them once the reader is exhausted. The
+     * reader returns copies of the features it collects, so they can be modified by the caller.
+     */
+    private class CachingFeatureReader implements SimpleFeatureReader {
+
+        private final Key key;
+        private final FeatureReader<SimpleFeatureType, SimpleFeature> delegate;
+        private final Long lastModifiedTime;
+        private List<SimpleFeature> features = new ArrayList<>();
+        private long size = 0;
+
+        CachingFeatureReader(
+                Key key,
+                FeatureReader<SimpleFeatureType, SimpleFeature> delegate,
+                Long lastModifiedTime) {
+            this.key = key;
+            this.delegate = delegate;
+            this.lastModifiedTime = lastModifiedTime;
+        }
+
+        @Override
+        public SimpleFeatureType getFeatureType() {
+            return delegate.getFeatureType();
+        }
+
+        @Override
+        public SimpleFeature next()
+                throws IOException, IllegalArgumentException, NoSuchElementException {
+            SimpleFeature feature = delegate.next();
+            if (features != null) {
+                size += estimateSize(feature);
+                if (size > maxBytes) {
+                    // too large to ever be cached
+                    features = null;
+                } else {
+                    features.add(feature);
+                    return SimpleFeatureBuilder.deep(feature);
+                }
+            }
+            return feature;
+        }
+
+        @Override
+        public boolean hasNext() throws IOException {
+            boolean hasNext = delegate.hasNext();
+            if (!hasNext && features != null) {
+                put(key, features, lastModifiedTime);
+                features = null;
+            }
+            return hasNext;
+        }
+
+        @Override
+        public void close() throws IOException {
+            features = null;
+            delegate.close();
+        }
+    }
+}
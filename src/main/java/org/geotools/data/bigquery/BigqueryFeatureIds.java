@@ -0,0 +1,186 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geotools.data.bigquery;
+
+import com.google.common.hash.Hashing;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Pattern;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+
+/**
+ * Stable feature IDs taken from a key column, e.g. the primary key of a table, so that features
+ * keep their ID across requests and Id filters can be translated to SQL. IDs are "table.key",
+ * where the key is either the value of the column or its FARM_FINGERPRINT, which is computed
+ * the same way by BigQuery and by Guava.
+ *
+ * <p>The key column is marked in the user data of its descriptor by {@link
+ * BigqueryFeatureSource}. Feature types without a key column get row numbers as IDs, which change
+ * from one request to the next.
+ */
+public class BigqueryFeatureIds {
+
+    /** User data of the key column descriptor, holding the name of its {@link Encoding}. */
+    public static final String USER_DATA_KEY = "featureId";
+
+    /** How the key of a feature ID is derived from the key column. */
+    public enum Encoding {
+        /** The value of the column, for short keys such as INT64 or codes. */
+        VALUE,
+        /** The FARM_FINGERPRINT of the column cast to STRING, for long or composite keys. */
+        FARM_FINGERPRINT
+    }
+
+    /** Cell appended to the ID of a pyramid piece. */
+    private static final Pattern PIECE_SUFFIX = Pattern.compile("\\.\\d+_\\d+$");
+
+    private BigqueryFeatureIds() {}
+
+    /**
+     * Return the key column of a feature type.
+     *
+     * @param type
+     * @return descriptor, or null if IDs are row numbers
+     */
+    public static AttributeDescriptor getKeyDescriptor(SimpleFeatureType type) {
+        for (AttributeDescriptor descriptor : type.getAttributeDescriptors()) {
+            if (descriptor.getUserData().get(USER_DATA_KEY) != null) {
+                return descriptor;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return the name of the key column of a feature type.
+     *
+     * @param type
+     * @return column, or null if IDs are row numbers
+     */
+    public static String getKeyColumn(SimpleFeatureType type) {
+        AttributeDescriptor descriptor = getKeyDescriptor(type);
+        return descriptor != null ? descriptor.getLocalName() : null;
+    }
+
+    /**
+     * Return how IDs are derived from a key column.
+     *
+     * @param descriptor
+     * @return
+     */
+    public static Encoding getEncoding(AttributeDescriptor descriptor) {
+        return Encoding.valueOf((String) descriptor.getUserData().get(USER_DATA_KEY));
+    }
+
+    /**
+     * Return the prefix of the feature IDs of a type, which is the name of its table.
+     *
+     * @param type
+     * @return
+     */
+    public static String getPrefix(SimpleFeatureType type) {
+        String[] parts = type.getTypeName().split("\\.");
+        return parts[parts.length - 1] + ".";
+    }
+
+    /**
+     * Create the ID of a feature.
+     *
+     * @param type
+     * @param key value of the key column, may be null
+     * @param rowIndex used as the ID if the type has no key column, or the key is null
+     * @return
+     */
+    public static String create(SimpleFeatureType type, Object key, long rowIndex) {
+        AttributeDescriptor descriptor = key != null ? getKeyDescriptor(type) : null;
+        if (descriptor == null) {
+            return Long.toString(rowIndex);
+        }
+        if (getEncoding(descriptor) == Encoding.FARM_FINGERPRINT) {
+            return getPrefix(type) + fingerprint(key);
+        }
+        return getPrefix(type) + key;
+    }
+
+    /**
+     * Create the ID of a piece of a row read from a pyramid table, which is the ID of the row
+     * followed by the cell of the piece, so that the pieces of a row are told apart.
+     *
+     * @param type
+     * @param key value of the key column, may be null
+     * @param rowIndex used as the ID if the type has no key column, or the key is null
+     * @param cellX
+     * @param cellY
+     * @return
+     */
+    public static String createPiece(
+            SimpleFeatureType type, Object key, long rowIndex, long cellX, long cellY) {
+        String fid = create(type, key, rowIndex);
+        return key != null && getKeyDescriptor(type) != null
+                ? fid + "." + cellX + "_" + cellY
+                : fid;
+    }
+
+    /**
+     * Return the key of a feature ID, i.e. the ID without the table prefix.
+     *
+     * @param type
+     * @param fid
+     * @return
+     */
+    public static String getKey(SimpleFeatureType type, String fid) {
+        String prefix = getPrefix(type);
+        return fid.startsWith(prefix) ? fid.substring(prefix.length()) : fid;
+    }
+
+    /**
+     * Return the key of the row a piece was cut from, i.e. the key of a piece ID without its cell,
+     * see {@link #createPiece}.
+     *
+     * @param key key of a feature ID, see {@link #getKey}
+     * @return key of the row, or the key as it is if it has no cell
+     */
+    public static String getRowKey(String key) {
+        return PIECE_SUFFIX.matcher(key).replaceFirst("");
+    }
+
+    /**
+     * Return the FARM_FINGERPRINT of a key, as BigQuery computes it for the key cast to STRING.
+     *
+     * @param key
+     * @return
+     */
+    public static long fingerprint(Object key) {
+        return Hashing.farmHashFingerprint64()
+                .hashString(key.toString(), StandardCharsets.UTF_8)
+                .asLong();
+    }
+
+    /**
+     * Return the SQL expression that feature ID keys are compared to.
+     *
+     * @param descriptor key column
+     * @return
+     */
+    public static String getKeySQL(AttributeDescriptor descriptor) {
+        String column = descriptor.getLocalName();
+        if (getEncoding(descriptor) == Encoding.FARM_FINGERPRINT) {
+            return String.format("FARM_FINGERPRINT(CAST(%s AS STRING))", column);
+        }
+        return column;
+    }
+}
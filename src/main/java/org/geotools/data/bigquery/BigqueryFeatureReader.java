@@ -21,17 +21,35 @@ import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.Date;
 import java.util.Map;
+import java.util.logging.Logger;
 import org.geotools.data.Query;
 import org.geotools.data.simple.SimpleFeatureReader;
 import org.geotools.data.store.ContentState;
 import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.feature.FeatureTypes;
+import org.geotools.feature.SchemaException;
+import org.geotools.filter.FilterAttributeExtractor;
+import org.geotools.referencing.CRS;
+import org.geotools.renderer.ScreenMap;
+import org.geotools.util.factory.Hints;
+import org.geotools.util.logging.Logging;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Point;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.AttributeDescriptor;
 import org.opengis.filter.Filter;
 import org.opengis.filter.FilterFactory2;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.TransformException;
 
 public abstract class BigqueryFeatureReader implements SimpleFeatureReader {
 
+    private static final Logger LOGGER = Logging.getLogger(BigqueryFeatureReader.class);
+
     protected BigqueryDataStore store;
 
     protected SimpleFeatureType featureType;
@@ -44,6 +62,24 @@ public abstract class BigqueryFeatureReader implements SimpleFeatureReader {
     protected final String geomColumn;
     protected final Query query;
 
+    /** Pixels already painted by the renderer, used to skip sub-pixel features, may be null. */
+    protected final ScreenMap screenMap;
+
+    /** Interns the values of string columns, may be null. */
+    protected final BigqueryStringDictionary strings;
+
+    /** Creates decoded geometries, with packed coordinate sequences. */
+    protected final GeometryFactory geometryFactory;
+
+    /**
+     * Transform from the CRS of the store to the one the query reprojects to, applied to the
+     * ordinates while geometries are decoded, null if features keep the CRS of the store.
+     */
+    protected final MathTransform transform;
+
+    /** Type of the returned features, which has the CRS the query reprojects to. */
+    protected final SimpleFeatureType outputType;
+
     /**
      * Set up BigQuery Storage API read session
      *
@@ -56,23 +92,140 @@ public abstract class BigqueryFeatureReader implements SimpleFeatureReader {
         this.store = (BigqueryDataStore) state.getEntry().getDataStore();
         this.state = state;
         this.featureType = state.getFeatureType();
-        this.srid = store.SRID;
         this.geomColumn = featureType.getGeometryDescriptor().getLocalName();
         this.rowIndex = -1;
         this.rowLimit = query.getMaxFeatures();
         this.query = decorateQuery(featureType, query);
+        this.screenMap =
+                query.getHints() != null ? (ScreenMap) query.getHints().get(Hints.SCREENMAP) : null;
+        this.strings = store.getStringDictionary();
+        this.geometryFactory = store.getGeometryFactory();
+
+        CoordinateReferenceSystem target = query.getCoordinateSystemReproject();
+        if (target != null && !CRS.equalsIgnoreMetadata(target, store.CRS)) {
+            try {
+                this.transform = CRS.findMathTransform(store.CRS, target, true);
+                this.outputType = FeatureTypes.transform(featureType, target);
+                Integer code = CRS.lookupEpsgCode(target, false);
+                this.srid = code != null ? code : 0;
+            } catch (FactoryException | SchemaException e) {
+                throw new IOException("Unable to reproject to " + target.getName(), e);
+            }
+        } else {
+            this.transform = null;
+            this.outputType = featureType;
+            this.srid = store.SRID;
+        }
 
-        System.out.println(query);
+        LOGGER.fine(String.format("Reading %s", query));
     }
 
     @Override
     public SimpleFeatureType getFeatureType() {
-        return featureType;
+        return outputType;
     }
 
     @Override
     public void close() throws IOException {}
 
+    /**
+     * Read rows straight into a batch, without creating a feature per row, until the batch is
+     * full or no rows are left. Rows are neither filtered nor reprojected on the client, so this
+     * is only used for queries BigQuery answers entirely, see {@link
+     * BigqueryFeatureSource#getBatchReader}.
+     *
+     * @param batch whose columns are taken from the columns of the rows with the same name
+     * @return whether any row was added
+     * @throws IOException
+     */
+    public abstract boolean fill(BigqueryFeatureBatch batch) throws IOException;
+
+    /**
+     * Whether a geometry with the given envelope fits in a pixel of the screen map, in which case
+     * it need not be parsed: it is either skipped, see {@link #isPainted(Envelope)}, or replaced
+     * by a stand-in, see {@link #getStandIn(Envelope, Class)}.
+     *
+     * @param envelope envelope of the geometry, may be null
+     * @return
+     */
+    protected boolean canSkipParsing(Envelope envelope) {
+        return screenMap != null
+                && envelope != null
+                && !envelope.isNull()
+                && screenMap.canSimplify(envelope);
+    }
+
+    /**
+     * Check the pixel of a sub-pixel geometry, and mark it as painted.
+     *
+     * @param envelope envelope of the geometry
+     * @return whether the pixel was already painted, so the feature can be skipped
+     * @throws IOException
+     */
+    protected boolean isPainted(Envelope envelope) throws IOException {
+        try {
+            // stream threads of a Storage API read share the screen map
+            synchronized (screenMap) {
+                return screenMap.checkAndSet(envelope);
+            }
+        } catch (TransformException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Return the encoding of the geometry text features keep, see {@link
+     * BigqueryLazyFeature#getEncodedGeometry()}.
+     *
+     * @param encoding of the geometry text the reader receives
+     * @return encoding, or null if the text is not kept, or does not match reprojected geometries
+     */
+    protected BigqueryLazyFeature.GeometryEncoding getKeptEncoding(
+            BigqueryLazyFeature.GeometryEncoding encoding) {
+        return store.keepEncodedGeometries && transform == null ? encoding : null;
+    }
+
+    /**
+     * Build the point of a point column straight from its coordinates, reprojecting them if the
+     * query asks for it.
+     *
+     * @param x longitude
+     * @param y latitude
+     * @return
+     */
+    protected Point createPoint(double x, double y) {
+        double[] ordinates = {x, y};
+        Point point =
+                geometryFactory.createPoint(
+                        BigqueryUtil.createSequence(ordinates, 2, geometryFactory, transform));
+        point.setSRID(srid);
+        return point;
+    }
+
+    /**
+     * Return a cheap geometry of the given type in place of a sub-pixel geometry, which renders
+     * the same.
+     *
+     * @param envelope envelope of the geometry
+     * @param type type of the geometry
+     * @return
+     */
+    protected Geometry getStandIn(Envelope envelope, Class<?> type) {
+        Geometry geometry =
+                screenMap.getSimplifiedShape(
+                        envelope.getMinX(),
+                        envelope.getMinY(),
+                        envelope.getMaxX(),
+                        envelope.getMaxY(),
+                        geometryFactory,
+                        type);
+        if (transform != null) {
+            geometry = BigqueryUtil.copy(geometry, geometryFactory, transform);
+        }
+        geometry.setSRID(srid);
+        return geometry;
+    }
+
     /**
      * Determine any requirements for querying against the given BigQuery table, and decorate the
      * Query object where necessary.
@@ -82,11 +235,16 @@ public abstract class BigqueryFeatureReader implements SimpleFeatureReader {
      * @return
      */
     private Query decorateQuery(SimpleFeatureType type, Query query) {
+        FilterAttributeExtractor extractor = new FilterAttributeExtractor(type);
+        query.getFilter().accept(extractor, null);
+
         for (AttributeDescriptor attr : type.getAttributeDescriptors()) {
             Map<Object, Object> userData = attr.getUserData();
 
+            // a filter on the partitioning column, e.g. a WMS TIME request, already prunes
             if ((Boolean) userData.get("partitioningRequired")
-                    && store.autoAddRequiredPartitionFilter) {
+                    && store.autoAddRequiredPartitionFilter
+                    && !extractor.getAttributeNameSet().contains(attr.getLocalName())) {
                 decorateQueryWithPartitionFilter(attr, query);
             }
         }
@@ -19,28 +19,52 @@ package org.geotools.data.bigquery;
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.geotools.data.CollectionFeatureReader;
 import org.geotools.data.FeatureReader;
+import org.geotools.data.FilteringFeatureReader;
 import org.geotools.data.Query;
+import org.geotools.data.Transaction;
+import org.geotools.data.crs.ReprojectFeatureReader;
 import org.geotools.data.store.ContentEntry;
 import org.geotools.data.store.ContentFeatureSource;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.feature.SchemaException;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.filter.FilterAttributeExtractor;
+import org.geotools.filter.visitor.ExtractBoundsFilterVisitor;
 import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
+import org.geotools.util.factory.Hints;
 import org.geotools.util.logging.Logging;
+import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Point;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
-
-import com.google.cloud.bigquery.BigQuery;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+import org.opengis.filter.Id;
+import org.opengis.filter.identity.Identifier;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import com.google.cloud.bigquery.BigQueryException;
 import com.google.cloud.bigquery.Clustering;
 import com.google.cloud.bigquery.Field;
 import com.google.cloud.bigquery.FieldList;
+import com.google.cloud.bigquery.FieldValue;
 import com.google.cloud.bigquery.FieldValueList;
 import com.google.cloud.bigquery.JobException;
 import com.google.cloud.bigquery.MaterializedViewDefinition;
@@ -85,6 +109,19 @@ public class BigqueryFeatureSource extends ContentFeatureSource {
                     .put(StandardSQLTypeName.JSON, String.class)
                     .build();
 
+    /** Bindings replacing those of {@link #BQ_TYPE_MAP} when the store maps primitive types. */
+    protected static final Map<StandardSQLTypeName, Class<?>> BQ_PRIMITIVE_TYPE_MAP =
+            new ImmutableMap.Builder<StandardSQLTypeName, Class<?>>()
+                    .put(StandardSQLTypeName.INT64, Long.class)
+                    .put(StandardSQLTypeName.FLOAT64, Double.class)
+                    .put(StandardSQLTypeName.TIMESTAMP, Timestamp.class)
+                    .build();
+
+    private static final FilterFactory2 FF = CommonFactoryFinder.getFilterFactory2(null);
+
+    /** Maximum number of feature IDs of a single request, larger Id filters are read in batches. */
+    protected static final int MAX_IDS_PER_QUERY = 10000;
+
     private String geomColumn;
     private final String tableName;
     private final BigqueryDataStore store;
@@ -142,6 +179,10 @@ public class BigqueryFeatureSource extends ContentFeatureSource {
 
     @Override
     protected int getCountInternal(Query query) throws IOException {
+        if (query.getFilter() != Filter.INCLUDE) {
+            // the table row count does not apply, let the caller count the features
+            return -1;
+        }
         BigqueryDataStore store = getDataStore();
         Table tableRef = store.queryClient.getTable(TableId.of(store.datasetName, tableName));
         return tableRef.getNumRows().intValue();
@@ -150,11 +191,307 @@ public class BigqueryFeatureSource extends ContentFeatureSource {
     @Override
     protected FeatureReader<SimpleFeatureType, SimpleFeature> getReaderInternal(Query query)
             throws IOException {
-        if (store.accessMethod == BigqueryAccessMethod.STORAGE_API) {
-            return new BigqueryStorageReader(getState(), query);
+        FeatureReader<SimpleFeatureType, SimpleFeature> reader = getNativeReader(query);
+
+        // readers reproject while decoding when they can, the others are reprojected here
+        CoordinateReferenceSystem target = query.getCoordinateSystemReproject();
+        if (target != null
+                && !CRS.equalsIgnoreMetadata(
+                        reader.getFeatureType().getCoordinateReferenceSystem(), target)) {
+            try {
+                reader = new ReprojectFeatureReader(reader, target);
+            } catch (SchemaException | FactoryException e) {
+                reader.close();
+                throw new IOException("Unable to reproject to " + target.getName(), e);
+            }
+        }
+        return reader;
+    }
+
+    /**
+     * Return a reader of the features of a query, which are in the CRS of the store, unless the
+     * query reprojects and the features are returned by BigQuery as they are, in which case they
+     * may already be reprojected.
+     *
+     * @param query
+     * @return
+     * @throws IOException
+     */
+    private FeatureReader<SimpleFeatureType, SimpleFeature> getNativeReader(Query query)
+            throws IOException {
+        BigqueryReplicaFile replica =
+                store.getReplicaManager() != null
+                        ? store.getReplicaManager().getReplica(entry.getTypeName())
+                        : null;
+        if (replica != null) {
+            Envelope envelope =
+                    (Envelope)
+                            query.getFilter()
+                                    .accept(ExtractBoundsFilterVisitor.BOUNDS_VISITOR, null);
+            return new FilteringFeatureReader<>(
+                    replica.getReader(envelope != null && !envelope.isNull() ? envelope : null),
+                    query.getFilter());
+        }
+
+        if (query.getFilter() instanceof Id
+                && ((Id) query.getFilter()).getIdentifiers().size() > MAX_IDS_PER_QUERY
+                && BigqueryFeatureIds.getKeyDescriptor(getSchema()) != null) {
+            return new BatchedIdReader(query);
+        }
+
+        boolean storageApi = store.accessMethod == BigqueryAccessMethod.STORAGE_API;
+        BigqueryFilterVisitor visitor =
+                new BigqueryFilterVisitor(
+                        query,
+                        getSchema(),
+                        store.CRS,
+                        store.pregen,
+                        null,
+                        storageApi
+                                ? BigqueryFilterVisitor.STORAGE_CAPABILITIES
+                                : BigqueryFilterVisitor.CAPABILITIES,
+                        store.optimizeFilters);
+        Filter postFilter = visitor.getPostFilter();
+
+        BigqueryFeatureCache cache = store.getFeatureCache();
+        BigqueryFeatureCache.Key cacheKey = null;
+        Long lastModifiedTime = null;
+
+        if (cache != null) {
+            cacheKey =
+                    BigqueryFeatureCache.createKey(
+                            entry.getTypeName(),
+                            query,
+                            getSchema(),
+                            visitor.getSimplifyTolerance());
+        }
+
+        if (cacheKey != null) {
+            cache.validate(entry.getTypeName(), this::getLastModifiedTime);
+
+            List<SimpleFeature> cached = cache.get(cacheKey);
+            if (cached != null) {
+                return new FilteringFeatureReader<>(
+                        new CollectionFeatureReader(cached, getState().getFeatureType()),
+                        query.getFilter());
+            }
+            lastModifiedTime = getLastModifiedTime();
+        }
+
+        Query readQuery = getReadQuery(query, postFilter);
+        if (postFilter != Filter.INCLUDE || cacheKey != null) {
+            // pixels must not be marked painted by features the post filter drops, and skipped
+            // features would be missing from the cache, and both need the geometries in the CRS
+            // of the store
+            readQuery = getQueryWithoutReprojection(getQueryWithoutScreenMap(readQuery));
+        }
+        FeatureReader<SimpleFeatureType, SimpleFeature> reader;
+        if (storageApi) {
+            // evaluates its residual filter while decoding
+            reader = new BigqueryStorageReader(getState(), readQuery);
         } else {
-            return new BigqueryStandardReader(getState(), query);
+            reader = new BigqueryStandardReader(getState(), readQuery);
+        }
+
+        if (postFilter != Filter.INCLUDE && !storageApi) {
+            // evaluate what BigQuery could not, e.g. temporal operators
+            reader = new FilteringFeatureReader<>(reader, postFilter);
+        }
+
+        return cacheKey != null ? cache.cachingReader(cacheKey, reader, lastModifiedTime) : reader;
+    }
+
+    /**
+     * Return a reader of the features of a query in column batches, for consumers such as WPS
+     * processes and exporters that aggregate many features rather than handle them one by one.
+     * Batches are filled straight from the rows of BigQuery responses when BigQuery answers the
+     * query entirely. Queries that are filtered, reprojected, sorted or offset on the client, or
+     * read from a local replica, are read as features whose values are copied into the batches.
+     * Batches are never taken from nor added to the feature cache.
+     *
+     * @param query
+     * @param batchSize number of features per batch
+     * @return
+     * @throws IOException
+     */
+    public BigqueryFeatureBatchReader getBatchReader(Query query, int batchSize)
+            throws IOException {
+        Query resolved = resolvePropertyNames(joinQuery(query));
+        if (!canReadBatches(resolved)) {
+            return new BigqueryFeatureBatchReader(getReader(query), batchSize);
+        }
+        SimpleFeatureType type =
+                resolved.retrieveAllProperties()
+                        ? getSchema()
+                        : SimpleFeatureTypeBuilder.retype(getSchema(), resolved.getPropertyNames());
+        BigqueryFeatureReader rows =
+                store.accessMethod == BigqueryAccessMethod.STORAGE_API
+                        ? new BigqueryStorageReader(getState(), resolved, true)
+                        : new BigqueryStandardReader(getState(), resolved);
+        return new BigqueryFeatureBatchReader(rows, type, batchSize, resolved.getMaxFeatures());
+    }
+
+    /** Whether BigQuery answers a query entirely, so its rows can be read straight into batches. */
+    private boolean canReadBatches(Query query) {
+        if (getTransaction() != Transaction.AUTO_COMMIT
+                || (query.getSortBy() != null && query.getSortBy().length > 0)
+                || (query.getStartIndex() != null && query.getStartIndex() > 0)
+                || (store.getReplicaManager() != null
+                        && store.getReplicaManager().getReplica(entry.getTypeName()) != null)) {
+            return false;
+        }
+        CoordinateReferenceSystem target = query.getCoordinateSystemReproject();
+        if (target != null && !CRS.equalsIgnoreMetadata(target, store.CRS)) {
+            return false;
+        }
+        if (query.getFilter() instanceof Id
+                && ((Id) query.getFilter()).getIdentifiers().size() > MAX_IDS_PER_QUERY
+                && BigqueryFeatureIds.getKeyDescriptor(getSchema()) != null) {
+            return false;
+        }
+        BigqueryFilterVisitor visitor =
+                new BigqueryFilterVisitor(
+                        query,
+                        getSchema(),
+                        store.CRS,
+                        store.pregen,
+                        null,
+                        store.accessMethod == BigqueryAccessMethod.STORAGE_API
+                                ? BigqueryFilterVisitor.STORAGE_CAPABILITIES
+                                : BigqueryFilterVisitor.CAPABILITIES,
+                        store.optimizeFilters);
+        return visitor.getPostFilter() == Filter.INCLUDE;
+    }
+
+    /**
+     * Return the query to read from BigQuery when part of the filter is evaluated on the client. It
+     * is not limited, as the limit applies after the post filter, and also selects the properties
+     * the post filter needs, which are dropped again when the features are retyped.
+     *
+     * @param query
+     * @param postFilter
+     * @return
+     */
+    private Query getReadQuery(Query query, Filter postFilter) {
+        if (postFilter == Filter.INCLUDE) {
+            return query;
+        }
+        Query readQuery = new Query(query);
+        readQuery.setMaxFeatures(Query.DEFAULT_MAX);
+
+        if (!query.retrieveAllProperties()) {
+            FilterAttributeExtractor extractor = new FilterAttributeExtractor(getSchema());
+            postFilter.accept(extractor, null);
+
+            Set<String> properties =
+                    new LinkedHashSet<>(Arrays.asList(query.getPropertyNames()));
+            properties.addAll(extractor.getAttributeNameSet());
+            readQuery.setPropertyNames(properties.toArray(new String[0]));
+        }
+        return readQuery;
+    }
+
+    private static Query getQueryWithoutScreenMap(Query query) {
+        if (query.getHints() == null || !query.getHints().containsKey(Hints.SCREENMAP)) {
+            return query;
+        }
+        Hints hints = new Hints();
+        hints.putAll(query.getHints());
+        hints.remove(Hints.SCREENMAP);
+
+        Query copy = new Query(query);
+        copy.setHints(hints);
+        return copy;
+    }
+
+    private static Query getQueryWithoutReprojection(Query query) {
+        if (query.getCoordinateSystemReproject() == null) {
+            return query;
         }
+        Query copy = new Query(query);
+        copy.setCoordinateSystemReproject(null);
+        return copy;
+    }
+
+    @Override
+    protected void addHints(Set<Hints.Key> hints) {
+        // the renderer then passes the pixel size, used as simplification tolerance
+        hints.add(Hints.GEOMETRY_DISTANCE);
+        hints.add(Hints.GEOMETRY_GENERALIZATION);
+        // and the pixels it painted, so readers can skip sub-pixel features
+        hints.add(Hints.SCREENMAP);
+    }
+
+    @Override
+    protected boolean canReproject() {
+        // see getReaderInternal
+        return true;
+    }
+
+    @Override
+    protected boolean canFilter() {
+        // unsupported parts of a filter are evaluated by the reader
+        return true;
+    }
+
+    /**
+     * Return the time the table was last modified.
+     *
+     * @return milliseconds since the epoch, or null if unknown
+     */
+    protected Long getLastModifiedTime() {
+        Table tableRef = store.queryClient.getTable(TableId.of(store.datasetName, tableName));
+        return tableRef != null ? tableRef.getLastModifiedTime() : null;
+    }
+
+    /**
+     * Return the binding of a BigQuery type.
+     *
+     * @param type
+     * @return
+     */
+    private Class<?> getBinding(StandardSQLTypeName type) {
+        if (getDataStore().primitiveTypes && BQ_PRIMITIVE_TYPE_MAP.containsKey(type)) {
+            return BQ_PRIMITIVE_TYPE_MAP.get(type);
+        }
+        return BQ_TYPE_MAP.get(type);
+    }
+
+    /**
+     * Return whether a geometry column is read as the coordinates of points, see {@link
+     * BigqueryPointOptions}.
+     *
+     * @param column
+     * @return
+     */
+    private boolean isPointColumn(String column) {
+        switch (store.pointOptions) {
+            case POINTS_ALL:
+                return true;
+            case POINTS_DETECT:
+                break;
+            default:
+                return false;
+        }
+        String sql = BigqueryPointColumns.getDetectionSQL(entry.getTypeName(), column);
+        try {
+            TableResult results = store.queryClient.query(QueryJobConfiguration.of(sql));
+            FieldValue points = results.getValues().iterator().next().get("points");
+            return !points.isNull() && points.getBooleanValue();
+        } catch (BigQueryException | JobException | InterruptedException e) {
+            // e.g. tables requiring a partition filter, which are read as they are
+            LOGGER.log(Level.WARNING, "Unable to sample the geometries of " + column, e);
+            return false;
+        }
+    }
+
+    private static boolean isFloatField(FieldList fields, String name) {
+        for (Field field : fields) {
+            if (field.getName().equals(name)) {
+                return field.getType().getStandardType() == StandardSQLTypeName.FLOAT64;
+            }
+        }
+        return false;
     }
 
     @Override
@@ -195,7 +532,7 @@ public class BigqueryFeatureSource extends ContentFeatureSource {
 
         for (Field field : fields) {
             String fieldName = field.getName();
-            Class<?> fieldType = BQ_TYPE_MAP.get(field.getType().getStandardType());
+            Class<?> fieldType = getBinding(field.getType().getStandardType());
             Field.Mode fieldMode = field.getMode();
             Boolean isClustered = clusterFields.contains(fieldName);
             Boolean isPartitioned =
@@ -204,15 +541,35 @@ public class BigqueryFeatureSource extends ContentFeatureSource {
             builder.nillable(fieldMode == Field.Mode.NULLABLE)
                     .userData("clustering", isClustered)
                     .userData("partitioning", isPartitioned)
-                    .userData("partitioningRequired", partitionRequired && isPartitioned);
+                    .userData("partitioningRequired", partitionRequired && isPartitioned)
+                    .userData("bigqueryType", field.getType().getStandardType().name());
 
             if (null != timePartition) {
                 builder.userData("partitioningType", timePartition.getType().toString());
             }
 
+            if (fieldName.equals(store.getFidColumn())) {
+                BigqueryFeatureIds.Encoding encoding =
+                        store.hashFids
+                                ? BigqueryFeatureIds.Encoding.FARM_FINGERPRINT
+                                : BigqueryFeatureIds.Encoding.VALUE;
+                builder.userData(BigqueryFeatureIds.USER_DATA_KEY, encoding.name());
+            }
+
+            if (fieldType == Geometry.class && isPointColumn(fieldName)) {
+                fieldType = Point.class;
+                builder.userData(BigqueryPointColumns.USER_DATA_KEY, true);
+                String[] coordinates = store.pointCoordinateColumns;
+                if (coordinates != null
+                        && isFloatField(fields, coordinates[0])
+                        && isFloatField(fields, coordinates[1])) {
+                    builder.userData(BigqueryPointColumns.COORDINATES_USER_DATA_KEY, coordinates);
+                }
+            }
+
             builder.add(fieldName, fieldType);
 
-            if (fieldType == Geometry.class) {
+            if (Geometry.class.isAssignableFrom(fieldType)) {
                 builder.setDefaultGeometry(fieldName);
                 this.geomColumn = fieldName;
             }
@@ -221,43 +578,89 @@ public class BigqueryFeatureSource extends ContentFeatureSource {
         if (timePartition != null && "_PARTITIONTIME".equals(timePartitionField)) {
             builder.userData("partitioning", true)
                     .userData("partitioningRequired", partitionRequired)
-                    .add(timePartitionField, Date.class);
+                    .userData("bigqueryType", "TIMESTAMP")
+                    .add(timePartitionField, getBinding(StandardSQLTypeName.TIMESTAMP));
+        }
+
+        if (store.getViewProvisioner() != null) {
+            store.getViewProvisioner().provision(entry.getTypeName(), geomColumn);
         }
-                
-        if (store.pregen == BigqueryPregenerateOptions.MV_PREGEN_ALL) {
-            createMaterializedViews();
+
+        SimpleFeatureType featureType = builder.buildFeatureType();
+
+        if (store.getReplicaManager() != null) {
+            store.getReplicaManager().replicate(entry.getTypeName(), featureType);
         }
 
-        return builder.buildFeatureType();
+        return featureType;
     }
-    
-    public void createMaterializedViews () {
-        BigQuery client = getDataStore().queryClient;
-        String baseTable = entry.getTypeName();
-        
-        List<Integer> tolerances = new ArrayList<Integer>(List.of(1, 10, 100, 1000));
-
-        for (int tolerance : tolerances) {
-            String sql = 
-            	"create materialized view if not exists `" + baseTable + "_pregen_%sm` " +
-            	"cluster by " + geomColumn + " as (" +
-            	    "select * except(" + geomColumn + "), " +
-            	    "st_simplify(" + geomColumn + ", %d) as "+ geomColumn +", " +
-            	    "st_asgeojson(st_simplify(" + geomColumn + ", %d)) as geom_geojson " +
-            	    "from `" + baseTable + "`)";
-            
-            String mvSql = String.format(sql, tolerance, tolerance, tolerance);
-            QueryJobConfiguration queryConfig = QueryJobConfiguration.newBuilder(mvSql).build();
-            
-            try {
-        	client.query(queryConfig);
+
+    /**
+     * Reads the features of a large Id filter in batches of {@link #MAX_IDS_PER_QUERY} IDs, one
+     * request after the other, which keeps each request within the size limits of BigQuery.
+     */
+    private class BatchedIdReader implements FeatureReader<SimpleFeatureType, SimpleFeature> {
+
+        private final Query query;
+        private final List<Identifier> ids;
+        private int offset = 0;
+        private FeatureReader<SimpleFeatureType, SimpleFeature> batch;
+
+        BatchedIdReader(Query query) {
+            this.query = query;
+            this.ids = new ArrayList<>(((Id) query.getFilter()).getIdentifiers());
+        }
+
+        @Override
+        public SimpleFeatureType getFeatureType() {
+            return getState().getFeatureType();
+        }
+
+        @Override
+        public SimpleFeature next() throws IOException {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
             }
-            catch(JobException e) {
-                e.printStackTrace();
+            return batch.next();
+        }
+
+        @Override
+        public boolean hasNext() throws IOException {
+            while (batch == null || !batch.hasNext()) {
+                if (offset >= ids.size()) {
+                    return false;
+                }
+                close();
+                List<Identifier> batchIds =
+                        ids.subList(offset, Math.min(offset + MAX_IDS_PER_QUERY, ids.size()));
+                offset += batchIds.size();
+
+                Query batchQuery = new Query(query);
+                batchQuery.setFilter(FF.id(new LinkedHashSet<>(batchIds)));
+                // reprojected by getReaderInternal, around this reader
+                batchQuery.setCoordinateSystemReproject(null);
+                batch = getNativeReader(batchQuery);
             }
-            catch(InterruptedException e) {
-                e.printStackTrace();
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (batch != null) {
+                batch.close();
+                batch = null;
             }
         }
     }
+
+    /**
+     * Start creating the pregenerated materialized views of this layer in the background. Queries
+     * keep using the base table until a view reports ready, see {@link BigqueryViewProvisioner}.
+     */
+    public void createMaterializedViews() {
+        BigqueryViewProvisioner provisioner = getDataStore().getViewProvisioner();
+        if (provisioner != null) {
+            provisioner.provision(entry.getTypeName(), geomColumn);
+        }
+    }
 }
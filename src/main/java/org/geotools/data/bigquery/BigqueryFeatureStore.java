@@ -0,0 +1,134 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geotools.data.bigquery;
+
+import java.io.IOException;
+import java.util.Set;
+import org.geotools.data.FeatureReader;
+import org.geotools.data.FeatureWriter;
+import org.geotools.data.Query;
+import org.geotools.data.Transaction;
+import org.geotools.data.store.ContentEntry;
+import org.geotools.data.store.ContentFeatureStore;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.util.factory.Hints;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ * Read-write access to a BigQuery table. Reads are those of {@link BigqueryFeatureSource}, while
+ * added features are appended through the Storage Write API, see {@link BigqueryFeatureWriter}.
+ * Tables are append-only, features cannot be modified or removed.
+ */
+public class BigqueryFeatureStore extends ContentFeatureStore {
+
+    private final BigqueryFeatureSource delegate;
+
+    public BigqueryFeatureStore(ContentEntry entry) throws IOException {
+        super(entry, null);
+        this.delegate =
+                new BigqueryFeatureSource(entry) {
+                    @Override
+                    public void setTransaction(Transaction transaction) {
+                        super.setTransaction(transaction);
+                        // keep both on the same state
+                        if (BigqueryFeatureStore.this.getTransaction() != transaction) {
+                            BigqueryFeatureStore.this.setTransaction(transaction);
+                        }
+                    }
+                };
+    }
+
+    @Override
+    public void setTransaction(Transaction transaction) {
+        super.setTransaction(transaction);
+        if (delegate.getTransaction() != transaction) {
+            delegate.setTransaction(transaction);
+        }
+    }
+
+    @Override
+    public BigqueryDataStore getDataStore() {
+        return delegate.getDataStore();
+    }
+
+    @Override
+    protected FeatureWriter<SimpleFeatureType, SimpleFeature> getWriterInternal(
+            Query query, int flags) throws IOException {
+        if ((flags & WRITER_UPDATE) != 0) {
+            throw new IOException(
+                    "BigQuery tables are append-only, features cannot be modified or removed");
+        }
+        BigqueryDataStore store = getDataStore();
+        BigqueryRowSink sink =
+                store.getRowSinkFactory()
+                        .create(store.getTableId(entry.getTypeName()), store.writeStreamType);
+        return new BigqueryFeatureWriter(
+                getSchema(),
+                sink,
+                store.writeBatchSize,
+                store.writeFlushInterval,
+                store.getWriteScheduler());
+    }
+
+    @Override
+    protected ReferencedEnvelope getBoundsInternal(Query query) throws IOException {
+        return delegate.getBoundsInternal(query);
+    }
+
+    @Override
+    protected int getCountInternal(Query query) throws IOException {
+        return delegate.getCountInternal(query);
+    }
+
+    @Override
+    protected FeatureReader<SimpleFeatureType, SimpleFeature> getReaderInternal(Query query)
+            throws IOException {
+        return delegate.getReaderInternal(query);
+    }
+
+    @Override
+    protected SimpleFeatureType buildFeatureType() throws IOException {
+        return delegate.buildFeatureType();
+    }
+
+    @Override
+    protected void addHints(Set<Hints.Key> hints) {
+        delegate.addHints(hints);
+    }
+
+    @Override
+    protected boolean canReproject() {
+        return delegate.canReproject();
+    }
+
+    @Override
+    protected boolean canFilter() {
+        return delegate.canFilter();
+    }
+
+    /** See {@link BigqueryFeatureSource#getBatchReader(Query, int)}. */
+    public BigqueryFeatureBatchReader getBatchReader(Query query, int batchSize)
+            throws IOException {
+        return delegate.getBatchReader(query, batchSize);
+    }
+
+    /** See {@link BigqueryFeatureSource#createMaterializedViews()}. */
+    public void createMaterializedViews() {
+        delegate.createMaterializedViews();
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geotools.data.bigquery;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.geotools.data.FeatureWriter;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.filter.identity.FeatureIdImpl;
+import org.geotools.util.logging.Logging;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.io.WKTWriter;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+
+/**
+ * Appends the features written to it to a table through a {@link BigqueryRowSink}, in batches of
+ * a fixed number of rows. A batch is also sent once it has waited for the flush interval, so
+ * rows of a slow writer still arrive. The sink is committed when the writer is closed, unless an
+ * append failed, which every later call of the writer reports. Rows of a COMMITTED stream that
+ * were appended before the failure are not rolled back.
+ *
+ * <p>Tables are append-only: the writer has no existing features to update or remove.
+ */
+public class BigqueryFeatureWriter implements FeatureWriter<SimpleFeatureType, SimpleFeature> {
+
+    private static final Logger LOGGER = Logging.getLogger(BigqueryFeatureWriter.class);
+
+    private final SimpleFeatureType featureType;
+
+    private final BigqueryRowSink sink;
+
+    private final int batchSize;
+
+    private final long flushIntervalMillis;
+
+    private final ScheduledFuture<?> scheduledFlush;
+
+    private final SimpleFeatureBuilder builder;
+
+    private List<Map<String, Object>> batch = new ArrayList<>();
+
+    private long batchStart;
+
+    private SimpleFeature current;
+
+    private long written = 0;
+
+    /** Failure of a scheduled flush, reported by the next call of the writer. */
+    private IOException failure;
+
+    private boolean closed = false;
+
+    /**
+     * @param featureType
+     * @param sink receives the rows, closed along with the writer
+     * @param batchSize number of rows per append
+     * @param flushIntervalMillis longest time a row waits for its batch to fill, 0 to only send
+     *     full batches
+     * @param scheduler checks for batches that waited long enough, may be null to only check when
+     *     a feature is written
+     */
+    public BigqueryFeatureWriter(
+            SimpleFeatureType featureType,
+            BigqueryRowSink sink,
+            int batchSize,
+            long flushIntervalMillis,
+            ScheduledExecutorService scheduler) {
+        this.featureType = featureType;
+        this.sink = sink;
+        this.batchSize = Math.max(batchSize, 1);
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.builder = new SimpleFeatureBuilder(featureType);
+        this.scheduledFlush =
+                scheduler != null && flushIntervalMillis > 0
+                        ? scheduler.scheduleWithFixedDelay(
+                                this::flushIfDue,
+                                flushIntervalMillis,
+                                flushIntervalMillis,
+                                TimeUnit.MILLISECONDS)
+                        : null;
+    }
+
+    @Override
+    public SimpleFeatureType getFeatureType() {
+        return featureType;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return false;
+    }
+
+    /** Return a new feature, which is appended by {@link #write()}. */
+    @Override
+    public SimpleFeature next() throws IOException {
+        checkOpen();
+        current = builder.buildFeature(null);
+        return current;
+    }
+
+    @Override
+    public void remove() throws IOException {
+        throw new UnsupportedOperationException("BigQuery tables are append-only");
+    }
+
+    @Override
+    public synchronized void write() throws IOException {
+        checkOpen();
+        if (current == null) {
+            throw new NoSuchElementException("No feature to write, call next() first");
+        }
+        if (batch.isEmpty()) {
+            batchStart = System.currentTimeMillis();
+        }
+        batch.add(toRow(current));
+        written++;
+
+        // IDs of written features are known if taken from a key column
+        String keyColumn = BigqueryFeatureIds.getKeyColumn(featureType);
+        Object key = keyColumn != null ? current.getAttribute(keyColumn) : null;
+        if (key != null && current.getIdentifier() instanceof FeatureIdImpl) {
+            ((FeatureIdImpl) current.getIdentifier())
+                    .setID(BigqueryFeatureIds.create(featureType, key, written));
+        }
+        current = null;
+
+        if (batch.size() >= batchSize || isDue()) {
+            flush();
+        }
+    }
+
+    private boolean isDue() {
+        return flushIntervalMillis > 0
+                && !batch.isEmpty()
+                && System.currentTimeMillis() - batchStart >= flushIntervalMillis;
+    }
+
+    private synchronized void flushIfDue() {
+        if (closed || failure != null || !isDue()) {
+            return;
+        }
+        try {
+            flush();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to append rows", e);
+        }
+    }
+
+    /** Send the batch, a failure is kept so the rows written so far are never committed. */
+    private void flush() throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<Map<String, Object>> rows = batch;
+        batch = new ArrayList<>(batchSize);
+        try {
+            sink.append(rows);
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Writer is closed");
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /** Send the remaining rows and commit them, or abandon them if appending failed. */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+        }
+        try {
+            if (failure != null) {
+                throw failure;
+            }
+            flush();
+            sink.commit();
+        } finally {
+            sink.close();
+        }
+    }
+
+    /**
+     * Return the row of a feature, with the values of its attributes as the Storage Write API
+     * takes them in JSON: geometries as WKT, TIMESTAMP as microseconds since the epoch, DATE,
+     * DATETIME and TIME as their text, and NUMERIC as a decimal string. Null values and
+     * pseudo-columns such as _PARTITIONTIME are left out.
+     *
+     * @param feature
+     * @return
+     */
+    public static Map<String, Object> toRow(SimpleFeature feature) {
+        Map<String, Object> row = new LinkedHashMap<>();
+        for (AttributeDescriptor descriptor : feature.getFeatureType().getAttributeDescriptors()) {
+            String column = descriptor.getLocalName();
+            Object value = feature.getAttribute(column);
+            if (value == null || column.startsWith("_PARTITION")) {
+                continue;
+            }
+            row.put(column, toJsonValue(value, descriptor.getUserData().get("bigqueryType")));
+        }
+        return row;
+    }
+
+    private static Object toJsonValue(Object value, Object type) {
+        if (value instanceof Geometry) {
+            return new WKTWriter().write((Geometry) value);
+        } else if (value instanceof Date) {
+            Date date = (Date) value;
+            if ("DATE".equals(type)) {
+                return toLocal(date).toLocalDate().toString();
+            } else if ("DATETIME".equals(type)) {
+                return toLocal(date).toLocalDateTime().toString();
+            } else if ("TIME".equals(type)) {
+                return toLocal(date).toLocalTime().toString();
+            }
+            return BigqueryUtil.getMicros(date);
+        } else if (value instanceof BigDecimal) {
+            return ((BigDecimal) value).toPlainString();
+        } else if (value instanceof Number && "INT64".equals(type)) {
+            // including BigInteger
+            return ((Number) value).longValue();
+        }
+        return value;
+    }
+
+    /** Return a date in the default time zone, the one dates are read in. */
+    private static ZonedDateTime toLocal(Date date) {
+        return Instant.ofEpochMilli(date.getTime()).atZone(ZoneId.systemDefault());
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geotools.data.bigquery;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import org.geotools.filter.visitor.DuplicatingFilterVisitor;
+import org.geotools.filter.visitor.SimplifyingFilterVisitor;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Puntal;
+import org.opengis.filter.And;
+import org.opengis.filter.Filter;
+import org.opengis.filter.Or;
+import org.opengis.filter.expression.Expression;
+import org.opengis.filter.expression.Literal;
+import org.opengis.filter.expression.PropertyName;
+import org.opengis.filter.spatial.BBOX;
+import org.opengis.filter.spatial.BinarySpatialOperator;
+import org.opengis.filter.spatial.Contains;
+import org.opengis.filter.spatial.DWithin;
+import org.opengis.filter.spatial.Intersects;
+import org.opengis.filter.spatial.Within;
+
+/**
+ * Rewrites a filter before it is translated to SQL, so that BigQuery can prune clustered
+ * GEOGRAPHY columns with simple box predicates:
+ *
+ * <ul>
+ *   <li>constant subtrees are folded, nested AND/OR are flattened and repeated clauses removed
+ *   <li>BBOXes on the same property that are implied by another one are dropped, and OR-ed
+ *       BBOXes get a single box guard covering all of them
+ *   <li>expensive predicates against a non-point geometry literal (ST_INTERSECTS, ST_CONTAINS,
+ *       ST_WITHIN, ST_DWITHIN) get a box guard around the literal
+ * </ul>
+ *
+ * Every rewrite is logically equivalent to the original filter. Guards are plain BBOX filters,
+ * which {@link #isGuard(Filter)} tells apart from the BBOXes of the query itself.
+ */
+public class BigqueryFilterOptimizer extends DuplicatingFilterVisitor {
+
+    /** Conservative length of a degree of latitude, and of longitude at the equator, in meters. */
+    private static final double METERS_PER_DEGREE = 110000;
+
+    private final Set<Filter> guards = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /**
+     * Optimize a filter.
+     *
+     * @param filter
+     * @return optimized filter
+     */
+    public Filter optimize(Filter filter) {
+        Filter simplified = (Filter) filter.accept(new SimplifyingFilterVisitor(), null);
+        return (Filter) simplified.accept(this, null);
+    }
+
+    /**
+     * Whether a filter is a box guard added by this optimizer.
+     *
+     * @param filter
+     * @return
+     */
+    public boolean isGuard(Filter filter) {
+        return guards.contains(filter);
+    }
+
+    @Override
+    public Object visit(And filter, Object extraData) {
+        Set<Filter> children = new LinkedHashSet<>();
+        for (Filter child : filter.getChildren()) {
+            Filter optimized = (Filter) child.accept(this, extraData);
+            if (optimized instanceof And) {
+                children.addAll(((And) optimized).getChildren());
+            } else if (optimized == Filter.EXCLUDE) {
+                return Filter.EXCLUDE;
+            } else if (optimized != Filter.INCLUDE) {
+                children.add(optimized);
+            }
+        }
+        // a BBOX implies every BBOX on the same property that contains it
+        dropBoxes(children, true);
+        return combine(children, true);
+    }
+
+    @Override
+    public Object visit(Or filter, Object extraData) {
+        Set<Filter> children = new LinkedHashSet<>();
+        for (Filter child : filter.getChildren()) {
+            Filter optimized = (Filter) child.accept(this, extraData);
+            if (optimized instanceof Or) {
+                children.addAll(((Or) optimized).getChildren());
+            } else if (optimized == Filter.INCLUDE) {
+                return Filter.INCLUDE;
+            } else if (optimized != Filter.EXCLUDE) {
+                children.add(optimized);
+            }
+        }
+        // a BBOX contained in another one on the same property adds nothing
+        dropBoxes(children, false);
+        Filter or = combine(children, false);
+
+        // the union of the boxes is a single, cheap box to prune with
+        if (!children.isEmpty() && children.stream().allMatch(this::isQueryBox)) {
+            String property = null;
+            Envelope union = new Envelope();
+            for (Filter child : children) {
+                BBOX bbox = (BBOX) child;
+                String childProperty = getPropertyName(bbox);
+                if (property != null && !property.equals(childProperty)) {
+                    return or;
+                }
+                property = childProperty;
+                union.expandToInclude(getEnvelope(bbox));
+            }
+            if (children.size() > 1) {
+                return ff.and(createGuard(property, union), or);
+            }
+        }
+        return or;
+    }
+
+    @Override
+    public Object visit(Intersects filter, Object extraData) {
+        return guard(filter, (Filter) super.visit(filter, extraData), 0);
+    }
+
+    @Override
+    public Object visit(Contains filter, Object extraData) {
+        return guard(filter, (Filter) super.visit(filter, extraData), 0);
+    }
+
+    @Override
+    public Object visit(Within filter, Object extraData) {
+        return guard(filter, (Filter) super.visit(filter, extraData), 0);
+    }
+
+    @Override
+    public Object visit(DWithin filter, Object extraData) {
+        String units = filter.getDistanceUnits();
+        if (units != null && !units.isEmpty() && !units.startsWith("m")) {
+            return super.visit(filter, extraData);
+        }
+        return guard(filter, (Filter) super.visit(filter, extraData), filter.getDistance());
+    }
+
+    @Override
+    public Object visit(BBOX filter, Object extraData) {
+        // keep guards recognizable when the optimized filter is optimized again
+        return isGuard(filter) ? filter : super.visit(filter, extraData);
+    }
+
+    /**
+     * Put a box guard in front of a spatial predicate between a property and a non-point
+     * geometry literal.
+     *
+     * @param filter original filter
+     * @param copy copy of the filter to guard
+     * @param distance distance in meters the guard is expanded by
+     * @return guarded filter, or the copy if the guard would not help
+     */
+    private Filter guard(BinarySpatialOperator filter, Filter copy, double distance) {
+        Expression e1 = filter.getExpression1();
+        Expression e2 = filter.getExpression2();
+        if (!(e1 instanceof PropertyName && e2 instanceof Literal)
+                && !(e1 instanceof Literal && e2 instanceof PropertyName)) {
+            return copy;
+        }
+        PropertyName property = (PropertyName) (e1 instanceof PropertyName ? e1 : e2);
+        Geometry geometry = (e1 instanceof Literal ? e1 : e2).evaluate(null, Geometry.class);
+        if (geometry == null || geometry.isEmpty() || geometry instanceof Puntal) {
+            return copy;
+        }
+
+        Envelope envelope = BigqueryUtil.getGeodesicEnvelope(geometry);
+        if (envelope == null) {
+            return copy;
+        }
+        if (distance > 0) {
+            double dy = distance / METERS_PER_DEGREE;
+            double maxLat = Math.max(Math.abs(envelope.getMinY()), Math.abs(envelope.getMaxY()));
+            if (maxLat + dy >= 89) {
+                return copy;
+            }
+            double dx = dy / Math.cos(Math.toRadians(maxLat + dy));
+            envelope.expandBy(dx, dy);
+        }
+        if (envelope.getWidth() >= 180) {
+            return copy;
+        }
+        return ff.and(createGuard(property.getPropertyName(), envelope), copy);
+    }
+
+    private Filter createGuard(String property, Envelope envelope) {
+        BBOX guard =
+                ff.bbox(
+                        property,
+                        envelope.getMinX(),
+                        envelope.getMinY(),
+                        envelope.getMaxX(),
+                        envelope.getMaxY(),
+                        "EPSG:4326");
+        guards.add(guard);
+        return guard;
+    }
+
+    /**
+     * Drop BBOXes that are implied by another one on the same property.
+     *
+     * @param children
+     * @param and whether the children are AND-ed, in which case the larger box is dropped
+     */
+    private void dropBoxes(Set<Filter> children, boolean and) {
+        List<BBOX> boxes = new ArrayList<>();
+        for (Filter child : children) {
+            if (isQueryBox(child)) {
+                boxes.add((BBOX) child);
+            }
+        }
+        for (BBOX box : boxes) {
+            for (BBOX other : boxes) {
+                if (box != other
+                        && children.contains(other)
+                        && getPropertyName(box).equals(getPropertyName(other))) {
+                    Envelope inner = and ? getEnvelope(other) : getEnvelope(box);
+                    Envelope outer = and ? getEnvelope(box) : getEnvelope(other);
+                    if (outer.covers(inner)) {
+                        children.remove(box);
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private Filter combine(Set<Filter> children, boolean and) {
+        if (children.isEmpty()) {
+            return and ? Filter.INCLUDE : Filter.EXCLUDE;
+        } else if (children.size() == 1) {
+            return children.iterator().next();
+        }
+        List<Filter> list = new ArrayList<>(children);
+        return and ? ff.and(list) : ff.or(list);
+    }
+
+    private boolean isQueryBox(Filter filter) {
+        return filter instanceof BBOX
+                && !isGuard(filter)
+                && getPropertyName((BBOX) filter) != null
+                && getEnvelope((BBOX) filter) != null;
+    }
+
+    private static String getPropertyName(BBOX bbox) {
+        Expression e1 = bbox.getExpression1();
+        return e1 instanceof PropertyName ? ((PropertyName) e1).getPropertyName() : null;
+    }
+
+    private static Envelope getEnvelope(BBOX bbox) {
+        return bbox.getExpression2().evaluate(null, Envelope.class);
+    }
+}
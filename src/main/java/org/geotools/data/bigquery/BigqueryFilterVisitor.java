@@ -16,26 +16,42 @@
 
 package org.geotools.data.bigquery;
 
+import com.google.cloud.bigquery.QueryParameterValue;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Timestamp;
 import java.text.SimpleDateFormat;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Deque;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
 import java.util.logging.Logger;
 import org.geotools.data.Query;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.filter.Capabilities;
 import org.geotools.filter.FilterAttributeExtractor;
+import org.geotools.filter.visitor.CapabilitiesFilterSplitter;
+import org.geotools.filter.visitor.DefaultFilterVisitor;
 import org.geotools.geojson.geom.GeometryJSON;
 import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.util.factory.Hints;
 import org.geotools.util.logging.Logging;
 import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.io.WKBWriter;
 import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
 import org.opengis.filter.And;
 import org.opengis.filter.BinaryComparisonOperator;
 import org.opengis.filter.ExcludeFilter;
 import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
 import org.opengis.filter.FilterVisitor;
 import org.opengis.filter.Id;
 import org.opengis.filter.IncludeFilter;
@@ -63,11 +79,15 @@ import org.opengis.filter.spatial.Intersects;
 import org.opengis.filter.spatial.Overlaps;
 import org.opengis.filter.spatial.Touches;
 import org.opengis.filter.spatial.Within;
+import org.opengis.filter.expression.Expression;
+import org.opengis.filter.expression.Literal;
+import org.opengis.filter.expression.PropertyName;
 import org.opengis.filter.temporal.After;
 import org.opengis.filter.temporal.AnyInteracts;
 import org.opengis.filter.temporal.Before;
 import org.opengis.filter.temporal.Begins;
 import org.opengis.filter.temporal.BegunBy;
+import org.opengis.filter.temporal.BinaryTemporalOperator;
 import org.opengis.filter.temporal.During;
 import org.opengis.filter.temporal.EndedBy;
 import org.opengis.filter.temporal.Ends;
@@ -78,6 +98,8 @@ import org.opengis.filter.temporal.TContains;
 import org.opengis.filter.temporal.TEquals;
 import org.opengis.filter.temporal.TOverlaps;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.temporal.Instant;
+import org.opengis.temporal.Period;
 
 /**
  * Parse a geotools Query object and construct TableReadOptions that can be passed to
@@ -90,74 +112,648 @@ public class BigqueryFilterVisitor implements FilterVisitor {
 
     private static final Logger LOGGER = Logging.getLogger(BigqueryFilterVisitor.class);
 
+    private static final FilterFactory2 FF = CommonFactoryFinder.getFilterFactory2(null);
+
+    /** Fraction of the BBOX width and height added on each side before clipping geometries. */
+    protected static final double CLIP_BUFFER_RATIO = 0.05;
+
+    /** Length of a degree of latitude, and of longitude at the equator, in meters. */
+    private static final double METERS_PER_DEGREE = 40075000 / 360d;
+
+    /** Column of the bounding box STRUCT of each geometry, see {@link #getSelectClause}. */
+    public static final String BOUNDING_BOX_COLUMN = "_bbox";
+
+    /** Delimits the index of a literal in clause fragments, until rendered inline or as a param. */
+    private static final String LITERAL_MARKER = "\u0000";
+
+    /** Filters that can be translated to BigQuery SQL, the rest is evaluated on the client. */
+    public static final Capabilities CAPABILITIES = createFilterCapabilities();
+
+    /**
+     * Filters that can be pushed into a Storage API row restriction, which only supports simple
+     * predicates; spatial predicates other than BBOX are evaluated by a {@link
+     * BigqueryResidualFilter}.
+     */
+    public static final Capabilities STORAGE_CAPABILITIES = createStorageFilterCapabilities();
+
     private final Query query;
 
     private Deque<String> clauseFragments;
     // private List<ReferencedEnvelope> intersectionEnvelopes;
     private SimpleFeatureType schema;
-    private String geomColumn;
     private final String geomColumnOriginal;
     private CoordinateReferenceSystem crs;
     // private ReferencedEnvelope combinedEnvelope;
     private int simplifyTolerance;
+    /** Whether a BBOX reads geometries of the base table, which may then be simplified. */
+    private boolean simplifiable;
     private BigqueryPregenerateOptions pregen;
+    private BigqueryViewProvisioner provisioner;
+    private String tableName;
+    private boolean pregenView;
+    private boolean pyramidPieces;
+    private BigqueryFilterOptimizer optimizer;
+    private Filter preFilter;
+    private Filter postFilter;
+
+    private final List<String> inlineLiterals = new ArrayList<>();
+    private final List<String> parameterExpressions = new ArrayList<>();
+    private final Map<String, QueryParameterValue> queryParameters = new LinkedHashMap<>();
 
     public BigqueryFilterVisitor(
             Query query,
             SimpleFeatureType schema,
             CoordinateReferenceSystem crs,
             BigqueryPregenerateOptions pregen) {
+        this(query, schema, crs, pregen, null);
+    }
+
+    /**
+     * @param query
+     * @param schema
+     * @param crs
+     * @param pregen
+     * @param provisioner used to route queries to pregenerated views once they are ready, may be
+     *     null
+     */
+    public BigqueryFilterVisitor(
+            Query query,
+            SimpleFeatureType schema,
+            CoordinateReferenceSystem crs,
+            BigqueryPregenerateOptions pregen,
+            BigqueryViewProvisioner provisioner) {
+        this(query, schema, crs, pregen, provisioner, CAPABILITIES, false);
+    }
+
+    /**
+     * @param query
+     * @param schema
+     * @param crs
+     * @param pregen
+     * @param provisioner used to route queries to pregenerated views once they are ready, may be
+     *     null
+     * @param capabilities filters to translate, the rest is left in the post filter
+     * @param optimize whether to rewrite the filter with a {@link BigqueryFilterOptimizer} first
+     */
+    public BigqueryFilterVisitor(
+            Query query,
+            SimpleFeatureType schema,
+            CoordinateReferenceSystem crs,
+            BigqueryPregenerateOptions pregen,
+            BigqueryViewProvisioner provisioner,
+            Capabilities capabilities,
+            boolean optimize) {
         this.query = query;
         this.schema = schema;
         this.clauseFragments = new ArrayDeque<String>();
         this.geomColumnOriginal = schema.getGeometryDescriptor().getLocalName();
-        this.geomColumn = geomColumnOriginal;
         this.crs = crs;
         this.pregen = pregen;
+        this.provisioner = provisioner;
+        this.tableName = query.getTypeName();
+        this.pregenView = false;
+        this.pyramidPieces = false;
         this.simplifyTolerance = 0;
+        this.simplifiable = false;
 
-        // run parser
-        query.getFilter().accept(this, null);
+        Filter filter = query.getFilter();
+        if (optimize) {
+            this.optimizer = new BigqueryFilterOptimizer();
+            filter = optimizer.optimize(filter);
+        }
+
+        if (BigqueryFeatureIds.getKeyDescriptor(schema) != null) {
+            // feature IDs are keys of the table, rather than row numbers
+            Capabilities withIds = new Capabilities();
+            withIds.addAll(capabilities);
+            withIds.addType(Id.class);
+            capabilities = withIds;
+        }
+
+        // split off what BigQuery cannot run, then run parser
+        List<Filter> untranslatable = new ArrayList<>();
+        filter = splitUntranslatable(filter, untranslatable);
+        CapabilitiesFilterSplitter splitter =
+                new CapabilitiesFilterSplitter(capabilities, schema, null);
+        filter.accept(splitter, null);
+        this.preFilter = splitter.getFilterPre();
+        this.postFilter = splitter.getFilterPost();
+        if (!untranslatable.isEmpty()) {
+            if (postFilter != Filter.INCLUDE) {
+                untranslatable.add(0, postFilter);
+            }
+            this.postFilter =
+                    untranslatable.size() == 1 ? untranslatable.get(0) : FF.and(untranslatable);
+        }
+
+        preFilter.accept(this, null);
     }
 
+    /**
+     * Move the top-level AND operands whose operators are supported, but not with the operands
+     * they have, to a list of filters left to the client, since the capabilities only tell
+     * operators apart. Only "property BETWEEN literal AND literal", and temporal operators between
+     * a property and a time literal, are translated.
+     *
+     * @param filter
+     * @param untranslatable receives the operands that cannot be translated
+     * @return the rest of the filter
+     */
+    private static Filter splitUntranslatable(Filter filter, List<Filter> untranslatable) {
+        List<Filter> conjuncts =
+                filter instanceof And
+                        ? ((And) filter).getChildren()
+                        : Collections.singletonList(filter);
+        List<Filter> rest = new ArrayList<>();
+        for (Filter conjunct : conjuncts) {
+            OperandChecker checker = new OperandChecker();
+            conjunct.accept(checker, null);
+            (checker.translatable ? rest : untranslatable).add(conjunct);
+        }
+        if (untranslatable.isEmpty()) {
+            return filter;
+        }
+        return rest.isEmpty() ? Filter.INCLUDE : rest.size() == 1 ? rest.get(0) : FF.and(rest);
+    }
+
+    /** Tells whether the BETWEEN and temporal operators of a filter have translatable operands. */
+    private static class OperandChecker extends DefaultFilterVisitor {
+
+        boolean translatable = true;
+
+        @Override
+        public Object visit(PropertyIsBetween filter, Object data) {
+            translatable &=
+                    filter.getExpression() instanceof PropertyName
+                            && isLiteral(filter.getLowerBoundary())
+                            && isLiteral(filter.getUpperBoundary());
+            return data;
+        }
+
+        @Override
+        public Object visit(After after, Object data) {
+            return checkTemporal(after, data);
+        }
+
+        @Override
+        public Object visit(Before before, Object data) {
+            return checkTemporal(before, data);
+        }
+
+        @Override
+        public Object visit(During during, Object data) {
+            return checkTemporal(during, data);
+        }
+
+        @Override
+        public Object visit(TEquals equals, Object data) {
+            return checkTemporal(equals, data);
+        }
+
+        @Override
+        public Object visit(AnyInteracts anyInteracts, Object data) {
+            return checkTemporal(anyInteracts, data);
+        }
+
+        private Object checkTemporal(BinaryTemporalOperator filter, Object data) {
+            translatable &= getTemporalOperands(filter) != null;
+            return data;
+        }
+
+        private static boolean isLiteral(Expression expression) {
+            return expression instanceof Literal && expression.evaluate(null) != null;
+        }
+    }
+
+    private static Capabilities createFilterCapabilities() {
+        Capabilities capabilities = new Capabilities();
+        capabilities.addAll(Capabilities.LOGICAL_OPERATORS);
+        capabilities.addAll(Capabilities.SIMPLE_COMPARISONS_OPERATORS);
+        capabilities.addType(PropertyIsNull.class);
+        capabilities.addType(PropertyIsLike.class);
+        capabilities.addType(IncludeFilter.class);
+        capabilities.addType(ExcludeFilter.class);
+
+        capabilities.addType(BBOX.class);
+        capabilities.addType(Intersects.class);
+        capabilities.addType(DWithin.class);
+        capabilities.addType(Contains.class);
+        capabilities.addType(Disjoint.class);
+        capabilities.addType(Touches.class);
+        capabilities.addType(Equals.class);
+        capabilities.addType(Within.class);
+        capabilities.addType(PropertyIsBetween.class);
+        capabilities.addType(After.class);
+        capabilities.addType(Before.class);
+        capabilities.addType(During.class);
+        capabilities.addType(TEquals.class);
+        capabilities.addType(AnyInteracts.class);
+        return capabilities;
+    }
+
+    private static Capabilities createStorageFilterCapabilities() {
+        Capabilities capabilities = new Capabilities();
+        capabilities.addAll(Capabilities.LOGICAL_OPERATORS);
+        capabilities.addAll(Capabilities.SIMPLE_COMPARISONS_OPERATORS);
+        capabilities.addType(PropertyIsNull.class);
+        capabilities.addType(PropertyIsLike.class);
+        capabilities.addType(IncludeFilter.class);
+        capabilities.addType(ExcludeFilter.class);
+        capabilities.addType(BBOX.class);
+        capabilities.addType(PropertyIsBetween.class);
+        capabilities.addType(After.class);
+        capabilities.addType(Before.class);
+        capabilities.addType(During.class);
+        capabilities.addType(TEquals.class);
+        capabilities.addType(AnyInteracts.class);
+        return capabilities;
+    }
+
+    /**
+     * Return the part of the query filter that is translated to the WHERE clause.
+     *
+     * @return filter, INCLUDE if nothing could be translated
+     */
+    public Filter getPreFilter() {
+        return preFilter;
+    }
+
+    /**
+     * Return the part of the query filter that BigQuery cannot run, which must be evaluated on the
+     * features it returns.
+     *
+     * @return filter, INCLUDE if everything was translated
+     */
+    public Filter getPostFilter() {
+        return postFilter;
+    }
+
+    /**
+     * Return the WHERE clause with literals inlined, e.g. for the row restriction of a Storage API
+     * read session, which does not support query parameters.
+     *
+     * @return where clause
+     */
     public String getWhereClause() {
+        return renderWhereClause(inlineLiterals);
+    }
+
+    /**
+     * Return the WHERE clause with literals replaced by named query parameters, see {@link
+     * #getQueryParameters()}. Queries that only differ in their literals share the same SQL.
+     *
+     * @return where clause
+     */
+    public String getParameterizedWhereClause() {
+        return renderWhereClause(parameterExpressions);
+    }
+
+    /**
+     * Return the values of the named parameters of {@link #getParameterizedWhereClause()}.
+     *
+     * @return parameter values by name
+     */
+    public Map<String, QueryParameterValue> getQueryParameters() {
+        return Collections.unmodifiableMap(queryParameters);
+    }
+
+    private String renderWhereClause(List<String> literals) {
         if (clauseFragments.isEmpty()) {
             return "TRUE";
         }
 
-        return String.join(" ", clauseFragments);
+        String[] parts = String.join(" ", clauseFragments).split(LITERAL_MARKER, -1);
+        StringBuilder clause = new StringBuilder(parts[0]);
+        for (int i = 1; i < parts.length; i += 2) {
+            clause.append(literals.get(Integer.parseInt(parts[i]))).append(parts[i + 1]);
+        }
+        return clause.toString();
+    }
+
+    /**
+     * Register a literal, and return the marker to insert in clause fragments in its place.
+     *
+     * @param inline SQL of the literal when inlined
+     * @param value value of the query parameter
+     * @param template SQL template of the parameter expression, where %s is the parameter
+     * @return marker
+     */
+    private String addLiteral(String inline, QueryParameterValue value, String template) {
+        int index = inlineLiterals.size();
+        String name = "p" + index;
+
+        inlineLiterals.add(inline);
+        parameterExpressions.add(String.format(template, "@" + name));
+        queryParameters.put(name, value);
+
+        return LITERAL_MARKER + index + LITERAL_MARKER;
+    }
+
+    private String addLiteral(double value) {
+        return addLiteral(String.format("%f", value), QueryParameterValue.float64(value), "%s");
+    }
+
+    /**
+     * Return the table to query, which is a tile-clipped pyramid table or a pregenerated view of
+     * simplified geometries if one is ready for the current zoom, otherwise the queried table.
+     *
+     * @return fully qualified table name
+     */
+    public String getTableName() {
+        return tableName;
+    }
+
+    /**
+     * Return the GROUP BY clause that re-merges pyramid pieces by their source geometry.
+     *
+     * @return clause, or an empty string if no grouping is needed
+     */
+    public String getGroupByClause() {
+        return isMergingPieces() ? "GROUP BY source_id" : "";
+    }
+
+    /**
+     * Return the simplification tolerance derived from the hints and the BBOX of the query.
+     *
+     * @return tolerance in meters, or 0 if the query has no BBOX
+     */
+    public int getSimplifyTolerance() {
+        return simplifyTolerance;
+    }
+
+    /**
+     * Return the simplification tolerance in degrees, for geometries simplified on the client. A
+     * degree is taken to be as long as a degree of latitude, so the distance never exceeds the
+     * tolerance in meters.
+     *
+     * @return distance in degrees, or 0 if the query has no BBOX
+     */
+    public double getSimplifyDistance() {
+        return simplifyTolerance / METERS_PER_DEGREE;
+    }
+
+    private boolean isMergingPieces() {
+        return pyramidPieces && provisioner.isMergePieces();
+    }
+
+    /**
+     * Return whether the query reads the pieces of a pyramid table without merging them, in which
+     * case the SELECT clause also selects their cell_x and cell_y columns, see {@link
+     * BigqueryFeatureIds#createPiece}.
+     *
+     * @return
+     */
+    public boolean isReadingPieces() {
+        return pyramidPieces && !provisioner.isMergePieces();
+    }
+
+    /**
+     * Return whether the SELECT clause selects the coordinates of point geometries, as {@link
+     * BigqueryPointColumns#X_COLUMN} and {@link BigqueryPointColumns#Y_COLUMN}, instead of their
+     * GeoJSON and bounding box.
+     *
+     * @return
+     */
+    public boolean isSelectingPoints() {
+        return BigqueryPointColumns.isPoint(schema) && !pregenView && !isMergingPieces();
     }
 
     public String getSelectClause(Boolean simplify) {
+        return getSelectClause(simplify, false);
+    }
+
+    /**
+     * Return the SELECT clause, optionally clipping returned geometries to the (buffered) BBOX of
+     * the query.
+     *
+     * @param simplify
+     * @param clip clip geometries with ST_INTERSECTION when the filter constrains them to a BBOX
+     * @return select clause
+     */
+    public String getSelectClause(Boolean simplify, Boolean clip) {
+        return getSelectClause(simplify, clip, false);
+    }
+
+    /**
+     * Return the SELECT clause, optionally clipping returned geometries to the (buffered) BBOX of
+     * the query, and selecting the bounding box of each geometry.
+     *
+     * <p>Geometries of the base table are simplified with ST_SIMPLIFY at the tolerance of the
+     * BBOX, if simplification is on or pregenerated views are used but not ready yet. Only the
+     * selected geometries are, so that the BBOX predicate still prunes clustered blocks.
+     *
+     * @param simplify simplify geometries on the fly
+     * @param clip clip geometries with ST_INTERSECTION when the filter constrains them to a BBOX
+     * @param boundingBox also select the ST_BOUNDINGBOX of the geometry as {@link
+     *     #BOUNDING_BOX_COLUMN}, e.g. to skip sub-pixel features without parsing them
+     * @return select clause
+     */
+    public String getSelectClause(Boolean simplify, Boolean clip, Boolean boundingBox) {
         List<String> selectColumns = new ArrayList<String>();
+        String clipBox = Boolean.TRUE.equals(clip) ? getClipBoxSQL() : null;
+
+        if (isMergingPieces()) {
+            for (String column : getNonGeometryColumns()) {
+                selectColumns.add(String.format("ANY_VALUE(%s) as %s", column, column));
+            }
+            selectColumns.add(
+                    String.format(
+                            "ST_ASGEOJSON(%s) as %s",
+                            clipGeometry(
+                                    String.format("ST_UNION_AGG(%s)", geomColumnOriginal),
+                                    clipBox),
+                            geomColumnOriginal));
+            if (Boolean.TRUE.equals(boundingBox)) {
+                selectColumns.add(
+                        String.format(
+                                "ST_EXTENT(%s) as %s", geomColumnOriginal, BOUNDING_BOX_COLUMN));
+            }
+            return String.join(", ", selectColumns);
+        }
+
         if (!query.retrieveAllProperties()) {
-            selectColumns.addAll(Arrays.asList(query.getPropertyNames()));
+            selectColumns.addAll(getRequestedColumns());
             selectColumns.remove(geomColumnOriginal);
+            if (isReadingPieces()) {
+                selectColumns.add("cell_x");
+                selectColumns.add("cell_y");
+            }
         } else {
-            selectColumns.add(String.format("* except (%s)", geomColumnOriginal));
+            selectColumns.add(
+                    pregenView
+                            ? String.format("* except (%s, geom_geojson)", geomColumnOriginal)
+                            : String.format("* except (%s)", geomColumnOriginal));
         }
 
-        selectColumns.add(
-                String.format("ST_ASGEOJSON(%s) as %s", this.geomColumn, this.geomColumnOriginal));
+        if (isSelectingPoints()) {
+            // neither simplified nor clipped, and the point is its own bounding box
+            selectColumns.add(BigqueryPointColumns.getSelectSQL(this.geomColumnOriginal));
+            return String.join(", ", selectColumns);
+        }
+
+        if (pregenView && clipBox == null) {
+            // pregenerated views store the simplified geometry as GeoJSON already
+            selectColumns.add(String.format("geom_geojson as %s", this.geomColumnOriginal));
+        } else {
+            selectColumns.add(
+                    String.format(
+                            "ST_ASGEOJSON(%s) as %s",
+                            clipGeometry(getGeometrySQL(simplify), clipBox),
+                            this.geomColumnOriginal));
+        }
+        if (Boolean.TRUE.equals(boundingBox)) {
+            selectColumns.add(
+                    String.format(
+                            "ST_BOUNDINGBOX(%s) as %s", geomColumnOriginal, BOUNDING_BOX_COLUMN));
+        }
 
         return String.join(", ", selectColumns);
     }
 
+    private String getGeometrySQL(Boolean simplify) {
+        boolean pregenerating = pregen != null && pregen != BigqueryPregenerateOptions.MV_NONE;
+        if (simplifiable
+                && simplifyTolerance > 0
+                && (Boolean.TRUE.equals(simplify) || pregenerating)) {
+            return String.format("ST_SIMPLIFY(%s, %s)", geomColumnOriginal, simplifyTolerance);
+        }
+        return geomColumnOriginal;
+    }
+
+    private static String clipGeometry(String geomExpression, String clipBox) {
+        if (clipBox == null) return geomExpression;
+
+        return String.format("ST_INTERSECTION(%s, %s)", geomExpression, clipBox);
+    }
+
+    /**
+     * Return SQL for the buffered box that returned geometries can be clipped to. Clipping is only
+     * safe when every returned feature must intersect the box, i.e. the BBOX is the filter itself
+     * or one of its top-level AND operands.
+     *
+     * @return box geography, or null if geometries should not be clipped
+     */
+    protected String getClipBoxSQL() {
+        Envelope envelope = getClipEnvelope(query.getFilter());
+        if (envelope == null || envelope.isNull()) return null;
+
+        envelope = new Envelope(envelope);
+        envelope.expandBy(
+                envelope.getWidth() * CLIP_BUFFER_RATIO, envelope.getHeight() * CLIP_BUFFER_RATIO);
+
+        Double[] box = BigqueryUtil.gtEnvelopeToExtent(envelope);
+        if (box[2] - box[0] >= 180 || box[2] <= box[0] || box[3] <= box[1]) {
+            // not worth clipping, and boxes of a hemisphere or more are ambiguous as polygons
+            return null;
+        }
+
+        return String.format(
+                "ST_GEOGFROMTEXT('POLYGON((%f %f, %f %f, %f %f, %f %f, %f %f))', planar => TRUE)",
+                box[0], box[1], box[2], box[1], box[2], box[3], box[0], box[3], box[0], box[1]);
+    }
+
+    private Envelope getClipEnvelope(Filter filter) {
+        if (filter instanceof BBOX && geomColumnOriginal.equals(extractSingleAttribute(filter))) {
+            return ((BBOX) filter).getExpression2().evaluate(null, Envelope.class);
+        }
+
+        Envelope clip = null;
+        if (filter instanceof And) {
+            for (Filter child : ((And) filter).getChildren()) {
+                Envelope envelope = getClipEnvelope(child);
+                if (envelope != null) {
+                    clip = clip == null ? new Envelope(envelope) : clip.intersection(envelope);
+                }
+            }
+        }
+        return clip;
+    }
+
+    /**
+     * Return the properties of the query, and the key column feature IDs are taken from.
+     *
+     * @return columns
+     */
+    public List<String> getRequestedColumns() {
+        List<String> columns = new ArrayList<String>(Arrays.asList(query.getPropertyNames()));
+        String keyColumn = BigqueryFeatureIds.getKeyColumn(schema);
+        if (keyColumn != null && !columns.contains(keyColumn)) {
+            columns.add(keyColumn);
+        }
+        return columns;
+    }
+
+    private List<String> getNonGeometryColumns() {
+        List<String> columns = new ArrayList<String>();
+        if (!query.retrieveAllProperties()) {
+            columns.addAll(getRequestedColumns());
+        } else {
+            for (AttributeDescriptor attr : schema.getAttributeDescriptors()) {
+                // pseudo-columns are not copied into pyramid tables
+                if (!attr.getLocalName().startsWith("_PARTITION")) {
+                    columns.add(attr.getLocalName());
+                }
+            }
+        }
+        columns.remove(geomColumnOriginal);
+        return columns;
+    }
+
     /**
-     * Return a tolerance of 1, 10, or 100 meters depending on envelope size
+     * Return the web map zoom level whose tiles are about the size of the envelope.
      *
      * @param envelope
-     * @return tolerance
+     * @return zoom level
      */
-    protected Integer getSimplifyTolerance(ReferencedEnvelope envelope) {
-        double centerLat = Math.abs(envelope.getMedian(1) / 2d);
-        double envelopeWidth = envelope.getWidth();
-        double metersPerDegree = (40075000 * Math.cos(centerLat)) / 360d;
-        double metersPerPixel = Math.abs((metersPerDegree * envelopeWidth) / 1024d);
+    protected static int getZoomLevel(ReferencedEnvelope envelope) {
+        double width = Math.max(envelope.getWidth(), envelope.getHeight());
+        if (width <= 0) return 24;
+
+        return (int) Math.max(0, Math.min(24, Math.floor(Math.log(360d / width) / Math.log(2))));
+    }
 
+    /**
+     * Return a tolerance of 1, 10, 100 or 1000 meters, about the size of a pixel. The pixel size is
+     * taken from the GEOMETRY_DISTANCE or GEOMETRY_GENERALIZATION hint of the query, which
+     * renderers set, and otherwise guessed from the envelope assuming a 1024 pixel wide image.
+     *
+     * @param envelope BBOX of the query
+     * @return tolerance in meters, 0 if geometries should not be simplified
+     */
+    protected Integer getSimplifyTolerance(ReferencedEnvelope envelope) {
+        // meters per degree of longitude, which is the shorter side of a pixel
+        double centerLat = Math.min(90, Math.abs(envelope.getMedian(1)));
+        double metersPerDegree = METERS_PER_DEGREE * Math.cos(Math.toRadians(centerLat));
+
+        Double distance = getHintedDistance();
+        double metersPerPixel =
+                distance != null
+                        ? distance * metersPerDegree
+                        : Math.abs((metersPerDegree * envelope.getWidth()) / 1024d);
+        if (!(metersPerPixel >= 1)) {
+            return 0;
+        }
         return (int) Math.min(1000, Math.pow(10.0, Math.floor(Math.log10(metersPerPixel))));
     }
 
+    /**
+     * Return the distance geometries may be simplified or generalized by, according to the hints
+     * of the query.
+     *
+     * @return distance in degrees, or null if the query has no such hint
+     */
+    private Double getHintedDistance() {
+        Hints hints = query.getHints();
+        if (hints == null) {
+            return null;
+        }
+        Object distance = hints.get(Hints.GEOMETRY_DISTANCE);
+        if (distance == null) {
+            distance = hints.get(Hints.GEOMETRY_GENERALIZATION);
+        }
+        return distance instanceof Number ? ((Number) distance).doubleValue() : null;
+    }
+
     private String extractSingleAttribute(Filter filter) {
         FilterAttributeExtractor extractor = new FilterAttributeExtractor(schema);
         filter.accept(extractor, null);
@@ -172,25 +768,118 @@ public class BigqueryFilterVisitor implements FilterVisitor {
         return String.format("ST_GEOGFROMGEOJSON('%s', make_valid => true)", geomJson);
     }
 
-    private String resolveValue(Object value) {
+    /**
+     * Register a literal value, typed after the BigQuery type of the property it is compared to.
+     *
+     * @param value
+     * @param property property the value is compared to, may be null
+     * @return marker of the literal
+     */
+    private String resolveValue(Object value, String property) {
         if (value instanceof Geometry) {
-            return getGeogFromGeojsonSQL((Geometry) value);
+            // WKB keeps the parameter small and exact, unlike GeoJSON text
+            return addLiteral(
+                    getGeogFromGeojsonSQL((Geometry) value),
+                    QueryParameterValue.bytes(new WKBWriter().write((Geometry) value)),
+                    "ST_GEOGFROMWKB(%s, make_valid => TRUE)");
         } else if (value instanceof String) {
-            return "'" + value + "'";
-        } else if (value instanceof Integer) {
-            return Integer.toString((Integer) value);
+            return addLiteral(
+                    BigqueryUtil.quoteString((String) value),
+                    QueryParameterValue.string((String) value),
+                    "%s");
+        } else if (value instanceof Integer
+                || value instanceof Long
+                || value instanceof Short
+                || value instanceof BigInteger) {
+            return addLiteral(
+                    value.toString(),
+                    QueryParameterValue.int64(((Number) value).longValue()),
+                    "%s");
         } else if (value instanceof Float) {
-            return Float.toString((Float) value);
+            return addLiteral(
+                    Float.toString((Float) value),
+                    QueryParameterValue.float64(((Float) value).doubleValue()),
+                    "%s");
         } else if (value instanceof Double) {
-            return Double.toString((Double) value);
+            return addLiteral(
+                    Double.toString((Double) value),
+                    QueryParameterValue.float64((Double) value),
+                    "%s");
+        } else if (value instanceof BigDecimal) {
+            return addLiteral(
+                    ((BigDecimal) value).toPlainString(),
+                    QueryParameterValue.numeric((BigDecimal) value),
+                    "%s");
+        } else if (value instanceof Boolean) {
+            return addLiteral(
+                    value.toString().toUpperCase(),
+                    QueryParameterValue.bool((Boolean) value),
+                    "%s");
         } else if (value instanceof Date) {
-            return "'" + new SimpleDateFormat("yyyy-MM-dd").format(value) + "'";
-
+            return resolveDate((Date) value, getBigqueryType(property));
         } else {
-            return (String) value;
+            return addLiteral(
+                    String.valueOf(value), QueryParameterValue.string(String.valueOf(value)), "%s");
         }
     }
 
+    /**
+     * Return the BigQuery type of a property, as recorded in the user data of its descriptor.
+     *
+     * @param property
+     * @return type name, or null if unknown
+     */
+    private String getBigqueryType(String property) {
+        AttributeDescriptor descriptor = property != null ? schema.getDescriptor(property) : null;
+        return descriptor != null ? (String) descriptor.getUserData().get("bigqueryType") : null;
+    }
+
+    /**
+     * Register a time literal of the given BigQuery type, with full precision, so that filters on
+     * partitioning columns compare against the column itself and prune partitions.
+     *
+     * @param value
+     * @param bigqueryType type of the compared column, TIMESTAMP if unknown
+     * @return marker of the literal
+     */
+    private String resolveDate(Date value, String bigqueryType) {
+        long micros = getMicros(value);
+        String fraction = String.format(".%06d", Math.floorMod(micros, 1000000L));
+
+        if ("DATE".equals(bigqueryType)) {
+            String text = formatDate("yyyy-MM-dd", value);
+            return addLiteral(
+                    "CAST('" + text + "' AS DATE)", QueryParameterValue.date(text), "%s");
+        } else if ("DATETIME".equals(bigqueryType)) {
+            String text = formatDate("yyyy-MM-dd HH:mm:ss", value) + fraction;
+            return addLiteral(
+                    "CAST('" + text + "' AS DATETIME)", QueryParameterValue.dateTime(text), "%s");
+        } else if ("TIME".equals(bigqueryType)) {
+            String text = formatDate("HH:mm:ss", value) + fraction;
+            return addLiteral(
+                    "CAST('" + text + "' AS TIME)", QueryParameterValue.time(text), "%s");
+        }
+        String text = formatDate("yyyy-MM-dd HH:mm:ss", value) + fraction + "+00";
+        return addLiteral(
+                "CAST('" + text + "' AS TIMESTAMP)", QueryParameterValue.timestamp(micros), "%s");
+    }
+
+    private static String formatDate(String pattern, Date value) {
+        SimpleDateFormat format = new SimpleDateFormat(pattern);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(value);
+    }
+
+    /** Return microseconds since the epoch, keeping the sub-millisecond part of timestamps. */
+    private static long getMicros(Date value) {
+        if (value instanceof Timestamp) {
+            Timestamp timestamp = (Timestamp) value;
+            return Math.floorDiv(timestamp.getTime(), 1000L) * 1000000L
+                    + timestamp.getNanos() / 1000;
+        }
+        return value.getTime() * 1000L;
+    }
+
     /**
      * Figures out filter arg types and positions, and return a PAIR of Strings that are formatted
      * and ready to be inserted into a clause template.
@@ -220,13 +909,13 @@ public class BigqueryFilterVisitor implements FilterVisitor {
             return props;
         }
         if (o1 != null && o2 != null) {
-            return new String[] {resolveValue(o1), resolveValue(o2)};
+            return new String[] {resolveValue(o1, null), resolveValue(o2, null)};
         }
 
         if (o1 != null) {
-            return new String[] {resolveValue(o1), props[0]};
+            return new String[] {resolveValue(o1, props[0]), props[0]};
         } else if (o2 != null) {
-            return new String[] {props[0], resolveValue(o2)};
+            return new String[] {props[0], resolveValue(o2, props[0])};
         } else {
             // should be impossible?
             return null;
@@ -241,28 +930,89 @@ public class BigqueryFilterVisitor implements FilterVisitor {
         String geomAttr = extractSingleAttribute(filter);
 
         Double[] box = BigqueryUtil.gtEnvelopeToExtent(envelope);
+
+        if (optimizer != null && optimizer.isGuard(filter)) {
+            // only there to prune clustered blocks, must not affect simplification or routing
+            clauseFragments.add(
+                    String.format(
+                            "ST_INTERSECTSBOX(%s, %s, %s, %s, %s)",
+                            geomAttr,
+                            addLiteral(box[0]),
+                            addLiteral(box[1]),
+                            addLiteral(box[2]),
+                            addLiteral(box[3])));
+            return null;
+        }
         ReferencedEnvelope refEnvelope =
                 new ReferencedEnvelope(box[0], box[2], box[1], box[3], crs);
 
         this.simplifyTolerance = getSimplifyTolerance(refEnvelope);
 
-        if (pregen != null
-                && pregen != BigqueryPregenerateOptions.MV_NONE
-                && this.simplifyTolerance > 0
-                && geomAttr == this.geomColumnOriginal
-        /*&& !query.retrieveAllProperties() */ ) {
-            geomAttr = String.format("ST_SIMPLIFY(%s, %s)", geomColumnOriginal, simplifyTolerance);
-            this.geomColumn = geomAttr;
+        Integer pyramidZoom =
+                provisioner != null && geomAttr == this.geomColumnOriginal
+                        ? provisioner.getReadyPyramidZoom(
+                                query.getTypeName(), getZoomLevel(refEnvelope))
+                        : null;
+
+        if (pyramidZoom != null) {
+            clauseFragments.add(getPyramidClause(geomAttr, box, pyramidZoom));
+            return null;
+        }
+
+        String readyView =
+                provisioner != null && geomAttr == this.geomColumnOriginal
+                        ? provisioner.getReadyView(query.getTypeName(), simplifyTolerance)
+                        : null;
+
+        if (readyView != null) {
+            // geometries in the view are already simplified
+            this.tableName = readyView;
+            this.pregenView = true;
+        } else if (geomAttr == this.geomColumnOriginal) {
+            // simplified in the SELECT clause only
+            this.simplifiable = true;
         }
 
         String clause =
-                String.format("ST_INTERSECTSBOX(" + geomAttr + ", %f, %f, %f, %f)", (Object[]) box);
+                String.format(
+                        "ST_INTERSECTSBOX(%s, %s, %s, %s, %s)",
+                        geomAttr,
+                        addLiteral(box[0]),
+                        addLiteral(box[1]),
+                        addLiteral(box[2]),
+                        addLiteral(box[3]));
 
         clauseFragments.add(clause);
 
         return null;
     }
 
+    /**
+     * Route the BBOX to the pieces of the pyramid table at the given zoom level, restricting the
+     * clustered cell columns first.
+     */
+    private String getPyramidClause(String geomAttr, Double[] box, int zoom) {
+        double size = BigqueryViewProvisioner.getPyramidCellSize(zoom);
+        long maxCellX = (1L << zoom) - 1;
+        long maxCellY = (long) Math.ceil(180d / size) - 1;
+
+        this.tableName = BigqueryViewProvisioner.getPyramidTableName(query.getTypeName(), zoom);
+        this.pyramidPieces = true;
+
+        return String.format(
+                "(cell_x BETWEEN %d AND %d AND cell_y BETWEEN %d AND %d "
+                        + "AND ST_INTERSECTSBOX(%s, %s, %s, %s, %s))",
+                Math.min(maxCellX, (long) Math.floor((box[0] + 180) / size)),
+                Math.min(maxCellX, (long) Math.floor((box[2] + 180) / size)),
+                Math.min(maxCellY, (long) Math.floor((box[1] + 90) / size)),
+                Math.min(maxCellY, (long) Math.floor((box[3] + 90) / size)),
+                geomAttr,
+                addLiteral(box[0]),
+                addLiteral(box[1]),
+                addLiteral(box[2]),
+                addLiteral(box[3]));
+    }
+
     @Override
     public Object visit(Intersects filter, Object extraData) {
         String[] args = getArgsFromBinaryFilter(filter);
@@ -415,7 +1165,14 @@ public class BigqueryFilterVisitor implements FilterVisitor {
         FilterAttributeExtractor extractor = new FilterAttributeExtractor(schema);
         filter.accept(extractor, null);
         String[] props = extractor.getAttributeNames();
-        String clause = String.format("%s LIKE '%s'", props[0], filter.getLiteral());
+        String clause =
+                String.format(
+                        "%s LIKE %s",
+                        props[0],
+                        addLiteral(
+                                BigqueryUtil.quoteString(filter.getLiteral()),
+                                QueryParameterValue.string(filter.getLiteral()),
+                                "%s"));
 
         clauseFragments.add(clause);
 
@@ -429,7 +1186,7 @@ public class BigqueryFilterVisitor implements FilterVisitor {
         List<Filter> children = filter.getChildren();
         if (children != null) {
             for (Filter child : children) {
-                child.accept(this, null);
+                visitOperand(child, child instanceof And);
                 clauseFragments.add("OR");
             }
             clauseFragments.removeLast();
@@ -442,7 +1199,7 @@ public class BigqueryFilterVisitor implements FilterVisitor {
         List<Filter> children = filter.getChildren();
         if (children != null) {
             for (Filter child : children) {
-                child.accept(this, null);
+                visitOperand(child, child instanceof Or);
                 clauseFragments.add("AND");
             }
             clauseFragments.removeLast();
@@ -450,6 +1207,17 @@ public class BigqueryFilterVisitor implements FilterVisitor {
         return null;
     }
 
+    /** Visit an operand of AND/OR, in parentheses if it has a different operator. */
+    private void visitOperand(Filter child, boolean parenthesize) {
+        if (parenthesize) {
+            clauseFragments.add("(");
+        }
+        child.accept(this, null);
+        if (parenthesize) {
+            clauseFragments.add(")");
+        }
+    }
+
     @Override
     public Object visit(Not filter, Object extraData) {
         clauseFragments.add("NOT (");
@@ -459,60 +1227,162 @@ public class BigqueryFilterVisitor implements FilterVisitor {
         return null;
     }
 
-    // UNSUPPORTED
+    // TEMPORAL OPERATORS
 
     @Override
-    public Object visitNullFilter(Object extraData) {
-        throw new UnsupportedOperationException();
+    public Object visit(After after, Object extraData) {
+        String[] args = getTemporalArgs(after);
+        String clause =
+                args[3] == null
+                        ? String.format("%s > %s", args[0], args[2])
+                        : String.format("%s < %s", args[0], args[1]);
+        clauseFragments.add(clause);
+        return null;
     }
 
     @Override
-    public Object visit(Beyond filter, Object extraData) {
-        throw new UnsupportedOperationException();
+    public Object visit(Before before, Object extraData) {
+        String[] args = getTemporalArgs(before);
+        String clause =
+                args[3] == null
+                        ? String.format("%s < %s", args[0], args[1])
+                        : String.format("%s > %s", args[0], args[2]);
+        clauseFragments.add(clause);
+        return null;
     }
 
     @Override
-    public Object visit(Crosses filter, Object extraData) {
-        throw new UnsupportedOperationException();
+    public Object visit(During during, Object extraData) {
+        String[] args = getTemporalArgs(during);
+        String clause =
+                args[3] == null
+                        ? String.format("(%s > %s AND %s < %s)", args[0], args[1], args[0], args[2])
+                        : "FALSE";
+        clauseFragments.add(clause);
+        return null;
     }
 
     @Override
-    public Object visit(Overlaps filter, Object extraData) {
-        throw new UnsupportedOperationException();
+    public Object visit(TEquals equals, Object extraData) {
+        String[] args = getTemporalArgs(equals);
+        String clause =
+                args[1].equals(args[2])
+                        ? String.format("%s = %s", args[0], args[1])
+                        : String.format(
+                                "(%s = %s AND %s = %s)", args[0], args[1], args[0], args[2]);
+        clauseFragments.add(clause);
+        return null;
     }
 
     @Override
-    public Object visit(PropertyIsNil filter, Object extraData) {
+    public Object visit(AnyInteracts anyInteracts, Object extraData) {
+        String[] args = getTemporalArgs(anyInteracts);
+        String clause = String.format("%s BETWEEN %s AND %s", args[0], args[1], args[2]);
+        clauseFragments.add(clause);
+        return null;
+    }
+
+    @Override
+    public Object visit(PropertyIsBetween filter, Object extraData) {
+        String property = ((PropertyName) filter.getExpression()).getPropertyName();
+        String clause =
+                String.format(
+                        "%s BETWEEN %s AND %s",
+                        property,
+                        resolveValue(filter.getLowerBoundary().evaluate(null), property),
+                        resolveValue(filter.getUpperBoundary().evaluate(null), property));
+        clauseFragments.add(clause);
+        return null;
+    }
+
+    /**
+     * Return the operands of a temporal operator between a property and a time literal, which is
+     * either an instant or a period. Instants are treated as periods that begin and end at the
+     * same time, with full (microsecond) precision.
+     *
+     * @param filter
+     * @return property, begin literal, end literal, and a non-null 4th element if the literal is
+     *     the first operand
+     */
+    private String[] getTemporalArgs(BinaryTemporalOperator filter) {
+        Object[] operands = getTemporalOperands(filter);
+        String property = (String) operands[0];
+        Date begin = (Date) operands[1];
+        Date end = (Date) operands[2];
+        boolean swapped = filter.getExpression1() instanceof Literal;
+
+        String beginLiteral = resolveValue(begin, property);
+        String endLiteral = begin.equals(end) ? beginLiteral : resolveValue(end, property);
+        return new String[] {property, beginLiteral, endLiteral, swapped ? "swapped" : null};
+    }
+
+    /**
+     * Return the property, and the beginning and end of the time literal, of a temporal operator.
+     *
+     * @param filter
+     * @return operands, or null if the operator is not between a property and a literal that is
+     *     or converts to a time
+     */
+    private static Object[] getTemporalOperands(BinaryTemporalOperator filter) {
+        boolean swapped = filter.getExpression1() instanceof Literal;
+        Expression propertyExpression = swapped ? filter.getExpression2() : filter.getExpression1();
+        Expression literalExpression = swapped ? filter.getExpression1() : filter.getExpression2();
+        if (!(propertyExpression instanceof PropertyName)
+                || !(literalExpression instanceof Literal)) {
+            return null;
+        }
+
+        Object value = literalExpression.evaluate(null);
+        Date begin;
+        Date end;
+        if (value instanceof Period) {
+            begin = ((Period) value).getBeginning().getPosition().getDate();
+            end = ((Period) value).getEnding().getPosition().getDate();
+        } else if (value instanceof Instant) {
+            begin = end = ((Instant) value).getPosition().getDate();
+        } else {
+            begin = end = literalExpression.evaluate(null, Date.class);
+        }
+        if (begin == null || end == null) {
+            return null;
+        }
+        return new Object[] {((PropertyName) propertyExpression).getPropertyName(), begin, end};
+    }
+
+    // UNSUPPORTED
+
+    @Override
+    public Object visitNullFilter(Object extraData) {
         throw new UnsupportedOperationException();
     }
 
     @Override
-    public Object visit(After after, Object extraData) {
+    public Object visit(Beyond filter, Object extraData) {
         throw new UnsupportedOperationException();
     }
 
     @Override
-    public Object visit(AnyInteracts anyInteracts, Object extraData) {
+    public Object visit(Crosses filter, Object extraData) {
         throw new UnsupportedOperationException();
     }
 
     @Override
-    public Object visit(Before before, Object extraData) {
+    public Object visit(Overlaps filter, Object extraData) {
         throw new UnsupportedOperationException();
     }
 
     @Override
-    public Object visit(Begins begins, Object extraData) {
+    public Object visit(PropertyIsNil filter, Object extraData) {
         throw new UnsupportedOperationException();
     }
 
     @Override
-    public Object visit(BegunBy begunBy, Object extraData) {
+    public Object visit(Begins begins, Object extraData) {
         throw new UnsupportedOperationException();
     }
 
     @Override
-    public Object visit(During during, Object extraData) {
+    public Object visit(BegunBy begunBy, Object extraData) {
         throw new UnsupportedOperationException();
     }
 
@@ -546,26 +1416,16 @@ public class BigqueryFilterVisitor implements FilterVisitor {
         throw new UnsupportedOperationException();
     }
 
-    @Override
-    public Object visit(TEquals equals, Object extraData) {
-        throw new UnsupportedOperationException();
-    }
-
     @Override
     public Object visit(TOverlaps contains, Object extraData) {
         throw new UnsupportedOperationException();
     }
 
-    @Override
-    public Object visit(PropertyIsBetween filter, Object extraData) {
-        throw new UnsupportedOperationException();
-    }
-
     // HANDLED ELSEWHERE
 
     @Override
     public Object visit(ExcludeFilter filter, Object extraData) {
-        // TODO Auto-generated method stub
+        clauseFragments.add("FALSE");
         return null;
     }
 
@@ -577,7 +1437,61 @@ public class BigqueryFilterVisitor implements FilterVisitor {
 
     @Override
     public Object visit(Id filter, Object extraData) {
-        // TODO Auto-generated method stub
+        AttributeDescriptor key = BigqueryFeatureIds.getKeyDescriptor(schema);
+        boolean hashed =
+                BigqueryFeatureIds.getEncoding(key) == BigqueryFeatureIds.Encoding.FARM_FINGERPRINT;
+        String type = hashed ? "INT64" : getBigqueryType(key.getLocalName());
+
+        // pieces of a pyramid are fetched as the whole row they were cut from
+        boolean pieces = provisioner != null && provisioner.hasPieceIds();
+        List<String> keys = new ArrayList<>();
+        for (Object id : filter.getIDs()) {
+            String value = BigqueryFeatureIds.getKey(schema, String.valueOf(id));
+            if (pieces) {
+                value = BigqueryFeatureIds.getRowKey(value);
+            }
+            if ("INT64".equals(type) && !isInt64(value)) {
+                // no row has this key
+                continue;
+            }
+            if (!keys.contains(value)) {
+                keys.add(value);
+            }
+        }
+        if (keys.isEmpty()) {
+            clauseFragments.add("FALSE");
+            return null;
+        }
+
+        String inline;
+        QueryParameterValue value;
+        String keySQL = BigqueryFeatureIds.getKeySQL(key);
+        if ("INT64".equals(type)) {
+            inline = "(" + String.join(", ", keys) + ")";
+            value =
+                    QueryParameterValue.array(
+                            keys.stream().map(Long::valueOf).toArray(Long[]::new), Long.class);
+        } else {
+            List<String> quoted = new ArrayList<>();
+            for (String k : keys) {
+                quoted.add(BigqueryUtil.quoteString(k));
+            }
+            inline = "(" + String.join(", ", quoted) + ")";
+            value = QueryParameterValue.array(keys.toArray(new String[0]), String.class);
+            if (!"STRING".equals(type)) {
+                keySQL = String.format("CAST(%s AS STRING)", keySQL);
+            }
+        }
+        clauseFragments.add(keySQL + " IN " + addLiteral(inline, value, "UNNEST(%s)"));
         return null;
     }
+
+    private static boolean isInt64(String value) {
+        try {
+            Long.parseLong(value);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
 }
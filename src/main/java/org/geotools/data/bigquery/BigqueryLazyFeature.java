@@ -0,0 +1,426 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geotools.data.bigquery;
+
+import java.util.Collection;
+import java.util.List;
+import org.geotools.feature.simple.SimpleFeatureImpl;
+import org.geotools.filter.identity.FeatureIdImpl;
+import org.geotools.util.Converters;
+import org.locationtech.jts.geom.Geometry;
+import org.opengis.feature.GeometryAttribute;
+import org.opengis.feature.Property;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.feature.type.Name;
+import org.opengis.geometry.BoundingBox;
+
+/**
+ * A feature backed by the values of a decoded row, which are converted to the bindings of the
+ * feature type on first access, the way {@link
+ * org.geotools.feature.simple.SimpleFeatureBuilder} would convert them. The geometry is parsed
+ * from its text only when it is asked for, so consumers touching a few attributes of a wide
+ * table, or features dropped by a filter on other columns, do not pay for the rest.
+ *
+ * <p>The geometry text can also be kept, so encoders writing the same format hand it out as is,
+ * see {@link #getEncodedGeometry()}.
+ *
+ * <p>Features may be shared between threads by the request coalescer, which hands each reader a
+ * {@link #copy()}, so decoding is synchronized. Methods exposing all values at once decode the
+ * whole row first.
+ */
+public class BigqueryLazyFeature extends SimpleFeatureImpl {
+
+    /** Parses the text of the geometry column. */
+    public interface GeometryParser {
+        /**
+         * @param text WKT or GeoJSON
+         * @return geometry, or null if it cannot be parsed and the feature should have none
+         * @throws Exception
+         */
+        Geometry parse(String text) throws Exception;
+    }
+
+    /** Encodings of the geometry text a feature can hand out as is. */
+    public enum GeometryEncoding {
+        GEOJSON,
+        WKT
+    }
+
+    private final int geometryIndex;
+
+    private final GeometryParser parser;
+
+    private final int srid;
+
+    private final GeometryEncoding encoding;
+
+    /** Text the geometry was read from, null if not kept, or once the geometry is replaced. */
+    private String encodedGeometry;
+
+    /** Whether each value still has to be decoded, null once the whole row is. */
+    private boolean[] pending;
+
+    /**
+     * @param values raw values in the order of the attributes of the type, the geometry either as
+     *     text or already parsed
+     * @param type
+     * @param fid
+     * @param parser
+     * @param srid set on parsed geometries
+     */
+    public BigqueryLazyFeature(
+            Object[] values, SimpleFeatureType type, String fid, GeometryParser parser, int srid) {
+        this(values, type, fid, parser, srid, null);
+    }
+
+    /**
+     * @param values raw values in the order of the attributes of the type, the geometry either as
+     *     text or already parsed
+     * @param type
+     * @param fid
+     * @param parser
+     * @param srid set on parsed geometries
+     * @param encoding of the geometry text, which is then kept for encoders that can write it out
+     *     as is, see {@link #getEncodedGeometry()}; null to drop it once parsed
+     */
+    public BigqueryLazyFeature(
+            Object[] values,
+            SimpleFeatureType type,
+            String fid,
+            GeometryParser parser,
+            int srid,
+            GeometryEncoding encoding) {
+        super(values, type, new FeatureIdImpl(fid), false);
+        this.geometryIndex =
+                type.getGeometryDescriptor() != null
+                        ? type.indexOf(type.getGeometryDescriptor().getLocalName())
+                        : -1;
+        this.parser = parser;
+        this.srid = srid;
+        this.encoding = encoding;
+        if (encoding != null
+                && geometryIndex >= 0
+                && values[geometryIndex] instanceof CharSequence) {
+            this.encodedGeometry = values[geometryIndex].toString();
+            values[geometryIndex] = encodedGeometry;
+        }
+
+        boolean[] pending = new boolean[values.length];
+        boolean any = false;
+        for (int i = 0; i < values.length; i++) {
+            AttributeDescriptor descriptor = type.getDescriptor(i);
+            pending[i] =
+                    values[i] != null
+                            ? !descriptor.getType().getBinding().isInstance(values[i])
+                            : !descriptor.isNillable();
+            any |= pending[i];
+        }
+        this.pending = any ? pending : null;
+    }
+
+    /**
+     * Whether the value of an attribute is still raw, for tests.
+     *
+     * @param index
+     * @return
+     */
+    synchronized boolean isPending(int index) {
+        return pending != null && pending[index];
+    }
+
+    private synchronized void decode(int index) {
+        if (pending == null || !pending[index]) {
+            return;
+        }
+        values[index] = index == geometryIndex ? parseGeometry(values[index]) : convert(index);
+        pending[index] = false;
+    }
+
+    private synchronized void decodeAll() {
+        if (pending == null) {
+            return;
+        }
+        for (int i = 0; i < values.length; i++) {
+            decode(i);
+        }
+        pending = null;
+    }
+
+    /** Decode the values of the geometry attributes only, which the bounds are computed from. */
+    private synchronized void decodeGeometries() {
+        if (pending == null) {
+            return;
+        }
+        for (int i = 0; i < values.length; i++) {
+            if (featureType.getDescriptor(i) instanceof GeometryDescriptor) {
+                decode(i);
+            }
+        }
+    }
+
+    private synchronized void markDecoded(int index) {
+        if (pending != null) {
+            pending[index] = false;
+        }
+        if (index == geometryIndex) {
+            encodedGeometry = null;
+        }
+    }
+
+    private synchronized void markAllDecoded() {
+        pending = null;
+        encodedGeometry = null;
+    }
+
+    /**
+     * Return a copy of the feature, e.g. for each of the readers sharing it, whose values are
+     * decoded and set independently of this one. Values decoded already are shared, except
+     * geometries, which are copied since they can be modified in place.
+     *
+     * @return
+     */
+    public synchronized BigqueryLazyFeature copy() {
+        return new BigqueryLazyFeature(this);
+    }
+
+    /** Called with the lock of the source held. */
+    private BigqueryLazyFeature(BigqueryLazyFeature source) {
+        super(source.values.clone(), source.featureType, new FeatureIdImpl(source.getID()), false);
+        this.geometryIndex = source.geometryIndex;
+        this.parser = source.parser;
+        this.srid = source.srid;
+        this.encoding = source.encoding;
+        this.encodedGeometry = source.encodedGeometry;
+        this.pending = source.pending != null ? source.pending.clone() : null;
+        if (geometryIndex >= 0 && values[geometryIndex] instanceof Geometry) {
+            values[geometryIndex] = ((Geometry) values[geometryIndex]).copy();
+        }
+    }
+
+    /**
+     * Return the text the geometry was read from, e.g. for a GeoJSON encoder to write out without
+     * parsing the geometry and encoding it again. The geometry is still parsed when asked for.
+     *
+     * @return text in the {@link #getGeometryEncoding() encoding} of the feature, or null if it
+     *     is not kept, or the geometry was replaced
+     */
+    public synchronized String getEncodedGeometry() {
+        return encodedGeometry;
+    }
+
+    /**
+     * Return the encoding of {@link #getEncodedGeometry()}.
+     *
+     * @return encoding, or null if the geometry text is not kept
+     */
+    public GeometryEncoding getGeometryEncoding() {
+        return encoding;
+    }
+
+    private Object convert(int index) {
+        Object value = values[index];
+        AttributeDescriptor descriptor = featureType.getDescriptor(index);
+        if (value == null) {
+            return descriptor.getDefaultValue();
+        }
+        Object converted = Converters.convert(value, descriptor.getType().getBinding());
+        return converted != null ? converted : value;
+    }
+
+    private Geometry parseGeometry(Object text) {
+        if (text == null || text instanceof Geometry) {
+            return (Geometry) text;
+        }
+        try {
+            Geometry geometry = parser.parse(text.toString());
+            if (geometry != null) {
+                geometry.setSRID(srid);
+            }
+            return geometry;
+        } catch (Exception e) {
+            throw new IllegalStateException("Unable to parse the geometry of " + getID(), e);
+        }
+    }
+
+    @Override
+    public Object getAttribute(int index) throws IndexOutOfBoundsException {
+        decode(index);
+        return super.getAttribute(index);
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        int index = featureType.indexOf(name);
+        return index >= 0 ? getAttribute(index) : null;
+    }
+
+    @Override
+    public Object getAttribute(Name name) {
+        int index = featureType.indexOf(name);
+        return index >= 0 ? getAttribute(index) : null;
+    }
+
+    @Override
+    public Object getDefaultGeometry() {
+        if (geometryIndex >= 0) {
+            decode(geometryIndex);
+        } else {
+            decodeAll();
+        }
+        return super.getDefaultGeometry();
+    }
+
+    @Override
+    public void setAttribute(int index, Object value) throws IndexOutOfBoundsException {
+        markDecoded(index);
+        super.setAttribute(index, value);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        int index = featureType.indexOf(name);
+        if (index >= 0) {
+            markDecoded(index);
+        }
+        super.setAttribute(name, value);
+    }
+
+    @Override
+    public void setAttribute(Name name, Object value) {
+        int index = featureType.indexOf(name);
+        if (index >= 0) {
+            markDecoded(index);
+        }
+        super.setAttribute(name, value);
+    }
+
+    @Override
+    public void setDefaultGeometry(Object geometry) {
+        if (geometryIndex >= 0) {
+            markDecoded(geometryIndex);
+        }
+        super.setDefaultGeometry(geometry);
+    }
+
+    @Override
+    public void setAttributes(List<Object> values) {
+        markAllDecoded();
+        super.setAttributes(values);
+    }
+
+    @Override
+    public void setAttributes(Object[] values) {
+        markAllDecoded();
+        super.setAttributes(values);
+    }
+
+    @Override
+    public void setValue(Collection<Property> values) {
+        markAllDecoded();
+        super.setValue(values);
+    }
+
+    @Override
+    public void setValue(Object newValue) {
+        markAllDecoded();
+        super.setValue(newValue);
+    }
+
+    @Override
+    public List<Object> getAttributes() {
+        decodeAll();
+        return super.getAttributes();
+    }
+
+    @Override
+    public Collection<Property> getProperties() {
+        decodeAll();
+        return super.getProperties();
+    }
+
+    @Override
+    public Collection<Property> getProperties(Name name) {
+        decodeAll();
+        return super.getProperties(name);
+    }
+
+    @Override
+    public Collection<Property> getProperties(String name) {
+        decodeAll();
+        return super.getProperties(name);
+    }
+
+    @Override
+    public Property getProperty(Name name) {
+        decodeAll();
+        return super.getProperty(name);
+    }
+
+    @Override
+    public Property getProperty(String name) {
+        decodeAll();
+        return super.getProperty(name);
+    }
+
+    @Override
+    public Collection<? extends Property> getValue() {
+        decodeAll();
+        return super.getValue();
+    }
+
+    @Override
+    public GeometryAttribute getDefaultGeometryProperty() {
+        if (geometryIndex >= 0) {
+            decode(geometryIndex);
+        } else {
+            decodeAll();
+        }
+        return super.getDefaultGeometryProperty();
+    }
+
+    @Override
+    public BoundingBox getBounds() {
+        decodeGeometries();
+        return super.getBounds();
+    }
+
+    @Override
+    public void validate() {
+        decodeAll();
+        super.validate();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        decodeAll();
+        return super.equals(obj);
+    }
+
+    @Override
+    public int hashCode() {
+        decodeAll();
+        return super.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        decodeAll();
+        return super.toString();
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geotools.data.bigquery;
+
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.GeometryDescriptor;
+
+/**
+ * Geometry columns holding only points, which are read as their coordinates rather than as WKT
+ * or GeoJSON, and built into Points without parsing any text. The Query API selects them with
+ * ST_X and ST_Y, while the Storage API, which cannot compute columns, reads FLOAT64 longitude and
+ * latitude columns stored along with the geometry.
+ *
+ * <p>Point columns are marked in the user data of their descriptor by {@link
+ * BigqueryFeatureSource}, see {@link BigqueryPointOptions}.
+ */
+public class BigqueryPointColumns {
+
+    /** User data of a point geometry descriptor, true if the column holds only points. */
+    public static final String USER_DATA_KEY = "pointGeometry";
+
+    /**
+     * User data of a point geometry descriptor, the longitude and latitude columns holding its
+     * coordinates, if the table has them.
+     */
+    public static final String COORDINATES_USER_DATA_KEY = "pointCoordinateColumns";
+
+    /** Column of the longitude of each point selected by the Query API. */
+    public static final String X_COLUMN = "_x";
+
+    /** Column of the latitude of each point selected by the Query API. */
+    public static final String Y_COLUMN = "_y";
+
+    /** Number of geometries sampled to detect point columns. */
+    protected static final int SAMPLE_SIZE = 1000;
+
+    private BigqueryPointColumns() {}
+
+    /**
+     * Return whether the geometry column of a feature type holds only points.
+     *
+     * @param type
+     * @return
+     */
+    public static boolean isPoint(SimpleFeatureType type) {
+        GeometryDescriptor descriptor = type.getGeometryDescriptor();
+        return descriptor != null
+                && Boolean.TRUE.equals(descriptor.getUserData().get(USER_DATA_KEY));
+    }
+
+    /**
+     * Return the longitude and latitude columns of the points of a feature type.
+     *
+     * @param type
+     * @return columns, or null if the geometry column holds other geometries, or the table has no
+     *     coordinate columns
+     */
+    public static String[] getCoordinateColumns(SimpleFeatureType type) {
+        if (!isPoint(type)) {
+            return null;
+        }
+        return (String[])
+                type.getGeometryDescriptor().getUserData().get(COORDINATES_USER_DATA_KEY);
+    }
+
+    /**
+     * Return SQL selecting the coordinates of a point column as {@link #X_COLUMN} and {@link
+     * #Y_COLUMN}. Other geometries get null coordinates rather than failing the query, and are
+     * selected as GeoJSON in the geometry column instead, which is null for points, so that
+     * columns detected from a sample still read the odd line or polygon.
+     *
+     * @param geomColumn
+     * @return
+     */
+    public static String getSelectSQL(String geomColumn) {
+        return String.format(
+                "SAFE.ST_X(%s) as %s, SAFE.ST_Y(%s) as %s, "
+                        + "IF(ST_GEOMETRYTYPE(%s) = 'ST_Point', NULL, ST_ASGEOJSON(%s)) as %s",
+                geomColumn,
+                X_COLUMN,
+                geomColumn,
+                Y_COLUMN,
+                geomColumn,
+                geomColumn,
+                geomColumn);
+    }
+
+    /**
+     * Return SQL telling whether the sampled geometries of a column are all points, as a single
+     * BOOL named "points" that is null if the column has no geometries.
+     *
+     * @param table
+     * @param geomColumn
+     * @return
+     */
+    public static String getDetectionSQL(String table, String geomColumn) {
+        return String.format(
+                "SELECT LOGICAL_AND(ST_GEOMETRYTYPE(%s) = 'ST_Point') as points "
+                        + "FROM (SELECT %s FROM `%s` WHERE %s IS NOT NULL LIMIT %d)",
+                geomColumn, geomColumn, table, geomColumn, SAMPLE_SIZE);
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geotools.data.bigquery;
+
+public enum BigqueryPointOptions {
+    /** Read all geometry columns as WKT or GeoJSON. */
+    POINTS_NONE,
+
+    /**
+     * Sample each geometry column when its layer is first described, and read the coordinates of
+     * columns holding only points.
+     */
+    POINTS_DETECT,
+
+    /** Read the coordinates of all geometry columns, which must hold only points. */
+    POINTS_ALL
+}
@@ -1,11 +1,28 @@
 package org.geotools.data.bigquery;
 
+import org.locationtech.jts.geom.CoordinateSequenceFactory;
+import org.locationtech.jts.geom.impl.PackedCoordinateSequenceFactory;
+
 public enum BigqueryPrecisionOptions {
+    /** Keep coordinates as doubles, as BigQuery returns them. */
     BIGQUERY_NATIVE_PRECISION,
 
     MILLIMETER_PRECISION,
 
     CENTIMETER_PRECISION,
 
-    METER_PRECISION
+    /** A float resolves about a meter at 180 degrees, so coordinates can be held as floats. */
+    METER_PRECISION;
+
+    /**
+     * Return the factory of the coordinate sequences of decoded geometries, which pack their
+     * ordinates into a primitive array instead of one Coordinate per vertex.
+     *
+     * @return
+     */
+    public CoordinateSequenceFactory getCoordinateSequenceFactory() {
+        return this == METER_PRECISION
+                ? PackedCoordinateSequenceFactory.FLOAT_FACTORY
+                : PackedCoordinateSequenceFactory.DOUBLE_FACTORY;
+    }
 }
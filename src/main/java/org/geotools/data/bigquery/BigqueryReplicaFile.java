@@ -0,0 +1,617 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geotools.data.bigquery;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.NoSuchElementException;
+import org.geotools.data.simple.SimpleFeatureReader;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.util.Converters;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKBReader;
+import org.locationtech.jts.io.WKBWriter;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+
+/**
+ * Local, spatially indexed copy of a BigQuery table.
+ *
+ * <p>Records are sorted along a Hilbert curve, so features that are close in space are close on
+ * disk, and are followed by an index of record envelopes and offsets that is loaded into an
+ * STRtree when the file is opened. Files smaller than 2GB are memory-mapped.
+ *
+ * <pre>
+ * header:  magic, version, lastModifiedTime, attribute count, [name, type code]*
+ * records: [fid, [null flag, value]*]*
+ * index:   [minx, miny, maxx, maxy, offset, length]*
+ * footer:  index offset, record count, magic
+ * </pre>
+ */
+public class BigqueryReplicaFile implements Closeable {
+
+    private static final int MAGIC = 0x42515250; // "BQRP"
+    private static final int VERSION = 1;
+    private static final int INDEX_ENTRY_BYTES = 4 * 8 + 8 + 4;
+    private static final int FOOTER_BYTES = 8 + 4 + 4;
+    private static final int HILBERT_SIZE = 1 << 16;
+
+    private static final byte TYPE_GEOMETRY = 0;
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_LONG = 2;
+    private static final byte TYPE_DOUBLE = 3;
+    private static final byte TYPE_BOOLEAN = 4;
+    private static final byte TYPE_DATE = 5;
+    private static final byte TYPE_DECIMAL = 6;
+    private static final byte TYPE_OTHER = 7;
+
+    private final File file;
+    private final SimpleFeatureType featureType;
+    private final FileChannel channel;
+    private final ByteBuffer mapped;
+    private final long lastModifiedTime;
+    private final byte[] types;
+    private final long[] offsets;
+    private final int[] lengths;
+    private final Envelope bounds = new Envelope();
+    private final STRtree index = new STRtree();
+
+    private BigqueryReplicaFile(File file, SimpleFeatureType featureType) throws IOException {
+        this.file = file;
+        this.featureType = featureType;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+        try {
+            long size = channel.size();
+            this.mapped =
+                    size <= Integer.MAX_VALUE
+                            ? channel.map(FileChannel.MapMode.READ_ONLY, 0, size)
+                            : null;
+
+            ByteBuffer footer = read(size - FOOTER_BYTES, FOOTER_BYTES);
+            long indexOffset = footer.getLong();
+            int count = footer.getInt();
+            if (footer.getInt() != MAGIC) {
+                throw new IOException("Not a replica file: " + file);
+            }
+
+            ByteBuffer header = read(0, (int) Math.min(indexOffset, 64 * 1024));
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Unsupported replica file: " + file);
+            }
+            this.lastModifiedTime = header.getLong();
+            this.types = readHeaderTypes(header, featureType);
+
+            this.offsets = new long[count];
+            this.lengths = new int[count];
+            ByteBuffer entries = read(indexOffset, count * INDEX_ENTRY_BYTES);
+            for (int i = 0; i < count; i++) {
+                double minx = entries.getDouble();
+                double miny = entries.getDouble();
+                double maxx = entries.getDouble();
+                double maxy = entries.getDouble();
+                offsets[i] = entries.getLong();
+                lengths[i] = entries.getInt();
+
+                if (!Double.isNaN(minx)) {
+                    Envelope envelope = new Envelope(minx, maxx, miny, maxy);
+                    bounds.expandToInclude(envelope);
+                    index.insert(envelope, i);
+                }
+            }
+            index.build();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Open an existing replica file.
+     *
+     * @param file
+     * @param featureType schema of the replicated table, which must match the one in the file
+     * @return replica
+     * @throws IOException if the file is unreadable, or was written for another schema
+     */
+    public static BigqueryReplicaFile open(File file, SimpleFeatureType featureType)
+            throws IOException {
+        return new BigqueryReplicaFile(file, featureType);
+    }
+
+    private static byte[] readHeaderTypes(ByteBuffer header, SimpleFeatureType featureType)
+            throws IOException {
+        int attributeCount = header.getInt();
+        List<AttributeDescriptor> descriptors = featureType.getAttributeDescriptors();
+        if (attributeCount != descriptors.size()) {
+            throw new IOException("Replica schema does not match " + featureType.getTypeName());
+        }
+
+        byte[] types = new byte[attributeCount];
+        for (int i = 0; i < attributeCount; i++) {
+            String name = readString(header);
+            types[i] = header.get();
+            if (!name.equals(descriptors.get(i).getLocalName())
+                    || types[i] != typeCode(descriptors.get(i).getType().getBinding())) {
+                throw new IOException(
+                        "Replica schema does not match " + featureType.getTypeName());
+            }
+        }
+        return types;
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        if (mapped != null) {
+            ByteBuffer slice = mapped.duplicate();
+            slice.position((int) position).limit((int) position + length);
+            return slice.slice();
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of replica file: " + file);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /** @return lastModifiedTime of the table when the replica was written */
+    public long getLastModifiedTime() {
+        return lastModifiedTime;
+    }
+
+    public int getCount() {
+        return offsets.length;
+    }
+
+    public Envelope getBounds() {
+        return new Envelope(bounds);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Return a reader of the features whose envelope intersects the given one, in file order.
+     *
+     * @param envelope envelope to query, or null to read all features
+     * @return reader
+     */
+    public SimpleFeatureReader getReader(Envelope envelope) {
+        int[] records;
+        if (envelope == null || envelope.covers(bounds)) {
+            records = new int[offsets.length];
+            for (int i = 0; i < records.length; i++) {
+                records[i] = i;
+            }
+        } else {
+            @SuppressWarnings("unchecked")
+            List<Integer> matches = index.query(envelope);
+            records = matches.stream().mapToInt(Integer::intValue).toArray();
+            Arrays.sort(records);
+        }
+        return new ReplicaReader(records);
+    }
+
+    private SimpleFeature readFeature(int record, SimpleFeatureBuilder builder)
+            throws IOException {
+        ByteBuffer buffer = read(offsets[record], lengths[record]);
+        String fid = readString(buffer);
+
+        for (int i = 0; i < types.length; i++) {
+            if (buffer.get() == 0) {
+                builder.add(null);
+                continue;
+            }
+            Class<?> binding = featureType.getDescriptor(i).getType().getBinding();
+            switch (types[i]) {
+                case TYPE_GEOMETRY:
+                    byte[] wkb = new byte[buffer.getInt()];
+                    buffer.get(wkb);
+                    try {
+                        builder.add(new WKBReader().read(wkb));
+                    } catch (ParseException e) {
+                        throw new IOException(e);
+                    }
+                    break;
+                case TYPE_STRING:
+                    builder.add(readString(buffer));
+                    break;
+                case TYPE_LONG:
+                    long value = buffer.getLong();
+                    builder.add(
+                            binding == BigInteger.class
+                                    ? BigInteger.valueOf(value)
+                                    : Converters.convert(value, binding));
+                    break;
+                case TYPE_DOUBLE:
+                    builder.add(Converters.convert(buffer.getDouble(), binding));
+                    break;
+                case TYPE_BOOLEAN:
+                    builder.add(buffer.get() != 0);
+                    break;
+                case TYPE_DATE:
+                    builder.add(new Date(buffer.getLong()));
+                    break;
+                case TYPE_DECIMAL:
+                    builder.add(new BigDecimal(readString(buffer)));
+                    break;
+                default:
+                    builder.add(Converters.convert(readString(buffer), binding));
+            }
+        }
+        return builder.buildFeature(fid);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static byte typeCode(Class<?> binding) {
+        if (Geometry.class.isAssignableFrom(binding)) {
+            return TYPE_GEOMETRY;
+        } else if (binding == String.class) {
+            return TYPE_STRING;
+        } else if (binding == BigInteger.class
+                || binding == Long.class
+                || binding == Integer.class
+                || binding == Short.class) {
+            return TYPE_LONG;
+        } else if (binding == Double.class || binding == Float.class) {
+            return TYPE_DOUBLE;
+        } else if (binding == Boolean.class) {
+            return TYPE_BOOLEAN;
+        } else if (Date.class.isAssignableFrom(binding)) {
+            return TYPE_DATE;
+        } else if (binding == BigDecimal.class) {
+            return TYPE_DECIMAL;
+        }
+        return TYPE_OTHER;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Return the distance of a cell along a Hilbert curve filling a square of the given size.
+     *
+     * @param n size of the square, a power of two
+     * @param x column of the cell
+     * @param y row of the cell
+     * @return distance along the curve
+     */
+    protected static long hilbert(int n, int x, int y) {
+        long d = 0;
+        for (int s = n / 2; s > 0; s /= 2) {
+            int rx = (x & s) > 0 ? 1 : 0;
+            int ry = (y & s) > 0 ? 1 : 0;
+            d += (long) s * s * ((3 * rx) ^ ry);
+
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = n - 1 - x;
+                    y = n - 1 - y;
+                }
+                int t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return d;
+    }
+
+    /**
+     * Writes a replica file. Records are spooled to a temporary file as they are added, then
+     * sorted along a Hilbert curve and written to the replica, which replaces any previous file
+     * atomically so open replicas can keep serving reads.
+     */
+    public static class Writer implements Closeable {
+
+        private final File file;
+        private final File recordsFile;
+        private final File tempFile;
+        private final SimpleFeatureType featureType;
+        private final long lastModifiedTime;
+        private final byte[] types;
+        private final DataOutputStream records;
+        private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+        private final DataOutputStream record = new DataOutputStream(recordBytes);
+        private final WKBWriter wkbWriter = new WKBWriter();
+        private final Envelope bounds = new Envelope();
+
+        private double[] envelopes = new double[4 * 1024];
+        private long[] offsets = new long[1024];
+        private int[] lengths = new int[1024];
+        private int count = 0;
+        private long position = 0;
+
+        /**
+         * @param file replica file to write
+         * @param featureType schema of the replicated table
+         * @param lastModifiedTime lastModifiedTime of the table being replicated
+         * @throws IOException
+         */
+        public Writer(File file, SimpleFeatureType featureType, long lastModifiedTime)
+                throws IOException {
+            this.file = file;
+            this.recordsFile = new File(file.getPath() + ".records");
+            this.tempFile = new File(file.getPath() + ".tmp");
+            this.featureType = featureType;
+            this.lastModifiedTime = lastModifiedTime;
+
+            List<AttributeDescriptor> descriptors = featureType.getAttributeDescriptors();
+            this.types = new byte[descriptors.size()];
+            for (int i = 0; i < types.length; i++) {
+                types[i] = typeCode(descriptors.get(i).getType().getBinding());
+            }
+
+            this.records =
+                    new DataOutputStream(
+                            new BufferedOutputStream(
+                                    Files.newOutputStream(recordsFile.toPath()), 1 << 16));
+        }
+
+        /**
+         * Append a feature to the replica.
+         *
+         * @param feature
+         * @throws IOException
+         */
+        public void add(SimpleFeature feature) throws IOException {
+            recordBytes.reset();
+            writeString(record, feature.getID());
+
+            for (int i = 0; i < types.length; i++) {
+                Object value = feature.getAttribute(i);
+                if (value == null) {
+                    record.writeByte(0);
+                    continue;
+                }
+                record.writeByte(1);
+                switch (types[i]) {
+                    case TYPE_GEOMETRY:
+                        byte[] wkb = wkbWriter.write((Geometry) value);
+                        record.writeInt(wkb.length);
+                        record.write(wkb);
+                        break;
+                    case TYPE_STRING:
+                        writeString(record, value.toString());
+                        break;
+                    case TYPE_LONG:
+                        record.writeLong(((Number) value).longValue());
+                        break;
+                    case TYPE_DOUBLE:
+                        record.writeDouble(((Number) value).doubleValue());
+                        break;
+                    case TYPE_BOOLEAN:
+                        record.writeByte((Boolean) value ? 1 : 0);
+                        break;
+                    case TYPE_DATE:
+                        record.writeLong(((Date) value).getTime());
+                        break;
+                    default:
+                        writeString(record, value.toString());
+                }
+            }
+            record.flush();
+
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+                lengths = Arrays.copyOf(lengths, count * 2);
+                envelopes = Arrays.copyOf(envelopes, count * 8);
+            }
+
+            Geometry geometry = (Geometry) feature.getDefaultGeometry();
+            Envelope envelope = geometry != null ? geometry.getEnvelopeInternal() : null;
+            if (envelope == null || envelope.isNull()) {
+                Arrays.fill(envelopes, count * 4, count * 4 + 4, Double.NaN);
+            } else {
+                envelopes[count * 4] = envelope.getMinX();
+                envelopes[count * 4 + 1] = envelope.getMinY();
+                envelopes[count * 4 + 2] = envelope.getMaxX();
+                envelopes[count * 4 + 3] = envelope.getMaxY();
+                bounds.expandToInclude(envelope);
+            }
+            offsets[count] = position;
+            lengths[count] = recordBytes.size();
+            count++;
+
+            recordBytes.writeTo(records);
+            position += recordBytes.size();
+        }
+
+        /**
+         * Sort the records and write the replica file.
+         *
+         * @throws IOException
+         */
+        public void finish() throws IOException {
+            records.close();
+
+            Integer[] order = new Integer[count];
+            long[] keys = new long[count];
+            double width = Math.max(bounds.getWidth(), Double.MIN_VALUE);
+            double height = Math.max(bounds.getHeight(), Double.MIN_VALUE);
+            for (int i = 0; i < count; i++) {
+                order[i] = i;
+                if (!Double.isNaN(envelopes[i * 4])) {
+                    double cx = (envelopes[i * 4] + envelopes[i * 4 + 2]) / 2;
+                    double cy = (envelopes[i * 4 + 1] + envelopes[i * 4 + 3]) / 2;
+                    int x = (int) ((HILBERT_SIZE - 1) * (cx - bounds.getMinX()) / width);
+                    int y = (int) ((HILBERT_SIZE - 1) * (cy - bounds.getMinY()) / height);
+                    keys[i] = hilbert(HILBERT_SIZE, x, y);
+                } else {
+                    keys[i] = Long.MAX_VALUE;
+                }
+            }
+            Arrays.sort(order, (a, b) -> Long.compare(keys[a], keys[b]));
+
+            try (FileChannel in = FileChannel.open(recordsFile.toPath(), StandardOpenOption.READ);
+                    FileChannel out =
+                            FileChannel.open(
+                                    tempFile.toPath(),
+                                    StandardOpenOption.CREATE,
+                                    StandardOpenOption.TRUNCATE_EXISTING,
+                                    StandardOpenOption.WRITE)) {
+                writeFully(out, ByteBuffer.wrap(getHeader()));
+
+                long[] sortedOffsets = new long[count];
+                ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+                for (int i = 0; i < count; i++) {
+                    int record = order[i];
+                    sortedOffsets[i] = out.position();
+                    if (buffer.capacity() < lengths[record]) {
+                        buffer = ByteBuffer.allocate(lengths[record]);
+                    }
+                    buffer.clear().limit(lengths[record]);
+                    while (buffer.hasRemaining()) {
+                        if (in.read(buffer, offsets[record] + buffer.position()) < 0) {
+                            throw new IOException("Unexpected end of " + recordsFile);
+                        }
+                    }
+                    buffer.flip();
+                    writeFully(out, buffer);
+                }
+
+                long indexOffset = out.position();
+                ByteBuffer entries = ByteBuffer.allocate(1024 * INDEX_ENTRY_BYTES);
+                for (int i = 0; i < count; i++) {
+                    int record = order[i];
+                    if (!entries.hasRemaining()) {
+                        entries.flip();
+                        writeFully(out, entries);
+                        entries.clear();
+                    }
+                    entries.putDouble(envelopes[record * 4])
+                            .putDouble(envelopes[record * 4 + 1])
+                            .putDouble(envelopes[record * 4 + 2])
+                            .putDouble(envelopes[record * 4 + 3])
+                            .putLong(sortedOffsets[i])
+                            .putInt(lengths[record]);
+                }
+                entries.flip();
+                writeFully(out, entries);
+
+                ByteBuffer footer = ByteBuffer.allocate(FOOTER_BYTES);
+                footer.putLong(indexOffset).putInt(count).putInt(MAGIC).flip();
+                writeFully(out, footer);
+                out.force(true);
+            } finally {
+                Files.deleteIfExists(recordsFile.toPath());
+            }
+
+            Files.move(
+                    tempFile.toPath(),
+                    file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        private byte[] getHeader() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream header = new DataOutputStream(bytes);
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            header.writeLong(lastModifiedTime);
+            header.writeInt(types.length);
+            for (int i = 0; i < types.length; i++) {
+                writeString(header, featureType.getDescriptor(i).getLocalName());
+                header.writeByte(types[i]);
+            }
+            header.flush();
+            return bytes.toByteArray();
+        }
+
+        private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+        }
+
+        /** Discard any temporary files, e.g. after a failed sync. */
+        @Override
+        public void close() throws IOException {
+            records.close();
+            Files.deleteIfExists(recordsFile.toPath());
+            Files.deleteIfExists(tempFile.toPath());
+        }
+    }
+
+    private class ReplicaReader implements SimpleFeatureReader {
+
+        private final int[] records;
+        private final SimpleFeatureBuilder builder = new SimpleFeatureBuilder(featureType);
+        private int next = 0;
+
+        ReplicaReader(int[] records) {
+            this.records = records;
+        }
+
+        @Override
+        public SimpleFeatureType getFeatureType() {
+            return featureType;
+        }
+
+        @Override
+        public SimpleFeature next() throws IOException, NoSuchElementException {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return readFeature(records[next++], builder);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < records.length;
+        }
+
+        @Override
+        public void close() {}
+    }
+}
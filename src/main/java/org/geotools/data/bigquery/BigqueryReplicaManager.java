@@ -0,0 +1,333 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geotools.data.bigquery;
+
+import com.google.cloud.bigquery.BigQueryException;
+import com.google.cloud.bigquery.Table;
+import com.google.cloud.bigquery.TableId;
+import com.google.cloud.bigquery.storage.v1.BigQueryReadClient;
+import com.google.cloud.bigquery.storage.v1.CreateReadSessionRequest;
+import com.google.cloud.bigquery.storage.v1.DataFormat;
+import com.google.cloud.bigquery.storage.v1.ReadRowsRequest;
+import com.google.cloud.bigquery.storage.v1.ReadRowsResponse;
+import com.google.cloud.bigquery.storage.v1.ReadSession;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DatumReader;
+import org.apache.avro.io.DecoderFactory;
+import org.geotools.util.logging.Logging;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ * Keeps local, spatially indexed replicas of selected tables in sync. Each replicated table is
+ * copied through the Storage API on a background thread, and copied again whenever its
+ * lastModifiedTime changes. Reads switch to a replica once it is ready, and back to BigQuery
+ * while replicas are disabled.
+ */
+public class BigqueryReplicaManager {
+
+    private static final Logger LOGGER = Logging.getLogger(BigqueryReplicaManager.class);
+
+    /** How long a replaced replica stays open for reads that are still in progress. */
+    private static final long RETIRE_DELAY_SECONDS = 60;
+
+    private final BigqueryDataStore store;
+    private final File directory;
+    private final Set<String> tables;
+    private final long checkIntervalMillis;
+
+    private volatile boolean enabled = true;
+
+    private final Map<String, BigqueryReplicaFile> replicas = new ConcurrentHashMap<>();
+    private final Map<String, ScheduledFuture<?>> tasks = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService executor;
+
+    /**
+     * @param store
+     * @param directory directory of the replica files
+     * @param tables names of the tables to replicate, either the table name or the full type name
+     * @param checkIntervalMillis how often a replicated table is checked for changes
+     */
+    public BigqueryReplicaManager(
+            BigqueryDataStore store, File directory, Set<String> tables, long checkIntervalMillis) {
+        this.store = store;
+        this.directory = directory;
+        this.tables = tables;
+        this.checkIntervalMillis = checkIntervalMillis;
+    }
+
+    /**
+     * Parse a comma-separated list of table names.
+     *
+     * @param value
+     * @return table names, empty if value is null or blank
+     */
+    public static Set<String> parseTables(String value) {
+        if (value == null || value.isBlank()) {
+            return Collections.emptySet();
+        }
+        Set<String> tables = new LinkedHashSet<>();
+        for (String part : value.split(",")) {
+            if (!part.isBlank()) {
+                tables.add(part.trim());
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * Whether a table is configured to be replicated.
+     *
+     * @param typeName
+     * @return
+     */
+    public boolean isReplicated(String typeName) {
+        return tables.contains(typeName) || tables.contains(getTableId(typeName).getTable());
+    }
+
+    /** Whether reads are served from ready replicas. */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Switch reads between replicas and BigQuery at runtime. Replicas keep being synced while
+     * disabled.
+     *
+     * @param enabled
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Start replicating a table, if it is configured to be replicated. An existing replica file
+     * is used until the table changes.
+     *
+     * @param typeName
+     * @param featureType
+     */
+    public void replicate(String typeName, SimpleFeatureType featureType) {
+        if (!isReplicated(typeName)) {
+            return;
+        }
+        tasks.computeIfAbsent(
+                typeName,
+                t ->
+                        getExecutor()
+                                .scheduleWithFixedDelay(
+                                        () -> refresh(typeName, featureType),
+                                        0,
+                                        Math.max(checkIntervalMillis, 1000),
+                                        TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Return the replica to read a table from.
+     *
+     * @param typeName
+     * @return replica, or null if it is not ready or replicas are disabled
+     */
+    public BigqueryReplicaFile getReplica(String typeName) {
+        return enabled ? replicas.get(typeName) : null;
+    }
+
+    /** Stop syncing, and close all replicas. */
+    public synchronized void dispose() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        for (BigqueryReplicaFile replica : replicas.values()) {
+            close(replica);
+        }
+        replicas.clear();
+    }
+
+    /**
+     * Open the existing replica file on first run, and sync it again if the table changed.
+     *
+     * @param typeName
+     * @param featureType
+     */
+    protected void refresh(String typeName, SimpleFeatureType featureType) {
+        File file = getReplicaFile(typeName);
+        try {
+            BigqueryReplicaFile current = replicas.get(typeName);
+            if (current == null && file.exists()) {
+                try {
+                    current = BigqueryReplicaFile.open(file, featureType);
+                    replicas.put(typeName, current);
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Ignoring unusable replica " + file, e);
+                }
+            }
+
+            Table table = store.queryClient.getTable(getTableId(typeName));
+            if (table == null) {
+                LOGGER.warning("Unable to replicate " + typeName + ", table not found");
+                return;
+            }
+            long lastModifiedTime = table.getLastModifiedTime();
+            if (current != null && current.getLastModifiedTime() == lastModifiedTime) {
+                return;
+            }
+
+            LOGGER.info("Replicating " + typeName + " to " + file);
+            sync(typeName, featureType, file, lastModifiedTime);
+
+            BigqueryReplicaFile replica = BigqueryReplicaFile.open(file, featureType);
+            BigqueryReplicaFile previous = replicas.put(typeName, replica);
+            if (previous != null) {
+                getExecutor()
+                        .schedule(() -> close(previous), RETIRE_DELAY_SECONDS, TimeUnit.SECONDS);
+            }
+            LOGGER.info("Replicated " + replica.getCount() + " features of " + typeName);
+        } catch (IOException | BigQueryException e) {
+            LOGGER.log(Level.WARNING, "Unable to replicate " + typeName, e);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.SEVERE, "Unable to replicate " + typeName, e);
+        }
+    }
+
+    /**
+     * Copy all rows of a table into a replica file, through the Storage API.
+     *
+     * @param typeName
+     * @param featureType
+     * @param file
+     * @param lastModifiedTime
+     * @throws IOException
+     */
+    protected void sync(
+            String typeName, SimpleFeatureType featureType, File file, long lastModifiedTime)
+            throws IOException {
+        directory.mkdirs();
+
+        TableId tableId = getTableId(typeName);
+        String tableUri =
+                String.format(
+                        "projects/%s/datasets/%s/tables/%s",
+                        tableId.getProject(), tableId.getDataset(), tableId.getTable());
+
+        BigQueryReadClient client = store.getStorageClient();
+        ReadSession session =
+                client.createReadSession(
+                        CreateReadSessionRequest.newBuilder()
+                                .setParent(String.format("projects/%s", store.projectId))
+                                .setReadSession(
+                                        ReadSession.newBuilder()
+                                                .setTable(tableUri)
+                                                .setDataFormat(DataFormat.AVRO))
+                                .setMaxStreamCount(1)
+                                .build());
+
+        String geomColumn = featureType.getGeometryDescriptor().getLocalName();
+        Schema avroSchema = new Schema.Parser().parse(session.getAvroSchema().getSchema());
+        DatumReader<GenericRecord> datumReader = new GenericDatumReader<>(avroSchema);
+        List<String> keys = new ArrayList<>();
+        for (Schema.Field field : avroSchema.getFields()) {
+            keys.add(field.name());
+        }
+
+        try (BigqueryReplicaFile.Writer writer =
+                new BigqueryReplicaFile.Writer(file, featureType, lastModifiedTime)) {
+            int rowIndex = 0;
+            BinaryDecoder decoder = null;
+            GenericRecord row = null;
+
+            for (int s = 0; s < session.getStreamsCount(); s++) {
+                ReadRowsRequest request =
+                        ReadRowsRequest.newBuilder()
+                                .setReadStream(session.getStreams(s).getName())
+                                .build();
+                for (ReadRowsResponse response : client.readRowsCallable().call(request)) {
+                    decoder =
+                            DecoderFactory.get()
+                                    .binaryDecoder(
+                                            response.getAvroRows()
+                                                    .getSerializedBinaryRows()
+                                                    .toByteArray(),
+                                            decoder);
+                    while (!decoder.isEnd()) {
+                        row = datumReader.read(row, decoder);
+                        writer.add(
+                                BigqueryStorageReader.parseFeature(
+                                        row,
+                                        rowIndex++,
+                                        featureType,
+                                        keys,
+                                        store.SRID,
+                                        geomColumn));
+                    }
+                }
+            }
+            writer.finish();
+        }
+    }
+
+    /** Return the replica file of a table. */
+    protected File getReplicaFile(String typeName) {
+        return new File(directory, typeName + ".bqr");
+    }
+
+    /**
+     * Return the id of the table of a type name, which is either the full "project.dataset.table"
+     * name or the name of a table in the datastore's dataset.
+     */
+    protected TableId getTableId(String typeName) {
+        return store.getTableId(typeName);
+    }
+
+    private static void close(BigqueryReplicaFile replica) {
+        try {
+            replica.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Unable to close " + replica.getFile(), e);
+        }
+    }
+
+    private synchronized ScheduledExecutorService getExecutor() {
+        if (executor == null) {
+            executor =
+                    Executors.newSingleThreadScheduledExecutor(
+                            r -> {
+                                Thread thread = new Thread(r, "bigquery-replica-sync");
+                                thread.setDaemon(true);
+                                return thread;
+                            });
+        }
+        return executor;
+    }
+}
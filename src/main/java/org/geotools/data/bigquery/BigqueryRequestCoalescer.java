@@ -0,0 +1,424 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geotools.data.bigquery;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.geotools.util.logging.Logging;
+
+/**
+ * Coalesces identical requests that are in flight at the same time, so that only the first one
+ * runs a BigQuery job or read session. Callers arriving later share its result stream, which is
+ * replayed to them through a bounded buffer: a request can only be joined while the buffer still
+ * holds every row produced so far, otherwise the caller starts a request of its own.
+ *
+ * <p>The shared stream is pulled by whichever caller needs the next row first, so no extra thread
+ * is involved. Rows are kept until every caller sharing the stream has read them, but never more
+ * than the buffer holds: a caller needing a new row while it is full waits for the slowest ones
+ * to catch up. Callers that stall for longer are detached, and run the request on their own.
+ * Callers that already read some rows are only detached from repeatable requests, which return
+ * the same rows in the same order when run again, so the rows already read can be skipped. The
+ * others are waited for however long they take.
+ */
+public class BigqueryRequestCoalescer {
+
+    private static final Logger LOGGER = Logging.getLogger(BigqueryRequestCoalescer.class);
+
+    /** Number of rows replayed to late callers when none is configured. */
+    public static final int DEFAULT_BUFFER_ROWS = 10000;
+
+    /** Time a caller waits for the slowest ones to free the buffer when none is configured. */
+    public static final long DEFAULT_STALL_MILLIS = 30000;
+
+    /** Runs a request. */
+    public interface Request<T> {
+        /**
+         * @return stream of result rows, which is closed once no caller needs it if it implements
+         *     {@link Closeable}
+         * @throws IOException
+         */
+        Iterator<T> execute() throws IOException;
+    }
+
+    private final int bufferRows;
+
+    private final long stallMillis;
+
+    private final Map<String, Flight<?>> flights = new ConcurrentHashMap<>();
+
+    private long requests = 0;
+    private long coalesced = 0;
+
+    /** @param bufferRows number of rows replayed to callers joining a request in flight */
+    public BigqueryRequestCoalescer(int bufferRows) {
+        this(bufferRows, DEFAULT_STALL_MILLIS);
+    }
+
+    /**
+     * @param bufferRows number of rows replayed to callers joining a request in flight, and most
+     *     rows buffered for callers sharing it
+     * @param stallMillis time a caller waits for the slowest ones to free the buffer, before they
+     *     are detached
+     */
+    public BigqueryRequestCoalescer(int bufferRows, long stallMillis) {
+        this.bufferRows = bufferRows;
+        this.stallMillis = stallMillis;
+    }
+
+    /**
+     * Normalize generated SQL, so requests that only differ in whitespace share a key.
+     *
+     * @param sql
+     * @return
+     */
+    public static String normalize(String sql) {
+        return sql.trim().replaceAll("\\s+", " ");
+    }
+
+    /**
+     * Run a request, or join an identical one that is already in flight.
+     *
+     * @param key normalized request, e.g. generated SQL and parameters
+     * @param request
+     * @return result rows, which must be closed once the caller is done
+     */
+    public <T> CloseableIterator<T> execute(String key, Request<T> request) {
+        return execute(key, request, false);
+    }
+
+    /**
+     * Run a request, or join an identical one that is already in flight.
+     *
+     * @param key normalized request, e.g. generated SQL and parameters
+     * @param request
+     * @param repeatable whether running the request again returns the same rows in the same
+     *     order, so that callers can be detached after they started reading
+     * @return result rows, which must be closed once the caller is done
+     */
+    @SuppressWarnings("unchecked")
+    public <T> CloseableIterator<T> execute(String key, Request<T> request, boolean repeatable) {
+        while (true) {
+            Flight<T> flight =
+                    (Flight<T>)
+                            flights.computeIfAbsent(
+                                    key, k -> new Flight<>(k, request, repeatable));
+            Reader<T> reader = flight.join();
+            if (reader != null) {
+                synchronized (this) {
+                    requests++;
+                    if (!reader.leader) coalesced++;
+                }
+                return reader;
+            }
+            // no longer joinable, start a new flight unless someone else already did
+            flights.remove(key, flight);
+        }
+    }
+
+    /** @return number of requests executed or joined */
+    public synchronized long getRequests() {
+        return requests;
+    }
+
+    /** @return number of requests that joined a request in flight */
+    public synchronized long getCoalesced() {
+        return coalesced;
+    }
+
+    /** Iterator over shared rows, which releases them once closed. */
+    public interface CloseableIterator<T> extends Iterator<T>, Closeable {
+        @Override
+        void close();
+    }
+
+    /** Thrown to a reader detached from its flight, which then reads on its own. */
+    private static class DetachedException extends IOException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /** A request in flight, and the rows not yet read by all of its readers. */
+    private class Flight<T> {
+
+        private final String key;
+        private final Request<T> request;
+        private final boolean repeatable;
+        private final List<T> buffer = new ArrayList<>();
+        private final Set<Reader<T>> open = new HashSet<>();
+        private final int capacity = Math.max(bufferRows, 1);
+
+        private Iterator<T> rows;
+        private long base = 0;
+        private boolean done = false;
+        private boolean joinable = true;
+        private Throwable failure;
+
+        Flight(String key, Request<T> request, boolean repeatable) {
+            this.key = key;
+            this.request = request;
+            this.repeatable = repeatable;
+        }
+
+        synchronized Reader<T> join() {
+            if (!joinable || base > 0 || buffer.size() >= bufferRows || done) {
+                joinable = false;
+                return null;
+            }
+            Reader<T> reader = new Reader<>(this, open.isEmpty() && rows == null);
+            open.add(reader);
+            return reader;
+        }
+
+        /** Make sure the row at the given position is buffered, if there is one. */
+        private boolean fill(long position) throws IOException {
+            while (position >= base + buffer.size()) {
+                if (failure != null) {
+                    throw new IOException("Coalesced request failed", failure);
+                }
+                if (done) {
+                    return false;
+                }
+                if (buffer.size() >= capacity) {
+                    makeRoom();
+                    continue;
+                }
+                try {
+                    if (rows == null) {
+                        rows = request.execute();
+                    }
+                    if (rows.hasNext()) {
+                        buffer.add(rows.next());
+                        if (buffer.size() + base > bufferRows) {
+                            joinable = false;
+                        }
+                    } else {
+                        finish();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    failure = e;
+                    finish();
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Wait for the slowest readers to release rows of the full buffer, and detach them if
+         * they do not within the stall time, unless they cannot be.
+         */
+        private void makeRoom() throws IOException {
+            long deadline = System.currentTimeMillis() + stallMillis;
+            while (buffer.size() >= capacity && !done && failure == null) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    if (detachSlowest()) {
+                        return;
+                    }
+                    // they started reading rows a new run may return in another order
+                    deadline = System.currentTimeMillis() + stallMillis;
+                    continue;
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for coalesced readers", e);
+                }
+            }
+        }
+
+        /** Detach the slowest readers, if they can be, and return whether they were. */
+        private boolean detachSlowest() {
+            long min = Long.MAX_VALUE;
+            for (Reader<T> reader : open) {
+                min = Math.min(min, reader.position);
+            }
+            if (min > 0 && !repeatable) {
+                return false;
+            }
+            for (Iterator<Reader<T>> it = open.iterator(); it.hasNext(); ) {
+                Reader<T> reader = it.next();
+                if (reader.position == min) {
+                    LOGGER.fine("Detaching a reader stalled at row " + min + " of " + key);
+                    reader.detached = true;
+                    it.remove();
+                }
+            }
+            trim();
+            return true;
+        }
+
+        synchronized boolean hasNext(Reader<T> reader) throws IOException {
+            if (reader.detached) {
+                throw new DetachedException();
+            }
+            return fill(reader.position);
+        }
+
+        synchronized T next(Reader<T> reader) throws IOException {
+            if (reader.detached) {
+                throw new DetachedException();
+            }
+            if (!fill(reader.position)) {
+                throw new NoSuchElementException();
+            }
+            T row = buffer.get((int) (reader.position - base));
+            reader.position++;
+            trim();
+            return row;
+        }
+
+        /**
+         * Release the rows every open reader has read, once the buffer outgrows the replay window.
+         */
+        private void trim() {
+            long min = Long.MAX_VALUE;
+            for (Reader<T> reader : open) {
+                min = Math.min(min, reader.position);
+            }
+            int read = (int) Math.min(min - base, buffer.size());
+            if (read > 0 && buffer.size() >= capacity) {
+                buffer.subList(0, read).clear();
+                base += read;
+                // readers waiting for room
+                notifyAll();
+            }
+        }
+
+        synchronized void close(Reader<T> reader) {
+            if (!open.remove(reader)) {
+                // detached
+                return;
+            }
+            if (open.isEmpty()) {
+                joinable = false;
+                if (!done) {
+                    finish();
+                }
+                buffer.clear();
+            } else {
+                trim();
+            }
+        }
+
+        private void finish() {
+            done = true;
+            joinable = false;
+            flights.remove(key, this);
+            if (rows instanceof Closeable) {
+                try {
+                    ((Closeable) rows).close();
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Unable to close coalesced request", e);
+                }
+            }
+        }
+    }
+
+    private class Reader<T> implements CloseableIterator<T> {
+
+        private final Flight<T> flight;
+        private final boolean leader;
+        private volatile long position = 0;
+        private volatile boolean detached = false;
+        private boolean closed = false;
+
+        /** Rows of the request run on its own, once detached. */
+        private Iterator<T> own;
+
+        Reader(Flight<T> flight, boolean leader) {
+            this.flight = flight;
+            this.leader = leader;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (closed) {
+                return false;
+            }
+            try {
+                if (!detached) {
+                    try {
+                        return flight.hasNext(this);
+                    } catch (DetachedException e) {
+                        // read on our own
+                    }
+                }
+                return getOwnRows().hasNext();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public T next() {
+            if (closed) {
+                throw new NoSuchElementException();
+            }
+            try {
+                if (!detached) {
+                    try {
+                        return flight.next(this);
+                    } catch (DetachedException e) {
+                        // read on our own
+                    }
+                }
+                T row = getOwnRows().next();
+                position++;
+                return row;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /** Run the request again for a detached reader, skipping the rows it already read. */
+        private Iterator<T> getOwnRows() throws IOException {
+            if (own == null) {
+                own = flight.request.execute();
+                for (long i = 0; i < position && own.hasNext(); i++) {
+                    own.next();
+                }
+            }
+            return own;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                if (own instanceof Closeable) {
+                    try {
+                        ((Closeable) own).close();
+                    } catch (IOException e) {
+                        LOGGER.log(Level.FINE, "Unable to close request", e);
+                    }
+                }
+                flight.close(this);
+            }
+        }
+    }
+}
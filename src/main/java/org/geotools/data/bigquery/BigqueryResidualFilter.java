@@ -0,0 +1,188 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geotools.data.bigquery;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiPredicate;
+import java.util.function.Predicate;
+import org.geotools.geometry.jts.JTS;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.filter.And;
+import org.opengis.filter.Filter;
+import org.opengis.filter.Not;
+import org.opengis.filter.Or;
+import org.opengis.filter.expression.Expression;
+import org.opengis.filter.expression.Literal;
+import org.opengis.filter.expression.PropertyName;
+import org.opengis.filter.spatial.BBOX;
+import org.opengis.filter.spatial.BinarySpatialOperator;
+import org.opengis.filter.spatial.Contains;
+import org.opengis.filter.spatial.Crosses;
+import org.opengis.filter.spatial.Disjoint;
+import org.opengis.filter.spatial.Intersects;
+import org.opengis.filter.spatial.Overlaps;
+import org.opengis.filter.spatial.Touches;
+import org.opengis.filter.spatial.Within;
+
+/**
+ * Evaluates the part of a filter that cannot be pushed into a Storage API row restriction. The
+ * filter is compiled once: spatial predicates against a geometry literal use a JTS {@link
+ * PreparedGeometry} of the literal, after a cheap envelope check, and everything else falls back
+ * to {@link Filter#evaluate(Object)}. Compiled filters are thread safe.
+ */
+public class BigqueryResidualFilter implements Predicate<SimpleFeature> {
+
+    private final Filter filter;
+    private final Predicate<SimpleFeature> predicate;
+
+    private BigqueryResidualFilter(Filter filter) {
+        this.filter = filter;
+        this.predicate = compile(filter);
+    }
+
+    /**
+     * Compile a residual filter.
+     *
+     * @param filter
+     * @return compiled filter, or null if the filter is INCLUDE
+     */
+    public static BigqueryResidualFilter create(Filter filter) {
+        if (filter == null || filter == Filter.INCLUDE) {
+            return null;
+        }
+        return new BigqueryResidualFilter(filter);
+    }
+
+    /** @return the filter that was compiled */
+    public Filter getFilter() {
+        return filter;
+    }
+
+    @Override
+    public boolean test(SimpleFeature feature) {
+        return predicate.test(feature);
+    }
+
+    private static Predicate<SimpleFeature> compile(Filter filter) {
+        if (filter == Filter.INCLUDE) {
+            return feature -> true;
+        } else if (filter == Filter.EXCLUDE) {
+            return feature -> false;
+        } else if (filter instanceof And) {
+            List<Predicate<SimpleFeature>> children = compileAll(((And) filter).getChildren());
+            return feature -> {
+                for (Predicate<SimpleFeature> child : children) {
+                    if (!child.test(feature)) return false;
+                }
+                return true;
+            };
+        } else if (filter instanceof Or) {
+            List<Predicate<SimpleFeature>> children = compileAll(((Or) filter).getChildren());
+            return feature -> {
+                for (Predicate<SimpleFeature> child : children) {
+                    if (child.test(feature)) return true;
+                }
+                return false;
+            };
+        } else if (filter instanceof Not) {
+            return compile(((Not) filter).getFilter()).negate();
+        } else if (filter instanceof BinarySpatialOperator) {
+            Predicate<SimpleFeature> prepared = compileSpatial((BinarySpatialOperator) filter);
+            if (prepared != null) {
+                return prepared;
+            }
+        }
+        return filter::evaluate;
+    }
+
+    private static List<Predicate<SimpleFeature>> compileAll(List<Filter> filters) {
+        List<Predicate<SimpleFeature>> predicates = new ArrayList<>(filters.size());
+        for (Filter child : filters) {
+            predicates.add(compile(child));
+        }
+        return predicates;
+    }
+
+    /**
+     * Compile a spatial predicate between a property and a geometry literal.
+     *
+     * @param filter
+     * @return predicate, or null if the operator or its operands are not supported
+     */
+    private static Predicate<SimpleFeature> compileSpatial(BinarySpatialOperator filter) {
+        Expression e1 = filter.getExpression1();
+        Expression e2 = filter.getExpression2();
+
+        boolean literalFirst = e1 instanceof Literal && e2 instanceof PropertyName;
+        if (!literalFirst && !(e1 instanceof PropertyName && e2 instanceof Literal)) {
+            return null;
+        }
+        PropertyName property = (PropertyName) (literalFirst ? e2 : e1);
+        Literal literal = (Literal) (literalFirst ? e1 : e2);
+
+        Geometry geometry;
+        if (filter instanceof BBOX) {
+            geometry = JTS.toGeometry(((BBOX) filter).getBounds());
+        } else {
+            geometry = literal.evaluate(null, Geometry.class);
+        }
+        if (geometry == null) {
+            return null;
+        }
+        PreparedGeometry prepared = PreparedGeometryFactory.prepare(geometry);
+        Envelope envelope = geometry.getEnvelopeInternal();
+
+        // the literal is prepared, so "property op literal" is evaluated as its converse
+        BiPredicate<Envelope, Geometry> test;
+        if (filter instanceof BBOX || filter instanceof Intersects) {
+            test = (env, g) -> env.intersects(envelope) && prepared.intersects(g);
+        } else if (filter instanceof Disjoint) {
+            test = (env, g) -> !env.intersects(envelope) || prepared.disjoint(g);
+        } else if (filter instanceof Touches) {
+            test = (env, g) -> env.intersects(envelope) && prepared.touches(g);
+        } else if (filter instanceof Crosses) {
+            test = (env, g) -> env.intersects(envelope) && prepared.crosses(g);
+        } else if (filter instanceof Overlaps) {
+            test = (env, g) -> env.intersects(envelope) && prepared.overlaps(g);
+        } else if ((filter instanceof Contains && !literalFirst)
+                || (filter instanceof Within && literalFirst)) {
+            // the property contains the literal
+            test = (env, g) -> env.covers(envelope) && prepared.within(g);
+        } else if ((filter instanceof Contains && literalFirst)
+                || (filter instanceof Within && !literalFirst)) {
+            // the literal contains the property
+            test = (env, g) -> envelope.covers(env) && prepared.contains(g);
+        } else {
+            return null;
+        }
+
+        return feature -> {
+            Geometry g = property.evaluate(feature, Geometry.class);
+            return g != null && test.test(g.getEnvelopeInternal(), g);
+        };
+    }
+
+    @Override
+    public String toString() {
+        return "BigqueryResidualFilter[" + filter + "]";
+    }
+}
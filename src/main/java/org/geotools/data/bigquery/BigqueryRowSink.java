@@ -0,0 +1,59 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geotools.data.bigquery;
+
+import com.google.cloud.bigquery.TableId;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Appends batches of rows to a table, see {@link BigqueryStorageRowSink}. Rows are maps of column
+ * names to JSON-compatible values, as built by {@link BigqueryFeatureWriter}.
+ *
+ * <p>Closing a sink that was not committed abandons the rows that are not visible yet.
+ */
+public interface BigqueryRowSink extends Closeable {
+
+    /** Creates the sink of each feature writer. */
+    interface Factory {
+        /**
+         * @param table
+         * @param type stream type, which decides when rows become visible
+         * @return
+         * @throws IOException
+         */
+        BigqueryRowSink create(TableId table, BigqueryWriteStreamType type) throws IOException;
+    }
+
+    /**
+     * Append a batch of rows. Sinks may return before the rows are persisted, failures are then
+     * reported by a later call.
+     *
+     * @param rows
+     * @throws IOException
+     */
+    void append(List<Map<String, Object>> rows) throws IOException;
+
+    /**
+     * Wait for the appended rows, and make them visible.
+     *
+     * @throws IOException if any row could not be appended
+     */
+    void commit() throws IOException;
+}
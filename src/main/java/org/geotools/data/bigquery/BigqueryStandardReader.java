@@ -16,25 +16,37 @@
 
 package org.geotools.data.bigquery;
 
+import com.google.cloud.bigquery.BigQueryError;
+import com.google.cloud.bigquery.BigQueryException;
+import com.google.cloud.bigquery.FieldValue;
 import com.google.cloud.bigquery.FieldValueList;
+import com.google.cloud.bigquery.Job;
+import com.google.cloud.bigquery.JobInfo;
+import com.google.cloud.bigquery.JobStatistics.QueryStatistics;
 import com.google.cloud.bigquery.QueryJobConfiguration;
+import com.google.cloud.bigquery.QueryParameterValue;
 import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.geotools.data.Query;
 import org.geotools.data.store.ContentState;
-import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.geojson.geom.GeometryJSON;
 import org.geotools.util.logging.Logging;
+import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
 import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.AttributeDescriptor;
 
 @SuppressWarnings("deprecation")
@@ -44,37 +56,107 @@ public class BigqueryStandardReader extends BigqueryFeatureReader {
 
     private Iterator<FieldValueList> cursor;
 
+    private Map<String, QueryParameterValue> queryParameters;
+
+    private Long totalBytesProcessed;
+
+    private final String keyColumn;
+
+    private SimpleFeature next;
+
+    /** Whether points are selected as their coordinates, see {@link BigqueryPointColumns}. */
+    private boolean points;
+
+    /** Whether rows are unmerged pieces of a pyramid table, whose IDs include their cell. */
+    private boolean pieces;
+
     public BigqueryStandardReader(ContentState state, Query query) throws IOException {
         super(state, query);
+        this.keyColumn = BigqueryFeatureIds.getKeyColumn(featureType);
 
+        String sql = getSQLFromGeotoolsQuery();
         QueryJobConfiguration queryConfig =
-                QueryJobConfiguration.newBuilder(getSQLFromGeotoolsQuery()).build();
+                QueryJobConfiguration.newBuilder(sql)
+                        .setNamedParameters(queryParameters)
+                        .build();
+
+        BigqueryRequestCoalescer coalescer = store.getRequestCoalescer();
+        if (coalescer != null) {
+            // identical queries share the results of the first job
+            String key = BigqueryRequestCoalescer.normalize(sql) + " " + queryParameters;
+            cursor = coalescer.execute(key, () -> runQuery(queryConfig));
+        } else {
+            cursor = runQuery(queryConfig);
+        }
+    }
 
+    private Iterator<FieldValueList> runQuery(QueryJobConfiguration queryConfig)
+            throws IOException {
         try {
-            cursor = store.queryClient.query(queryConfig).iterateAll().iterator();
+            Job job = store.queryClient.create(JobInfo.of(queryConfig)).waitFor();
+            if (job == null) {
+                throw new IOException("Query job no longer exists");
+            }
+            BigQueryError error = job.getStatus().getError();
+            if (error != null) {
+                throw new BigQueryException(
+                        BigQueryException.UNKNOWN_CODE, error.getMessage(), error);
+            }
+            QueryStatistics statistics = job.getStatistics();
+            totalBytesProcessed = statistics.getTotalBytesProcessed();
+            LOGGER.fine(
+                    String.format(
+                            "Query %s processed %d bytes%s",
+                            job.getJobId().getJob(),
+                            statistics.getTotalBytesProcessed(),
+                            Boolean.TRUE.equals(statistics.getCacheHit()) ? " (cached)" : ""));
+
+            return job.getQueryResults().iterateAll().iterator();
         } catch (InterruptedException e) {
             throw new IOException(e);
         }
     }
 
     /**
-     * Return SQL from the given Query.
+     * Return the bytes processed by the query job of this reader.
+     *
+     * @return bytes, or null if the reader shares the results of another reader's job
+     */
+    public Long getTotalBytesProcessed() {
+        return totalBytesProcessed;
+    }
+
+    /**
+     * Return SQL from the given Query, with its literals as named query parameters.
      *
      * @return
      */
     protected String getSQLFromGeotoolsQuery() {
         BigqueryFilterVisitor parser =
-                new BigqueryFilterVisitor(query, getFeatureType(), store.CRS, store.pregen);
+                new BigqueryFilterVisitor(
+                        query,
+                        featureType,
+                        store.CRS,
+                        store.pregen,
+                        store.getViewProvisioner(),
+                        BigqueryFilterVisitor.CAPABILITIES,
+                        store.optimizeFilters);
 
+        String groupBy = parser.getGroupByClause();
         String sql =
                 String.format(
-                        "SELECT %s FROM `%s` WHERE %s LIMIT %d",
-                        parser.getSelectClause(store.simplify),
-                        query.getTypeName(),
-                        parser.getWhereClause(),
+                        "SELECT %s FROM `%s` WHERE %s%s LIMIT %d",
+                        parser.getSelectClause(
+                                store.simplify, store.clipGeometries, screenMap != null),
+                        parser.getTableName(),
+                        parser.getParameterizedWhereClause(),
+                        groupBy.isEmpty() ? "" : " " + groupBy,
                         rowLimit);
+        queryParameters = parser.getQueryParameters();
+        points = parser.isSelectingPoints();
+        pieces = parser.isReadingPieces();
 
-        System.out.println(sql);
+        LOGGER.fine(sql);
 
         return sql;
     }
@@ -82,44 +164,254 @@ public class BigqueryStandardReader extends BigqueryFeatureReader {
     @Override
     public SimpleFeature next()
             throws IOException, IllegalArgumentException, NoSuchElementException {
-
-        rowIndex++;
-        return parseFeature(cursor.next());
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        SimpleFeature feature = next;
+        next = null;
+        return feature;
     }
 
     @Override
     public boolean hasNext() throws IOException {
-        return cursor.hasNext();
+        try {
+            while (next == null && cursor.hasNext()) {
+                rowIndex++;
+                // null if the feature falls into a painted pixel
+                next = parseFeature(cursor.next());
+            }
+            return next != null;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Override
+    public boolean fill(BigqueryFeatureBatch batch) throws IOException {
+        int start = batch.size();
+        try {
+            while (!batch.isFull() && cursor.hasNext()) {
+                rowIndex++;
+                fillRow(batch, cursor.next());
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return batch.size() > start;
+    }
+
+    /** Append a row to a batch, decoding INT64, FLOAT64 and BOOL cells to primitives. */
+    private void fillRow(BigqueryFeatureBatch batch, FieldValueList row) {
+        int index = batch.addRow(createFid(row));
+        SimpleFeatureType type = batch.getFeatureType();
+        for (int i = 0; i < type.getAttributeCount(); i++) {
+            String column = type.getDescriptor(i).getLocalName();
+            if (column.equals(geomColumn)) {
+                batch.setValue(i, index, readGeometry(row));
+                continue;
+            }
+            FieldValue value = row.get(column);
+            if (value.isNull()) {
+                continue;
+            }
+            AttributeDescriptor descriptor = featureType.getDescriptor(column);
+            Object bigqueryType = descriptor.getUserData().get("bigqueryType");
+            if (value.getAttribute() != FieldValue.Attribute.PRIMITIVE) {
+                batch.setValue(i, index, value.getValue());
+            } else if ("INT64".equals(bigqueryType)) {
+                batch.setLong(i, index, value.getLongValue());
+            } else if ("FLOAT64".equals(bigqueryType)) {
+                batch.setDouble(i, index, value.getDoubleValue());
+            } else if ("BOOL".equals(bigqueryType)) {
+                batch.setBoolean(i, index, value.getBooleanValue());
+            } else if (strings != null && descriptor.getType().getBinding() == String.class) {
+                batch.setValue(i, index, strings.intern(column, value.getStringValue()));
+            } else {
+                batch.setValue(i, index, getValue(value, descriptor));
+            }
+        }
+    }
+
+    private String createFid(FieldValueList row) {
+        Object key = keyColumn != null ? row.get(keyColumn).getValue() : null;
+        return pieces
+                ? BigqueryFeatureIds.createPiece(
+                        featureType,
+                        key,
+                        rowIndex,
+                        row.get("cell_x").getLongValue(),
+                        row.get("cell_y").getLongValue())
+                : BigqueryFeatureIds.create(featureType, key, rowIndex);
+    }
+
+    /** Return the geometry of a row, from its coordinates or its GeoJSON. */
+    private Geometry readGeometry(FieldValueList row) {
+        if (points) {
+            FieldValue x = row.get(BigqueryPointColumns.X_COLUMN);
+            FieldValue y = row.get(BigqueryPointColumns.Y_COLUMN);
+            if (!x.isNull() && !y.isNull()) {
+                return createPoint(x.getDoubleValue(), y.getDoubleValue());
+            }
+            // not a point, selected as GeoJSON instead
+        }
+        FieldValue value = row.get(geomColumn);
+        Geometry geometry = value.isNull() ? null : parseGeoJSON(value.getStringValue());
+        if (geometry != null) {
+            geometry.setSRID(srid);
+        }
+        return geometry;
     }
 
+    @Override
+    public void close() throws IOException {
+        if (cursor instanceof Closeable) {
+            ((Closeable) cursor).close();
+        }
+    }
+
+    /**
+     * Build a feature from a row.
+     *
+     * @param row
+     * @return feature, or null if it is smaller than a pixel that is already painted
+     * @throws IOException
+     */
     protected SimpleFeature parseFeature(FieldValueList row) throws IOException {
-        SimpleFeatureBuilder builder = new SimpleFeatureBuilder(featureType);
+        Geometry standIn = null;
+        if (points) {
+            FieldValue x = row.get(BigqueryPointColumns.X_COLUMN);
+            FieldValue y = row.get(BigqueryPointColumns.Y_COLUMN);
+            if (!x.isNull() && !y.isNull()) {
+                double lon = x.getDoubleValue();
+                double lat = y.getDoubleValue();
+                Envelope envelope = new Envelope(lon, lon, lat, lat);
+                if (canSkipParsing(envelope) && isPainted(envelope)) {
+                    return null;
+                }
+                standIn = createPoint(lon, lat);
+            }
+        } else if (screenMap != null) {
+            Envelope envelope = getBoundingBox(row);
+            if (canSkipParsing(envelope)) {
+                if (isPainted(envelope)) {
+                    return null;
+                }
+                standIn = getStandIn(envelope, getGeometryClass(row.get(geomColumn)));
+            }
+        }
 
+        // values are converted, and the GeoJSON parsed, when the feature is first read
+        Object[] values = new Object[featureType.getAttributeCount()];
         List<String> returnedColumns = new ArrayList<String>();
         if (!query.retrieveAllProperties()) {
             returnedColumns.addAll(Arrays.asList(query.getPropertyNames()));
         }
-        for (AttributeDescriptor attr : featureType.getAttributeDescriptors()) {
-            String column = attr.getLocalName();
+        for (int i = 0; i < values.length; i++) {
+            String column = featureType.getDescriptor(i).getLocalName();
 
             if (!query.retrieveAllProperties() && !returnedColumns.contains(column)) continue;
             if (column == geomColumn) continue;
 
-            builder.set(column, row.get(column).getValue());
+            AttributeDescriptor descriptor = featureType.getDescriptor(i);
+            Object value = getValue(row.get(column), descriptor);
+            if (strings != null
+                    && value instanceof String
+                    && descriptor.getType().getBinding() == String.class) {
+                value = strings.intern(column, (String) value);
+            }
+            values[i] = value;
         }
+        // the GeoJSON of geometries that are not points, when points are selected as coordinates
+        values[featureType.indexOf(geomColumn)] =
+                standIn != null ? standIn : row.get(geomColumn).getValue();
 
-        try {
-            String geomGeojson = row.get(geomColumn).getStringValue();
-            InputStream stream =
-                    new ByteArrayInputStream(geomGeojson.getBytes(StandardCharsets.UTF_8));
-            Geometry geom = new GeometryJSON().read(stream);
+        return new BigqueryLazyFeature(
+                values,
+                outputType,
+                createFid(row),
+                this::parseGeoJSON,
+                srid,
+                getKeptEncoding(BigqueryLazyFeature.GeometryEncoding.GEOJSON));
+    }
 
-            geom.setSRID(srid);
-            builder.set(geomColumn, geom);
+    /**
+     * Return the value of a cell, decoded from its string form for numeric and TIMESTAMP columns,
+     * so that they need no conversion to Long, Double or Timestamp bindings.
+     *
+     * @param value
+     * @param descriptor
+     * @return
+     */
+    private static Object getValue(FieldValue value, AttributeDescriptor descriptor) {
+        if (value.isNull() || value.getAttribute() != FieldValue.Attribute.PRIMITIVE) {
+            return value.getValue();
+        }
+        Object type = descriptor.getUserData().get("bigqueryType");
+        if ("INT64".equals(type)) {
+            return value.getLongValue();
+        } else if ("FLOAT64".equals(type)) {
+            return value.getDoubleValue();
+        } else if ("NUMERIC".equals(type) || "BIGNUMERIC".equals(type)) {
+            return value.getNumericValue();
+        } else if ("TIMESTAMP".equals(type)) {
+            return BigqueryUtil.getTimestamp(value.getTimestampValue());
+        }
+        return value.getValue();
+    }
+
+    /**
+     * Parse a GeoJSON geometry, and copy it onto the packed coordinate sequences of the geometry
+     * factory, as GeometryJSON creates a Coordinate per vertex. Coordinates are reprojected in the
+     * same pass.
+     *
+     * @param geojson
+     * @return geometry, or null if it cannot be parsed
+     */
+    private Geometry parseGeoJSON(String geojson) {
+        try {
+            InputStream stream = new ByteArrayInputStream(geojson.getBytes(StandardCharsets.UTF_8));
+            Geometry geometry = new GeometryJSON().read(stream);
+            return geometry != null
+                    ? BigqueryUtil.copy(geometry, geometryFactory, transform)
+                    : null;
         } catch (Exception e) {
-            System.out.println(e);
+            LOGGER.log(Level.WARNING, "Unable to parse geometry", e);
+            return null;
+        }
+    }
+
+    /**
+     * Return the bounding box of the geometry of a row, selected along with it.
+     *
+     * @param row
+     * @return envelope, or null if the geometry is null or empty
+     */
+    private static Envelope getBoundingBox(FieldValueList row) {
+        FieldValue value = row.get(BigqueryFilterVisitor.BOUNDING_BOX_COLUMN);
+        if (value.isNull()) {
+            return null;
         }
+        FieldValueList box = value.getRecordValue();
+        return new Envelope(
+                box.get("xmin").getDoubleValue(),
+                box.get("xmax").getDoubleValue(),
+                box.get("ymin").getDoubleValue(),
+                box.get("ymax").getDoubleValue());
+    }
 
-        return builder.buildFeature(Integer.toString(rowIndex));
+    /**
+     * Return the JTS class of a GeoJSON geometry from its "type" member, without parsing it.
+     *
+     * @param value
+     * @return
+     */
+    private static Class<?> getGeometryClass(FieldValue value) {
+        String geojson = value.getStringValue();
+        int member = geojson.indexOf("\"type\"");
+        int start = member < 0 ? -1 : geojson.indexOf('"', geojson.indexOf(':', member) + 1);
+        int end = start < 0 ? -1 : geojson.indexOf('"', start + 1);
+        return end < 0
+                ? Geometry.class
+                : BigqueryUtil.getGeometryClass(geojson.substring(start + 1, end));
     }
 }
@@ -17,6 +17,7 @@
 package org.geotools.data.bigquery;
 
 import com.google.api.gax.rpc.ServerStream;
+import com.google.cloud.bigquery.TableId;
 import com.google.cloud.bigquery.storage.v1.AvroRows;
 import com.google.cloud.bigquery.storage.v1.CreateReadSessionRequest;
 import com.google.cloud.bigquery.storage.v1.DataFormat;
@@ -25,13 +26,25 @@ import com.google.cloud.bigquery.storage.v1.ReadRowsResponse;
 import com.google.cloud.bigquery.storage.v1.ReadSession;
 import com.google.cloud.bigquery.storage.v1.ReadSession.TableReadOptions;
 import com.google.common.base.Preconditions;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
+import javax.measure.Unit;
+import org.apache.avro.LogicalType;
+import org.apache.avro.LogicalTypes;
 import org.apache.avro.Schema;
 import org.apache.avro.generic.GenericDatumReader;
 import org.apache.avro.generic.GenericRecord;
@@ -40,33 +53,76 @@ import org.apache.avro.io.DatumReader;
 import org.apache.avro.io.DecoderFactory;
 import org.geotools.data.Query;
 import org.geotools.data.store.ContentState;
-import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.referencing.CRS;
 import org.geotools.util.logging.Logging;
+import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Puntal;
 import org.locationtech.jts.io.ParseException;
-import org.locationtech.jts.io.WKTReader;
+import org.locationtech.jts.simplify.TopologyPreservingSimplifier;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.referencing.cs.CoordinateSystem;
+import si.uom.NonSI;
+import si.uom.SI;
 
 public class BigqueryStorageReader extends BigqueryFeatureReader {
 
     private static final Logger LOGGER = Logging.getLogger(BigqueryStorageReader.class);
 
-    private ServerStream<ReadRowsResponse> stream;
-    private Iterator<ReadRowsResponse> streamIterator;
+    private static final GeometryFactory DEFAULT_GEOMETRY_FACTORY =
+            new GeometryFactory(
+                    BigqueryPrecisionOptions.BIGQUERY_NATIVE_PRECISION
+                            .getCoordinateSequenceFactory());
 
-    private BigqueryAvroReader reader;
+    /** Number of decoded features buffered between the stream threads and the consumer. */
+    private static final int PARALLEL_QUEUE_SIZE = 1000;
+
+    private Iterator<SimpleFeature> features;
+
+    private BigqueryResidualFilter residualFilter;
+
+    /** Distance in degrees decoded geometries are simplified by, 0 to keep them as they are. */
+    private double simplifyDistance;
+
+    /**
+     * Longitude and latitude columns points are built from instead of their WKT, null if the
+     * geometries are read as WKT, see {@link BigqueryPointColumns}.
+     */
+    private String[] pointColumns;
+
+    /** Whether features are shared with other readers, which then get copies of them. */
+    private boolean coalesced = false;
+
+    /** Streams read one after the other by {@link #fill}, null when reading features. */
+    private List<BigqueryAvroReader> batchStreams;
 
     public BigqueryStorageReader(ContentState state, Query query) throws IOException {
+        this(state, query, false);
+    }
+
+    /**
+     * @param state
+     * @param query
+     * @param batches whether rows are read into batches with {@link #fill} rather than as
+     *     features, in which case the read session is neither shared nor read in parallel, and
+     *     the query must not leave a residual filter
+     * @throws IOException
+     */
+    public BigqueryStorageReader(ContentState state, Query query, boolean batches)
+            throws IOException {
         super(state, query);
 
         BigqueryDataStore store = (BigqueryDataStore) state.getEntry().getDataStore();
 
         String projectUri = String.format("projects/%s", store.projectId);
+        TableId tableId = store.getTableId(state.getEntry().getTypeName());
         String tableUri =
                 String.format(
                         "projects/%s/datasets/%s/tables/%s",
-                        store.projectId, store.datasetName, state.getEntry().getTypeName());
+                        tableId.getProject(), tableId.getDataset(), tableId.getTable());
 
         ReadSession.Builder sessionBuilder =
                 ReadSession.newBuilder()
@@ -75,63 +131,227 @@ public class BigqueryStorageReader extends BigqueryFeatureReader {
                         .setReadOptions(getReadOptionsFromQuery());
 
         // TODO configure snapshot time
-        CreateReadSessionRequest.Builder builder =
+        CreateReadSessionRequest request =
                 CreateReadSessionRequest.newBuilder()
                         .setParent(projectUri)
                         .setReadSession(sessionBuilder)
-                        .setMaxStreamCount(1);
+                        .setMaxStreamCount(store.getStorageStreams())
+                        .build();
 
-        ReadSession session = store.storageClient.createReadSession(builder.build());
+        BigqueryRequestCoalescer coalescer = store.getRequestCoalescer();
+        if (batches) {
+            if (residualFilter != null) {
+                throw new IOException("Batches cannot be filtered on the client");
+            }
+            this.features = Collections.emptyIterator();
+            this.batchStreams = createStreams(request);
+        } else if (coalescer != null && screenMap == null) {
+            // the screen map applies while decoding, so it cannot be shared
+            // identical read sessions share the decoded features of the first one, and a single
+            // stream returns the same rows in the same order when read again
+            String key =
+                    request.toString()
+                            + " "
+                            + residualFilter
+                            + " "
+                            + simplifyDistance
+                            + " "
+                            + getDecodingKey();
+            this.features =
+                    coalescer.execute(
+                            key, () -> readFeatures(request), store.getStorageStreams() == 1);
+            this.coalesced = true;
+        } else {
+            this.features = readFeatures(request);
+        }
+    }
 
-        this.reader =
-                new BigqueryAvroReader(
-                        new Schema.Parser().parse(session.getAvroSchema().getSchema()));
+    /**
+     * Describe how features are decoded beyond what the read session selects, since readers
+     * sharing decoded features get the geometries and kept text of the first one.
+     *
+     * @return
+     */
+    private String getDecodingKey() {
+        String crs =
+                transform != null
+                        ? CRS.toSRS(outputType.getCoordinateReferenceSystem()) + " " + transform
+                        : "native";
+        return crs
+                + " srid="
+                + srid
+                + " encoding="
+                + getKeptEncoding(BigqueryLazyFeature.GeometryEncoding.WKT);
+    }
+
+    /**
+     * Create a read session and return the decoded features of its streams that pass the
+     * residual filter. Several streams are decoded and filtered in parallel.
+     *
+     * @param request
+     * @return features
+     * @throws IOException
+     */
+    protected Iterator<SimpleFeature> readFeatures(CreateReadSessionRequest request)
+            throws IOException {
+        List<BigqueryAvroReader> streams = createStreams(request);
+        if (streams.isEmpty()) {
+            return Collections.emptyIterator();
+        }
+        return streams.size() == 1 ? streams.get(0) : new BigqueryParallelReader(streams);
+    }
 
-        Preconditions.checkState(session.getStreamsCount() > 0);
-        String streamName = session.getStreams(0).getName();
+    /** Create a read session, and a reader of each of its streams. */
+    private List<BigqueryAvroReader> createStreams(CreateReadSessionRequest request)
+            throws IOException {
+        ReadSession session = store.getStorageClient().createReadSession(request);
+        if (session.getStreamsCount() == 0) {
+            // empty tables, or nothing left after the row restriction
+            return Collections.emptyList();
+        }
 
-        ReadRowsRequest readRowsRequest =
-                ReadRowsRequest.newBuilder().setReadStream(streamName).build();
+        Schema avroSchema = new Schema.Parser().parse(session.getAvroSchema().getSchema());
+        AtomicInteger fids = new AtomicInteger();
+
+        List<BigqueryAvroReader> streams = new ArrayList<>();
+        for (int i = 0; i < session.getStreamsCount(); i++) {
+            ReadRowsRequest readRowsRequest =
+                    ReadRowsRequest.newBuilder()
+                            .setReadStream(session.getStreams(i).getName())
+                            .build();
+            streams.add(
+                    new BigqueryAvroReader(
+                            avroSchema,
+                            store.getStorageClient().readRowsCallable().call(readRowsRequest),
+                            fids));
+        }
+        return streams;
+    }
 
-        this.stream = store.storageClient.readRowsCallable().call(readRowsRequest);
-        this.streamIterator = stream.iterator();
+    @Override
+    public boolean fill(BigqueryFeatureBatch batch) throws IOException {
+        int start = batch.size();
+        while (!batch.isFull() && !batchStreams.isEmpty()) {
+            if (!batchStreams.get(0).fill(batch)) {
+                batchStreams.remove(0).close();
+            }
+        }
+        return batch.size() > start;
     }
 
     @Override
     public SimpleFeature next()
             throws IOException, IllegalArgumentException, NoSuchElementException {
-
-        if (!reader.hasNext()) {
-            reader.decodeRows(streamIterator.next().getAvroRows());
+        SimpleFeature feature = unwrap(features::next);
+        if (coalesced && feature instanceof BigqueryLazyFeature) {
+            feature = ((BigqueryLazyFeature) feature).copy();
         }
-        return parseFeature(
-                reader.next(), ++rowIndex, featureType, reader.getSchemaKeys(), srid, geomColumn);
+        ++rowIndex;
+        return feature;
     }
 
     @Override
     public boolean hasNext() throws IOException {
-        return (reader.hasNext() || streamIterator.hasNext()) && rowIndex <= rowLimit;
+        return unwrap(features::hasNext) && rowIndex <= rowLimit;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (features instanceof Closeable) {
+            ((Closeable) features).close();
+        }
+        if (batchStreams != null) {
+            batchStreams.forEach(BigqueryAvroReader::close);
+            batchStreams.clear();
+        }
+    }
+
+    private static <T> T unwrap(Supplier<T> call) throws IOException {
+        try {
+            return call.get();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
     }
 
     /**
-     * Return BQ TableReadOptions from the given Query.
+     * Return BQ TableReadOptions from the given Query. Only the part of the filter that a row
+     * restriction supports is pushed down, the rest becomes the residual filter.
      *
      * @return
      */
     private TableReadOptions getReadOptionsFromQuery() {
         BigqueryFilterVisitor parser =
-                new BigqueryFilterVisitor(query, getFeatureType(), store.CRS, store.pregen);
+                new BigqueryFilterVisitor(
+                        query,
+                        featureType,
+                        store.CRS,
+                        store.pregen,
+                        null,
+                        BigqueryFilterVisitor.STORAGE_CAPABILITIES,
+                        store.optimizeFilters);
         TableReadOptions.Builder builder = TableReadOptions.newBuilder();
 
-        builder.setRowRestriction(parser.toString());
-        if (!query.retrieveAllProperties()) {
-            builder.addAllSelectedFields(Arrays.asList(query.getPropertyNames()));
+        // row restrictions do not take query parameters, so literals are inlined
+        builder.setRowRestriction(parser.getWhereClause());
+        residualFilter = BigqueryResidualFilter.create(parser.getPostFilter());
+        // the same tolerance as ST_SIMPLIFY of the Query API, applied on the client
+        simplifyDistance = store.simplify ? getSimplifyDistance(parser) : 0;
+        List<String> columns = query.retrieveAllProperties() ? null : parser.getRequestedColumns();
+        String[] coordinates = BigqueryPointColumns.getCoordinateColumns(featureType);
+        if (coordinates != null && (columns == null || columns.contains(geomColumn))) {
+            // the coordinates of the points instead of their WKT
+            columns = columns != null ? new ArrayList<>(columns) : getTableColumns();
+            columns.remove(geomColumn);
+            for (String column : coordinates) {
+                if (!columns.contains(column)) {
+                    columns.add(column);
+                }
+            }
+            pointColumns = coordinates;
+        }
+        if (columns != null) {
+            builder.addAllSelectedFields(columns);
         }
 
         return builder.build();
     }
 
-    protected SimpleFeature parseFeature(
+    /** Return the columns of the table, without pseudo-columns such as _PARTITIONTIME. */
+    private List<String> getTableColumns() {
+        List<String> columns = new ArrayList<>();
+        for (AttributeDescriptor descriptor : featureType.getAttributeDescriptors()) {
+            if (!descriptor.getLocalName().startsWith("_PARTITION")) {
+                columns.add(descriptor.getLocalName());
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * Return the simplification distance in the units of the returned geometries, which are in
+     * metres or degrees, or 0 if reprojected to other units, which are left as they are.
+     */
+    private double getSimplifyDistance(BigqueryFilterVisitor parser) {
+        if (transform == null) {
+            return parser.getSimplifyDistance();
+        }
+        CoordinateSystem cs = outputType.getCoordinateReferenceSystem().getCoordinateSystem();
+        Unit<?> unit = cs.getAxis(0).getUnit();
+        if (SI.METRE.equals(unit)) {
+            return parser.getSimplifyTolerance();
+        }
+        if (NonSI.DEGREE_ANGLE.equals(unit)) {
+            return parser.getSimplifyDistance();
+        }
+        return 0;
+    }
+
+    /**
+     * Decode a row into a feature, whose ID is taken from the key column of the feature type, or
+     * the row index if it has none, see {@link BigqueryFeatureIds}.
+     */
+    protected static SimpleFeature parseFeature(
             GenericRecord row,
             int rowIndex,
             SimpleFeatureType featureType,
@@ -139,64 +359,511 @@ public class BigqueryStorageReader extends BigqueryFeatureReader {
             int srid,
             String geomColumn)
             throws IOException {
+        return createFeature(
+                row,
+                rowIndex,
+                featureType,
+                featureType,
+                keys,
+                geomColumn,
+                null,
+                null,
+                wkt -> new BigqueryWktParser(DEFAULT_GEOMETRY_FACTORY).parse(wkt),
+                srid,
+                null);
+    }
+
+    /**
+     * Decode a row into a feature of this reader, with the given geometry instead of the one of
+     * the row, if not null. The WKT is parsed, and reprojected, when the geometry is first read.
+     */
+    protected SimpleFeature parseFeature(
+            GenericRecord row, int rowIndex, List<String> keys, Geometry standIn) {
+        return createFeature(
+                row,
+                rowIndex,
+                featureType,
+                outputType,
+                keys,
+                geomColumn,
+                standIn,
+                strings,
+                wkt -> new BigqueryWktParser(geometryFactory, transform).parse(wkt),
+                srid,
+                getKeptEncoding(BigqueryLazyFeature.GeometryEncoding.WKT));
+    }
 
-        SimpleFeatureBuilder builder = new SimpleFeatureBuilder(featureType);
+    private static SimpleFeature createFeature(
+            GenericRecord row,
+            int rowIndex,
+            SimpleFeatureType featureType,
+            SimpleFeatureType outputType,
+            List<String> keys,
+            String geomColumn,
+            Geometry standIn,
+            BigqueryStringDictionary strings,
+            BigqueryLazyFeature.GeometryParser parser,
+            int srid,
+            BigqueryLazyFeature.GeometryEncoding encoding) {
 
+        // values are converted, and the WKT parsed, when the feature is first read
+        Object[] values = new Object[featureType.getAttributeCount()];
+        Schema schema = row.getSchema();
         for (String column : keys) {
-            if (column == geomColumn) continue;
-
-            builder.set(column, row.get(column));
+            int index = featureType.indexOf(column);
+            if (index < 0) {
+                continue;
+            }
+            Object value = row.get(column);
+            if (strings != null
+                    && value instanceof CharSequence
+                    && featureType.getDescriptor(index).getType().getBinding() == String.class) {
+                values[index] = strings.intern(column, (CharSequence) value);
+            } else {
+                values[index] = decodeAvroValue(value, schema.getField(column).schema());
+            }
+        }
+        if (standIn != null) {
+            values[featureType.indexOf(geomColumn)] = standIn;
         }
 
-        String geomWkt = row.get(geomColumn).toString();
+        String keyColumn = BigqueryFeatureIds.getKeyColumn(featureType);
+        Object key = keyColumn != null ? row.get(keyColumn) : null;
+        return new BigqueryLazyFeature(
+                values,
+                outputType,
+                BigqueryFeatureIds.create(featureType, key, rowIndex),
+                parser,
+                srid,
+                encoding);
+    }
 
-        try {
-            Geometry geom = new WKTReader().read(geomWkt);
-            geom.setSRID(srid);
-            builder.set(geomColumn, geom);
-        } catch (ParseException e) {
-            throw new IOException(e);
+    /**
+     * Decode the value of an Avro field whose logical type the datum reader leaves as its
+     * underlying type: TIMESTAMP micros become a Timestamp and NUMERIC bytes a BigDecimal. Longs,
+     * doubles and strings are kept, and converted if needed when the feature is read.
+     *
+     * @param value
+     * @param schema schema of the field, which may be a union with null
+     * @return
+     */
+    protected static Object decodeAvroValue(Object value, Schema schema) {
+        if (value == null) {
+            return null;
+        }
+        if (schema.getType() == Schema.Type.UNION) {
+            for (Schema type : schema.getTypes()) {
+                if (type.getType() != Schema.Type.NULL) {
+                    schema = type;
+                    break;
+                }
+            }
         }
-        return builder.buildFeature(Integer.toString(rowIndex));
+        LogicalType logicalType = schema.getLogicalType();
+        if (logicalType instanceof LogicalTypes.TimestampMicros && value instanceof Long) {
+            return BigqueryUtil.getTimestamp((Long) value);
+        } else if (logicalType instanceof LogicalTypes.Decimal && value instanceof ByteBuffer) {
+            int scale = ((LogicalTypes.Decimal) logicalType).getScale();
+            return BigqueryUtil.getDecimal((ByteBuffer) value, scale);
+        }
+        return value;
     }
 
-    private class BigqueryAvroReader {
+    /**
+     * Decodes the Avro rows of a read stream into features, and drops those failing the residual
+     * filter.
+     */
+    private class BigqueryAvroReader implements Iterator<SimpleFeature>, Closeable {
 
         private final DatumReader<GenericRecord> datumReader;
+        private final ServerStream<ReadRowsResponse> stream;
+        private final Iterator<ReadRowsResponse> streamIterator;
+        private final AtomicInteger fids;
+        private final BigqueryResidualFilter filter;
         private BinaryDecoder decoder = null;
-        private GenericRecord row = null;
-        private Schema avroSchema;
         private List<String> schemaKeys;
-
-        public BigqueryAvroReader(Schema avroSchema) {
+        private final BigqueryDecodePool pool;
+        /** Decoded features of the current response, if responses are decoded on the pool. */
+        private Iterator<SimpleFeature> block = Collections.emptyIterator();
+        private SimpleFeature next;
+        private final Schema avroSchema;
+        /** Record reused by {@link #fill}, and the Avro field read into each batch column. */
+        private GenericRecord record;
+        private int[] batchFields;
+        private final BigqueryWktParser wktParser =
+                new BigqueryWktParser(geometryFactory, transform);
+
+        public BigqueryAvroReader(
+                Schema avroSchema, ServerStream<ReadRowsResponse> stream, AtomicInteger fids) {
             Preconditions.checkNotNull(avroSchema);
             this.avroSchema = avroSchema;
             this.datumReader = new GenericDatumReader<>(avroSchema);
-        }
-
-        public List<String> getSchemaKeys() {
-            if (schemaKeys != null) return schemaKeys;
+            this.stream = stream;
+            this.streamIterator = stream.iterator();
+            this.fids = fids;
+            this.filter = residualFilter;
+            this.pool = store.getDecodePool();
 
             schemaKeys = new ArrayList<String>();
             for (Schema.Field field : avroSchema.getFields()) {
                 schemaKeys.add(field.name());
             }
-            return schemaKeys;
         }
 
-        public void decodeRows(AvroRows avroRows) {
+        private void decodeRows(AvroRows avroRows) {
             decoder =
                     DecoderFactory.get()
                             .binaryDecoder(
                                     avroRows.getSerializedBinaryRows().toByteArray(), decoder);
         }
 
-        public GenericRecord next() throws IOException {
-            return datumReader.read(row, decoder);
+        @Override
+        public SimpleFeature next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            SimpleFeature feature = next;
+            next = null;
+            return feature;
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                while (next == null) {
+                    if (pool == null) {
+                        if (!nextBlock()) {
+                            return false;
+                        }
+                        Row row = readRow();
+                        next = row != null ? decode(row) : null;
+                    } else if (block.hasNext()) {
+                        next = block.next();
+                    } else if (nextBlock()) {
+                        block = decodeBlock();
+                    } else {
+                        return false;
+                    }
+                }
+                return true;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /** Move on to the next response if the current one has no rows left. */
+        private boolean nextBlock() {
+            while (decoder == null || decoder.isEnd()) {
+                if (!streamIterator.hasNext()) {
+                    return false;
+                }
+                decodeRows(streamIterator.next().getAvroRows());
+            }
+            return true;
+        }
+
+        /**
+         * Read the next row of the current response into a feature, which is not decoded yet.
+         *
+         * @return row, or null if the feature falls into a painted pixel
+         * @throws IOException
+         */
+        private Row readRow() throws IOException {
+            // values of a reused record could leak into the previous feature
+            GenericRecord row = datumReader.read(null, decoder);
+            int fid = fids.getAndIncrement();
+
+            Geometry standIn = null;
+            if (pointColumns != null) {
+                Object x = row.get(pointColumns[0]);
+                Object y = row.get(pointColumns[1]);
+                if (x instanceof Number && y instanceof Number) {
+                    double lon = ((Number) x).doubleValue();
+                    double lat = ((Number) y).doubleValue();
+                    Envelope envelope = new Envelope(lon, lon, lat, lat);
+                    // a pixel must not be marked as painted by a feature the filter drops
+                    if (filter == null && canSkipParsing(envelope) && isPainted(envelope)) {
+                        return null;
+                    }
+                    standIn = createPoint(lon, lat);
+                }
+            } else if (screenMap != null && filter == null) {
+                // a pixel must not be marked as painted by a feature the filter drops
+                // sub-pixel geometries are not parsed, only scanned for their envelope
+                Object value = row.get(geomColumn);
+                String wkt = value != null ? value.toString() : null;
+                Envelope envelope = wkt != null ? BigqueryUtil.getWktEnvelope(wkt) : null;
+                if (canSkipParsing(envelope)) {
+                    if (isPainted(envelope)) {
+                        return null;
+                    }
+                    standIn = getStandIn(envelope, BigqueryUtil.getWktGeometryClass(wkt));
+                }
+            }
+            return new Row(parseFeature(row, fid, schemaKeys, standIn), standIn != null);
+        }
+
+        /**
+         * Filter and simplify the feature of a row.
+         *
+         * @return feature, or null if it fails the residual filter
+         */
+        private SimpleFeature decode(Row row) {
+            SimpleFeature feature = row.feature;
+            if (filter != null && !filter.test(feature)) {
+                return null;
+            }
+            if (simplifyDistance > 0 && !row.standIn) {
+                // after the filter, which must see the exact geometry
+                simplify(feature);
+            }
+            return feature;
+        }
+
+        /**
+         * Read all rows of the current response, then decode them on the decode pool. Rows are
+         * read in order, as the Avro decoder and the screen map are sequential, and the features
+         * decoded entirely, so the consumer gets them ready to use.
+         *
+         * @return features passing the residual filter, in the order of the rows
+         * @throws IOException
+         */
+        private Iterator<SimpleFeature> decodeBlock() throws IOException {
+            List<Row> rows = new ArrayList<>();
+            while (!decoder.isEnd()) {
+                Row row = readRow();
+                if (row != null) {
+                    rows.add(row);
+                }
+            }
+            SimpleFeature[] features = new SimpleFeature[rows.size()];
+            pool.decode(
+                    features.length,
+                    i -> {
+                        SimpleFeature feature = decode(rows.get(i));
+                        if (feature != null) {
+                            feature.getAttributes();
+                        }
+                        features[i] = feature;
+                    });
+
+            List<SimpleFeature> decoded = new ArrayList<>(features.length);
+            for (SimpleFeature feature : features) {
+                if (feature != null) {
+                    decoded.add(feature);
+                }
+            }
+            return decoded.iterator();
+        }
+
+        /** Simplify the geometry of a feature, keeping rings and lines valid and separate. */
+        private void simplify(SimpleFeature feature) {
+            Geometry geometry = (Geometry) feature.getDefaultGeometry();
+            if (geometry == null || geometry instanceof Puntal) {
+                return;
+            }
+            feature.setDefaultGeometry(simplify(geometry));
         }
 
-        public boolean hasNext() throws IOException {
-            return decoder != null && !decoder.isEnd();
+        private Geometry simplify(Geometry geometry) {
+            Geometry simplified =
+                    TopologyPreservingSimplifier.simplify(geometry, simplifyDistance);
+            simplified.setSRID(srid);
+            return simplified;
+        }
+
+        /**
+         * Read rows straight into a batch until it is full. The record is reused, as its values
+         * are copied into the batch right away.
+         *
+         * @return false if the stream has no rows left
+         * @throws IOException
+         */
+        boolean fill(BigqueryFeatureBatch batch) throws IOException {
+            SimpleFeatureType type = batch.getFeatureType();
+            if (batchFields == null) {
+                // position of the Avro field of each column of the batch, -1 if not read
+                batchFields = new int[type.getAttributeCount()];
+                for (int i = 0; i < batchFields.length; i++) {
+                    Schema.Field field = avroSchema.getField(type.getDescriptor(i).getLocalName());
+                    batchFields[i] = field != null ? field.pos() : -1;
+                }
+            }
+            String keyColumn = BigqueryFeatureIds.getKeyColumn(featureType);
+            while (!batch.isFull()) {
+                if (!nextBlock()) {
+                    return false;
+                }
+                record = datumReader.read(record, decoder);
+                Object key = keyColumn != null ? record.get(keyColumn) : null;
+                int row =
+                        batch.addRow(
+                                BigqueryFeatureIds.create(
+                                        featureType, key, fids.getAndIncrement()));
+                for (int i = 0; i < batchFields.length; i++) {
+                    String column = type.getDescriptor(i).getLocalName();
+                    if (column.equals(geomColumn)) {
+                        batch.setValue(i, row, readGeometry(record));
+                    } else if (batchFields[i] >= 0) {
+                        setValue(batch, i, row, column, batchFields[i]);
+                    }
+                }
+            }
+            return true;
+        }
+
+        private void setValue(
+                BigqueryFeatureBatch batch, int column, int row, String name, int pos) {
+            Object value = record.get(pos);
+            if (value instanceof CharSequence) {
+                // the Utf8 of the record is reused
+                batch.setValue(
+                        column,
+                        row,
+                        strings != null
+                                ? strings.intern(name, (CharSequence) value)
+                                : value.toString());
+            } else if (value instanceof Double) {
+                batch.setDouble(column, row, (Double) value);
+            } else if (value instanceof Boolean) {
+                batch.setBoolean(column, row, (Boolean) value);
+            } else {
+                Object decoded = decodeAvroValue(value, avroSchema.getFields().get(pos).schema());
+                if (decoded instanceof Long) {
+                    batch.setLong(column, row, (Long) decoded);
+                } else {
+                    batch.setValue(column, row, decoded);
+                }
+            }
+        }
+
+        /** Return the geometry of a row, from its coordinates or its WKT. */
+        private Geometry readGeometry(GenericRecord row) throws IOException {
+            if (pointColumns != null) {
+                Object x = row.get(pointColumns[0]);
+                Object y = row.get(pointColumns[1]);
+                return x instanceof Number && y instanceof Number
+                        ? createPoint(((Number) x).doubleValue(), ((Number) y).doubleValue())
+                        : null;
+            }
+            Object wkt = row.get(geomColumn);
+            if (wkt == null) {
+                return null;
+            }
+            try {
+                Geometry geometry = wktParser.parse((CharSequence) wkt);
+                geometry.setSRID(srid);
+                return simplifyDistance > 0 && !(geometry instanceof Puntal)
+                        ? simplify(geometry)
+                        : geometry;
+            } catch (ParseException e) {
+                throw new IOException("Unable to parse " + wkt, e);
+            }
+        }
+
+        @Override
+        public void close() {
+            stream.cancel();
+        }
+    }
+
+    /** Feature of a row, and whether its geometry is a stand-in rather than parsed. */
+    private static class Row {
+
+        final SimpleFeature feature;
+        final boolean standIn;
+
+        Row(SimpleFeature feature, boolean standIn) {
+            this.feature = feature;
+            this.standIn = standIn;
+        }
+    }
+
+    /** Decodes and filters several streams in parallel, one thread each. */
+    private static class BigqueryParallelReader implements Iterator<SimpleFeature>, Closeable {
+
+        /** Put in the queue by each stream thread once its stream is exhausted. */
+        private static final Object END = new Object();
+
+        private final List<BigqueryAvroReader> streams;
+        private final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(PARALLEL_QUEUE_SIZE);
+        private final ExecutorService executor;
+        private int ended = 0;
+        private SimpleFeature next;
+
+        BigqueryParallelReader(List<BigqueryAvroReader> streams) {
+            this.streams = streams;
+            this.executor =
+                    Executors.newFixedThreadPool(
+                            streams.size(),
+                            r -> {
+                                Thread thread = new Thread(r, "bigquery-storage-stream");
+                                thread.setDaemon(true);
+                                return thread;
+                            });
+            for (BigqueryAvroReader stream : streams) {
+                executor.execute(() -> drain(stream));
+            }
+        }
+
+        private void drain(BigqueryAvroReader stream) {
+            Object last = END;
+            try {
+                while (stream.hasNext()) {
+                    queue.put(stream.next());
+                }
+            } catch (InterruptedException e) {
+                // closed by the consumer
+                return;
+            } catch (RuntimeException e) {
+                last = e;
+            }
+            try {
+                queue.put(last);
+            } catch (InterruptedException e) {
+                // closed by the consumer
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                while (next == null && ended < streams.size()) {
+                    Object item = queue.take();
+                    if (item == END) {
+                        ended++;
+                    } else if (item instanceof UncheckedIOException) {
+                        throw (UncheckedIOException) item;
+                    } else if (item instanceof RuntimeException) {
+                        throw new UncheckedIOException(
+                                new IOException("Unable to read stream", (Throwable) item));
+                    } else {
+                        next = (SimpleFeature) item;
+                    }
+                }
+                return next != null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new UncheckedIOException(new IOException(e));
+            }
+        }
+
+        @Override
+        public SimpleFeature next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            SimpleFeature feature = next;
+            next = null;
+            return feature;
+        }
+
+        @Override
+        public void close() {
+            executor.shutdownNow();
+            for (BigqueryAvroReader stream : streams) {
+                stream.close();
+            }
         }
     }
 }
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geotools.data.bigquery;
+
+import com.google.api.core.ApiFuture;
+import com.google.cloud.bigquery.TableId;
+import com.google.cloud.bigquery.storage.v1.AppendRowsResponse;
+import com.google.cloud.bigquery.storage.v1.BatchCommitWriteStreamsRequest;
+import com.google.cloud.bigquery.storage.v1.BatchCommitWriteStreamsResponse;
+import com.google.cloud.bigquery.storage.v1.BigQueryWriteClient;
+import com.google.cloud.bigquery.storage.v1.CreateWriteStreamRequest;
+import com.google.cloud.bigquery.storage.v1.JsonStreamWriter;
+import com.google.cloud.bigquery.storage.v1.TableName;
+import com.google.cloud.bigquery.storage.v1.WriteStream;
+import com.google.protobuf.Descriptors.DescriptorValidationException;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Appends rows through a stream of the BigQuery Storage Write API, which encodes them as protocol
+ * buffers of the table schema. Appends are pipelined: a batch is sent without waiting for the
+ * previous ones, up to {@link #MAX_APPENDS_IN_FLIGHT}, and each carries its offset in the stream
+ * so that retried appends are not written twice. Appends that already completed are checked
+ * before each new one, so a failure is reported by the next call rather than only once the sink
+ * waits for it, and the sink refuses any row after it.
+ *
+ * <p>Rows of a PENDING stream are committed together by {@link #commit()}, those of a COMMITTED
+ * stream are visible once appended: they are not rolled back when a later append fails.
+ */
+public class BigqueryStorageRowSink implements BigqueryRowSink {
+
+    /** Appends sent before the sink waits for the oldest one. */
+    protected static final int MAX_APPENDS_IN_FLIGHT = 16;
+
+    /** Calls of the Storage Write API made by a sink, for one stream. */
+    interface WriteService {
+
+        /** Create the stream, and prepare to append rows to it. */
+        WriteStream createWriteStream(CreateWriteStreamRequest request) throws IOException;
+
+        ApiFuture<AppendRowsResponse> append(JSONArray rows, long offset) throws IOException;
+
+        void finalizeWriteStream(String name);
+
+        BatchCommitWriteStreamsResponse batchCommitWriteStreams(
+                BatchCommitWriteStreamsRequest request);
+
+        void close();
+    }
+
+    private final WriteService service;
+
+    private final String parent;
+
+    private final BigqueryWriteStreamType type;
+
+    private final WriteStream stream;
+
+    private final Deque<ApiFuture<AppendRowsResponse>> inFlight = new ArrayDeque<>();
+
+    private long offset = 0;
+
+    /** First failed append, reported by every later call. */
+    private IOException failure;
+
+    /**
+     * Create a write stream on a table.
+     *
+     * @param client
+     * @param table
+     * @param type
+     * @throws IOException
+     */
+    public BigqueryStorageRowSink(
+            BigQueryWriteClient client, TableId table, BigqueryWriteStreamType type)
+            throws IOException {
+        this(new ClientWriteService(client), table, type);
+    }
+
+    BigqueryStorageRowSink(WriteService service, TableId table, BigqueryWriteStreamType type)
+            throws IOException {
+        this.service = service;
+        this.parent =
+                TableName.of(table.getProject(), table.getDataset(), table.getTable()).toString();
+        this.type = type;
+        this.stream =
+                service.createWriteStream(
+                        CreateWriteStreamRequest.newBuilder()
+                                .setParent(parent)
+                                .setWriteStream(
+                                        WriteStream.newBuilder()
+                                                .setType(
+                                                        type == BigqueryWriteStreamType.PENDING
+                                                                ? WriteStream.Type.PENDING
+                                                                : WriteStream.Type.COMMITTED))
+                                .build());
+    }
+
+    @Override
+    public void append(List<Map<String, Object>> rows) throws IOException {
+        checkCompleted();
+        JSONArray array = new JSONArray();
+        for (Map<String, Object> row : rows) {
+            array.put(new JSONObject(row));
+        }
+        while (inFlight.size() >= MAX_APPENDS_IN_FLIGHT) {
+            await(inFlight.removeFirst());
+        }
+        inFlight.addLast(service.append(array, offset));
+        offset += rows.size();
+    }
+
+    /** Check the appends that completed, without waiting for the others. */
+    private void checkCompleted() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        for (Iterator<ApiFuture<AppendRowsResponse>> i = inFlight.iterator(); i.hasNext(); ) {
+            ApiFuture<AppendRowsResponse> append = i.next();
+            if (append.isDone()) {
+                i.remove();
+                await(append);
+            }
+        }
+    }
+
+    private void await(ApiFuture<AppendRowsResponse> append) throws IOException {
+        try {
+            AppendRowsResponse response = append.get();
+            if (response.hasError()) {
+                failure =
+                        new IOException(
+                                "Unable to append rows to " + parent + ": "
+                                        + response.getError().getMessage());
+            }
+        } catch (ExecutionException e) {
+            failure = new IOException("Unable to append rows to " + parent, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure = new IOException(e);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public void commit() throws IOException {
+        checkCompleted();
+        while (!inFlight.isEmpty()) {
+            await(inFlight.removeFirst());
+        }
+        if (type == BigqueryWriteStreamType.PENDING) {
+            service.finalizeWriteStream(stream.getName());
+            BatchCommitWriteStreamsResponse response =
+                    service.batchCommitWriteStreams(
+                            BatchCommitWriteStreamsRequest.newBuilder()
+                                    .setParent(parent)
+                                    .addWriteStreams(stream.getName())
+                                    .build());
+            if (!response.hasCommitTime()) {
+                throw new IOException(
+                        "Unable to commit rows to " + parent + ": "
+                                + response.getStreamErrorsList());
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        service.close();
+    }
+
+    /** Calls a {@link BigQueryWriteClient}, appending through a {@link JsonStreamWriter}. */
+    private static class ClientWriteService implements WriteService {
+
+        private final BigQueryWriteClient client;
+
+        private JsonStreamWriter writer;
+
+        ClientWriteService(BigQueryWriteClient client) {
+            this.client = client;
+        }
+
+        @Override
+        public WriteStream createWriteStream(CreateWriteStreamRequest request)
+                throws IOException {
+            WriteStream stream = client.createWriteStream(request);
+            try {
+                writer =
+                        JsonStreamWriter.newBuilder(
+                                        stream.getName(), stream.getTableSchema(), client)
+                                .build();
+            } catch (DescriptorValidationException e) {
+                throw new IOException("Unable to encode rows of " + request.getParent(), e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+            return stream;
+        }
+
+        @Override
+        public ApiFuture<AppendRowsResponse> append(JSONArray rows, long offset)
+                throws IOException {
+            try {
+                return writer.append(rows, offset);
+            } catch (DescriptorValidationException e) {
+                throw new IOException("Unable to encode rows of " + writer.getStreamName(), e);
+            }
+        }
+
+        @Override
+        public void finalizeWriteStream(String name) {
+            client.finalizeWriteStream(name);
+        }
+
+        @Override
+        public BatchCommitWriteStreamsResponse batchCommitWriteStreams(
+                BatchCommitWriteStreamsRequest request) {
+            return client.batchCommitWriteStreams(request);
+        }
+
+        @Override
+        public void close() {
+            if (writer != null) {
+                writer.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geotools.data.bigquery;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.avro.util.Utf8;
+
+/**
+ * Dedupes the values of low-cardinality string columns, such as states or road classes, so that
+ * features read from large layers share one String per distinct value instead of holding a copy
+ * per cell.
+ *
+ * <p>Each column has its own dictionary. Storage API values are looked up by their Avro {@link
+ * Utf8} bytes, so repeated values are not even decoded. A column stops being interned once it
+ * has more distinct values than the dictionary holds, as names or IDs would only fill it up.
+ * Dictionaries are thread safe, so they can be shared by the streams of a reader, or by all
+ * readers of a store.
+ */
+public class BigqueryStringDictionary {
+
+    private final int maxEntries;
+
+    private final Map<String, Column> columns = new ConcurrentHashMap<>();
+
+    /** @param maxEntries number of distinct values kept per column */
+    public BigqueryStringDictionary(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Return the shared String of a value of a column.
+     *
+     * @param column
+     * @param value Utf8, String or other character sequence, may be null
+     * @return
+     */
+    public String intern(String column, CharSequence value) {
+        if (value == null) {
+            return null;
+        }
+        return columns.computeIfAbsent(column, c -> new Column()).intern(value);
+    }
+
+    /**
+     * Return whether a column is still interned, for tests.
+     *
+     * @param column
+     * @return
+     */
+    boolean isInterned(String column) {
+        Column dictionary = columns.get(column);
+        return dictionary == null || !dictionary.full;
+    }
+
+    private class Column {
+
+        private final Map<Object, String> strings = new ConcurrentHashMap<>();
+
+        private volatile boolean full = false;
+
+        String intern(CharSequence value) {
+            if (full) {
+                return value.toString();
+            }
+            String string = strings.get(value);
+            if (string != null) {
+                return string;
+            }
+            string = value.toString();
+            if (strings.size() >= maxEntries) {
+                // too many distinct values to be worth it
+                full = true;
+                strings.clear();
+                return string;
+            }
+            // the Utf8 of a row may be reused by the decoder, so the key is a copy
+            Object key = value instanceof Utf8 ? new Utf8((Utf8) value) : string;
+            String existing = strings.putIfAbsent(key, string);
+            return existing != null ? existing : string;
+        }
+    }
+}
@@ -16,7 +16,30 @@
 
 package org.geotools.data.bigquery;
 
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Date;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.CoordinateSequenceFactory;
+import org.locationtech.jts.geom.CoordinateSequenceFilter;
 import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryCollection;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.MultiLineString;
+import org.locationtech.jts.geom.MultiPoint;
+import org.locationtech.jts.geom.MultiPolygon;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.geom.impl.PackedCoordinateSequenceFactory;
+import org.locationtech.jts.geom.util.GeometryEditor;
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.TransformException;
 
 public class BigqueryUtil {
 
@@ -61,4 +84,321 @@ public class BigqueryUtil {
 
         return new Double[] {minX, minY, maxX, maxY};
     }
+
+    /**
+     * Return the envelope of a GEOGRAPHY, whose edges are geodesics: an edge can reach further
+     * north or south than its vertices, so the latitudes of the planar envelope are extended to
+     * the extremes of the edges.
+     *
+     * @param geometry in lon/lat degrees
+     * @return envelope, or null if it spans 180 degrees of longitude or more, which is ambiguous
+     */
+    protected static Envelope getGeodesicEnvelope(Geometry geometry) {
+        Envelope envelope = new Envelope(geometry.getEnvelopeInternal());
+        if (envelope.getWidth() >= 180) {
+            return null;
+        }
+        geometry.apply(
+                new CoordinateSequenceFilter() {
+                    @Override
+                    public void filter(CoordinateSequence seq, int i) {
+                        if (i > 0) {
+                            double[] range =
+                                    getGeodesicLatitudeRange(
+                                            seq.getCoordinate(i - 1), seq.getCoordinate(i));
+                            envelope.expandToInclude(envelope.getMinX(), range[0]);
+                            envelope.expandToInclude(envelope.getMinX(), range[1]);
+                        }
+                    }
+
+                    @Override
+                    public boolean isDone() {
+                        return false;
+                    }
+
+                    @Override
+                    public boolean isGeometryChanged() {
+                        return false;
+                    }
+                });
+        return envelope;
+    }
+
+    /**
+     * Return the minimum and maximum latitude along the geodesic between two points.
+     *
+     * @param a lon/lat in degrees
+     * @param b lon/lat in degrees
+     * @return
+     */
+    protected static double[] getGeodesicLatitudeRange(Coordinate a, Coordinate b) {
+        double[] range = {Math.min(a.y, b.y), Math.max(a.y, b.y)};
+        double[] va = toUnitVector(a);
+        double[] vb = toUnitVector(b);
+        double[] n = cross(va, vb);
+        double norm = Math.sqrt(dot(n, n));
+        if (norm < 1e-12) {
+            // same or antipodal points
+            return range;
+        }
+        // the northernmost point of the great circle is the pole projected onto its plane
+        double[] north = {-n[0] * n[2] / (norm * norm), -n[1] * n[2] / (norm * norm), 1};
+        north[2] -= n[2] * n[2] / (norm * norm);
+        double length = Math.sqrt(dot(north, north));
+        if (length < 1e-12) {
+            // the great circle is the equator
+            return range;
+        }
+        for (int sign = -1; sign <= 1; sign += 2) {
+            double[] v = {
+                sign * north[0] / length, sign * north[1] / length, sign * north[2] / length
+            };
+            // on the arc if it lies between a and b
+            if (dot(cross(va, v), n) > 0 && dot(cross(v, vb), n) > 0) {
+                double lat = Math.toDegrees(Math.asin(Math.max(-1, Math.min(1, v[2]))));
+                range[0] = Math.min(range[0], lat);
+                range[1] = Math.max(range[1], lat);
+            }
+        }
+        return range;
+    }
+
+    /**
+     * Return the envelope of a WKT geometry by scanning its coordinates, without building the
+     * geometry. Only the first two ordinates of each coordinate are used.
+     *
+     * @param wkt
+     * @return envelope, which {@link Envelope#isNull() is null} for empty geometries
+     */
+    protected static Envelope getWktEnvelope(CharSequence wkt) {
+        Envelope envelope = new Envelope();
+        int length = wkt.length();
+        int ordinate = 0;
+        double x = 0;
+        int i = 0;
+        while (i < length) {
+            char c = wkt.charAt(i);
+            if ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.') {
+                int start = i;
+                while (i < length && isNumberChar(wkt.charAt(i))) {
+                    i++;
+                }
+                double value = Double.parseDouble(wkt.subSequence(start, i).toString());
+                if (ordinate == 0) {
+                    x = value;
+                } else if (ordinate == 1) {
+                    envelope.expandToInclude(x, value);
+                }
+                ordinate++;
+            } else {
+                if (c == ',' || c == '(' || c == ')') {
+                    ordinate = 0;
+                }
+                i++;
+            }
+        }
+        return envelope;
+    }
+
+    private static boolean isNumberChar(char c) {
+        return (c >= '0' && c <= '9') || c == '.' || c == '-' || c == '+' || c == 'e' || c == 'E';
+    }
+
+    /**
+     * Return the JTS class of a WKT or GeoJSON geometry type name, e.g. "MULTIPOLYGON".
+     *
+     * @param name
+     * @return class, Geometry if the name is unknown
+     */
+    protected static Class<? extends Geometry> getGeometryClass(String name) {
+        switch (name.toUpperCase()) {
+            case "POINT":
+                return Point.class;
+            case "MULTIPOINT":
+                return MultiPoint.class;
+            case "LINESTRING":
+                return LineString.class;
+            case "MULTILINESTRING":
+                return MultiLineString.class;
+            case "POLYGON":
+                return Polygon.class;
+            case "MULTIPOLYGON":
+                return MultiPolygon.class;
+            case "GEOMETRYCOLLECTION":
+                return GeometryCollection.class;
+            default:
+                return Geometry.class;
+        }
+    }
+
+    /**
+     * Return the JTS class of a WKT geometry from its leading type name.
+     *
+     * @param wkt
+     * @return
+     */
+    protected static Class<? extends Geometry> getWktGeometryClass(CharSequence wkt) {
+        int start = 0;
+        while (start < wkt.length() && Character.isWhitespace(wkt.charAt(start))) {
+            start++;
+        }
+        int end = start;
+        while (end < wkt.length() && Character.isLetter(wkt.charAt(end))) {
+            end++;
+        }
+        return getGeometryClass(wkt.subSequence(start, end).toString());
+    }
+
+    /**
+     * Create the coordinate sequence of 2D ordinates, transformed first if a transform is given,
+     * so no sequence in the original CRS is built. Packed sequences take the ordinates as they
+     * are, without a Coordinate per vertex.
+     *
+     * @param ordinates x and y of each coordinate, overwritten by the transform
+     * @param length number of ordinates used
+     * @param factory
+     * @param transform may be null
+     * @return
+     * @throws IllegalArgumentException if the coordinates cannot be transformed
+     */
+    protected static CoordinateSequence createSequence(
+            double[] ordinates, int length, GeometryFactory factory, MathTransform transform) {
+        if (transform != null) {
+            try {
+                transform.transform(ordinates, 0, ordinates, 0, length / 2);
+            } catch (TransformException e) {
+                throw new IllegalArgumentException("Unable to transform coordinates", e);
+            }
+        }
+        CoordinateSequenceFactory sequences = factory.getCoordinateSequenceFactory();
+        if (sequences instanceof PackedCoordinateSequenceFactory) {
+            return ((PackedCoordinateSequenceFactory) sequences)
+                    .create(Arrays.copyOf(ordinates, length), 2);
+        }
+        Coordinate[] coordinates = new Coordinate[length / 2];
+        for (int i = 0; i < coordinates.length; i++) {
+            coordinates[i] = new Coordinate(ordinates[2 * i], ordinates[2 * i + 1]);
+        }
+        return sequences.create(coordinates);
+    }
+
+    /**
+     * Copy a 2D geometry onto the coordinate sequences of a factory, transforming its
+     * coordinates in the same pass if a transform is given.
+     *
+     * @param geometry
+     * @param factory
+     * @param transform may be null
+     * @return
+     * @throws IllegalArgumentException if the coordinates cannot be transformed
+     */
+    protected static Geometry copy(
+            Geometry geometry, GeometryFactory factory, MathTransform transform) {
+        return new GeometryEditor(factory)
+                .edit(
+                        geometry,
+                        new GeometryEditor.CoordinateSequenceOperation() {
+                            @Override
+                            public CoordinateSequence edit(
+                                    CoordinateSequence sequence, Geometry component) {
+                                double[] ordinates = new double[sequence.size() * 2];
+                                for (int i = 0; i < sequence.size(); i++) {
+                                    ordinates[2 * i] = sequence.getX(i);
+                                    ordinates[2 * i + 1] = sequence.getY(i);
+                                }
+                                return createSequence(
+                                        ordinates, ordinates.length, factory, transform);
+                            }
+                        });
+    }
+
+    /**
+     * Return a TIMESTAMP given in microseconds since the epoch, as the Storage API and the Query
+     * API represent them, keeping the microseconds.
+     *
+     * @param micros
+     * @return
+     */
+    protected static Timestamp getTimestamp(long micros) {
+        Timestamp timestamp = new Timestamp(Math.floorDiv(micros, 1000L));
+        timestamp.setNanos((int) Math.floorMod(micros, 1000000L) * 1000);
+        return timestamp;
+    }
+
+    /**
+     * Return the microseconds since the epoch of a TIMESTAMP, as the Storage Write API takes
+     * them, the inverse of {@link #getTimestamp(long)}.
+     *
+     * @param date a Timestamp keeps its microseconds
+     * @return
+     */
+    protected static long getMicros(Date date) {
+        if (date instanceof Timestamp) {
+            Timestamp timestamp = (Timestamp) date;
+            return Math.floorDiv(timestamp.getTime(), 1000L) * 1000000L
+                    + timestamp.getNanos() / 1000;
+        }
+        return date.getTime() * 1000L;
+    }
+
+    /**
+     * Return a NUMERIC or BIGNUMERIC given as the bytes of an Avro decimal, i.e. the big-endian
+     * two's complement of its unscaled value.
+     *
+     * @param bytes
+     * @param scale
+     * @return
+     */
+    protected static BigDecimal getDecimal(ByteBuffer bytes, int scale) {
+        byte[] unscaled = new byte[bytes.remaining()];
+        bytes.duplicate().get(unscaled);
+        return new BigDecimal(new BigInteger(unscaled), scale);
+    }
+
+    /**
+     * Quote a string as a BigQuery string literal, escaping the characters that would end or
+     * break it.
+     *
+     * @param value
+     * @return quoted literal
+     */
+    protected static String quoteString(String value) {
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('\'');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                case '\'':
+                    quoted.append('\\').append(c);
+                    break;
+                case '\n':
+                    quoted.append("\\n");
+                    break;
+                case '\r':
+                    quoted.append("\\r");
+                    break;
+                default:
+                    quoted.append(c);
+            }
+        }
+        return quoted.append('\'').toString();
+    }
+
+    private static double[] toUnitVector(Coordinate c) {
+        double lon = Math.toRadians(c.x);
+        double lat = Math.toRadians(c.y);
+        return new double[] {
+            Math.cos(lat) * Math.cos(lon), Math.cos(lat) * Math.sin(lon), Math.sin(lat)
+        };
+    }
+
+    private static double[] cross(double[] u, double[] v) {
+        return new double[] {
+            u[1] * v[2] - u[2] * v[1], u[2] * v[0] - u[0] * v[2], u[0] * v[1] - u[1] * v[0]
+        };
+    }
+
+    private static double dot(double[] u, double[] v) {
+        return u[0] * v[0] + u[1] * v[1] + u[2] * v[2];
+    }
 }
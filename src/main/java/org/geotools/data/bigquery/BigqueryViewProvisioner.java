@@ -0,0 +1,562 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geotools.data.bigquery;
+
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.BigQueryException;
+import com.google.cloud.bigquery.JobException;
+import com.google.cloud.bigquery.QueryJobConfiguration;
+import com.google.cloud.bigquery.Table;
+import com.google.cloud.bigquery.TableId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.geotools.util.logging.Logging;
+
+/**
+ * Creates (or discovers) the pregenerated materialized views of simplified geometries, and the
+ * tile-clipped pyramid tables, for each layer on a background thread, and tracks their status so
+ * readers only route queries to a view or table once it is ready.
+ */
+public class BigqueryViewProvisioner {
+
+    private static final Logger LOGGER = Logging.getLogger(BigqueryViewProvisioner.class);
+
+    /** Simplification tolerances (meters) used when none are configured. */
+    public static final List<Integer> DEFAULT_TOLERANCES = List.of(1, 10, 100, 1000);
+
+    /** Zoom levels of pyramid tables used when none are configured. */
+    public static final List<Integer> DEFAULT_ZOOM_LEVELS = List.of(8, 12);
+
+    /**
+     * Minutes between checks of failed views and tables, and of pyramid tables against their base
+     * table, if no refresh interval is set.
+     */
+    public static final int DEFAULT_CHECK_MINUTES = 60;
+
+    public enum Status {
+        /** Provisioning has not started for this view */
+        PENDING,
+
+        /** The view is being created, or checked for existence */
+        PROVISIONING,
+
+        /** The view exists and can be queried */
+        READY,
+
+        /** The view could not be created, or does not exist */
+        FAILED
+    }
+
+    private final BigQuery client;
+    private final String datasetName;
+    private final BigqueryPregenerateOptions pregen;
+    private final List<Integer> tolerances;
+    private final Integer refreshIntervalMinutes;
+    private final Integer maxStalenessMinutes;
+
+    private BigqueryPyramidOptions pyramid = BigqueryPyramidOptions.PYRAMID_NONE;
+    private List<Integer> zoomLevels = DEFAULT_ZOOM_LEVELS;
+    private boolean mergePieces = false;
+
+    private final Map<String, Future<?>> tasks = new ConcurrentHashMap<>();
+    private final Map<String, Status> statuses = new ConcurrentHashMap<>();
+    private final Map<String, String> geomColumns = new ConcurrentHashMap<>();
+    private final Map<String, Long> layerChecks = new ConcurrentHashMap<>();
+
+    private ExecutorService executor;
+
+    /**
+     * @param client
+     * @param datasetName
+     * @param pregen
+     * @param tolerances simplification tolerances in meters, one view is provisioned per tolerance
+     * @param refreshIntervalMinutes materialized view refresh interval, or null for the BigQuery
+     *     default
+     * @param maxStalenessMinutes materialized view max staleness, or null for the BigQuery default
+     */
+    public BigqueryViewProvisioner(
+            BigQuery client,
+            String datasetName,
+            BigqueryPregenerateOptions pregen,
+            List<Integer> tolerances,
+            Integer refreshIntervalMinutes,
+            Integer maxStalenessMinutes) {
+        this.client = client;
+        this.datasetName = datasetName;
+        this.pregen = pregen;
+        this.refreshIntervalMinutes = refreshIntervalMinutes;
+        this.maxStalenessMinutes = maxStalenessMinutes;
+
+        List<Integer> sorted =
+                new ArrayList<>(tolerances == null ? DEFAULT_TOLERANCES : tolerances);
+        Collections.sort(sorted);
+        this.tolerances = Collections.unmodifiableList(sorted);
+    }
+
+    /**
+     * Parse a comma-separated list of tolerances, e.g. "1,10,100,1000".
+     *
+     * @param value
+     * @return tolerances, or DEFAULT_TOLERANCES if value is empty
+     */
+    public static List<Integer> parseTolerances(String value) {
+        return parseIntegers(value, DEFAULT_TOLERANCES, 1, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Parse a comma-separated list of pyramid zoom levels, e.g. "8,12".
+     *
+     * @param value
+     * @return zoom levels, or DEFAULT_ZOOM_LEVELS if value is empty
+     */
+    public static List<Integer> parseZoomLevels(String value) {
+        return parseIntegers(value, DEFAULT_ZOOM_LEVELS, 0, 24);
+    }
+
+    private static List<Integer> parseIntegers(
+            String value, List<Integer> defaults, int min, int max) {
+        if (value == null || value.trim().isEmpty()) {
+            return defaults;
+        }
+
+        List<Integer> values = new ArrayList<>();
+        for (String part : value.split(",")) {
+            if (part.trim().isEmpty()) continue;
+
+            int parsed = Integer.parseInt(part.trim());
+            if (parsed < min || parsed > max) {
+                throw new IllegalArgumentException(
+                        String.format("Values must be in [%d, %d]: %s", min, max, value));
+            }
+            values.add(parsed);
+        }
+        return values;
+    }
+
+    public List<Integer> getTolerances() {
+        return tolerances;
+    }
+
+    /**
+     * Configure tile-clipped pyramid tables.
+     *
+     * @param pyramid
+     * @param zoomLevels one pyramid table is provisioned per zoom level
+     * @param mergePieces whether readers re-merge the pieces of each source geometry
+     */
+    public void setPyramid(
+            BigqueryPyramidOptions pyramid, List<Integer> zoomLevels, boolean mergePieces) {
+        List<Integer> sorted =
+                new ArrayList<>(zoomLevels == null ? DEFAULT_ZOOM_LEVELS : zoomLevels);
+        Collections.sort(sorted);
+
+        this.pyramid = pyramid == null ? BigqueryPyramidOptions.PYRAMID_NONE : pyramid;
+        this.zoomLevels = Collections.unmodifiableList(sorted);
+        this.mergePieces = mergePieces;
+    }
+
+    public List<Integer> getZoomLevels() {
+        return zoomLevels;
+    }
+
+    public boolean isMergePieces() {
+        return mergePieces;
+    }
+
+    /**
+     * Return whether features may be read as unmerged pyramid pieces, whose IDs end with their
+     * cell, see {@link BigqueryFeatureIds#createPiece}.
+     *
+     * @return
+     */
+    public boolean hasPieceIds() {
+        return pyramidsEnabled() && !mergePieces;
+    }
+
+    private boolean viewsEnabled() {
+        return pregen != null && pregen != BigqueryPregenerateOptions.MV_NONE;
+    }
+
+    private boolean pyramidsEnabled() {
+        return pyramid != BigqueryPyramidOptions.PYRAMID_NONE;
+    }
+
+    /**
+     * Start provisioning the views and pyramid tables of the given layer in the background. Does
+     * nothing if provisioning has already been started for the layer; views and tables that failed
+     * are provisioned again once per refresh interval as they are looked up.
+     *
+     * @param baseTable fully qualified table name
+     * @param geomColumn
+     */
+    public void provision(String baseTable, String geomColumn) {
+        if (!viewsEnabled() && !pyramidsEnabled()) {
+            return;
+        }
+
+        if (viewsEnabled()) {
+            for (int tolerance : tolerances) {
+                statuses.putIfAbsent(getViewName(baseTable, tolerance), Status.PENDING);
+            }
+        }
+        if (pyramidsEnabled()) {
+            for (int zoom : zoomLevels) {
+                statuses.putIfAbsent(getPyramidTableName(baseTable, zoom), Status.PENDING);
+            }
+        }
+        geomColumns.putIfAbsent(baseTable, geomColumn);
+
+        tasks.computeIfAbsent(
+                baseTable,
+                t ->
+                        getExecutor()
+                                .submit(
+                                        () -> {
+                                            if (viewsEnabled()) provisionViews(t, geomColumn);
+                                            if (pyramidsEnabled()) provisionPyramid(t, geomColumn);
+                                        }));
+    }
+
+    private void provisionViews(String baseTable, String geomColumn) {
+        boolean create = pregen == BigqueryPregenerateOptions.MV_PREGEN_ALL;
+
+        for (int tolerance : tolerances) {
+            String viewName = getViewName(baseTable, tolerance);
+            if (statuses.get(viewName) == Status.READY) continue;
+            String sql = create ? getCreateViewSql(baseTable, geomColumn, tolerance) : null;
+            if (!provisionTable(viewName, sql)) return;
+        }
+    }
+
+    private void provisionPyramid(String baseTable, String geomColumn) {
+        boolean create = pyramid == BigqueryPyramidOptions.PYRAMID_PREGEN_ALL;
+
+        for (int zoom : zoomLevels) {
+            String pyramidTable = getPyramidTableName(baseTable, zoom);
+            if (!create && statuses.get(pyramidTable) == Status.READY) continue;
+            String sql =
+                    create && !isCurrent(baseTable, pyramidTable)
+                            ? getCreatePyramidSql(baseTable, geomColumn, zoom)
+                            : null;
+            if (!provisionTable(pyramidTable, sql)) return;
+        }
+    }
+
+    /** Return whether a pyramid table exists and was built after its base table last changed. */
+    private boolean isCurrent(String baseTable, String pyramidTable) {
+        try {
+            Table base = client.getTable(TableId.of(datasetName, getTableName(baseTable)));
+            Table built = client.getTable(TableId.of(datasetName, getTableName(pyramidTable)));
+            return base != null
+                    && built != null
+                    && base.getLastModifiedTime() != null
+                    && built.getLastModifiedTime() != null
+                    && built.getLastModifiedTime() >= base.getLastModifiedTime();
+        } catch (BigQueryException e) {
+            LOGGER.log(Level.FINE, "Unable to check " + pyramidTable, e);
+            return false;
+        }
+    }
+
+    /**
+     * Provision again in the background the views and pyramid tables of a layer that failed, and
+     * rebuild its pyramid tables if its base table changed since they were built. Layers are
+     * checked at most once per refresh interval.
+     */
+    private void checkLayer(String baseTable) {
+        String geomColumn = geomColumns.get(baseTable);
+        Future<?> task = tasks.get(baseTable);
+        if (geomColumn == null || task == null || !task.isDone()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Long last = layerChecks.putIfAbsent(baseTable, now);
+        long interval =
+                (refreshIntervalMinutes != null
+                                ? refreshIntervalMinutes
+                                : DEFAULT_CHECK_MINUTES)
+                        * 60000L;
+        if (last == null
+                || now - last < interval
+                || !layerChecks.replace(baseTable, last, now)) {
+            return;
+        }
+
+        boolean views = viewsEnabled() && hasFailed(baseTable, tolerances, false);
+        boolean pyramids =
+                pyramid == BigqueryPyramidOptions.PYRAMID_PREGEN_ALL
+                        || pyramidsEnabled() && hasFailed(baseTable, zoomLevels, true);
+        if (views || pyramids) {
+            tasks.put(
+                    baseTable,
+                    getExecutor()
+                            .submit(
+                                    () -> {
+                                        if (views) provisionViews(baseTable, geomColumn);
+                                        if (pyramids) provisionPyramid(baseTable, geomColumn);
+                                    }));
+        }
+    }
+
+    /** Return whether any of the views, or pyramid tables, of a layer failed. */
+    private boolean hasFailed(String baseTable, List<Integer> levels, boolean pyramids) {
+        for (int level : levels) {
+            String tableName =
+                    pyramids ? getPyramidTableName(baseTable, level) : getViewName(baseTable, level);
+            if (statuses.get(tableName) == Status.FAILED) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Run the given DDL, or if there is none check that the table exists, and record the result.
+     *
+     * @return false if provisioning was interrupted
+     */
+    private boolean provisionTable(String tableName, String sql) {
+        statuses.put(tableName, Status.PROVISIONING);
+
+        try {
+            if (sql != null) {
+                client.query(QueryJobConfiguration.newBuilder(sql).build());
+                statuses.put(tableName, Status.READY);
+            } else if (client.getTable(TableId.of(datasetName, getTableName(tableName))) != null) {
+                statuses.put(tableName, Status.READY);
+            } else {
+                statuses.put(tableName, Status.FAILED);
+            }
+        } catch (BigQueryException | JobException e) {
+            LOGGER.log(Level.WARNING, "Unable to provision " + tableName, e);
+            statuses.put(tableName, Status.FAILED);
+        } catch (InterruptedException e) {
+            statuses.put(tableName, Status.FAILED);
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Return the status of the view of the given layer at the given tolerance.
+     *
+     * @param baseTable
+     * @param tolerance
+     * @return status
+     */
+    public Status getStatus(String baseTable, int tolerance) {
+        return statuses.getOrDefault(getViewName(baseTable, tolerance), Status.PENDING);
+    }
+
+    /**
+     * Return the name of the ready view with the largest tolerance that does not exceed the
+     * requested tolerance.
+     *
+     * @param baseTable
+     * @param tolerance
+     * @return view name, or null if the base table should be used
+     */
+    public String getReadyView(String baseTable, int tolerance) {
+        checkLayer(baseTable);
+        for (int i = tolerances.size() - 1; i >= 0; i--) {
+            int viewTolerance = tolerances.get(i);
+            if (viewTolerance <= tolerance
+                    && getStatus(baseTable, viewTolerance) == Status.READY) {
+                return getViewName(baseTable, viewTolerance);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return the highest zoom level, not above the requested one, whose pyramid table is ready.
+     *
+     * @param baseTable
+     * @param zoom
+     * @return zoom level, or null if no pyramid table should be used
+     */
+    public Integer getReadyPyramidZoom(String baseTable, int zoom) {
+        checkLayer(baseTable);
+        for (int i = zoomLevels.size() - 1; i >= 0; i--) {
+            int pyramidZoom = zoomLevels.get(i);
+            if (pyramidZoom <= zoom
+                    && statuses.get(getPyramidTableName(baseTable, pyramidZoom)) == Status.READY) {
+                return pyramidZoom;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Block until provisioning of the given layer has finished.
+     *
+     * @param baseTable
+     * @param timeout
+     * @param unit
+     * @return true if provisioning finished within the timeout
+     * @throws InterruptedException
+     */
+    public boolean awaitProvisioning(String baseTable, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        Future<?> task = tasks.get(baseTable);
+        if (task == null) return true;
+
+        try {
+            task.get(timeout, unit);
+            return true;
+        } catch (ExecutionException e) {
+            LOGGER.log(Level.WARNING, "View provisioning failed for " + baseTable, e);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        }
+    }
+
+    /** Stop any running provisioning tasks. */
+    public synchronized void dispose() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor =
+                    Executors.newFixedThreadPool(
+                            2,
+                            r -> {
+                                Thread t = new Thread(r, "bigquery-view-provisioner");
+                                t.setDaemon(true);
+                                return t;
+                            });
+        }
+        return executor;
+    }
+
+    /** Set the status of a view. */
+    protected void setStatus(String viewName, Status status) {
+        statuses.put(viewName, status);
+    }
+
+    protected static String getViewName(String baseTable, int tolerance) {
+        return String.format("%s_pregen_%sm", baseTable, tolerance);
+    }
+
+    protected static String getPyramidTableName(String baseTable, int zoom) {
+        return String.format("%s_pyramid_z%d", baseTable, zoom);
+    }
+
+    /**
+     * Width and height, in degrees, of the grid cells of the pyramid table at the given zoom
+     * level. Cells match the size of a tile at that zoom.
+     */
+    protected static double getPyramidCellSize(int zoom) {
+        return 360d / (1L << zoom);
+    }
+
+    private static String getTableName(String fullTableName) {
+        String[] parts = fullTableName.split("\\.");
+        return parts[parts.length - 1];
+    }
+
+    protected String getCreateViewSql(String baseTable, String geomColumn, int tolerance) {
+        List<String> options = new ArrayList<>();
+        if (refreshIntervalMinutes != null) {
+            options.add("enable_refresh = true");
+            options.add("refresh_interval_minutes = " + refreshIntervalMinutes);
+        }
+        if (maxStalenessMinutes != null) {
+            options.add(
+                    String.format(
+                            "max_staleness = INTERVAL \"%d:%d:0\" HOUR TO SECOND",
+                            maxStalenessMinutes / 60, maxStalenessMinutes % 60));
+        }
+
+        String optionsClause =
+                options.isEmpty() ? "" : "options (" + String.join(", ", options) + ") ";
+
+        String sql =
+                "create materialized view if not exists `%1$s` "
+                        + "cluster by %2$s "
+                        + optionsClause
+                        + "as ("
+                        + "select * except(%2$s), "
+                        + "st_simplify(%2$s, %3$d) as %2$s, "
+                        + "st_asgeojson(st_simplify(%2$s, %3$d)) as geom_geojson "
+                        + "from `%4$s`)";
+
+        return String.format(
+                sql, getViewName(baseTable, tolerance), geomColumn, tolerance, baseTable);
+    }
+
+    /**
+     * Return DDL that cuts every geometry of the base table into pieces along the cell grid of the
+     * given zoom level. Pieces keep all attributes of their source row, plus its source_id and the
+     * cell_x and cell_y indices of their cell, and are clustered by cell. The source_id is the
+     * fingerprint of the whole row, so only rows equal in every column are merged back into one.
+     * An existing table is replaced, as it is only rebuilt once its base table changed.
+     */
+    protected String getCreatePyramidSql(String baseTable, String geomColumn, int zoom) {
+        double size = getPyramidCellSize(zoom);
+        long columns = 1L << zoom;
+
+        String sql =
+                "create or replace table `{pyramid}` "
+                        + "cluster by cell_x, cell_y, {geom} as ("
+                        + "with src as ("
+                        + "select *, farm_fingerprint(to_json_string(t)) as source_id, "
+                        + "st_boundingbox({geom}) as bbox "
+                        + "from `{table}` as t where {geom} is not null), "
+                        + "cells as ("
+                        + "select src.* except(bbox), mod(cell_x, {columns}) as cell_x, cell_y, "
+                        + "st_geogfromtext(format('POLYGON((%f %f, %f %f, %f %f, %f %f, %f %f))', "
+                        + "x0, y0, x0 + {size}, y0, x0 + {size}, y0 + {size}, x0, y0 + {size}, "
+                        + "x0, y0), planar => true) as cell "
+                        + "from src, "
+                        // bounding boxes crossing the antimeridian have xmin > xmax
+                        + "unnest(generate_array("
+                        + "cast(floor((bbox.xmin + 180) / {size}) as int64), "
+                        + "cast(floor((if(bbox.xmax < bbox.xmin, bbox.xmax + 360, bbox.xmax) "
+                        + "+ 180) / {size}) as int64))) as cell_x, "
+                        + "unnest(generate_array("
+                        + "cast(floor((bbox.ymin + 90) / {size}) as int64), "
+                        + "cast(floor((bbox.ymax + 90) / {size}) as int64))) as cell_y, "
+                        + "unnest([struct(mod(cell_x, {columns}) * {size} - 180 as x0, "
+                        + "cell_y * {size} - 90 as y0)])) "
+                        + "select * except({geom}, cell), "
+                        + "st_intersection({geom}, cell) as {geom} "
+                        + "from cells where st_intersects({geom}, cell))";
+
+        return sql.replace("{pyramid}", getPyramidTableName(baseTable, zoom))
+                .replace("{table}", baseTable)
+                .replace("{geom}", geomColumn)
+                .replace("{columns}", Long.toString(columns))
+                .replace("{size}", Double.toString(size));
+    }
+}
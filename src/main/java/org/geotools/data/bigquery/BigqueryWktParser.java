@@ -0,0 +1,289 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geotools.data.bigquery;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.LinearRing;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKTReader;
+import org.opengis.referencing.operation.MathTransform;
+
+/**
+ * Parses the 2D WKT BigQuery returns for GEOGRAPHY columns, writing the vertices of each line or
+ * ring straight into a primitive array that backs its coordinate sequence, rather than creating
+ * a Coordinate per vertex as WKTReader does. Anything else, e.g. WKT with Z or M ordinates, is
+ * left to WKTReader.
+ *
+ * <p>Parsers are not thread safe, create one per geometry or per thread.
+ */
+public class BigqueryWktParser {
+
+    private final GeometryFactory factory;
+
+    private final MathTransform transform;
+
+    private CharSequence wkt;
+
+    private int pos;
+
+    /** Ordinates of the sequence being parsed, reused between sequences. */
+    private double[] buffer = new double[64];
+
+    /** @param factory creates the geometries and their coordinate sequences */
+    public BigqueryWktParser(GeometryFactory factory) {
+        this(factory, null);
+    }
+
+    /**
+     * @param factory creates the geometries and their coordinate sequences
+     * @param transform applied to the ordinates of each sequence before it is created, may be
+     *     null
+     */
+    public BigqueryWktParser(GeometryFactory factory, MathTransform transform) {
+        this.factory = factory;
+        this.transform = transform;
+    }
+
+    /**
+     * Parse a WKT geometry.
+     *
+     * @param wkt
+     * @return
+     * @throws ParseException
+     * @throws IllegalArgumentException if the coordinates cannot be transformed
+     */
+    public Geometry parse(CharSequence wkt) throws ParseException {
+        this.wkt = wkt;
+        this.pos = 0;
+        try {
+            Geometry geometry = parseGeometry();
+            skipWhitespace();
+            if (pos < wkt.length()) {
+                throw error("end of text");
+            }
+            return geometry;
+        } catch (ParseException | NumberFormatException e) {
+            Geometry geometry = new WKTReader(factory).read(wkt.toString());
+            return transform != null ? BigqueryUtil.copy(geometry, factory, transform) : geometry;
+        }
+    }
+
+    private Geometry parseGeometry() throws ParseException {
+        String type = readWord();
+        if (isEmpty()) {
+            return createEmpty(type);
+        }
+        switch (type) {
+            case "POINT":
+                return factory.createPoint(parseSequence());
+            case "LINESTRING":
+                return factory.createLineString(parseSequence());
+            case "POLYGON":
+                return parsePolygon();
+            case "MULTIPOINT":
+                return parseMultiPoint();
+            case "MULTILINESTRING":
+                {
+                    List<LineString> lines = new ArrayList<>();
+                    expect('(');
+                    do {
+                        lines.add(factory.createLineString(parseSequence()));
+                    } while (accept(','));
+                    expect(')');
+                    return factory.createMultiLineString(lines.toArray(new LineString[0]));
+                }
+            case "MULTIPOLYGON":
+                {
+                    List<Polygon> polygons = new ArrayList<>();
+                    expect('(');
+                    do {
+                        polygons.add(parsePolygon());
+                    } while (accept(','));
+                    expect(')');
+                    return factory.createMultiPolygon(polygons.toArray(new Polygon[0]));
+                }
+            case "GEOMETRYCOLLECTION":
+                {
+                    List<Geometry> geometries = new ArrayList<>();
+                    expect('(');
+                    do {
+                        geometries.add(parseGeometry());
+                    } while (accept(','));
+                    expect(')');
+                    return factory.createGeometryCollection(geometries.toArray(new Geometry[0]));
+                }
+            default:
+                throw error("geometry type");
+        }
+    }
+
+    private Polygon parsePolygon() throws ParseException {
+        expect('(');
+        LinearRing shell = factory.createLinearRing(parseSequence());
+        List<LinearRing> holes = new ArrayList<>();
+        while (accept(',')) {
+            holes.add(factory.createLinearRing(parseSequence()));
+        }
+        expect(')');
+        return factory.createPolygon(shell, holes.toArray(new LinearRing[0]));
+    }
+
+    private Geometry parseMultiPoint() throws ParseException {
+        List<Point> points = new ArrayList<>();
+        expect('(');
+        do {
+            // both MULTIPOINT(1 2, 3 4) and MULTIPOINT((1 2), (3 4))
+            points.add(factory.createPoint(peek('(') ? parseSequence() : parseBareCoordinate()));
+        } while (accept(','));
+        expect(')');
+        return factory.createMultiPoint(points.toArray(new Point[0]));
+    }
+
+    /** Parse "(x y, x y, ...)" into a sequence backed by the ordinates. */
+    private CoordinateSequence parseSequence() throws ParseException {
+        expect('(');
+        int size = 0;
+        do {
+            size = parseCoordinate(size);
+        } while (accept(','));
+        expect(')');
+        return createSequence(size);
+    }
+
+    private CoordinateSequence parseBareCoordinate() throws ParseException {
+        return createSequence(parseCoordinate(0));
+    }
+
+    /** Parse "x y" into the buffer, and return the number of ordinates it then holds. */
+    private int parseCoordinate(int size) throws ParseException {
+        if (size + 2 > buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        buffer[size] = readNumber();
+        buffer[size + 1] = readNumber();
+        skipWhitespace();
+        if (pos < wkt.length() && isNumberStart(wkt.charAt(pos))) {
+            // Z or M ordinates
+            throw error("',' or ')'");
+        }
+        return size + 2;
+    }
+
+    private CoordinateSequence createSequence(int size) {
+        return BigqueryUtil.createSequence(buffer, size, factory, transform);
+    }
+
+    private Geometry createEmpty(String type) throws ParseException {
+        switch (type) {
+            case "POINT":
+                return factory.createPoint();
+            case "LINESTRING":
+                return factory.createLineString();
+            case "POLYGON":
+                return factory.createPolygon();
+            case "MULTIPOINT":
+                return factory.createMultiPoint();
+            case "MULTILINESTRING":
+                return factory.createMultiLineString();
+            case "MULTIPOLYGON":
+                return factory.createMultiPolygon();
+            case "GEOMETRYCOLLECTION":
+                return factory.createGeometryCollection();
+            default:
+                throw error("geometry type");
+        }
+    }
+
+    private String readWord() {
+        skipWhitespace();
+        int start = pos;
+        while (pos < wkt.length() && Character.isLetter(wkt.charAt(pos))) {
+            pos++;
+        }
+        return wkt.subSequence(start, pos).toString().toUpperCase();
+    }
+
+    private boolean isEmpty() {
+        skipWhitespace();
+        if (pos < wkt.length() && Character.isLetter(wkt.charAt(pos))) {
+            int start = pos;
+            if ("EMPTY".equals(readWord())) {
+                return true;
+            }
+            // e.g. Z or M, left to WKTReader
+            pos = start;
+        }
+        return false;
+    }
+
+    private double readNumber() throws ParseException {
+        skipWhitespace();
+        int start = pos;
+        while (pos < wkt.length() && isNumberChar(wkt.charAt(pos))) {
+            pos++;
+        }
+        if (start == pos) {
+            throw error("number");
+        }
+        return Double.parseDouble(wkt.subSequence(start, pos).toString());
+    }
+
+    private void expect(char c) throws ParseException {
+        if (!accept(c)) {
+            throw error("'" + c + "'");
+        }
+    }
+
+    private boolean accept(char c) {
+        if (peek(c)) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean peek(char c) {
+        skipWhitespace();
+        return pos < wkt.length() && wkt.charAt(pos) == c;
+    }
+
+    private void skipWhitespace() {
+        while (pos < wkt.length() && Character.isWhitespace(wkt.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    private ParseException error(String expected) {
+        return new ParseException("Expected " + expected + " at position " + pos + " of WKT");
+    }
+
+    private static boolean isNumberStart(char c) {
+        return (c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.';
+    }
+
+    private static boolean isNumberChar(char c) {
+        return isNumberStart(c) || c == 'e' || c == 'E';
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geotools.data.bigquery;
+
+/**
+ * Storage Write API stream type features are appended through, see
+ * https://cloud.google.com/bigquery/docs/write-api#application-created_streams
+ */
+public enum BigqueryWriteStreamType {
+    /**
+     * Rows become visible as each batch is appended. They cannot be rolled back: when a write
+     * fails, the batches appended before the failure stay in the table.
+     */
+    COMMITTED,
+
+    /** Rows become visible together, once the writer is closed, or not at all if it fails. */
+    PENDING
+}
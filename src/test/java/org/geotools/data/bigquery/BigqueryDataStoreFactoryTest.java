@@ -44,6 +44,20 @@ public class BigqueryDataStoreFactoryTest {
         assertTrue(!factory.canProcess(invalidMap));
     }
 
+    @Test
+    public void testCanProcessStorageApiWithSimplify() {
+        BigqueryDataStoreFactory factory = new BigqueryDataStoreFactory();
+
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("Project Id", "valid-project");
+        params.put("Dataset Name", "valid_dataset");
+        params.put("Access Method", BigqueryAccessMethod.STORAGE_API);
+        params.put("Use Query Cache", false);
+        params.put("Simplify Geometries on-the-fly in BigQuery", true);
+
+        assertTrue(factory.canProcess(params));
+    }
+
     @Test
     public void testIsAvailable() {
         BigqueryDataStoreFactory factory = new BigqueryDataStoreFactory();
@@ -30,6 +30,7 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import org.geotools.data.DataStore;
 import org.geotools.data.DataStoreFinder;
 import org.geotools.data.FeatureReader;
@@ -190,9 +191,21 @@ public class BigqueryDataStoreTest {
         ContentFeatureSource fs =
                 (ContentFeatureSource) store.getFeatureSource("bigquery-geotools.test.counties");
 
-        // invokes buildFeatureType()
+        // invokes buildFeatureType(), which starts provisioning in the background
         fs.getSchema();
-        
+
+        BigqueryViewProvisioner provisioner = ((BigqueryDataStore) store).getViewProvisioner();
+        try {
+            assertTrue(
+                    provisioner.awaitProvisioning(
+                            "bigquery-geotools.test.counties", 10, TimeUnit.MINUTES));
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+        assertEquals(
+                BigqueryViewProvisioner.Status.READY,
+                provisioner.getStatus("bigquery-geotools.test.counties", 1000));
+
         BigQueryOptions.Builder builder = BigQueryOptions.newBuilder();
         BigQuery queryClient = builder.setProjectId("bigquery-geotools").build().getService();
 
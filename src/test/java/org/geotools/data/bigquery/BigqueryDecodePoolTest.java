@@ -0,0 +1,88 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geotools.data.bigquery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BigqueryDecodePoolTest {
+
+    BigqueryDecodePool pool;
+
+    @Before
+    public void setup() {
+        pool = new BigqueryDecodePool(4, 2);
+    }
+
+    @After
+    public void dispose() {
+        pool.dispose();
+    }
+
+    @Test
+    public void testDecodeInPlace() {
+        int[] rows = new int[10000];
+        Set<String> threads = Collections.synchronizedSet(new HashSet<>());
+
+        pool.decode(
+                rows.length,
+                i -> {
+                    threads.add(Thread.currentThread().getName());
+                    rows[i] = i * 2;
+                });
+
+        for (int i = 0; i < rows.length; i++) {
+            assertEquals(i * 2, rows[i]);
+        }
+        // the calling thread, and one more task at most
+        assertTrue(threads.size() <= 2);
+        assertTrue(threads.contains(Thread.currentThread().getName()));
+    }
+
+    @Test
+    public void testSmallBlockOnCallingThread() {
+        Set<String> threads = Collections.synchronizedSet(new HashSet<>());
+
+        pool.decode(10, i -> threads.add(Thread.currentThread().getName()));
+
+        assertEquals(Collections.singleton(Thread.currentThread().getName()), threads);
+    }
+
+    @Test
+    public void testDecodeFailure() {
+        try {
+            pool.decode(
+                    10000,
+                    i -> {
+                        if (i == 9999) {
+                            throw new IllegalStateException("Unable to parse the geometry");
+                        }
+                    });
+            fail("Expected the failure of the last row");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage().contains("Unable to parse the geometry"));
+        }
+    }
+}
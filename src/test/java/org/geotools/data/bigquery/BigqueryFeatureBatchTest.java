@@ -0,0 +1,146 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geotools.data.bigquery;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import org.geotools.data.CollectionFeatureReader;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.junit.Before;
+import org.junit.Test;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.io.WKTReader;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+public class BigqueryFeatureBatchTest {
+
+    SimpleFeatureType countiesFeatureType;
+    List<SimpleFeature> features;
+
+    @Before
+    public void setup() throws Exception {
+        SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+        builder.setName("counties");
+        builder.setCRS(DefaultGeographicCRS.WGS84);
+        builder.add("geom", Geometry.class);
+        builder.add("name", String.class);
+        builder.add("population", BigInteger.class);
+        builder.add("area", Double.class);
+        builder.add("coastal", Boolean.class);
+        builder.setDefaultGeometry("geom");
+        countiesFeatureType = builder.buildFeatureType();
+
+        WKTReader wkt = new WKTReader();
+        SimpleFeatureBuilder features = new SimpleFeatureBuilder(countiesFeatureType);
+        this.features = new ArrayList<>();
+        this.features.add(
+                features.buildFeature(
+                        "counties.1",
+                        new Object[] {
+                            wkt.read("POINT(-78.6 35.8)"), "Wake", BigInteger.valueOf(1129410), 2.2,
+                            false
+                        }));
+        this.features.add(
+                features.buildFeature(
+                        "counties.2",
+                        new Object[] {wkt.read("POINT(-75.7 35.9)"), "Dare", null, 3.9, true}));
+        this.features.add(
+                features.buildFeature(
+                        "counties.3",
+                        new Object[] {
+                            wkt.read("POINT(-79.8 36.1)"), "Guilford", null, 1.7, false
+                        }));
+    }
+
+    @Test
+    public void testColumns() {
+        BigqueryFeatureBatch batch = new BigqueryFeatureBatch(countiesFeatureType, 2);
+        batch.add(features.get(0));
+        batch.add(features.get(1));
+
+        assertTrue(batch.isFull());
+        assertEquals(2, batch.size());
+        assertArrayEquals(new String[] {"counties.1", "counties.2"}, batch.getIds());
+        assertEquals(1129410, batch.getLongs("population")[0]);
+        assertFalse(batch.isNull("population", 0));
+        assertTrue(batch.isNull("population", 1));
+        assertArrayEquals(new double[] {2.2, 3.9}, batch.getDoubles("area"), 0);
+        assertArrayEquals(new boolean[] {false, true}, batch.getBooleans("coastal"));
+        assertEquals("Dare", batch.getValues("name")[1]);
+        assertEquals(-75.7, batch.getGeometries()[1].getCoordinate().x, 0);
+    }
+
+    @Test
+    public void testAddRow() {
+        BigqueryFeatureBatch batch = new BigqueryFeatureBatch(countiesFeatureType, 2);
+        int population = batch.indexOf("population");
+        int area = batch.indexOf("area");
+        int coastal = batch.indexOf("coastal");
+        int name = batch.indexOf("name");
+
+        int row = batch.addRow("counties.1");
+        batch.setLong(population, row, 1129410);
+        batch.setDouble(area, row, 2.2);
+        batch.setBoolean(coastal, row, true);
+        batch.setValue(name, row, "Wake");
+
+        // values of other types are converted, and unset values are null
+        row = batch.addRow("counties.2");
+        batch.setValue(population, row, "2000");
+        batch.setValue(area, row, 3);
+
+        assertEquals(2, batch.size());
+        assertArrayEquals(new long[] {1129410, 2000}, batch.getLongs("population"));
+        assertArrayEquals(new double[] {2.2, 3}, batch.getDoubles("area"), 0);
+        assertTrue(batch.getBooleans("coastal")[0]);
+        assertFalse(batch.isNull("coastal", 0));
+        assertTrue(batch.isNull("coastal", 1));
+        assertTrue(batch.isNull("name", 1));
+        assertTrue(batch.isNull("geom", 0));
+        assertEquals(-1, batch.indexOf("missing"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongColumnType() {
+        new BigqueryFeatureBatch(countiesFeatureType, 1).getLongs("area");
+    }
+
+    @Test
+    public void testBatchReader() throws IOException {
+        try (BigqueryFeatureBatchReader reader =
+                new BigqueryFeatureBatchReader(
+                        new CollectionFeatureReader(features, countiesFeatureType), 2)) {
+            assertTrue(reader.hasNext());
+            assertEquals(2, reader.next().size());
+
+            BigqueryFeatureBatch last = reader.next();
+            assertEquals(1, last.size());
+            assertEquals("Guilford", last.getValues("name")[0]);
+            assertFalse(reader.hasNext());
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geotools.data.bigquery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.geotools.data.CollectionFeatureReader;
+import org.geotools.data.FeatureReader;
+import org.geotools.data.Query;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.junit.Before;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Point;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+
+public class BigqueryFeatureCacheTest {
+
+    private static final String TABLE = "bigquery-geotools.test.counties";
+
+    SimpleFeatureType countiesFeatureType;
+    FilterFactory2 ff;
+
+    @Before
+    public void setup() {
+        SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+        builder.setName("counties");
+        builder.setCRS(DefaultGeographicCRS.WGS84);
+        builder.add("geom", Geometry.class);
+        builder.add("name", String.class);
+        builder.setDefaultGeometry("geom");
+        countiesFeatureType = builder.buildFeatureType();
+
+        ff = CommonFactoryFinder.getFilterFactory2(null);
+    }
+
+    private Query bboxQuery(double minx, double miny, double maxx, double maxy, Filter other) {
+        Filter bbox = ff.bbox("geom", minx, miny, maxx, maxy, "EPSG:4326");
+        return new Query(TABLE, other == null ? bbox : ff.and(bbox, other));
+    }
+
+    private List<SimpleFeature> features(int count) {
+        GeometryFactory gf = new GeometryFactory();
+        SimpleFeatureBuilder builder = new SimpleFeatureBuilder(countiesFeatureType);
+        List<SimpleFeature> features = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            builder.add(gf.createPoint(new Coordinate(i, i)));
+            builder.add("county " + i);
+            features.add(builder.buildFeature(Integer.toString(i)));
+        }
+        return features;
+    }
+
+    @Test
+    public void testCreateKey() {
+        assertNotNull(
+                BigqueryFeatureCache.createKey(
+                        TABLE, bboxQuery(0, 0, 10, 10, null), countiesFeatureType, 0));
+
+        // no bbox
+        assertNull(
+                BigqueryFeatureCache.createKey(
+                        TABLE,
+                        new Query(TABLE, ff.equals(ff.property("name"), ff.literal("Wake"))),
+                        countiesFeatureType,
+                        0));
+
+        // limited
+        Query limited = bboxQuery(0, 0, 10, 10, null);
+        limited.setMaxFeatures(10);
+        assertNull(BigqueryFeatureCache.createKey(TABLE, limited, countiesFeatureType, 0));
+    }
+
+    @Test
+    public void testCoveringEntry() {
+        BigqueryFeatureCache cache = new BigqueryFeatureCache(1024 * 1024, 60000);
+        Filter wake = ff.equals(ff.property("name"), ff.literal("Wake"));
+
+        BigqueryFeatureCache.Key key =
+                BigqueryFeatureCache.createKey(
+                        TABLE, bboxQuery(0, 0, 10, 10, wake), countiesFeatureType, 10);
+        assertNull(cache.get(key));
+        cache.put(key, features(5), 1L);
+
+        // covered by the cached extent
+        assertNotNull(
+                cache.get(
+                        BigqueryFeatureCache.createKey(
+                                TABLE, bboxQuery(2, 2, 8, 8, wake), countiesFeatureType, 10)));
+        // not covered
+        assertNull(
+                cache.get(
+                        BigqueryFeatureCache.createKey(
+                                TABLE, bboxQuery(5, 5, 15, 15, wake), countiesFeatureType, 10)));
+        // other tolerance
+        assertNull(
+                cache.get(
+                        BigqueryFeatureCache.createKey(
+                                TABLE, bboxQuery(2, 2, 8, 8, wake), countiesFeatureType, 100)));
+        // other filter
+        assertNull(
+                cache.get(
+                        BigqueryFeatureCache.createKey(
+                                TABLE, bboxQuery(2, 2, 8, 8, null), countiesFeatureType, 10)));
+
+        assertEquals(1, cache.getHits());
+        assertEquals(4, cache.getMisses());
+        assertEquals(0.2, cache.getHitRatio(), 1e-9);
+    }
+
+    @Test
+    public void testEviction() {
+        List<SimpleFeature> features = features(10);
+        long size = 0;
+        for (SimpleFeature feature : features) {
+            size += BigqueryFeatureCache.estimateSize(feature);
+        }
+        BigqueryFeatureCache cache = new BigqueryFeatureCache(2 * size, 60000);
+
+        BigqueryFeatureCache.Key first =
+                BigqueryFeatureCache.createKey(
+                        TABLE, bboxQuery(0, 0, 1, 1, null), countiesFeatureType, 0);
+        BigqueryFeatureCache.Key second =
+                BigqueryFeatureCache.createKey(
+                        TABLE, bboxQuery(2, 2, 3, 3, null), countiesFeatureType, 0);
+        BigqueryFeatureCache.Key third =
+                BigqueryFeatureCache.createKey(
+                        TABLE, bboxQuery(4, 4, 5, 5, null), countiesFeatureType, 0);
+
+        cache.put(first, features, 1L);
+        cache.put(second, features(10), 1L);
+        // touch the first entry, so the second is least recently used
+        assertNotNull(cache.get(first));
+        cache.put(third, features(10), 1L);
+
+        assertEquals(2, cache.getEntryCount());
+        assertEquals(2 * size, cache.getSizeBytes());
+        assertNotNull(cache.get(first));
+        assertNull(cache.get(second));
+        assertNotNull(cache.get(third));
+    }
+
+    @Test
+    public void testCopiesReturned() throws IOException {
+        BigqueryFeatureCache cache = new BigqueryFeatureCache(1024 * 1024, 60000);
+        BigqueryFeatureCache.Key key =
+                BigqueryFeatureCache.createKey(
+                        TABLE, bboxQuery(0, 0, 10, 10, null), countiesFeatureType, 0);
+
+        try (FeatureReader<SimpleFeatureType, SimpleFeature> reader =
+                cache.cachingReader(
+                        key, new CollectionFeatureReader(features(2), countiesFeatureType), 1L)) {
+            reader.next().setAttribute("name", "Wake");
+            reader.next();
+            assertFalse(reader.hasNext());
+        }
+
+        SimpleFeature cached = cache.get(key).get(0);
+        assertEquals("county 0", cached.getAttribute("name"));
+        assertEquals("0", cached.getID());
+
+        cached.setAttribute("name", "Durham");
+        ((Point) cached.getDefaultGeometry()).getCoordinate().x = 5;
+        SimpleFeature again = cache.get(key).get(0);
+        assertEquals("county 0", again.getAttribute("name"));
+        assertEquals(0, ((Point) again.getDefaultGeometry()).getX(), 0);
+    }
+
+    @Test
+    public void testInvalidateOnChange() {
+        BigqueryFeatureCache cache = new BigqueryFeatureCache(1024 * 1024, 0);
+        BigqueryFeatureCache.Key key =
+                BigqueryFeatureCache.createKey(
+                        TABLE, bboxQuery(0, 0, 10, 10, null), countiesFeatureType, 0);
+        cache.put(key, features(5), 1L);
+
+        cache.validate(TABLE, () -> 1L);
+        assertNotNull(cache.get(key));
+
+        cache.validate(TABLE, () -> 2L);
+        assertNull(cache.get(key));
+        assertFalse(cache.getSizeBytes() > 0);
+    }
+}
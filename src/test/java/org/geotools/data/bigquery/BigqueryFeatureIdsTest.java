@@ -0,0 +1,90 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geotools.data.bigquery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.junit.Test;
+import org.locationtech.jts.geom.Geometry;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+public class BigqueryFeatureIdsTest {
+
+    private SimpleFeatureType featureType(BigqueryFeatureIds.Encoding encoding) {
+        SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+        builder.setName("bigquery-geotools.test.counties");
+        builder.setCRS(DefaultGeographicCRS.WGS84);
+        builder.add("geom", Geometry.class);
+        if (encoding != null) {
+            builder.userData(BigqueryFeatureIds.USER_DATA_KEY, encoding.name());
+        }
+        builder.add("geoid", String.class);
+        builder.setDefaultGeometry("geom");
+        return builder.buildFeatureType();
+    }
+
+    @Test
+    public void testRowNumbers() {
+        SimpleFeatureType type = featureType(null);
+
+        assertNull(BigqueryFeatureIds.getKeyColumn(type));
+        assertEquals("7", BigqueryFeatureIds.create(type, "37183", 7));
+    }
+
+    @Test
+    public void testKeyValue() {
+        SimpleFeatureType type = featureType(BigqueryFeatureIds.Encoding.VALUE);
+
+        assertEquals("geoid", BigqueryFeatureIds.getKeyColumn(type));
+        assertEquals("counties.37183", BigqueryFeatureIds.create(type, "37183", 7));
+        assertEquals("37183", BigqueryFeatureIds.getKey(type, "counties.37183"));
+        assertEquals("37183", BigqueryFeatureIds.getKey(type, "37183"));
+
+        // rows without a key fall back to their number
+        assertEquals("7", BigqueryFeatureIds.create(type, null, 7));
+    }
+
+    @Test
+    public void testPiece() {
+        SimpleFeatureType type = featureType(BigqueryFeatureIds.Encoding.VALUE);
+
+        assertEquals(
+                "counties.37183.4_2", BigqueryFeatureIds.createPiece(type, "37183", 7, 4, 2));
+        assertEquals("7", BigqueryFeatureIds.createPiece(type, null, 7, 4, 2));
+        assertEquals("7", BigqueryFeatureIds.createPiece(featureType(null), "37183", 7, 4, 2));
+
+        assertEquals("37183", BigqueryFeatureIds.getRowKey("37183.4_2"));
+        assertEquals("-154165.4_2", BigqueryFeatureIds.getRowKey("-154165.4_2.12_3"));
+        assertEquals("37183", BigqueryFeatureIds.getRowKey("37183"));
+    }
+
+    @Test
+    public void testFingerprint() {
+        SimpleFeatureType type = featureType(BigqueryFeatureIds.Encoding.FARM_FINGERPRINT);
+
+        // SELECT FARM_FINGERPRINT('1footrue')
+        assertEquals(-1541654101129638711L, BigqueryFeatureIds.fingerprint("1footrue"));
+        assertEquals(
+                "counties.-1541654101129638711", BigqueryFeatureIds.create(type, "1footrue", 7));
+        assertEquals(
+                "FARM_FINGERPRINT(CAST(geoid AS STRING))",
+                BigqueryFeatureIds.getKeySQL(type.getDescriptor("geoid")));
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geotools.data.bigquery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.junit.Before;
+import org.junit.Test;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.io.WKTReader;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+public class BigqueryFeatureWriterTest {
+
+    SimpleFeatureType countiesFeatureType;
+    FakeSink sink;
+
+    /** Records the rows appended to it, instead of sending them to BigQuery. */
+    static class FakeSink implements BigqueryRowSink {
+        List<List<Map<String, Object>>> batches = new ArrayList<>();
+        boolean committed = false;
+        boolean closed = false;
+        boolean fail = false;
+
+        @Override
+        public void append(List<Map<String, Object>> rows) throws IOException {
+            if (fail) {
+                throw new IOException("append failed");
+            }
+            batches.add(rows);
+        }
+
+        @Override
+        public void commit() {
+            committed = true;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    @Before
+    public void setup() {
+        SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+        builder.setName("counties");
+        builder.setCRS(DefaultGeographicCRS.WGS84);
+        builder.add("geom", Geometry.class);
+        builder.add("name", String.class);
+        builder.userData("bigqueryType", "TIMESTAMP");
+        builder.add("updated", Date.class);
+        builder.setDefaultGeometry("geom");
+        countiesFeatureType = builder.buildFeatureType();
+
+        sink = new FakeSink();
+    }
+
+    private void write(BigqueryFeatureWriter writer, String name) throws Exception {
+        SimpleFeature feature = writer.next();
+        feature.setDefaultGeometry(new WKTReader().read("POINT (1 2)"));
+        feature.setAttribute("name", name);
+        writer.write();
+    }
+
+    @Test
+    public void testBatches() throws Exception {
+        BigqueryFeatureWriter writer =
+                new BigqueryFeatureWriter(countiesFeatureType, sink, 2, 0, null);
+        assertFalse(writer.hasNext());
+
+        write(writer, "Wake");
+        assertTrue(sink.batches.isEmpty());
+        write(writer, "Durham");
+        assertEquals(1, sink.batches.size());
+        assertEquals(2, sink.batches.get(0).size());
+        write(writer, "Orange");
+        assertFalse(sink.committed);
+
+        writer.close();
+        assertEquals(2, sink.batches.size());
+        assertEquals("Orange", sink.batches.get(1).get(0).get("name"));
+        assertTrue(sink.committed);
+        assertTrue(sink.closed);
+    }
+
+    @Test
+    public void testFlushInterval() throws Exception {
+        BigqueryFeatureWriter writer =
+                new BigqueryFeatureWriter(countiesFeatureType, sink, 100, 1, null);
+
+        write(writer, "Wake");
+        Thread.sleep(5);
+        write(writer, "Durham");
+
+        // the batch had waited long enough
+        assertEquals(1, sink.batches.size());
+        writer.close();
+    }
+
+    @Test
+    public void testFailureNotCommitted() throws Exception {
+        BigqueryFeatureWriter writer =
+                new BigqueryFeatureWriter(countiesFeatureType, sink, 1, 0, null);
+        sink.fail = true;
+        try {
+            write(writer, "Wake");
+            fail("Expected the append to fail");
+        } catch (IOException e) {
+            assertEquals("append failed", e.getMessage());
+        }
+        sink.fail = false;
+
+        writer.close();
+        assertFalse(sink.committed);
+        assertTrue(sink.closed);
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testRemove() throws Exception {
+        new BigqueryFeatureWriter(countiesFeatureType, sink, 1, 0, null).remove();
+    }
+
+    @Test
+    public void testToRow() throws Exception {
+        BigqueryFeatureWriter writer =
+                new BigqueryFeatureWriter(countiesFeatureType, sink, 1, 0, null);
+        SimpleFeature feature = writer.next();
+        feature.setDefaultGeometry(new WKTReader().read("POINT (1 2)"));
+        feature.setAttribute("updated", new Date(1500));
+
+        Map<String, Object> row = BigqueryFeatureWriter.toRow(feature);
+
+        assertEquals("POINT (1 2)", row.get("geom"));
+        assertEquals(1500000L, row.get("updated"));
+        assertFalse(row.containsKey("name"));
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geotools.data.bigquery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.geotools.data.DataStore;
+import org.geotools.data.DataStoreFinder;
+import org.geotools.data.Query;
+import org.geotools.data.store.ContentFeatureSource;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.filter.visitor.DefaultFilterVisitor;
+import org.junit.Before;
+import org.junit.Test;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKTReader;
+import org.opengis.filter.And;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+import org.opengis.filter.spatial.BBOX;
+
+public class BigqueryFilterOptimizerTest {
+
+    private static final String POLYGON =
+            "POLYGON((-80 36, -75 36, -75 39, -80 39, -80 36))";
+
+    FilterFactory2 ff;
+
+    @Before
+    public void setup() {
+        ff = CommonFactoryFinder.getFilterFactory2(null);
+    }
+
+    @Test
+    public void testGuardPolygonLiteral() throws ParseException {
+        Geometry polygon = new WKTReader().read(POLYGON);
+        BigqueryFilterOptimizer optimizer = new BigqueryFilterOptimizer();
+
+        Filter optimized =
+                optimizer.optimize(ff.intersects(ff.property("geom"), ff.literal(polygon)));
+
+        assertTrue(optimized instanceof And);
+        List<Filter> children = ((And) optimized).getChildren();
+        assertTrue(optimizer.isGuard(children.get(0)));
+
+        // geodesic edges bulge north of the polygon's planar envelope
+        Envelope guard = (Envelope) children.get(0).accept(new EnvelopeExtractor(), null);
+        assertEquals(-80, guard.getMinX(), 1e-9);
+        assertEquals(36, guard.getMinY(), 1e-9);
+        assertTrue(guard.getMaxY() > 39);
+        assertEquals(ff.intersects(ff.property("geom"), ff.literal(polygon)), children.get(1));
+    }
+
+    @Test
+    public void testNoGuardForPoints() throws ParseException {
+        Filter filter =
+                ff.intersects(ff.property("geom"), ff.literal(new WKTReader().read("POINT(1 2)")));
+        assertEquals(filter, new BigqueryFilterOptimizer().optimize(filter));
+    }
+
+    @Test
+    public void testFoldAndDeduplicate() {
+        Filter name = ff.equals(ff.property("name"), ff.literal("Wake"));
+        Filter population = ff.greater(ff.property("population"), ff.literal(10));
+        BigqueryFilterOptimizer optimizer = new BigqueryFilterOptimizer();
+
+        assertEquals(
+                ff.and(name, population),
+                optimizer.optimize(ff.and(ff.and(name, Filter.INCLUDE), ff.and(population, name))));
+        assertEquals(Filter.EXCLUDE, optimizer.optimize(ff.and(name, Filter.EXCLUDE)));
+        assertEquals(Filter.INCLUDE, optimizer.optimize(ff.or(name, Filter.INCLUDE)));
+    }
+
+    @Test
+    public void testMergeBoxes() {
+        BBOX large = ff.bbox("geom", 0, 0, 10, 10, "EPSG:4326");
+        BBOX small = ff.bbox("geom", 2, 2, 4, 4, "EPSG:4326");
+        BBOX other = ff.bbox("geom", 8, 8, 20, 20, "EPSG:4326");
+        BigqueryFilterOptimizer optimizer = new BigqueryFilterOptimizer();
+
+        // the small box implies the large one
+        assertEquals(small, optimizer.optimize(ff.and(large, small)));
+        // the large box covers the small one
+        assertEquals(large, optimizer.optimize(ff.or(small, large)));
+
+        // overlapping boxes get a guard covering both
+        Filter optimized = optimizer.optimize(ff.or(large, other));
+        assertTrue(optimized instanceof And);
+        Filter guard = ((And) optimized).getChildren().get(0);
+        assertTrue(optimizer.isGuard(guard));
+        assertEquals(new Envelope(0, 20, 0, 20), guard.accept(new EnvelopeExtractor(), null));
+        assertFalse(optimizer.isGuard(large));
+    }
+
+    /** Integration test, compares the bytes processed with and without optimization. */
+    @Test
+    public void testBytesProcessedOnClusteredTable() throws Exception {
+        long optimized = getBytesProcessed(true);
+        long unoptimized = getBytesProcessed(false);
+        assertTrue(optimized <= unoptimized);
+    }
+
+    private long getBytesProcessed(boolean optimize) throws Exception {
+        Map<String, Object> params = new HashMap<>();
+        params.put("Project Id", "bigquery-geotools");
+        params.put("Dataset Name", "test");
+        params.put("Access Method", BigqueryAccessMethod.STANDARD_QUERY_API);
+        params.put("Use Query Cache", false);
+        params.put("Coalesce Identical Requests", false);
+        params.put("Optimize Filters", optimize);
+        DataStore store = DataStoreFinder.getDataStore(params);
+
+        String typeName = "bigquery-geotools.test.counties";
+        ContentFeatureSource source = (ContentFeatureSource) store.getFeatureSource(typeName);
+        Geometry polygon = new WKTReader().read(POLYGON);
+        Query q = new Query(typeName, ff.intersects(ff.property("geom"), ff.literal(polygon)));
+
+        BigqueryStandardReader reader = new BigqueryStandardReader(source.getState(), q);
+        try {
+            return reader.getTotalBytesProcessed();
+        } finally {
+            reader.close();
+            store.dispose();
+        }
+    }
+
+    /** Extracts the envelope of a BBOX filter. */
+    private static class EnvelopeExtractor extends DefaultFilterVisitor {
+        @Override
+        public Object visit(BBOX filter, Object data) {
+            return filter.getExpression2().evaluate(null, Envelope.class);
+        }
+    }
+}
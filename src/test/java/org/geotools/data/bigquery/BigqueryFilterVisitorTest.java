@@ -16,9 +16,16 @@
 
 package org.geotools.data.bigquery;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
+import com.google.cloud.bigquery.QueryParameterValue;
+import com.google.cloud.bigquery.StandardSQLTypeName;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.Map;
 import org.geotools.data.Query;
 import org.geotools.factory.CommonFactoryFinder;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
@@ -30,13 +37,19 @@ import org.geotools.geometry.iso.coordinate.GeometryFactoryImpl;
 import org.geotools.geometry.iso.primitive.PrimitiveFactoryImpl;
 import org.geotools.geometry.iso.text.WKTParser;
 import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.geotools.temporal.object.DefaultInstant;
+import org.geotools.temporal.object.DefaultPeriod;
+import org.geotools.temporal.object.DefaultPosition;
+import org.geotools.util.factory.Hints;
 import org.junit.Before;
 import org.junit.Test;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKBWriter;
 import org.locationtech.jts.io.WKTReader;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.filter.Filter;
+import org.opengis.filter.PropertyIsBetween;
 import org.opengis.filter.FilterFactory;
 import org.opengis.filter.FilterFactory2;
 import org.opengis.filter.Not;
@@ -495,7 +508,619 @@ public class BigqueryFilterVisitorTest {
                         q, countiesFeatureType, CRS, BigqueryPregenerateOptions.MV_USE_EXISTING);
 
         assertEquals(
-                "ST_INTERSECTSBOX(ST_SIMPLIFY(geom, 100), -78.678500, 36.004900, -74.415800, 38.449300)",
+                "ST_INTERSECTSBOX(geom, -78.678500, 36.004900, -74.415800, 38.449300)",
+                parser.getWhereClause());
+        assertEquals(
+                "* except (geom), ST_ASGEOJSON(ST_SIMPLIFY(geom, 100)) as geom",
+                parser.getSelectClause(false));
+    }
+
+    @Test
+    public void testSpatialBBOXWithSimplifyOnTheFly() {
+        BBOX bbox1 = ff.bbox("geom", -78.6785, 36.0049, -74.4158, 38.4493, "epsg:4326");
+        Query q = new Query("counties", bbox1);
+
+        BigqueryFilterVisitor parser =
+                new BigqueryFilterVisitor(q, countiesFeatureType, CRS, pregenNone);
+
+        // the predicate is left alone so clustered blocks are still pruned
+        assertEquals(
+                "ST_INTERSECTSBOX(geom, -78.678500, 36.004900, -74.415800, 38.449300)",
+                parser.getWhereClause());
+        assertEquals(
+                "* except (geom), ST_ASGEOJSON(ST_SIMPLIFY(geom, 100)) as geom",
+                parser.getSelectClause(true));
+        assertEquals("* except (geom), ST_ASGEOJSON(geom) as geom", parser.getSelectClause(false));
+    }
+
+    @Test
+    public void testSpatialBBOXWithDistanceHint() {
+        BBOX bbox1 = ff.bbox("geom", -78.6785, 36.0049, -74.4158, 38.4493, "epsg:4326");
+        Query q = new Query("counties", bbox1);
+
+        // pixels of a 256 pixel tile are 4 times larger than the 1024 pixel guess
+        q.setHints(new Hints(Hints.GEOMETRY_DISTANCE, 4.2627 / 256));
+        BigqueryFilterVisitor parser =
+                new BigqueryFilterVisitor(
+                        q, countiesFeatureType, CRS, BigqueryPregenerateOptions.MV_USE_EXISTING);
+        assertEquals(1000, parser.getSimplifyTolerance());
+
+        q.setHints(new Hints(Hints.GEOMETRY_GENERALIZATION, 0.0005));
+        parser =
+                new BigqueryFilterVisitor(
+                        q, countiesFeatureType, CRS, BigqueryPregenerateOptions.MV_USE_EXISTING);
+        assertEquals(10, parser.getSimplifyTolerance());
+        assertEquals(
+                "ST_INTERSECTSBOX(geom, -78.678500, 36.004900, -74.415800, 38.449300)",
+                parser.getWhereClause());
+        assertEquals(
+                "* except (geom), ST_ASGEOJSON(ST_SIMPLIFY(geom, 10)) as geom",
+                parser.getSelectClause(false));
+    }
+
+    @Test
+    public void testSimplifyToleranceAtHighLatitude() {
+        // a degree of longitude is about 38 km at 70 degrees north
+        BBOX bbox1 = ff.bbox("geom", 20, 69, 21, 71, "epsg:4326");
+        Query q = new Query("counties", bbox1);
+        q.setHints(new Hints(Hints.GEOMETRY_DISTANCE, 0.001));
+
+        BigqueryFilterVisitor parser =
+                new BigqueryFilterVisitor(q, countiesFeatureType, CRS, pregenNone);
+
+        assertEquals(10, parser.getSimplifyTolerance());
+    }
+
+    @Test
+    public void testSimplifyDistance() {
+        BBOX bbox1 = ff.bbox("geom", 20, 69, 21, 71, "epsg:4326");
+        Query q = new Query("counties", bbox1);
+        q.setHints(new Hints(Hints.GEOMETRY_DISTANCE, 0.001));
+
+        BigqueryFilterVisitor parser =
+                new BigqueryFilterVisitor(q, countiesFeatureType, CRS, pregenNone);
+
+        // 10 m in degrees of latitude, well under the hinted distance
+        assertEquals(10 / (40075000 / 360d), parser.getSimplifyDistance(), 1e-12);
+        assertTrue(parser.getSimplifyDistance() < 0.001);
+
+        Query all = new Query("counties", Filter.INCLUDE);
+        parser = new BigqueryFilterVisitor(all, countiesFeatureType, CRS, pregenNone);
+        assertEquals(0, parser.getSimplifyDistance(), 0);
+    }
+
+    @Test
+    public void testSelectClipToBBOX() {
+        FilterFactory ff = CommonFactoryFinder.getFilterFactory(null);
+
+        BBOX bbox1 = ff.bbox("geom", -78.6785, 36.0049, -74.4158, 38.4493, "epsg:4326");
+        Filter andFilter = ff.and(bbox1, ff.equals(ff.property("name"), ff.literal("abc")));
+        Filter orFilter = ff.or(bbox1, ff.equals(ff.property("name"), ff.literal("abc")));
+
+        BigqueryFilterVisitor parser =
+                new BigqueryFilterVisitor(
+                        new Query("counties", andFilter), countiesFeatureType, CRS, pregenNone);
+
+        assertEquals("* except (geom), ST_ASGEOJSON(geom) as geom", parser.getSelectClause(false));
+        assertEquals(
+                "* except (geom), ST_ASGEOJSON(ST_INTERSECTION(geom, ST_GEOGFROMTEXT('POLYGON(("
+                        + "-78.891635 35.882680, -74.202665 35.882680, -74.202665 38.571520, "
+                        + "-78.891635 38.571520, -78.891635 35.882680))', planar => TRUE))) as geom",
+                parser.getSelectClause(false, true));
+
+        // features outside the bbox can match an OR, so they must not be clipped
+        parser =
+                new BigqueryFilterVisitor(
+                        new Query("counties", orFilter), countiesFeatureType, CRS, pregenNone);
+
+        assertEquals(
+                "* except (geom), ST_ASGEOJSON(geom) as geom", parser.getSelectClause(false, true));
+    }
+
+    @Test
+    public void testSelectBoundingBox() {
+        BBOX bbox1 = ff.bbox("geom", -78.6785, 36.0049, -74.4158, 38.4493, "epsg:4326");
+
+        BigqueryFilterVisitor parser =
+                new BigqueryFilterVisitor(
+                        new Query("counties", bbox1), countiesFeatureType, CRS, pregenNone);
+
+        assertEquals(
+                "* except (geom), ST_ASGEOJSON(geom) as geom, ST_BOUNDINGBOX(geom) as _bbox",
+                parser.getSelectClause(false, false, true));
+    }
+
+    @Test
+    public void testSelectPoints() {
+        SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+        builder.setName("stations");
+        builder.setCRS(DefaultGeographicCRS.WGS84);
+        builder.userData(BigqueryPointColumns.USER_DATA_KEY, true);
+        builder.add("geom", org.locationtech.jts.geom.Point.class);
+        builder.add("name", String.class);
+        builder.setDefaultGeometry("geom");
+        SimpleFeatureType stationsFeatureType = builder.buildFeatureType();
+
+        BBOX bbox1 = ff.bbox("geom", -78.6785, 36.0049, -74.4158, 38.4493, "epsg:4326");
+
+        BigqueryFilterVisitor parser =
+                new BigqueryFilterVisitor(
+                        new Query("stations", bbox1), stationsFeatureType, CRS, pregenNone);
+
+        // the point is its own bounding box, and is never clipped
+        assertTrue(parser.isSelectingPoints());
+        assertEquals(
+                "* except (geom), SAFE.ST_X(geom) as _x, SAFE.ST_Y(geom) as _y, "
+                        + "IF(ST_GEOMETRYTYPE(geom) = 'ST_Point', NULL, ST_ASGEOJSON(geom)) as geom",
+                parser.getSelectClause(false, true, true));
+
+        Query query = new Query("stations", bbox1, new String[] {"name", "geom"});
+        parser = new BigqueryFilterVisitor(query, stationsFeatureType, CRS, pregenNone);
+        assertEquals(
+                "name, SAFE.ST_X(geom) as _x, SAFE.ST_Y(geom) as _y, "
+                        + "IF(ST_GEOMETRYTYPE(geom) = 'ST_Point', NULL, ST_ASGEOJSON(geom)) as geom",
+                parser.getSelectClause(false));
+    }
+
+    @Test
+    public void testSpatialBBOXWithReadyView() {
+        FilterFactory ff = CommonFactoryFinder.getFilterFactory(null);
+
+        BBOX bbox1 = ff.bbox("geom", -78.6785, 36.0049, -74.4158, 38.4493, "epsg:4326");
+
+        Query q = new Query("counties", bbox1);
+
+        BigqueryViewProvisioner provisioner =
+                new BigqueryViewProvisioner(
+                        null, "test", BigqueryPregenerateOptions.MV_USE_EXISTING, null, null, null);
+
+        BigqueryFilterVisitor parser =
+                new BigqueryFilterVisitor(
+                        q,
+                        countiesFeatureType,
+                        CRS,
+                        BigqueryPregenerateOptions.MV_USE_EXISTING,
+                        provisioner);
+
+        // view is not ready yet, keep using the base table
+        assertEquals("counties", parser.getTableName());
+
+        provisioner.setStatus("counties_pregen_10m", BigqueryViewProvisioner.Status.READY);
+        parser =
+                new BigqueryFilterVisitor(
+                        q,
+                        countiesFeatureType,
+                        CRS,
+                        BigqueryPregenerateOptions.MV_USE_EXISTING,
+                        provisioner);
+
+        assertEquals("counties_pregen_10m", parser.getTableName());
+        assertEquals(
+                "ST_INTERSECTSBOX(geom, -78.678500, 36.004900, -74.415800, 38.449300)",
+                parser.getWhereClause());
+        assertEquals(
+                "* except (geom, geom_geojson), geom_geojson as geom",
+                parser.getSelectClause(false));
+    }
+
+    @Test
+    public void testSpatialBBOXWithPyramid() {
+        FilterFactory ff = CommonFactoryFinder.getFilterFactory(null);
+
+        BBOX bbox1 = ff.bbox("geom", -78.6785, 36.0049, -74.4158, 38.4493, "epsg:4326");
+
+        Query q = new Query("counties", bbox1);
+
+        BigqueryViewProvisioner provisioner =
+                new BigqueryViewProvisioner(null, "test", pregenNone, null, null, null);
+        provisioner.setPyramid(
+                BigqueryPyramidOptions.PYRAMID_USE_EXISTING, Arrays.asList(4, 8), false);
+        provisioner.setStatus("counties_pyramid_z4", BigqueryViewProvisioner.Status.READY);
+        provisioner.setStatus("counties_pyramid_z8", BigqueryViewProvisioner.Status.READY);
+
+        BigqueryFilterVisitor parser =
+                new BigqueryFilterVisitor(q, countiesFeatureType, CRS, pregenNone, provisioner);
+
+        // the bbox is about zoom 6, so the z4 pieces are used
+        assertEquals("counties_pyramid_z4", parser.getTableName());
+        assertEquals(
+                "(cell_x BETWEEN 4 AND 4 AND cell_y BETWEEN 5 AND 5 "
+                        + "AND ST_INTERSECTSBOX(geom, -78.678500, 36.004900, -74.415800, 38.449300))",
+                parser.getWhereClause());
+        assertEquals("", parser.getGroupByClause());
+        assertTrue(parser.isReadingPieces());
+
+        // pieces are told apart by their cell
+        Query names = new Query("counties", bbox1, new String[] {"name", "geom"});
+        parser =
+                new BigqueryFilterVisitor(names, countiesFeatureType, CRS, pregenNone, provisioner);
+        assertEquals(
+                "name, cell_x, cell_y, ST_ASGEOJSON(geom) as geom", parser.getSelectClause(false));
+
+        provisioner.setPyramid(
+                BigqueryPyramidOptions.PYRAMID_USE_EXISTING, Arrays.asList(4, 8), true);
+        parser = new BigqueryFilterVisitor(q, countiesFeatureType, CRS, pregenNone, provisioner);
+
+        assertEquals("GROUP BY source_id", parser.getGroupByClause());
+        assertFalse(parser.isReadingPieces());
+        assertEquals(
+                "ANY_VALUE(name) as name, ANY_VALUE(population) as population, "
+                        + "ANY_VALUE(date) as date, ST_ASGEOJSON(ST_UNION_AGG(geom)) as geom",
+                parser.getSelectClause(false));
+    }
+
+    @Test
+    public void testParameterizedPropertyFilter() {
+        Filter filter =
+                ff.and(
+                        ff.equals(ff.property("name"), ff.literal("Wake")),
+                        ff.greater(ff.property("population"), ff.literal(999)));
+        Query q = new Query("counties", filter);
+
+        BigqueryFilterVisitor parser =
+                new BigqueryFilterVisitor(q, countiesFeatureType, CRS, pregenNone);
+
+        assertEquals("name = 'Wake' AND population > 999", parser.getWhereClause());
+        assertEquals("name = @p0 AND population > @p1", parser.getParameterizedWhereClause());
+
+        Map<String, QueryParameterValue> params = parser.getQueryParameters();
+        assertEquals(2, params.size());
+        assertEquals(QueryParameterValue.string("Wake"), params.get("p0"));
+        assertEquals(QueryParameterValue.int64(999L), params.get("p1"));
+    }
+
+    @Test
+    public void testParameterizedGeometryFilter() throws ParseException {
+        Geometry geom = new WKTReader().read("POINT(-76.2859 36.8508)");
+        Filter intersectsFilter = ff.intersects(ff.property("geom"), ff.literal(geom));
+        Query q = new Query("counties", intersectsFilter);
+
+        BigqueryFilterVisitor parser =
+                new BigqueryFilterVisitor(q, countiesFeatureType, CRS, pregenNone);
+
+        assertEquals(
+                "ST_INTERSECTS(geom, ST_GEOGFROMWKB(@p0, make_valid => TRUE))",
+                parser.getParameterizedWhereClause());
+
+        QueryParameterValue param = parser.getQueryParameters().get("p0");
+        assertEquals(StandardSQLTypeName.BYTES, param.getType());
+        assertEquals(QueryParameterValue.bytes(new WKBWriter().write(geom)), param);
+    }
+
+    @Test
+    public void testParameterizedBBOX() {
+        BBOX bbox = ff.bbox("geom", -78.6785, 36.0049, -74.4158, 38.4493, "epsg:4326");
+        Query q = new Query("counties", bbox);
+
+        BigqueryFilterVisitor parser =
+                new BigqueryFilterVisitor(q, countiesFeatureType, CRS, pregenNone);
+
+        assertEquals(
+                "ST_INTERSECTSBOX(geom, @p0, @p1, @p2, @p3)", parser.getParameterizedWhereClause());
+        assertArrayEquals(
+                new Object[] {
+                    QueryParameterValue.float64(-78.6785),
+                    QueryParameterValue.float64(36.0049),
+                    QueryParameterValue.float64(-74.4158),
+                    QueryParameterValue.float64(38.4493)
+                },
+                parser.getQueryParameters().values().toArray());
+    }
+
+    @Test
+    public void testParameterizedLikeFilter() {
+        PropertyIsLike likeFilter = ff.like(ff.property("name"), "nor%");
+        Query q = new Query("counties", likeFilter);
+
+        BigqueryFilterVisitor parser =
+                new BigqueryFilterVisitor(q, countiesFeatureType, CRS, pregenNone);
+
+        assertEquals("name LIKE @p0", parser.getParameterizedWhereClause());
+        assertEquals(QueryParameterValue.string("nor%"), parser.getQueryParameters().get("p0"));
+    }
+
+    @Test
+    public void testSplitUnsupportedFilter() {
+        PropertyIsEqualTo eqFilter = ff.equals(ff.property("name"), ff.literal("Wake"));
+        PropertyIsBetween betweenFilter =
+                ff.between(
+                        ff.property("population"),
+                        ff.literal(10),
+                        ff.function("strLength", ff.property("name")));
+        Query q = new Query("counties", ff.and(eqFilter, betweenFilter));
+
+        BigqueryFilterVisitor parser =
+                new BigqueryFilterVisitor(q, countiesFeatureType, CRS, pregenNone);
+
+        assertEquals("name = 'Wake'", parser.getWhereClause());
+        assertEquals(eqFilter, parser.getPreFilter());
+        assertEquals(betweenFilter, parser.getPostFilter());
+    }
+
+    @Test
+    public void testSplitUnsupportedOrFilter() {
+        Filter orFilter =
+                ff.or(
+                        ff.equals(ff.property("name"), ff.literal("Wake")),
+                        ff.between(
+                                ff.property("population"),
+                                ff.literal(10),
+                                ff.function("strLength", ff.property("name"))));
+        Query q = new Query("counties", orFilter);
+
+        BigqueryFilterVisitor parser =
+                new BigqueryFilterVisitor(q, countiesFeatureType, CRS, pregenNone);
+
+        // an OR can only run as a whole
+        assertEquals("TRUE", parser.getWhereClause());
+        assertEquals(orFilter, parser.getPostFilter());
+    }
+
+    @Test
+    public void testExcludeFilter() {
+        Query q = new Query("counties", Filter.EXCLUDE);
+
+        BigqueryFilterVisitor parser =
+                new BigqueryFilterVisitor(q, countiesFeatureType, CRS, pregenNone);
+
+        assertEquals("FALSE", parser.getWhereClause());
+        assertEquals(Filter.INCLUDE, parser.getPostFilter());
+    }
+
+    @Test
+    public void testTemporalDuring() {
+        Date begin = new Date(1672552800000L); // 2023-01-01 06:00 UTC
+        Date end = new Date(1672574400123L); // 2023-01-01 12:00:00.123 UTC
+        DefaultPeriod period =
+                new DefaultPeriod(
+                        new DefaultInstant(new DefaultPosition(begin)),
+                        new DefaultInstant(new DefaultPosition(end)));
+        Query q = new Query("counties", ff.during(ff.property("date"), ff.literal(period)));
+
+        BigqueryFilterVisitor parser =
+                new BigqueryFilterVisitor(q, countiesFeatureType, CRS, pregenNone);
+
+        assertEquals(
+                "(date > CAST('2023-01-01 06:00:00.000000+00' AS TIMESTAMP) "
+                        + "AND date < CAST('2023-01-01 12:00:00.123000+00' AS TIMESTAMP))",
+                parser.getWhereClause());
+        assertEquals("(date > @p0 AND date < @p1)", parser.getParameterizedWhereClause());
+        assertEquals(
+                QueryParameterValue.timestamp(1672574400123000L),
+                parser.getQueryParameters().get("p1"));
+        assertEquals(Filter.INCLUDE, parser.getPostFilter());
+    }
+
+    @Test
+    public void testTemporalAfterAndBefore() {
+        Date instant = new Date(1672552800000L);
+
+        BigqueryFilterVisitor after =
+                new BigqueryFilterVisitor(
+                        new Query("counties", ff.after(ff.property("date"), ff.literal(instant))),
+                        countiesFeatureType,
+                        CRS,
+                        pregenNone);
+        assertEquals("date > @p0", after.getParameterizedWhereClause());
+
+        // literal first
+        BigqueryFilterVisitor before =
+                new BigqueryFilterVisitor(
+                        new Query("counties", ff.before(ff.literal(instant), ff.property("date"))),
+                        countiesFeatureType,
+                        CRS,
+                        pregenNone);
+        assertEquals("date > @p0", before.getParameterizedWhereClause());
+    }
+
+    @Test
+    public void testPropertyBetweenFilter() {
+        PropertyIsBetween betweenFilter =
+                ff.between(ff.property("population"), ff.literal(10), ff.literal(20));
+        Query q = new Query("counties", betweenFilter);
+
+        BigqueryFilterVisitor parser =
+                new BigqueryFilterVisitor(q, countiesFeatureType, CRS, pregenNone);
+
+        assertEquals("population BETWEEN 10 AND 20", parser.getWhereClause());
+    }
+
+    @Test
+    public void testQuotedStringLiteral() {
+        Query q = new Query("counties", ff.equals(ff.property("name"), ff.literal("O'Brien")));
+
+        BigqueryFilterVisitor parser =
+                new BigqueryFilterVisitor(q, countiesFeatureType, CRS, pregenNone);
+
+        assertEquals("name = 'O\\'Brien'", parser.getWhereClause());
+        assertEquals(QueryParameterValue.string("O'Brien"), parser.getQueryParameters().get("p0"));
+    }
+
+    @Test
+    public void testBetweenOperandsNotLiteral() {
+        PropertyIsEqualTo eqFilter = ff.equals(ff.property("name"), ff.literal("Wake"));
+        PropertyIsBetween propertyBounds =
+                ff.between(ff.literal(15), ff.property("population"), ff.literal(20));
+        Query q = new Query("counties", ff.and(eqFilter, propertyBounds));
+
+        BigqueryFilterVisitor parser =
+                new BigqueryFilterVisitor(q, countiesFeatureType, CRS, pregenNone);
+
+        assertEquals("name = 'Wake'", parser.getWhereClause());
+        assertEquals(propertyBounds, parser.getPostFilter());
+    }
+
+    @Test
+    public void testTemporalLiteralNotTime() {
+        Filter after = ff.after(ff.property("date"), ff.literal("not a time"));
+        Filter before =
+                ff.before(ff.property("date"), ff.function("strToLowerCase", ff.property("name")));
+        Query q = new Query("counties", ff.and(after, before));
+
+        BigqueryFilterVisitor parser =
+                new BigqueryFilterVisitor(q, countiesFeatureType, CRS, pregenNone);
+
+        assertEquals("TRUE", parser.getWhereClause());
+        assertEquals(ff.and(after, before), parser.getPostFilter());
+    }
+
+    @Test
+    public void testDateColumnLiteral() {
+        SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+        builder.init(countiesFeatureType);
+        builder.remove("date");
+        builder.userData("bigqueryType", "DATE");
+        builder.add("date", Date.class);
+        SimpleFeatureType type = builder.buildFeatureType();
+
+        Query q =
+                new Query(
+                        "counties",
+                        ff.equals(ff.property("date"), ff.literal(new Date(1672552800000L))));
+        BigqueryFilterVisitor parser = new BigqueryFilterVisitor(q, type, CRS, pregenNone);
+
+        assertEquals("date = CAST('2023-01-01' AS DATE)", parser.getWhereClause());
+        assertEquals(QueryParameterValue.date("2023-01-01"), parser.getQueryParameters().get("p0"));
+    }
+
+    @Test
+    public void testNestedLogicalFilter() {
+        Filter filter =
+                ff.and(
+                        ff.or(
+                                ff.equals(ff.property("name"), ff.literal("Wake")),
+                                ff.equals(ff.property("name"), ff.literal("Durham"))),
+                        ff.greater(ff.property("population"), ff.literal(10)));
+        Query q = new Query("counties", filter);
+
+        BigqueryFilterVisitor parser =
+                new BigqueryFilterVisitor(q, countiesFeatureType, CRS, pregenNone);
+
+        assertEquals(
+                "( name = 'Wake' OR name = 'Durham' ) AND population > 10",
                 parser.getWhereClause());
     }
+
+    @Test
+    public void testOptimizedGuard() throws ParseException {
+        Geometry geom = new WKTReader().read("POLYGON((-80 0, -75 0, -75 1, -80 1, -80 0))");
+        Query q = new Query("counties", ff.intersects(ff.property("geom"), ff.literal(geom)));
+
+        BigqueryFilterVisitor parser =
+                new BigqueryFilterVisitor(
+                        q,
+                        countiesFeatureType,
+                        CRS,
+                        BigqueryPregenerateOptions.MV_USE_EXISTING,
+                        null,
+                        BigqueryFilterVisitor.CAPABILITIES,
+                        true);
+
+        // the guard does not trigger simplification
+        assertEquals(0, parser.getSimplifyTolerance());
+        assertEquals(
+                "ST_INTERSECTSBOX(geom, @p0, @p1, @p2, @p3) AND "
+                        + "ST_INTERSECTS(geom, ST_GEOGFROMWKB(@p4, make_valid => TRUE))",
+                parser.getParameterizedWhereClause());
+    }
+
+    private SimpleFeatureType keyedFeatureType(
+            String column, String bigqueryType, BigqueryFeatureIds.Encoding encoding) {
+        SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+        builder.init(countiesFeatureType);
+        Class<?> binding = countiesFeatureType.getDescriptor(column).getType().getBinding();
+        builder.remove(column);
+        builder.userData("bigqueryType", bigqueryType);
+        builder.userData(BigqueryFeatureIds.USER_DATA_KEY, encoding.name());
+        builder.add(column, binding);
+        return builder.buildFeatureType();
+    }
+
+    @Test
+    public void testIdFilter() {
+        SimpleFeatureType type =
+                keyedFeatureType("name", "STRING", BigqueryFeatureIds.Encoding.VALUE);
+        Query q = new Query("counties", ff.id(ff.featureId("counties.Wake")));
+
+        BigqueryFilterVisitor parser = new BigqueryFilterVisitor(q, type, CRS, pregenNone);
+
+        assertEquals(Filter.INCLUDE, parser.getPostFilter());
+        assertEquals("name IN ('Wake')", parser.getWhereClause());
+        assertEquals("name IN UNNEST(@p0)", parser.getParameterizedWhereClause());
+        assertEquals(
+                QueryParameterValue.array(new String[] {"Wake"}, String.class),
+                parser.getQueryParameters().get("p0"));
+    }
+
+    @Test
+    public void testHashedIdFilter() {
+        SimpleFeatureType type =
+                keyedFeatureType(
+                        "population", "INT64", BigqueryFeatureIds.Encoding.FARM_FINGERPRINT);
+        Query q =
+                new Query(
+                        "counties",
+                        ff.id(
+                                ff.featureId("counties.-1541654101129638711"),
+                                ff.featureId("counties.Wake")));
+
+        BigqueryFilterVisitor parser = new BigqueryFilterVisitor(q, type, CRS, pregenNone);
+
+        // keys that are not fingerprints match no row
+        assertEquals(
+                "FARM_FINGERPRINT(CAST(population AS STRING)) IN (-1541654101129638711)",
+                parser.getWhereClause());
+    }
+
+    @Test
+    public void testPieceIdFilter() {
+        SimpleFeatureType type =
+                keyedFeatureType("population", "INT64", BigqueryFeatureIds.Encoding.VALUE);
+        Query q =
+                new Query(
+                        "counties",
+                        ff.id(
+                                ff.featureId("counties.1129410.4_5"),
+                                ff.featureId("counties.1129410.4_6")));
+
+        BigqueryViewProvisioner provisioner =
+                new BigqueryViewProvisioner(null, "test", pregenNone, null, null, null);
+        provisioner.setPyramid(
+                BigqueryPyramidOptions.PYRAMID_USE_EXISTING, Arrays.asList(4, 8), false);
+        BigqueryFilterVisitor parser =
+                new BigqueryFilterVisitor(q, type, CRS, pregenNone, provisioner);
+
+        // the pieces are fetched as the row they were cut from
+        assertEquals("population IN (1129410)", parser.getWhereClause());
+        assertEquals(Filter.INCLUDE, parser.getPostFilter());
+
+        // without pieces the cell is part of the key, which is no INT64
+        parser = new BigqueryFilterVisitor(q, type, CRS, pregenNone);
+        assertEquals("FALSE", parser.getWhereClause());
+    }
+
+    @Test
+    public void testIdFilterWithoutKey() {
+        Filter filter = ff.id(ff.featureId("3"));
+        Query q = new Query("counties", filter);
+
+        BigqueryFilterVisitor parser =
+                new BigqueryFilterVisitor(q, countiesFeatureType, CRS, pregenNone);
+
+        // row numbers are not stored in the table
+        assertEquals("TRUE", parser.getWhereClause());
+        assertEquals(filter, parser.getPostFilter());
+    }
+
+    @Test
+    public void testSelectKeyColumn() {
+        SimpleFeatureType type =
+                keyedFeatureType("name", "STRING", BigqueryFeatureIds.Encoding.VALUE);
+        Query q = new Query("counties", Filter.INCLUDE, new String[] {"geom", "population"});
+
+        BigqueryFilterVisitor parser = new BigqueryFilterVisitor(q, type, CRS, pregenNone);
+
+        assertEquals(Arrays.asList("geom", "population", "name"), parser.getRequestedColumns());
+        assertEquals("population, name, ST_ASGEOJSON(geom) as geom", parser.getSelectClause(false));
+    }
 }
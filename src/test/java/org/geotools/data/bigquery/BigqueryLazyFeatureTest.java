@@ -0,0 +1,174 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geotools.data.bigquery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.junit.Before;
+import org.junit.Test;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.io.WKTReader;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+public class BigqueryLazyFeatureTest {
+
+    SimpleFeatureType countiesFeatureType;
+    AtomicInteger parsed;
+
+    @Before
+    public void setup() {
+        SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+        builder.setName("counties");
+        builder.setCRS(DefaultGeographicCRS.WGS84);
+        builder.add("geom", Geometry.class);
+        builder.add("name", String.class);
+        builder.add("population", Integer.class);
+        builder.setDefaultGeometry("geom");
+        countiesFeatureType = builder.buildFeatureType();
+
+        parsed = new AtomicInteger();
+    }
+
+    private BigqueryLazyFeature feature(Object... values) {
+        return new BigqueryLazyFeature(
+                values,
+                countiesFeatureType,
+                "counties.1",
+                wkt -> {
+                    parsed.incrementAndGet();
+                    return new WKTReader().read(wkt);
+                },
+                4326);
+    }
+
+    @Test
+    public void testAttributesDecodedOnAccess() {
+        BigqueryLazyFeature feature = feature("POINT(1 2)", "Wake", "1129410");
+
+        assertTrue(feature.isPending(0));
+        assertFalse(feature.isPending(1));
+        assertTrue(feature.isPending(2));
+
+        assertEquals(1129410, feature.getAttribute("population"));
+        assertFalse(feature.isPending(2));
+        assertTrue(feature.isPending(0));
+        assertEquals(0, parsed.get());
+
+        assertEquals("counties.1", feature.getID());
+        assertEquals("Wake", feature.getAttribute(1));
+    }
+
+    @Test
+    public void testGeometryParsedOnce() {
+        BigqueryLazyFeature feature = feature("POINT(1 2)", "Wake", null);
+
+        Point point = (Point) feature.getDefaultGeometry();
+        assertEquals(1, point.getX(), 0);
+        assertEquals(4326, point.getSRID());
+        assertEquals(point, feature.getAttribute("geom"));
+        assertEquals(1, parsed.get());
+        assertNull(feature.getAttribute("population"));
+    }
+
+    @Test
+    public void testBoundsDecodeGeometryOnly() {
+        BigqueryLazyFeature feature = feature("POINT(1 2)", "Wake", "1129410");
+
+        assertEquals(2, feature.getBounds().getMinY(), 0);
+        assertEquals(1, feature.getDefaultGeometryProperty().getBounds().getMinX(), 0);
+        assertFalse(feature.isPending(0));
+        assertTrue(feature.isPending(2));
+        assertEquals(1, parsed.get());
+    }
+
+    @Test
+    public void testCopy() {
+        BigqueryLazyFeature feature = feature("POINT(1 2)", "Wake", "1129410");
+        Point point = (Point) feature.getDefaultGeometry();
+
+        BigqueryLazyFeature copy = feature.copy();
+        assertEquals("counties.1", copy.getID());
+        assertTrue(copy.isPending(2));
+        assertFalse(copy.isPending(0));
+
+        copy.setAttribute(1, "Durham");
+        ((Point) copy.getDefaultGeometry()).getCoordinate().x = 5;
+        assertEquals("Wake", feature.getAttribute(1));
+        assertEquals(1, point.getX(), 0);
+        assertEquals(1, parsed.get());
+    }
+
+    @Test
+    public void testSetGeometryWithoutParsing() throws Exception {
+        BigqueryLazyFeature feature = feature("POINT(1 2)", "Wake", "1");
+        Geometry replacement = new WKTReader().read("POINT(3 4)");
+
+        feature.setDefaultGeometry(replacement);
+
+        assertEquals(replacement, feature.getDefaultGeometry());
+        assertEquals(0, parsed.get());
+    }
+
+    @Test
+    public void testGetAttributesDecodesAll() {
+        BigqueryLazyFeature feature = feature("POINT(1 2)", "Wake", "1");
+
+        assertEquals(Arrays.asList("Wake", 1), feature.getAttributes().subList(1, 3));
+        assertTrue(feature.getAttributes().get(0) instanceof Point);
+        assertEquals(1, parsed.get());
+        assertEquals(1, feature.getBounds().getMinX(), 0);
+    }
+
+    @Test
+    public void testEncodedGeometry() throws Exception {
+        BigqueryLazyFeature feature =
+                new BigqueryLazyFeature(
+                        new Object[] {"POINT(1 2)", "Wake", "1"},
+                        countiesFeatureType,
+                        "counties.1",
+                        wkt -> new WKTReader().read(wkt),
+                        4326,
+                        BigqueryLazyFeature.GeometryEncoding.WKT);
+
+        assertEquals("POINT(1 2)", feature.getEncodedGeometry());
+        assertEquals(BigqueryLazyFeature.GeometryEncoding.WKT, feature.getGeometryEncoding());
+
+        // still parsed when asked for, which keeps the text
+        assertTrue(feature.getDefaultGeometry() instanceof Point);
+        assertEquals("POINT(1 2)", feature.getEncodedGeometry());
+
+        // but not once the geometry is replaced
+        feature.setDefaultGeometry(new WKTReader().read("POINT(3 4)"));
+        assertNull(feature.getEncodedGeometry());
+    }
+
+    @Test
+    public void testEncodedGeometryNotKept() {
+        BigqueryLazyFeature feature = feature("POINT(1 2)", "Wake", "1");
+
+        assertNull(feature.getEncodedGeometry());
+        assertNull(feature.getGeometryEncoding());
+    }
+}
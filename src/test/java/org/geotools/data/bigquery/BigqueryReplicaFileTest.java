@@ -0,0 +1,147 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geotools.data.bigquery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+import org.geotools.data.simple.SimpleFeatureReader;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+public class BigqueryReplicaFileTest {
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    SimpleFeatureType countiesFeatureType;
+    File file;
+
+    @Before
+    public void setup() throws IOException {
+        SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+        builder.setName("counties");
+        builder.setCRS(DefaultGeographicCRS.WGS84);
+        builder.add("geom", Geometry.class);
+        builder.add("name", String.class);
+        builder.add("population", BigInteger.class);
+        builder.add("date", Date.class);
+        builder.setDefaultGeometry("geom");
+        countiesFeatureType = builder.buildFeatureType();
+
+        GeometryFactory gf = new GeometryFactory();
+        SimpleFeatureBuilder featureBuilder = new SimpleFeatureBuilder(countiesFeatureType);
+        file = new File(folder.getRoot(), "counties.bqr");
+
+        try (BigqueryReplicaFile.Writer writer =
+                new BigqueryReplicaFile.Writer(file, countiesFeatureType, 42L)) {
+            // a 10x10 grid of points
+            for (int x = 0; x < 10; x++) {
+                for (int y = 0; y < 10; y++) {
+                    featureBuilder.add(gf.createPoint(new Coordinate(x, y)));
+                    featureBuilder.add("county " + x + "," + y);
+                    featureBuilder.add(BigInteger.valueOf(x * 10 + y));
+                    featureBuilder.add(y == 0 ? null : new Date(1000L * y));
+                    writer.add(featureBuilder.buildFeature(x + "." + y));
+                }
+            }
+            writer.finish();
+        }
+    }
+
+    @Test
+    public void testReadAll() throws IOException {
+        try (BigqueryReplicaFile replica = BigqueryReplicaFile.open(file, countiesFeatureType)) {
+            assertEquals(42L, replica.getLastModifiedTime());
+            assertEquals(100, replica.getCount());
+            assertEquals(new Envelope(0, 9, 0, 9), replica.getBounds());
+
+            Set<String> fids = new HashSet<>();
+            try (SimpleFeatureReader reader = replica.getReader(null)) {
+                while (reader.hasNext()) {
+                    SimpleFeature feature = reader.next();
+                    fids.add(feature.getID());
+                    if (feature.getID().equals("3.4")) {
+                        assertEquals("county 3,4", feature.getAttribute("name"));
+                        assertEquals(BigInteger.valueOf(34), feature.getAttribute("population"));
+                        assertEquals(new Date(4000L), feature.getAttribute("date"));
+                    }
+                    if (feature.getID().endsWith(".0")) {
+                        assertNull(feature.getAttribute("date"));
+                    }
+                }
+            }
+            assertEquals(100, fids.size());
+        }
+    }
+
+    @Test
+    public void testReadEnvelope() throws IOException {
+        try (BigqueryReplicaFile replica = BigqueryReplicaFile.open(file, countiesFeatureType)) {
+            int count = 0;
+            Envelope envelope = new Envelope(1.5, 3.5, 1.5, 2.5);
+            try (SimpleFeatureReader reader = replica.getReader(envelope)) {
+                while (reader.hasNext()) {
+                    Geometry geom = (Geometry) reader.next().getDefaultGeometry();
+                    assertTrue(geom.getEnvelopeInternal().intersects(envelope));
+                    count++;
+                }
+            }
+            // x in {2, 3}, y = 2
+            assertEquals(2, count);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testSchemaMismatch() throws IOException {
+        SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+        builder.setName("counties");
+        builder.add("geom", Geometry.class);
+        builder.add("name", String.class);
+        BigqueryReplicaFile.open(file, builder.buildFeatureType());
+    }
+
+    @Test
+    public void testHilbert() {
+        // the curve visits the four quadrants of a 2x2 grid in order
+        assertEquals(0, BigqueryReplicaFile.hilbert(2, 0, 0));
+        assertEquals(1, BigqueryReplicaFile.hilbert(2, 0, 1));
+        assertEquals(2, BigqueryReplicaFile.hilbert(2, 1, 1));
+        assertEquals(3, BigqueryReplicaFile.hilbert(2, 1, 0));
+        assertFalse(
+                BigqueryReplicaFile.hilbert(1 << 16, 0, 0)
+                        == BigqueryReplicaFile.hilbert(1 << 16, 1, 0));
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geotools.data.bigquery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class BigqueryRequestCoalescerTest {
+
+    private static final List<Integer> ROWS = Arrays.asList(1, 2, 3, 4, 5);
+
+    private final AtomicInteger executions = new AtomicInteger();
+
+    private Iterator<Integer> execute() {
+        executions.incrementAndGet();
+        return ROWS.iterator();
+    }
+
+    private static List<Integer> readAll(Iterator<Integer> rows) {
+        List<Integer> result = new ArrayList<>();
+        rows.forEachRemaining(result::add);
+        return result;
+    }
+
+    @Test
+    public void testNormalize() {
+        assertEquals(
+                "SELECT * FROM `t` WHERE TRUE",
+                BigqueryRequestCoalescer.normalize(" SELECT *\n  FROM `t`\tWHERE TRUE "));
+    }
+
+    @Test
+    public void testCoalesce() {
+        BigqueryRequestCoalescer coalescer = new BigqueryRequestCoalescer(100);
+
+        BigqueryRequestCoalescer.CloseableIterator<Integer> first =
+                coalescer.execute("sql", this::execute);
+        assertEquals(Integer.valueOf(1), first.next());
+
+        // joins the request in flight, and replays the rows already read
+        BigqueryRequestCoalescer.CloseableIterator<Integer> second =
+                coalescer.execute("sql", this::execute);
+        BigqueryRequestCoalescer.CloseableIterator<Integer> other =
+                coalescer.execute("other sql", this::execute);
+
+        assertEquals(Arrays.asList(2, 3, 4, 5), readAll(first));
+        assertEquals(ROWS, readAll(second));
+        assertEquals(ROWS, readAll(other));
+        first.close();
+        second.close();
+        other.close();
+
+        assertEquals(2, executions.get());
+        assertEquals(3, coalescer.getRequests());
+        assertEquals(1, coalescer.getCoalesced());
+
+        // once finished, the request runs again
+        assertEquals(ROWS, readAll(coalescer.execute("sql", this::execute)));
+        assertEquals(3, executions.get());
+    }
+
+    @Test
+    public void testBufferExceeded() {
+        BigqueryRequestCoalescer coalescer = new BigqueryRequestCoalescer(2);
+
+        BigqueryRequestCoalescer.CloseableIterator<Integer> first =
+                coalescer.execute("sql", this::execute);
+        first.next();
+        first.next();
+        first.next();
+
+        // rows can no longer be replayed from the start, so a new request runs
+        BigqueryRequestCoalescer.CloseableIterator<Integer> second =
+                coalescer.execute("sql", this::execute);
+        assertEquals(ROWS, readAll(second));
+        assertEquals(Arrays.asList(4, 5), readAll(first));
+        assertEquals(2, executions.get());
+        assertEquals(0, coalescer.getCoalesced());
+    }
+
+    @Test
+    public void testSlowReaderCatchesUp() throws Exception {
+        BigqueryRequestCoalescer coalescer = new BigqueryRequestCoalescer(2, 10000);
+
+        BigqueryRequestCoalescer.CloseableIterator<Integer> first =
+                coalescer.execute("sql", this::execute);
+        BigqueryRequestCoalescer.CloseableIterator<Integer> second =
+                coalescer.execute("sql", this::execute);
+
+        // the first reader waits for the second one whenever the buffer is full
+        CompletableFuture<List<Integer>> fast = CompletableFuture.supplyAsync(() -> readAll(first));
+        List<Integer> slow = new ArrayList<>();
+        while (second.hasNext()) {
+            Thread.sleep(10);
+            slow.add(second.next());
+        }
+
+        assertEquals(ROWS, fast.get(10, TimeUnit.SECONDS));
+        assertEquals(ROWS, slow);
+        assertEquals(1, executions.get());
+        first.close();
+        second.close();
+    }
+
+    @Test
+    public void testStalledReaderDetached() {
+        BigqueryRequestCoalescer coalescer = new BigqueryRequestCoalescer(2, 10);
+
+        BigqueryRequestCoalescer.CloseableIterator<Integer> first =
+                coalescer.execute("sql", this::execute);
+        BigqueryRequestCoalescer.CloseableIterator<Integer> stalled =
+                coalescer.execute("sql", this::execute);
+
+        // the stalled reader does not hold more than 2 rows in memory
+        assertEquals(ROWS, readAll(first));
+        assertEquals(1, executions.get());
+
+        // it had not read anything yet, so it runs the request on its own
+        assertEquals(ROWS, readAll(stalled));
+        assertEquals(2, executions.get());
+        first.close();
+        stalled.close();
+    }
+
+    @Test
+    public void testStalledReaderResumes() {
+        BigqueryRequestCoalescer coalescer = new BigqueryRequestCoalescer(2, 10);
+
+        BigqueryRequestCoalescer.CloseableIterator<Integer> first =
+                coalescer.execute("sql", this::execute, true);
+        BigqueryRequestCoalescer.CloseableIterator<Integer> stalled =
+                coalescer.execute("sql", this::execute, true);
+        assertEquals(Integer.valueOf(1), stalled.next());
+
+        assertEquals(ROWS, readAll(first));
+        assertEquals(1, executions.get());
+
+        // runs the repeatable request on its own, skipping the row it already read
+        assertEquals(ROWS.subList(1, ROWS.size()), readAll(stalled));
+        assertEquals(2, executions.get());
+        first.close();
+        stalled.close();
+    }
+
+    @Test
+    public void testStartedReaderNotDetached() throws Exception {
+        BigqueryRequestCoalescer coalescer = new BigqueryRequestCoalescer(2, 10);
+
+        BigqueryRequestCoalescer.CloseableIterator<Integer> first =
+                coalescer.execute("sql", this::execute);
+        BigqueryRequestCoalescer.CloseableIterator<Integer> stalled =
+                coalescer.execute("sql", this::execute);
+        assertEquals(Integer.valueOf(1), stalled.next());
+
+        // rows of a new run might come in another order, so the first reader keeps waiting
+        CompletableFuture<List<Integer>> fast = CompletableFuture.supplyAsync(() -> readAll(first));
+        Thread.sleep(100);
+        assertFalse(fast.isDone());
+
+        List<Integer> slow = new ArrayList<>(Arrays.asList(1));
+        slow.addAll(readAll(stalled));
+        assertEquals(ROWS, slow);
+        assertEquals(ROWS, fast.get(10, TimeUnit.SECONDS));
+        assertEquals(1, executions.get());
+        first.close();
+        stalled.close();
+    }
+
+    @Test
+    public void testFailure() {
+        BigqueryRequestCoalescer coalescer = new BigqueryRequestCoalescer(100);
+        BigqueryRequestCoalescer.Request<Integer> failing =
+                () -> {
+                    throw new IOException("job failed");
+                };
+
+        BigqueryRequestCoalescer.CloseableIterator<Integer> first =
+                coalescer.execute("sql", failing);
+        BigqueryRequestCoalescer.CloseableIterator<Integer> second =
+                coalescer.execute("sql", failing);
+
+        for (Iterator<Integer> rows : Arrays.asList(first, second)) {
+            try {
+                rows.hasNext();
+                assertFalse("expected failure", true);
+            } catch (UncheckedIOException e) {
+                assertEquals("job failed", e.getCause().getCause().getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geotools.data.bigquery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.junit.Before;
+import org.junit.Test;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKTReader;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+
+public class BigqueryResidualFilterTest {
+
+    SimpleFeatureType countiesFeatureType;
+    FilterFactory2 ff;
+    Geometry square;
+
+    @Before
+    public void setup() throws ParseException {
+        SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+        builder.setName("counties");
+        builder.setCRS(DefaultGeographicCRS.WGS84);
+        builder.add("geom", Geometry.class);
+        builder.add("name", String.class);
+        builder.setDefaultGeometry("geom");
+        countiesFeatureType = builder.buildFeatureType();
+
+        ff = CommonFactoryFinder.getFilterFactory2(null);
+        square = new WKTReader().read("POLYGON((0 0, 10 0, 10 10, 0 10, 0 0))");
+    }
+
+    private SimpleFeature feature(String wkt, String name) throws ParseException {
+        SimpleFeatureBuilder builder = new SimpleFeatureBuilder(countiesFeatureType);
+        builder.add(new WKTReader().read(wkt));
+        builder.add(name);
+        return builder.buildFeature(name);
+    }
+
+    @Test
+    public void testInclude() {
+        assertNull(BigqueryResidualFilter.create(Filter.INCLUDE));
+    }
+
+    @Test
+    public void testIntersects() throws ParseException {
+        BigqueryResidualFilter filter =
+                BigqueryResidualFilter.create(
+                        ff.intersects(ff.property("geom"), ff.literal(square)));
+
+        assertTrue(filter.test(feature("POINT(5 5)", "inside")));
+        assertTrue(filter.test(feature("LINESTRING(-5 5, 5 5)", "crossing")));
+        assertFalse(filter.test(feature("POINT(15 5)", "outside")));
+    }
+
+    @Test
+    public void testContainsAndWithin() throws ParseException {
+        SimpleFeature inside = feature("POINT(5 5)", "inside");
+        SimpleFeature around = feature("POLYGON((-1 -1, 11 -1, 11 11, -1 11, -1 -1))", "around");
+
+        BigqueryResidualFilter within =
+                BigqueryResidualFilter.create(ff.within(ff.property("geom"), ff.literal(square)));
+        assertTrue(within.test(inside));
+        assertFalse(within.test(around));
+
+        BigqueryResidualFilter contains =
+                BigqueryResidualFilter.create(ff.contains(ff.property("geom"), ff.literal(square)));
+        assertFalse(contains.test(inside));
+        assertTrue(contains.test(around));
+
+        // operands swapped
+        BigqueryResidualFilter literalContains =
+                BigqueryResidualFilter.create(ff.contains(ff.literal(square), ff.property("geom")));
+        assertTrue(literalContains.test(inside));
+        assertFalse(literalContains.test(around));
+    }
+
+    @Test
+    public void testCombined() throws ParseException {
+        Filter filter =
+                ff.and(
+                        ff.not(ff.disjoint(ff.property("geom"), ff.literal(square))),
+                        ff.or(
+                                ff.equals(ff.property("name"), ff.literal("Wake")),
+                                ff.bbox("geom", 8, 8, 20, 20, "EPSG:4326")));
+        BigqueryResidualFilter residual = BigqueryResidualFilter.create(filter);
+
+        assertEquals(filter, residual.getFilter());
+        assertTrue(residual.test(feature("POINT(1 1)", "Wake")));
+        assertFalse(residual.test(feature("POINT(1 1)", "Durham")));
+        assertTrue(residual.test(feature("POINT(9 9)", "Durham")));
+        assertFalse(residual.test(feature("POINT(15 15)", "Wake")));
+    }
+}
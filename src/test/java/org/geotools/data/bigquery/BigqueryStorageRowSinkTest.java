@@ -0,0 +1,250 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geotools.data.bigquery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.SettableApiFuture;
+import com.google.cloud.bigquery.TableId;
+import com.google.cloud.bigquery.storage.v1.AppendRowsResponse;
+import com.google.cloud.bigquery.storage.v1.BatchCommitWriteStreamsRequest;
+import com.google.cloud.bigquery.storage.v1.BatchCommitWriteStreamsResponse;
+import com.google.cloud.bigquery.storage.v1.CreateWriteStreamRequest;
+import com.google.cloud.bigquery.storage.v1.StorageError;
+import com.google.cloud.bigquery.storage.v1.WriteStream;
+import com.google.protobuf.Timestamp;
+import com.google.rpc.Status;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.json.JSONArray;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BigqueryStorageRowSinkTest {
+
+    static final TableId TABLE = TableId.of("project", "dataset", "counties");
+
+    static final String STREAM = "projects/project/datasets/dataset/tables/counties/streams/s1";
+
+    FakeWriteService service;
+
+    /** Records the calls of a sink, and completes its appends when told to. */
+    static class FakeWriteService implements BigqueryStorageRowSink.WriteService {
+        CreateWriteStreamRequest created;
+        List<JSONArray> appended = new ArrayList<>();
+        List<Long> offsets = new ArrayList<>();
+        List<SettableApiFuture<AppendRowsResponse>> responses = new ArrayList<>();
+        String finalized;
+        BatchCommitWriteStreamsRequest committed;
+        BatchCommitWriteStreamsResponse commitResponse =
+                BatchCommitWriteStreamsResponse.newBuilder()
+                        .setCommitTime(Timestamp.newBuilder().setSeconds(1))
+                        .build();
+        boolean closed = false;
+
+        @Override
+        public WriteStream createWriteStream(CreateWriteStreamRequest request) {
+            created = request;
+            return WriteStream.newBuilder()
+                    .setName(STREAM)
+                    .setType(request.getWriteStream().getType())
+                    .build();
+        }
+
+        @Override
+        public ApiFuture<AppendRowsResponse> append(JSONArray rows, long offset) {
+            SettableApiFuture<AppendRowsResponse> response = SettableApiFuture.create();
+            appended.add(rows);
+            offsets.add(offset);
+            responses.add(response);
+            return response;
+        }
+
+        @Override
+        public void finalizeWriteStream(String name) {
+            finalized = name;
+        }
+
+        @Override
+        public BatchCommitWriteStreamsResponse batchCommitWriteStreams(
+                BatchCommitWriteStreamsRequest request) {
+            committed = request;
+            return commitResponse;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        void complete(int append) {
+            responses.get(append).set(AppendRowsResponse.getDefaultInstance());
+        }
+
+        void completeAll() {
+            for (int i = 0; i < responses.size(); i++) {
+                complete(i);
+            }
+        }
+    }
+
+    @Before
+    public void setup() {
+        service = new FakeWriteService();
+    }
+
+    private static List<Map<String, Object>> rows(String... names) {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (String name : names) {
+            rows.add(Collections.singletonMap("name", name));
+        }
+        return rows;
+    }
+
+    @Test
+    public void testOffsets() throws IOException {
+        BigqueryStorageRowSink sink =
+                new BigqueryStorageRowSink(service, TABLE, BigqueryWriteStreamType.COMMITTED);
+        assertEquals(
+                "projects/project/datasets/dataset/tables/counties", service.created.getParent());
+        assertEquals(WriteStream.Type.COMMITTED, service.created.getWriteStream().getType());
+
+        sink.append(rows("Wake", "Durham"));
+        sink.append(rows("Orange"));
+        sink.append(rows("Dare", "Guilford", "Chatham"));
+
+        // sent without waiting for the previous appends
+        assertEquals(Arrays.asList(0L, 2L, 3L), service.offsets);
+        assertEquals("Orange", service.appended.get(1).getJSONObject(0).getString("name"));
+
+        service.completeAll();
+        sink.commit();
+        sink.close();
+        assertNull(service.finalized);
+        assertNull(service.committed);
+        assertTrue(service.closed);
+    }
+
+    @Test
+    public void testInFlightLimit() throws Exception {
+        BigqueryStorageRowSink sink =
+                new BigqueryStorageRowSink(service, TABLE, BigqueryWriteStreamType.COMMITTED);
+        for (int i = 0; i < BigqueryStorageRowSink.MAX_APPENDS_IN_FLIGHT; i++) {
+            sink.append(rows("Wake"));
+        }
+        // the oldest append completed, so the next one is sent right away
+        service.complete(0);
+        sink.append(rows("Durham"));
+        assertEquals(BigqueryStorageRowSink.MAX_APPENDS_IN_FLIGHT + 1, service.appended.size());
+    }
+
+    @Test
+    public void testPendingCommit() throws IOException {
+        BigqueryStorageRowSink sink =
+                new BigqueryStorageRowSink(service, TABLE, BigqueryWriteStreamType.PENDING);
+        assertEquals(WriteStream.Type.PENDING, service.created.getWriteStream().getType());
+
+        sink.append(rows("Wake"));
+        service.completeAll();
+        sink.commit();
+
+        assertEquals(STREAM, service.finalized);
+        assertEquals(
+                "projects/project/datasets/dataset/tables/counties",
+                service.committed.getParent());
+        assertEquals(Collections.singletonList(STREAM), service.committed.getWriteStreamsList());
+    }
+
+    @Test
+    public void testCommitErrors() throws IOException {
+        service.commitResponse =
+                BatchCommitWriteStreamsResponse.newBuilder()
+                        .addStreamErrors(
+                                StorageError.newBuilder()
+                                        .setEntity(STREAM)
+                                        .setErrorMessage("stream not finalized"))
+                        .build();
+        BigqueryStorageRowSink sink =
+                new BigqueryStorageRowSink(service, TABLE, BigqueryWriteStreamType.PENDING);
+        sink.append(rows("Wake"));
+        service.completeAll();
+        try {
+            sink.commit();
+            fail("Expected the commit to fail");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("stream not finalized"));
+        }
+    }
+
+    @Test
+    public void testResponseError() throws IOException {
+        BigqueryStorageRowSink sink =
+                new BigqueryStorageRowSink(service, TABLE, BigqueryWriteStreamType.PENDING);
+        sink.append(rows("Wake"));
+        service.responses
+                .get(0)
+                .set(
+                        AppendRowsResponse.newBuilder()
+                                .setError(Status.newBuilder().setCode(3).setMessage("bad row"))
+                                .build());
+        try {
+            sink.commit();
+            fail("Expected the commit to fail");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("bad row"));
+        }
+        assertNull(service.committed);
+    }
+
+    @Test
+    public void testFailureReportedByNextAppend() throws IOException {
+        BigqueryStorageRowSink sink =
+                new BigqueryStorageRowSink(service, TABLE, BigqueryWriteStreamType.PENDING);
+        sink.append(rows("Wake"));
+        sink.append(rows("Durham"));
+        RuntimeException cause = new RuntimeException("connection reset");
+        service.responses.get(0).setException(cause);
+
+        // noticed without waiting for the append still in flight
+        try {
+            sink.append(rows("Orange"));
+            fail("Expected the append to fail");
+        } catch (IOException e) {
+            assertEquals(cause, e.getCause());
+        }
+        assertEquals(2, service.appended.size());
+        assertFalse(service.responses.get(1).isDone());
+
+        // and every later call fails the same way
+        try {
+            sink.commit();
+            fail("Expected the commit to fail");
+        } catch (IOException e) {
+            assertEquals(cause, e.getCause());
+        }
+        assertNull(service.finalized);
+    }
+}
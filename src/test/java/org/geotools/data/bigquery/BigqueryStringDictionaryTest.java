@@ -0,0 +1,79 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geotools.data.bigquery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.avro.util.Utf8;
+import org.junit.Test;
+
+public class BigqueryStringDictionaryTest {
+
+    @Test
+    public void testInternUtf8() {
+        BigqueryStringDictionary dictionary = new BigqueryStringDictionary(10);
+
+        String first = dictionary.intern("state", new Utf8("NC"));
+        String second = dictionary.intern("state", new Utf8("NC"));
+
+        assertEquals("NC", first);
+        assertSame(first, second);
+        assertNull(dictionary.intern("state", null));
+    }
+
+    @Test
+    public void testInternString() {
+        BigqueryStringDictionary dictionary = new BigqueryStringDictionary(10);
+
+        String first = dictionary.intern("state", new String("NC"));
+        assertSame(first, dictionary.intern("state", new String("NC")));
+    }
+
+    @Test
+    public void testReusedUtf8() {
+        BigqueryStringDictionary dictionary = new BigqueryStringDictionary(10);
+
+        Utf8 value = new Utf8("NC");
+        String first = dictionary.intern("state", value);
+        value.set("VA");
+
+        assertEquals("VA", dictionary.intern("state", value));
+        assertSame(first, dictionary.intern("state", new Utf8("NC")));
+    }
+
+    @Test
+    public void testHighCardinalityColumn() {
+        BigqueryStringDictionary dictionary = new BigqueryStringDictionary(2);
+
+        dictionary.intern("name", "a");
+        dictionary.intern("name", "b");
+        assertTrue(dictionary.isInterned("name"));
+
+        dictionary.intern("name", "c");
+        assertFalse(dictionary.isInterned("name"));
+        assertNotSame(dictionary.intern("name", new String("a")), dictionary.intern("name", "a"));
+
+        // other columns are not affected
+        String state = dictionary.intern("state", "NC");
+        assertSame(state, dictionary.intern("state", new String("NC")));
+    }
+}
@@ -17,10 +17,21 @@
 package org.geotools.data.bigquery;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.sql.Timestamp;
+import java.util.Date;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.referencing.crs.DefaultGeographicCRS;
 import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.MultiPolygon;
 
 public class BigqueryUtilTest {
 
@@ -68,4 +79,76 @@ public class BigqueryUtilTest {
         assertArrayEquals(new Double[] {0d, 0d, 0d, 0d}, e9);
         assertArrayEquals(new Double[] {-75.0, -5.0, -65.0, 5.0}, e10);
     }
+
+    @Test
+    public void testGeodesicLatitudeRange() {
+        // the geodesic between two points at 45N bulges north
+        double[] range =
+                BigqueryUtil.getGeodesicLatitudeRange(
+                        new Coordinate(-100, 45), new Coordinate(0, 45));
+        assertEquals(45, range[0], 1e-9);
+        assertEquals(57.2676, range[1], 1e-4);
+
+        // meridians and the equator are straight
+        assertArrayEquals(
+                new double[] {0, 10},
+                BigqueryUtil.getGeodesicLatitudeRange(new Coordinate(0, 0), new Coordinate(0, 10)),
+                1e-9);
+        assertArrayEquals(
+                new double[] {0, 0},
+                BigqueryUtil.getGeodesicLatitudeRange(
+                        new Coordinate(-10, 0), new Coordinate(10, 0)),
+                1e-9);
+    }
+
+    @Test
+    public void testWktEnvelope() {
+        assertEquals(
+                new Envelope(-80, -75, -1.5, 1e-3),
+                BigqueryUtil.getWktEnvelope(
+                        "MULTIPOLYGON(((-80 0, -75 0, -75 1e-3, -80 0)), "
+                                + "((-78 -1.5, -77 -1, -78 -1.5)))"));
+        assertEquals(new Envelope(1, 1, 2, 2), BigqueryUtil.getWktEnvelope("POINT Z (1 2 3)"));
+        assertTrue(BigqueryUtil.getWktEnvelope("POLYGON EMPTY").isNull());
+    }
+
+    @Test
+    public void testWktGeometryClass() {
+        assertEquals(LineString.class, BigqueryUtil.getWktGeometryClass("LINESTRING(0 0, 1 1)"));
+        assertEquals(MultiPolygon.class, BigqueryUtil.getGeometryClass("MultiPolygon"));
+        assertEquals(Geometry.class, BigqueryUtil.getWktGeometryClass("CURVE(0 0, 1 1)"));
+    }
+
+    @Test
+    public void testTimestamp() {
+        Timestamp timestamp = BigqueryUtil.getTimestamp(1672531200123456L);
+        assertEquals(1672531200123L, timestamp.getTime());
+        assertEquals(123456000, timestamp.getNanos());
+
+        // before the epoch, the fraction still counts forward
+        Timestamp before = BigqueryUtil.getTimestamp(-1L);
+        assertEquals(-1L, before.getTime());
+        assertEquals(999999000, before.getNanos());
+
+        // and back, as written
+        assertEquals(1672531200123456L, BigqueryUtil.getMicros(timestamp));
+        assertEquals(-1L, BigqueryUtil.getMicros(before));
+        assertEquals(1672531200123000L, BigqueryUtil.getMicros(new Date(1672531200123L)));
+    }
+
+    @Test
+    public void testDecimal() {
+        BigDecimal value = new BigDecimal("-12345.678900000");
+        ByteBuffer bytes = ByteBuffer.wrap(value.unscaledValue().toByteArray());
+
+        assertEquals(value, BigqueryUtil.getDecimal(bytes, 9));
+        assertEquals(bytes.remaining(), value.unscaledValue().toByteArray().length);
+    }
+
+    @Test
+    public void testQuoteString() {
+        assertEquals("'Wake'", BigqueryUtil.quoteString("Wake"));
+        assertEquals("'O\\'Brien'", BigqueryUtil.quoteString("O'Brien"));
+        assertEquals("'a\\\\b\\nc'", BigqueryUtil.quoteString("a\\b\nc"));
+    }
 }
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geotools.data.bigquery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import org.junit.Test;
+
+public class BigqueryViewProvisionerTest {
+
+    private static final String TABLE = "bigquery-geotools.test.counties";
+
+    @Test
+    public void testParseTolerances() {
+        assertEquals(
+                BigqueryViewProvisioner.DEFAULT_TOLERANCES,
+                BigqueryViewProvisioner.parseTolerances(null));
+        assertEquals(
+                BigqueryViewProvisioner.DEFAULT_TOLERANCES,
+                BigqueryViewProvisioner.parseTolerances(" "));
+        assertEquals(
+                Arrays.asList(5, 50, 500), BigqueryViewProvisioner.parseTolerances("5, 50,500"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseInvalidTolerances() {
+        BigqueryViewProvisioner.parseTolerances("10,-1");
+    }
+
+    @Test
+    public void testGetReadyView() {
+        BigqueryViewProvisioner provisioner =
+                new BigqueryViewProvisioner(
+                        null,
+                        "test",
+                        BigqueryPregenerateOptions.MV_PREGEN_ALL,
+                        Arrays.asList(1000, 10, 100),
+                        null,
+                        null);
+
+        // nothing is ready, so the base table is used
+        assertNull(provisioner.getReadyView(TABLE, 100));
+        assertEquals(BigqueryViewProvisioner.Status.PENDING, provisioner.getStatus(TABLE, 100));
+
+        provisioner.setStatus(TABLE + "_pregen_10m", BigqueryViewProvisioner.Status.READY);
+        provisioner.setStatus(TABLE + "_pregen_100m", BigqueryViewProvisioner.Status.FAILED);
+
+        assertEquals(TABLE + "_pregen_10m", provisioner.getReadyView(TABLE, 100));
+        assertEquals(TABLE + "_pregen_10m", provisioner.getReadyView(TABLE, 5000));
+        assertNull(provisioner.getReadyView(TABLE, 1));
+
+        provisioner.setStatus(TABLE + "_pregen_1000m", BigqueryViewProvisioner.Status.READY);
+        assertEquals(TABLE + "_pregen_1000m", provisioner.getReadyView(TABLE, 5000));
+    }
+
+    @Test
+    public void testParseZoomLevels() {
+        assertEquals(
+                BigqueryViewProvisioner.DEFAULT_ZOOM_LEVELS,
+                BigqueryViewProvisioner.parseZoomLevels(""));
+        assertEquals(Arrays.asList(0, 14), BigqueryViewProvisioner.parseZoomLevels("0,14"));
+    }
+
+    @Test
+    public void testGetReadyPyramidZoom() {
+        BigqueryViewProvisioner provisioner =
+                new BigqueryViewProvisioner(
+                        null, "test", BigqueryPregenerateOptions.MV_NONE, null, null, null);
+        provisioner.setPyramid(
+                BigqueryPyramidOptions.PYRAMID_PREGEN_ALL, Arrays.asList(12, 6), false);
+
+        assertNull(provisioner.getReadyPyramidZoom(TABLE, 14));
+
+        provisioner.setStatus(TABLE + "_pyramid_z6", BigqueryViewProvisioner.Status.READY);
+        assertEquals(Integer.valueOf(6), provisioner.getReadyPyramidZoom(TABLE, 14));
+        assertNull(provisioner.getReadyPyramidZoom(TABLE, 5));
+
+        provisioner.setStatus(TABLE + "_pyramid_z12", BigqueryViewProvisioner.Status.READY);
+        assertEquals(Integer.valueOf(12), provisioner.getReadyPyramidZoom(TABLE, 14));
+        assertEquals(Integer.valueOf(6), provisioner.getReadyPyramidZoom(TABLE, 11));
+    }
+
+    @Test
+    public void testCreatePyramidSql() {
+        BigqueryViewProvisioner provisioner =
+                new BigqueryViewProvisioner(
+                        null, "test", BigqueryPregenerateOptions.MV_NONE, null, null, null);
+
+        String sql = provisioner.getCreatePyramidSql(TABLE, "geom", 2);
+
+        assertTrue(sql.startsWith("create or replace table `" + TABLE + "_pyramid_z2` "));
+        assertTrue(sql.contains("cluster by cell_x, cell_y, geom "));
+        // pieces of a row share the fingerprint of the row, not only of its geometry
+        assertTrue(sql.contains("farm_fingerprint(to_json_string(t)) as source_id"));
+        assertTrue(sql.contains("from `" + TABLE + "` as t where geom is not null"));
+        assertTrue(sql.contains("st_intersection(geom, cell) as geom"));
+        // 4 columns of 90 degree cells
+        assertTrue(sql.contains("mod(cell_x, 4) * 90.0 - 180 as x0"));
+        assertEquals(90d, BigqueryViewProvisioner.getPyramidCellSize(2), 0);
+    }
+
+    @Test
+    public void testCreateViewSql() {
+        BigqueryViewProvisioner provisioner =
+                new BigqueryViewProvisioner(
+                        null, "test", BigqueryPregenerateOptions.MV_PREGEN_ALL, null, null, null);
+
+        assertEquals(
+                "create materialized view if not exists `" + TABLE + "_pregen_10m` "
+                        + "cluster by geom as ("
+                        + "select * except(geom), "
+                        + "st_simplify(geom, 10) as geom, "
+                        + "st_asgeojson(st_simplify(geom, 10)) as geom_geojson "
+                        + "from `" + TABLE + "`)",
+                provisioner.getCreateViewSql(TABLE, "geom", 10));
+
+        provisioner =
+                new BigqueryViewProvisioner(
+                        null, "test", BigqueryPregenerateOptions.MV_PREGEN_ALL, null, 60, 90);
+
+        assertEquals(
+                "create materialized view if not exists `" + TABLE + "_pregen_1m` "
+                        + "cluster by geom "
+                        + "options (enable_refresh = true, refresh_interval_minutes = 60, "
+                        + "max_staleness = INTERVAL \"1:30:0\" HOUR TO SECOND) as ("
+                        + "select * except(geom), "
+                        + "st_simplify(geom, 1) as geom, "
+                        + "st_asgeojson(st_simplify(geom, 1)) as geom_geojson "
+                        + "from `" + TABLE + "`)",
+                provisioner.getCreateViewSql(TABLE, "geom", 1));
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.geotools.data.bigquery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.geom.AffineTransform;
+import org.geotools.referencing.operation.transform.AffineTransform2D;
+import org.junit.Test;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.geom.impl.PackedCoordinateSequence;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKTReader;
+import org.opengis.referencing.operation.MathTransform;
+
+public class BigqueryWktParserTest {
+
+    private static final GeometryFactory DOUBLE_FACTORY =
+            new GeometryFactory(
+                    BigqueryPrecisionOptions.BIGQUERY_NATIVE_PRECISION
+                            .getCoordinateSequenceFactory());
+
+    private static final GeometryFactory FLOAT_FACTORY =
+            new GeometryFactory(
+                    BigqueryPrecisionOptions.METER_PRECISION.getCoordinateSequenceFactory());
+
+    private static void assertParsed(String wkt) throws ParseException {
+        Geometry expected = new WKTReader().read(wkt);
+        Geometry parsed = new BigqueryWktParser(DOUBLE_FACTORY).parse(wkt);
+        assertTrue(wkt, expected.equalsExact(parsed));
+    }
+
+    @Test
+    public void testGeometryTypes() throws ParseException {
+        assertParsed("POINT(-78.6382 35.7796)");
+        assertParsed("LINESTRING(0 0, 1 1, 2 -1.5e-3)");
+        assertParsed("POLYGON((0 0, 10 0, 10 10, 0 10, 0 0), (1 1, 2 1, 2 2, 1 1))");
+        assertParsed("MULTIPOINT(1 2, 3 4)");
+        assertParsed("MULTIPOINT((1 2), (3 4))");
+        assertParsed("MULTILINESTRING((0 0, 1 1), (2 2, 3 3))");
+        assertParsed("MULTIPOLYGON(((0 0, 1 0, 1 1, 0 0)), ((5 5, 6 5, 6 6, 5 5)))");
+        assertParsed("GEOMETRYCOLLECTION(POINT(1 2), LINESTRING(0 0, 1 1))");
+    }
+
+    @Test
+    public void testEmpty() throws ParseException {
+        assertTrue(new BigqueryWktParser(DOUBLE_FACTORY).parse("POINT EMPTY").isEmpty());
+        assertTrue(
+                new BigqueryWktParser(DOUBLE_FACTORY).parse("GEOMETRYCOLLECTION EMPTY").isEmpty());
+    }
+
+    @Test
+    public void testPackedSequences() throws ParseException {
+        Polygon polygon =
+                (Polygon)
+                        new BigqueryWktParser(DOUBLE_FACTORY)
+                                .parse("POLYGON((0 0, 10 0, 10 10, 0 10, 0 0))");
+        assertTrue(
+                polygon.getExteriorRing().getCoordinateSequence()
+                        instanceof PackedCoordinateSequence.Double);
+
+        LineString line =
+                (LineString)
+                        new BigqueryWktParser(FLOAT_FACTORY)
+                                .parse("LINESTRING(-78.6382 35.7796, -78.9 36.0)");
+        assertTrue(line.getCoordinateSequence() instanceof PackedCoordinateSequence.Float);
+        assertEquals(-78.6382, line.getCoordinateN(0).x, 1e-5);
+    }
+
+    @Test
+    public void testFallback() throws ParseException {
+        // Z ordinates are left to WKTReader
+        Geometry point = new BigqueryWktParser(DOUBLE_FACTORY).parse("POINT Z(1 2 3)");
+        assertEquals(3, point.getCoordinate().getZ(), 0);
+
+        point = new BigqueryWktParser(DOUBLE_FACTORY).parse("POINT(1 2 3)");
+        assertEquals(3, point.getCoordinate().getZ(), 0);
+    }
+
+    @Test
+    public void testTransform() throws ParseException {
+        MathTransform transform =
+                new AffineTransform2D(AffineTransform.getTranslateInstance(10, 20));
+
+        LineString line =
+                (LineString)
+                        new BigqueryWktParser(DOUBLE_FACTORY, transform)
+                                .parse("LINESTRING(0 0, 1 2)");
+        assertTrue(line.getCoordinateSequence() instanceof PackedCoordinateSequence.Double);
+        assertEquals(11, line.getCoordinateN(1).x, 0);
+        assertEquals(22, line.getCoordinateN(1).y, 0);
+
+        // and the geometries WKTReader parses
+        Geometry point = new BigqueryWktParser(DOUBLE_FACTORY, transform).parse("POINT Z(1 2 3)");
+        assertEquals(11, point.getCoordinate().x, 0);
+    }
+}